@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kahadb.index.BTreeIndex;
+import org.apache.kahadb.page.PageFile;
+import org.apache.kahadb.page.Transaction;
+import org.apache.kahadb.util.IOHelper;
+import org.apache.kahadb.util.LongMarshaller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Puts and gets long keys in a KahaDB BTree index, one transaction per put.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BTreeIndexBenchmark {
+
+    @Param({"10000"})
+    public int preloaded;
+
+    private File directory;
+    private PageFile pageFile;
+    private BTreeIndex<Long, Long> index;
+    private long nextKey;
+    private long nextGet;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = new File("target/benchmark-data/btree");
+        IOHelper.delete(directory);
+        pageFile = new PageFile(directory, "benchmark");
+        pageFile.load();
+
+        Transaction tx = pageFile.tx();
+        long rootPageId = tx.allocate().getPageId();
+        tx.commit();
+
+        index = new BTreeIndex<Long, Long>(pageFile, rootPageId);
+        index.setKeyMarshaller(LongMarshaller.INSTANCE);
+        index.setValueMarshaller(LongMarshaller.INSTANCE);
+        tx = pageFile.tx();
+        index.load(tx);
+        for (nextKey = 0; nextKey < preloaded; nextKey++) {
+            index.put(tx, nextKey, nextKey);
+        }
+        tx.commit();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pageFile.unload();
+        IOHelper.delete(directory);
+    }
+
+    @Benchmark
+    public Long put() throws Exception {
+        Transaction tx = pageFile.tx();
+        Long previous = index.put(tx, nextKey, nextKey);
+        nextKey++;
+        tx.commit();
+        return previous;
+    }
+
+    @Benchmark
+    public Long get() throws Exception {
+        Transaction tx = pageFile.tx();
+        Long value = index.get(tx, nextGet++ % preloaded);
+        tx.commit();
+        return value;
+    }
+}
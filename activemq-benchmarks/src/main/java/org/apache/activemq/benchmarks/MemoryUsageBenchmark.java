@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.usage.MemoryUsage;
+import org.apache.activemq.usage.Usage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adds and removes message sized amounts on a destination memory usage and
+ * its parent system usage from several threads at once, with MemoryUsage and
+ * with a usage that takes the lock on every change, as MemoryUsage used to.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class MemoryUsageBenchmark {
+
+    @Param({"striped", "synchronized"})
+    public String usage;
+
+    @Param({"1024"})
+    public int messageSize;
+
+    private MemoryUsage parent;
+    private MemoryUsage memoryUsage;
+    private SynchronizedUsage synchronizedParent;
+    private SynchronizedUsage synchronizedUsage;
+
+    @Setup
+    public void setUp() {
+        if ("striped".equals(usage)) {
+            parent = new MemoryUsage("system");
+            parent.setLimit(64 * 1024 * 1024);
+            parent.start();
+            memoryUsage = new MemoryUsage(parent, "destination");
+            memoryUsage.start();
+        } else {
+            synchronizedParent = new SynchronizedUsage(null);
+            synchronizedParent.setLimit(64 * 1024 * 1024);
+            synchronizedParent.start();
+            synchronizedUsage = new SynchronizedUsage(synchronizedParent);
+            synchronizedUsage.start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (memoryUsage != null) {
+            memoryUsage.stop();
+            parent.stop();
+        } else {
+            synchronizedUsage.stop();
+            synchronizedParent.stop();
+        }
+    }
+
+    @Benchmark
+    public boolean increaseAndDecrease() {
+        if (memoryUsage != null) {
+            memoryUsage.increaseUsage(messageSize);
+            memoryUsage.decreaseUsage(messageSize);
+            return memoryUsage.isFull();
+        }
+        synchronizedUsage.increaseUsage(messageSize);
+        synchronizedUsage.decreaseUsage(messageSize);
+        return synchronizedUsage.isFull();
+    }
+
+    /**
+     * Keeps the usage in a plain long and works out the percent usage under
+     * the usage lock on every change.
+     */
+    static class SynchronizedUsage extends Usage<SynchronizedUsage> {
+
+        private long usage;
+
+        SynchronizedUsage(SynchronizedUsage parent) {
+            super(parent, "synchronized", 1.0f);
+        }
+
+        public void increaseUsage(long value) {
+            int percentUsage;
+            synchronized (usageMutex) {
+                usage += value;
+                percentUsage = caclPercentUsage();
+            }
+            setPercentUsage(percentUsage);
+            if (parent != null) {
+                parent.increaseUsage(value);
+            }
+        }
+
+        public void decreaseUsage(long value) {
+            int percentUsage;
+            synchronized (usageMutex) {
+                usage -= value;
+                percentUsage = caclPercentUsage();
+            }
+            setPercentUsage(percentUsage);
+            if (parent != null) {
+                parent.decreaseUsage(value);
+            }
+        }
+
+        public boolean isFull() {
+            if (parent != null && parent.isFull()) {
+                return true;
+            }
+            synchronized (usageMutex) {
+                return percentUsage >= 100;
+            }
+        }
+
+        protected long retrieveUsage() {
+            return usage;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.ActiveMQMessageAudit;
+import org.apache.activemq.command.MessageId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checks message ids from a number of producers for duplicates, once for new
+ * ids and once for ids that have already been seen.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageAuditBenchmark {
+
+    @Param({"1", "64"})
+    public int producers;
+
+    private ActiveMQMessageAudit audit;
+    private String[] producerIds;
+    private MessageId[] seen;
+    private long sequence;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        audit = new ActiveMQMessageAudit();
+        producerIds = new String[producers];
+        seen = new MessageId[producers];
+        for (int i = 0; i < producers; i++) {
+            producerIds[i] = "ID:benchmark-" + i + ":1:1:1";
+            seen[i] = new MessageId(producerIds[i], 1);
+            audit.isDuplicate(seen[i]);
+        }
+        sequence = 1;
+    }
+
+    @Benchmark
+    public boolean newMessage() {
+        int producer = next++ % producers;
+        if (producer == 0) {
+            sequence++;
+        }
+        return audit.isDuplicate(new MessageId(producerIds[producer], sequence));
+    }
+
+    @Benchmark
+    public boolean duplicateMessage() {
+        return audit.isDuplicate(seen[next++ % producers]);
+    }
+}
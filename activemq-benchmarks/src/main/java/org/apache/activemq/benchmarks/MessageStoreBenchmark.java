@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.store.MessageStore;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adds a persistent message to a KahaDB queue store and acks it, without
+ * journal disk syncs so the index update dominates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageStoreBenchmark {
+
+    private static final String PRODUCER = "ID:benchmark-1:1:1:1";
+
+    @Param({"1024"})
+    public int payloadSize;
+
+    private KahaDBPersistenceAdapter adapter;
+    private MessageStore store;
+    private ConnectionContext context;
+    private String payload;
+    private long sequence;
+
+    @Setup
+    public void setUp() throws Exception {
+        adapter = new KahaDBPersistenceAdapter();
+        adapter.setDirectory(new File("target/benchmark-data/kahadb"));
+        adapter.deleteAllMessages();
+        adapter.setEnableJournalDiskSyncs(false);
+        adapter.start();
+        store = adapter.createQueueMessageStore(new ActiveMQQueue("Benchmark"));
+        context = new ConnectionContext();
+        payload = new String(new byte[payloadSize], "US-ASCII");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        adapter.stop();
+    }
+
+    @Benchmark
+    public void addAndRemove() throws Exception {
+        MessageId messageId = new MessageId(PRODUCER, ++sequence);
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setMessageId(messageId);
+        message.setDestination(store.getDestination());
+        message.setPersistent(true);
+        message.setText(payload);
+        store.addMessage(context, message);
+
+        MessageAck ack = new MessageAck();
+        ack.setDestination(store.getDestination());
+        ack.setLastMessageId(messageId);
+        ack.setAckType(MessageAck.STANDARD_ACK_TYPE);
+        ack.setMessageCount(1);
+        store.removeMessage(context, ack);
+    }
+}
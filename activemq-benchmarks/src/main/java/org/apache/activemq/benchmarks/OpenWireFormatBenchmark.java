@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQMapMessage;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.util.ByteSequence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Marshals and unmarshals a message of each type with the OpenWire format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpenWireFormatBenchmark {
+
+    @Param({"text", "bytes", "map", "properties"})
+    public String messageType;
+
+    @Param({"1024"})
+    public int payloadSize;
+
+    @Param({"true", "false"})
+    public boolean tightEncoding;
+
+    private OpenWireFormat wireFormat;
+    private ActiveMQMessage message;
+    private ByteSequence marshalled;
+
+    @Setup
+    public void setUp() throws Exception {
+        wireFormat = new OpenWireFormat();
+        wireFormat.setTightEncodingEnabled(tightEncoding);
+        wireFormat.setCacheEnabled(false);
+
+        byte[] payload = new byte[payloadSize];
+        if ("text".equals(messageType)) {
+            ActiveMQTextMessage text = new ActiveMQTextMessage();
+            text.setText(new String(payload, "US-ASCII"));
+            message = text;
+        } else if ("bytes".equals(messageType)) {
+            ActiveMQBytesMessage bytes = new ActiveMQBytesMessage();
+            bytes.writeBytes(payload);
+            bytes.reset();
+            message = bytes;
+        } else if ("map".equals(messageType)) {
+            ActiveMQMapMessage map = new ActiveMQMapMessage();
+            for (int i = 0; i < 10; i++) {
+                map.setString("key" + i, new String(payload, 0, payloadSize / 10, "US-ASCII"));
+            }
+            message = map;
+        } else if ("properties".equals(messageType)) {
+            ActiveMQTextMessage text = new ActiveMQTextMessage();
+            text.setText(new String(payload, "US-ASCII"));
+            for (int i = 0; i < 10; i++) {
+                text.setStringProperty("property" + i, "value" + i);
+                text.setIntProperty("number" + i, i);
+            }
+            message = text;
+        } else {
+            throw new IllegalArgumentException("Unknown message type: " + messageType);
+        }
+        message.setMessageId(new MessageId("ID:benchmark-1:1:1:1", 1));
+        message.setDestination(new ActiveMQQueue("Benchmark"));
+        message.setPersistent(true);
+
+        // the format reuses the buffer it marshals into
+        ByteSequence sequence = wireFormat.marshal(message);
+        byte[] data = new byte[sequence.getLength()];
+        System.arraycopy(sequence.getData(), sequence.getOffset(), data, 0, data.length);
+        marshalled = new ByteSequence(data);
+    }
+
+    @Benchmark
+    public ByteSequence marshal() throws Exception {
+        return wireFormat.marshal(message);
+    }
+
+    @Benchmark
+    public Object unmarshal() throws Exception {
+        return wireFormat.unmarshal(marshalled);
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.store.kahadb.plist.PList;
+import org.apache.activemq.store.kahadb.plist.PListStore;
+import org.apache.activemq.util.IOHelper;
+import org.apache.kahadb.util.ByteSequence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adds an entry to a temp store list and removes it again, the way a
+ * non-persistent message passes through a file pending cursor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PListStoreBenchmark {
+
+    @Param({"1024"})
+    public int entrySize;
+
+    private File directory;
+    private PListStore store;
+    private PList list;
+    private ByteSequence entry;
+    private long sequence;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = new File("target/benchmark-data/plist");
+        IOHelper.deleteFile(directory);
+        store = new PListStore();
+        store.setDirectory(directory);
+        store.start();
+        list = store.getPList("benchmark");
+        entry = new ByteSequence(new byte[entrySize]);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.stop();
+        IOHelper.deleteFile(directory);
+    }
+
+    @Benchmark
+    public boolean addAndRemove() throws Exception {
+        String id = "ID:benchmark-1:1:1:" + sequence++;
+        list.addLast(id, entry);
+        return list.remove(id);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sends a non-persistent message to a queue of an embedded broker over the vm
+ * transport and receives it again. Every benchmark thread has its own queue.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueDispatchBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Broker {
+
+        private BrokerService broker;
+        private Connection connection;
+
+        @Setup
+        public void setUp() throws Exception {
+            broker = new BrokerService();
+            broker.setBrokerName("benchmark");
+            broker.setPersistent(false);
+            broker.setUseJmx(false);
+            broker.start();
+            broker.waitUntilStarted();
+
+            ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory("vm://benchmark?create=false");
+            connection = factory.createConnection();
+            connection.start();
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            connection.close();
+            broker.stop();
+            broker.waitUntilStopped();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        @Param({"1024"})
+        public int payloadSize;
+
+        private Session session;
+        private MessageProducer producer;
+        private MessageConsumer consumer;
+        private Message message;
+
+        @Setup
+        public void setUp(Broker broker) throws Exception {
+            session = broker.connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            javax.jms.Queue queue = session.createQueue("Benchmark." + Thread.currentThread().getId());
+            producer = session.createProducer(queue);
+            producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            consumer = session.createConsumer(queue);
+            message = session.createTextMessage(new String(new byte[payloadSize], "US-ASCII"));
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            session.close();
+        }
+    }
+
+    @Benchmark
+    public Message sendAndReceive(Client client) throws Exception {
+        client.producer.send(client.message);
+        return client.consumer.receive(10000);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.filter.BooleanExpression;
+import org.apache.activemq.filter.MessageEvaluationContext;
+import org.apache.activemq.filter.SelectorCompiler;
+import org.apache.activemq.selector.SelectorParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluates a selector against a message, interpreted and compiled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectorBenchmark {
+
+    @Param({
+        "color = 'red'",
+        "color = 'red' AND price > 10",
+        "color IN ('blue', 'green', 'red') OR quantity BETWEEN 5 AND 50",
+        "name LIKE 'ord%' AND JMSPriority > 3"
+    })
+    public String selector;
+
+    @Param({"false", "true"})
+    public boolean compiled;
+
+    private BooleanExpression expression;
+    private MessageEvaluationContext context;
+
+    @Setup
+    public void setUp() throws Exception {
+        expression = SelectorParser.parse(selector);
+        if (compiled) {
+            expression = SelectorCompiler.compile(expression);
+        }
+
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setMessageId(new MessageId("ID:benchmark-1:1:1:1", 1));
+        message.setDestination(new ActiveMQQueue("Benchmark"));
+        message.setText("benchmark");
+        message.setJMSPriority(7);
+        message.setStringProperty("color", "red");
+        message.setStringProperty("name", "order-42");
+        message.setIntProperty("price", 20);
+        message.setIntProperty("quantity", 12);
+
+        context = new MessageEvaluationContext();
+        context.setDestination(message.getDestination());
+        context.setMessageReference(message);
+    }
+
+    @Benchmark
+    public boolean matches() throws Exception {
+        return expression.matches(context);
+    }
+}
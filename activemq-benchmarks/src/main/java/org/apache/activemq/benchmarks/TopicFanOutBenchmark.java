@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.policy.ParallelDispatchPolicy;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.broker.region.policy.SimpleDispatchPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sends non-persistent messages to a topic with many non-durable subscribers
+ * over the vm transport, with the simple and the parallel dispatch policy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicFanOutBenchmark {
+
+    private static final int CONSUMERS_PER_SESSION = 100;
+
+    @Param({"100", "1000", "5000"})
+    public int subscribers;
+
+    @Param({"simple", "parallel"})
+    public String dispatchPolicy;
+
+    @Param({"256"})
+    public int payloadSize;
+
+    private BrokerService broker;
+    private List<Connection> connections = new ArrayList<Connection>();
+    private Session session;
+    private MessageProducer producer;
+    private Message message;
+
+    @Setup
+    public void setUp() throws Exception {
+        PolicyEntry policy = new PolicyEntry();
+        policy.setDispatchPolicy("parallel".equals(dispatchPolicy) ? new ParallelDispatchPolicy() : new SimpleDispatchPolicy());
+        PolicyMap policyMap = new PolicyMap();
+        policyMap.setDefaultEntry(policy);
+
+        broker = new BrokerService();
+        broker.setBrokerName("fanout");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setDestinationPolicy(policyMap);
+        broker.start();
+        broker.waitUntilStarted();
+
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory("vm://fanout?create=false");
+        factory.setAlwaysSyncSend(true);
+        MessageListener listener = new MessageListener() {
+            public void onMessage(Message message) {
+            }
+        };
+
+        Connection connection = null;
+        Session consumerSession = null;
+        for (int i = 0; i < subscribers; i++) {
+            // spread the subscribers over connections so the clients do not
+            // all queue up behind one session thread
+            if (i % CONSUMERS_PER_SESSION == 0) {
+                connection = factory.createConnection();
+                connection.start();
+                connections.add(connection);
+                consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            }
+            consumerSession.createConsumer(consumerSession.createTopic("Benchmark.FanOut")).setMessageListener(listener);
+        }
+
+        Connection producerConnection = factory.createConnection();
+        producerConnection.start();
+        connections.add(producerConnection);
+        session = producerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Topic topic = session.createTopic("Benchmark.FanOut");
+        producer = session.createProducer(topic);
+        producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        message = session.createTextMessage(new String(new byte[payloadSize], "US-ASCII"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        connections.clear();
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    @Benchmark
+    public void send() throws Exception {
+        producer.send(message);
+    }
+}
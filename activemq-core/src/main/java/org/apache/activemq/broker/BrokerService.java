@@ -78,6 +78,7 @@ import org.apache.activemq.broker.region.virtual.MirroredQueue;
 import org.apache.activemq.broker.region.virtual.VirtualDestination;
 import org.apache.activemq.broker.region.virtual.VirtualDestinationInterceptor;
 import org.apache.activemq.broker.region.virtual.VirtualTopic;
+import org.apache.activemq.broker.scheduler.JobSchedulerStore;
 import org.apache.activemq.broker.scheduler.SchedulerBroker;
 import org.apache.activemq.command.ActiveMQDestination;
 import org.apache.activemq.command.ActiveMQQueue;
@@ -215,6 +216,7 @@ public class BrokerService implements Service {
     private IOExceptionHandler ioExceptionHandler;
     private boolean schedulerSupport = false;
     private File schedulerDirectoryFile;
+    private JobSchedulerStore jobSchedulerStore;
     private Scheduler scheduler;
     private ThreadPoolExecutor executor;
     private boolean slave = true;
@@ -2154,7 +2156,7 @@ public class BrokerService implements Service {
      */
     protected Broker addInterceptors(Broker broker) throws Exception {
         if (isSchedulerSupport()) {
-            SchedulerBroker sb = new SchedulerBroker(broker, getSchedulerDirectoryFile());
+            SchedulerBroker sb = new SchedulerBroker(broker, getSchedulerDirectoryFile(), getJobSchedulerStore());
             if (isUseJmx()) {
                 JobSchedulerViewMBean view = new JobSchedulerView(sb.getJobScheduler());
                 try {
@@ -2709,6 +2711,22 @@ public class BrokerService implements Service {
         setSchedulerDirectoryFile(new File(schedulerDirectory));
     }
 
+    /**
+     * @return the store of scheduled messages, or null if the scheduler
+     *         creates a default store in the scheduler directory
+     */
+    public JobSchedulerStore getJobSchedulerStore() {
+        return this.jobSchedulerStore;
+    }
+
+    /**
+     * @param jobSchedulerStore the store of scheduled messages. If it has no
+     *                directory it is given the scheduler directory
+     */
+    public void setJobSchedulerStore(JobSchedulerStore jobSchedulerStore) {
+        this.jobSchedulerStore = jobSchedulerStore;
+    }
+
     public int getSchedulePeriodForDestinationPurge() {
         return this.schedulePeriodForDestinationPurge;
     }
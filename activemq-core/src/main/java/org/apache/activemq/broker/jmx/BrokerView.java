@@ -23,7 +23,9 @@ import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -33,13 +35,17 @@ import org.apache.activemq.ActiveMQConnectionMetaData;
 import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.broker.ConnectionContext;
 import org.apache.activemq.broker.TransportConnector;
+import org.apache.activemq.broker.region.DestinationInterceptor;
 import org.apache.activemq.broker.region.Subscription;
+import org.apache.activemq.broker.region.virtual.VirtualDestinationInterceptor;
 import org.apache.activemq.command.ActiveMQQueue;
 import org.apache.activemq.command.ActiveMQTopic;
 import org.apache.activemq.command.ConsumerId;
 import org.apache.activemq.command.ConsumerInfo;
 import org.apache.activemq.command.RemoveSubscriptionInfo;
+import org.apache.activemq.filter.DestinationMap;
 import org.apache.activemq.network.NetworkConnector;
+import org.apache.activemq.security.AuthorizationBroker;
 import org.apache.activemq.util.BrokerSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -101,6 +107,46 @@ public class BrokerView implements BrokerViewMBean {
         brokerService.stopGracefully(connectorName, queueName, timeout, pollInterval);
     }
 
+    public long getDestinationLookupCacheHits() {
+        long hits = 0;
+        for (DestinationMap map : getLookupCachedMaps()) {
+            hits += map.getLookupCacheHits();
+        }
+        return hits;
+    }
+
+    public long getDestinationLookupCacheMisses() {
+        long misses = 0;
+        for (DestinationMap map : getLookupCachedMaps()) {
+            misses += map.getLookupCacheMisses();
+        }
+        return misses;
+    }
+
+    private List<DestinationMap> getLookupCachedMaps() {
+        List<DestinationMap> maps = new ArrayList<DestinationMap>();
+        if (brokerService.getDestinationPolicy() != null) {
+            maps.add(brokerService.getDestinationPolicy());
+        }
+        try {
+            AuthorizationBroker authorizationBroker = (AuthorizationBroker) brokerService.getBroker().getAdaptor(AuthorizationBroker.class);
+            if (authorizationBroker != null && authorizationBroker.getAuthorizationMap() instanceof DestinationMap) {
+                maps.add((DestinationMap) authorizationBroker.getAuthorizationMap());
+            }
+        } catch (Exception e) {
+            LOG.debug("Could not look up the authorization map", e);
+        }
+        DestinationInterceptor[] interceptors = brokerService.getDestinationInterceptors();
+        if (interceptors != null) {
+            for (DestinationInterceptor interceptor : interceptors) {
+                if (interceptor instanceof VirtualDestinationInterceptor) {
+                    maps.add(((VirtualDestinationInterceptor) interceptor).getDestinationMap());
+                }
+            }
+        }
+        return maps;
+    }
+
     public long getTotalEnqueueCount() {
         return safeGetBroker().getDestinationStatistics().getEnqueues().getCount();
     }
@@ -163,6 +209,9 @@ public class BrokerView implements BrokerViewMBean {
 
     public void resetStatistics() {
         safeGetBroker().getDestinationStatistics().reset();
+        for (DestinationMap map : getLookupCachedMaps()) {
+            map.resetLookupCacheStatistics();
+        }
     }
 
     public void enableStatistics() {
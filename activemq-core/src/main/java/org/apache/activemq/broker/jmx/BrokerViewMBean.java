@@ -67,6 +67,12 @@ public interface BrokerViewMBean extends Service {
     @MBeanInfo("Broker statistics enabled.")
     boolean isStatisticsEnabled();
 
+    @MBeanInfo("Number of policy, authorization and virtual destination lookups answered from the lookup caches.")
+    long getDestinationLookupCacheHits();
+
+    @MBeanInfo("Number of policy, authorization and virtual destination lookups that missed the lookup caches.")
+    long getDestinationLookupCacheMisses();
+
     @MBeanInfo("Number of messages that have been sent to the broker.")
     long getTotalEnqueueCount();
 
@@ -96,6 +96,22 @@ public class JobSchedulerView implements JobSchedulerViewMBean {
 
     }
 
+    public long getFiredJobCount() throws Exception {
+        return this.jobScheduler.getSchedulingLatency().getCount();
+    }
+
+    public double getAverageSchedulingLatency() throws Exception {
+        return this.jobScheduler.getSchedulingLatency().getAverageTime();
+    }
+
+    public long getMaxSchedulingLatency() throws Exception {
+        return this.jobScheduler.getSchedulingLatency().getMaxTime();
+    }
+
+    public void resetStatistics() throws Exception {
+        this.jobScheduler.getSchedulingLatency().reset();
+    }
+
     public void removeJobAtScheduledTime(String time) throws IOException {
         // TODO Auto-generated method stub
 
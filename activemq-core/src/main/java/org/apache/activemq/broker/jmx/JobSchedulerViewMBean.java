@@ -90,4 +90,32 @@ public interface JobSchedulerViewMBean {
      */
     @MBeanInfo("get the scheduled Jobs in the Store within the time range. Not HTML friendly ")
     public abstract TabularData getAllJobs(@MBeanInfo("start: yyyy-MM-dd hh:mm:ss")String start,@MBeanInfo("finish: yyyy-MM-dd hh:mm:ss")String finish)throws Exception;
+
+    /**
+     * @return the number of jobs fired
+     * @throws Exception
+     */
+    @MBeanInfo("Number of jobs fired since the scheduler started or its statistics were reset")
+    public abstract long getFiredJobCount() throws Exception;
+
+    /**
+     * @return the average time in milliseconds from when a job was due to when it was fired
+     * @throws Exception
+     */
+    @MBeanInfo("Average time in milliseconds from when a job was due to when it was fired")
+    public abstract double getAverageSchedulingLatency() throws Exception;
+
+    /**
+     * @return the longest time in milliseconds from when a job was due to when it was fired
+     * @throws Exception
+     */
+    @MBeanInfo("Longest time in milliseconds from when a job was due to when it was fired")
+    public abstract long getMaxSchedulingLatency() throws Exception;
+
+    /**
+     * reset the scheduling latency statistics
+     * @throws Exception
+     */
+    @MBeanInfo("Resets the scheduling latency statistics")
+    public abstract void resetStatistics() throws Exception;
 }
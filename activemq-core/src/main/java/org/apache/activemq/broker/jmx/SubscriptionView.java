@@ -24,6 +24,8 @@ import javax.management.ObjectName;
 
 import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.broker.region.AdaptivePrefetchController;
+import org.apache.activemq.broker.region.PrefetchSubscription;
 import org.apache.activemq.broker.region.Subscription;
 import org.apache.activemq.command.ActiveMQDestination;
 import org.apache.activemq.command.ActiveMQQueue;
@@ -327,6 +329,23 @@ public class SubscriptionView implements SubscriptionViewMBean {
         return subscription != null ? subscription.getPrefetchSize() : 0;
     }
 
+    public int getEffectivePrefetchSize() {
+        if (subscription instanceof PrefetchSubscription) {
+            return ((PrefetchSubscription) subscription).getEffectivePrefetchSize();
+        }
+        return getPrefetchSize();
+    }
+
+    public double getAckRate() {
+        if (subscription instanceof PrefetchSubscription) {
+            AdaptivePrefetchController controller = ((PrefetchSubscription) subscription).getAdaptivePrefetch();
+            if (controller != null) {
+                return controller.getAckRate();
+            }
+        }
+        return -1;
+    }
+
     public boolean isMatchingQueue(String queueName) {
         if (isDestinationQueue()) {
             return matchesDestination(new ActiveMQQueue(queueName));
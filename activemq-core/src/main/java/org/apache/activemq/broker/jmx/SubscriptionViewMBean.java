@@ -134,6 +134,21 @@ public interface SubscriptionViewMBean {
     @MBeanInfo("Number of messages to pre-fetch and dispatch to the client.")
     int getPrefetchSize();
 
+    /**
+     * @return the prefetch the broker dispatches with, which is smaller than
+     *         the configured prefetch when it is adapted to the rate the
+     *         subscriber acknowledges at
+     */
+    @MBeanInfo("Number of messages the broker currently pre-fetches to the client.")
+    int getEffectivePrefetchSize();
+
+    /**
+     * @return the rate the subscriber acknowledges messages at, when the
+     *         prefetch is adapted to it
+     */
+    @MBeanInfo("Messages per second acknowledged by the client, -1 when the prefetch is not adaptive.")
+    double getAckRate();
+
     /**
      * @return whether or not the subscriber is retroactive or not
      */
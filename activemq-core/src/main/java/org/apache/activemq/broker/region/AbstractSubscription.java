@@ -33,6 +33,7 @@ import org.apache.activemq.filter.DestinationFilter;
 import org.apache.activemq.filter.LogicExpression;
 import org.apache.activemq.filter.MessageEvaluationContext;
 import org.apache.activemq.filter.NoLocalExpression;
+import org.apache.activemq.filter.SelectorCompiler;
 import org.apache.activemq.selector.SelectorParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -78,6 +79,9 @@ public abstract class AbstractSubscription implements Subscription {
                 rc = LogicExpression.createAND(info.getAdditionalPredicate(), rc);
             }
         }
+        if (SelectorCompiler.compileSelectors) {
+            rc = SelectorCompiler.compile(rc);
+        }
         return rc;
     }
 
@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+/**
+ * Sizes the prefetch window of a subscription from the rate its consumer
+ * acknowledges messages at, so that a slow consumer does not hold on to
+ * messages that faster consumers could be given.
+ * <p/>
+ * The acknowledgements are counted over sample periods and the rate is
+ * smoothed across samples. The window is the number of messages the consumer
+ * gets through in the buffer time at that rate, kept between the minimum and
+ * the maximum, which defaults to the prefetch size of the consumer. The
+ * average time a message spends dispatched before it is acknowledged follows
+ * from the rate and the number of messages in flight.
+ */
+public class AdaptivePrefetchController {
+
+    private static final double SMOOTHING = 0.5;
+    // the consumer is only told about a change of at least this fraction
+    private static final double NOTIFY_THRESHOLD = 0.1;
+
+    private int minimumPrefetch = 1;
+    private int maximumPrefetch;
+    private long bufferTime = 1000;
+    private long sampleTime = 1000;
+
+    private volatile int prefetch;
+    private int notifiedPrefetch;
+    private long sampleStart = -1;
+    private long sampleAcks;
+    private long sampleInFlight;
+    private double ackRate = -1;
+    private double ackLatency;
+
+    /**
+     * @param consumerPrefetch the prefetch size the consumer asked for
+     * @return the prefetch size to dispatch to the consumer with
+     */
+    public int getPrefetchSize(int consumerPrefetch) {
+        int max = getMaximum(consumerPrefetch);
+        int rc = this.prefetch;
+        return rc == 0 || rc > max ? max : rc;
+    }
+
+    /**
+     * Records that messages were acknowledged and resizes the window at the
+     * end of each sample period.
+     * 
+     * @param count the number of messages acknowledged
+     * @param inFlight the number of messages dispatched and not yet
+     *                acknowledged
+     * @param consumerPrefetch the prefetch size the consumer asked for
+     * @param now the current time
+     * @return true if the window changed enough that the consumer should be
+     *         told its new prefetch size
+     */
+    public synchronized boolean acknowledged(int count, int inFlight, int consumerPrefetch, long now) {
+        if (this.sampleStart < 0) {
+            this.sampleStart = now;
+            this.notifiedPrefetch = getMaximum(consumerPrefetch);
+        }
+        this.sampleAcks += count;
+        this.sampleInFlight += (long) inFlight * count;
+        long elapsed = now - this.sampleStart;
+        if (elapsed < this.sampleTime) {
+            return false;
+        }
+        double rate = this.sampleAcks * 1000d / elapsed;
+        this.ackRate = this.ackRate < 0 ? rate : this.ackRate + SMOOTHING * (rate - this.ackRate);
+        if (this.ackRate > 0) {
+            this.ackLatency = (this.sampleInFlight / (double) this.sampleAcks) * 1000d / this.ackRate;
+        }
+        this.sampleStart = now;
+        this.sampleAcks = 0;
+        this.sampleInFlight = 0;
+
+        int max = getMaximum(consumerPrefetch);
+        long target = (long) Math.ceil(this.ackRate * this.bufferTime / 1000d);
+        this.prefetch = (int) Math.max(Math.min(target, max), Math.min(this.minimumPrefetch, max));
+        if (Math.abs(this.prefetch - this.notifiedPrefetch) >= Math.max(1, this.notifiedPrefetch * NOTIFY_THRESHOLD)) {
+            this.notifiedPrefetch = this.prefetch;
+            return true;
+        }
+        return false;
+    }
+
+    private int getMaximum(int consumerPrefetch) {
+        return this.maximumPrefetch > 0 ? this.maximumPrefetch : consumerPrefetch;
+    }
+
+    /**
+     * @return the smoothed rate in messages per second that the consumer
+     *         acknowledges at, or -1 before the first sample
+     */
+    public synchronized double getAckRate() {
+        return this.ackRate;
+    }
+
+    /**
+     * @return the average time in milliseconds a message is dispatched before
+     *         it is acknowledged
+     */
+    public synchronized double getAckLatency() {
+        return this.ackLatency;
+    }
+
+    public int getMinimumPrefetch() {
+        return minimumPrefetch;
+    }
+
+    /**
+     * @param minimumPrefetch the smallest window the prefetch is resized to,
+     *                at least 1 as a prefetch of 0 would turn the consumer
+     *                into a pull consumer
+     */
+    public void setMinimumPrefetch(int minimumPrefetch) {
+        this.minimumPrefetch = Math.max(1, minimumPrefetch);
+    }
+
+    public int getMaximumPrefetch() {
+        return maximumPrefetch;
+    }
+
+    /**
+     * @param maximumPrefetch the largest window the prefetch is resized to,
+     *                or 0 for the prefetch size of the consumer
+     */
+    public void setMaximumPrefetch(int maximumPrefetch) {
+        this.maximumPrefetch = maximumPrefetch;
+    }
+
+    public long getBufferTime() {
+        return bufferTime;
+    }
+
+    /**
+     * @param bufferTime how long in milliseconds the prefetched messages
+     *                should last the consumer
+     */
+    public void setBufferTime(long bufferTime) {
+        this.bufferTime = bufferTime;
+    }
+
+    public long getSampleTime() {
+        return sampleTime;
+    }
+
+    /**
+     * @param sampleTime the time in milliseconds the acknowledgements are
+     *                counted over before the window is resized
+     */
+    public void setSampleTime(long sampleTime) {
+        this.sampleTime = sampleTime;
+    }
+}
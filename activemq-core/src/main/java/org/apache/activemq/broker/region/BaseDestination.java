@@ -31,6 +31,7 @@ import org.apache.activemq.command.ActiveMQTopic;
 import org.apache.activemq.command.Message;
 import org.apache.activemq.command.MessageAck;
 import org.apache.activemq.command.MessageDispatchNotification;
+import org.apache.activemq.command.ProducerAck;
 import org.apache.activemq.command.ProducerInfo;
 import org.apache.activemq.filter.NonCachedMessageEvaluationContext;
 import org.apache.activemq.security.SecurityContext;
@@ -104,6 +105,7 @@ public abstract class BaseDestination implements Destination {
      * percentage of in-flight messages above which optimize message store is disabled
      */
     private int optimizeMessageStoreInFlightLimit = 10;
+    private volatile ProducerCredits producerCredits;
 
     /**
      * @param brokerService
@@ -232,6 +234,24 @@ public abstract class BaseDestination implements Destination {
 
     public void removeProducer(ConnectionContext context, ProducerInfo info) throws Exception {
         destinationStatistics.getProducers().decrement();
+        ProducerCredits credits = this.producerCredits;
+        if (credits != null) {
+            credits.remove(info.getProducerId());
+        }
+    }
+
+    /**
+     * Acknowledges a message to a producer that sends with a producer window,
+     * giving it back the credit to send more.
+     */
+    protected void producerAck(ConnectionContext context, ProducerInfo producerInfo, Message message) {
+        ProducerCredits credits = this.producerCredits;
+        if (credits != null) {
+            credits.grant(context, producerInfo, message.getSize(), memoryUsage.getPercentUsage());
+        } else {
+            ProducerAck ack = new ProducerAck(producerInfo.getProducerId(), message.getSize());
+            context.getConnection().dispatchAsync(ack);
+        }
     }
 
     public void addSubscription(ConnectionContext context, Subscription sub) throws Exception{
@@ -448,6 +468,35 @@ public abstract class BaseDestination implements Destination {
 
     public void setCursorMemoryHighWaterMark(int cursorMemoryHighWaterMark) {
         this.cursorMemoryHighWaterMark = cursorMemoryHighWaterMark;
+        if (producerCredits != null) {
+            producerCredits.setStartPercent(cursorMemoryHighWaterMark);
+        }
+    }
+
+    public boolean isUseProducerCredits() {
+        return producerCredits != null;
+    }
+
+    /**
+     * @param useProducerCredits if true the credit returned to producers that
+     *                send with a producer window shrinks as the memory usage
+     *                goes over the cursor memory high water mark
+     */
+    public synchronized void setUseProducerCredits(boolean useProducerCredits) {
+        if (useProducerCredits && producerCredits == null) {
+            ProducerCredits credits = new ProducerCredits();
+            credits.setStartPercent(cursorMemoryHighWaterMark);
+            memoryUsage.addUsageListener(credits);
+            producerCredits = credits;
+        } else if (!useProducerCredits && producerCredits != null) {
+            memoryUsage.removeUsageListener(producerCredits);
+            producerCredits.release(0);
+            producerCredits = null;
+        }
+    }
+
+    public ProducerCredits getProducerCredits() {
+        return producerCredits;
     }
 
     /**
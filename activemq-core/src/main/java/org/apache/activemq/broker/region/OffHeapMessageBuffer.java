@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import org.apache.activemq.command.Message;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.util.ByteSequence;
+
+/**
+ * Holds the marshalled form of paged in queue messages in direct (off heap)
+ * {@link ByteBuffer} slabs.
+ *
+ * Messages are appended to the current slab until it is full. A slab is
+ * recycled once every message stored in it has been released, so a long lived
+ * message keeps its whole slab allocated. Messages larger than a slab get a
+ * slab of their own.
+ */
+public class OffHeapMessageBuffer {
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    private static final int MAX_FREE_SLABS = 4;
+
+    private final OpenWireFormat wireFormat = new OpenWireFormat();
+    private final LinkedList<Slab> freeSlabs = new LinkedList<Slab>();
+    private final int slabSize;
+    private Slab current;
+    private long allocatedSize;
+    private long storedSize;
+
+    public OffHeapMessageBuffer() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    public OffHeapMessageBuffer(int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * A marshalled message stored in a slab
+     */
+    static final class Slot {
+        final Slab slab;
+        final int offset;
+        final int length;
+
+        Slot(Slab slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    static final class Slab {
+        final ByteBuffer buffer;
+        int live;
+
+        Slab(int size) {
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    /**
+     * Marshals the message into the buffer.
+     */
+    public Slot store(Message message) throws IOException {
+        ByteSequence packet = wireFormat.marshal(message);
+        synchronized (this) {
+            Slab slab = allocate(packet.length);
+            int offset = slab.buffer.position();
+            slab.buffer.put(packet.data, packet.offset, packet.length);
+            slab.live++;
+            storedSize += packet.length;
+            return new Slot(slab, offset, packet.length);
+        }
+    }
+
+    /**
+     * Unmarshals a copy of a message previously stored in the buffer.
+     */
+    public Message load(Slot slot) throws IOException {
+        byte[] data = new byte[slot.length];
+        synchronized (this) {
+            ByteBuffer view = slot.slab.buffer.duplicate();
+            view.position(slot.offset);
+            view.get(data);
+        }
+        return (Message) wireFormat.unmarshal(new ByteSequence(data));
+    }
+
+    /**
+     * Releases the space used by a stored message.
+     */
+    public synchronized void free(Slot slot) {
+        Slab slab = slot.slab;
+        storedSize -= slot.length;
+        if (--slab.live == 0) {
+            if (slab == current) {
+                slab.buffer.clear();
+            } else {
+                recycle(slab);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes of direct memory held by the slabs
+     */
+    public synchronized long getAllocatedSize() {
+        return allocatedSize;
+    }
+
+    /**
+     * @return the number of bytes of marshalled messages currently stored
+     */
+    public synchronized long getStoredSize() {
+        return storedSize;
+    }
+
+    private Slab allocate(int length) {
+        if (length > slabSize) {
+            Slab oversized = new Slab(length);
+            allocatedSize += length;
+            return oversized;
+        }
+        if (current == null || current.buffer.remaining() < length) {
+            if (current != null && current.live == 0) {
+                current.buffer.clear();
+            } else {
+                current = freeSlabs.isEmpty() ? newSlab() : freeSlabs.removeFirst();
+            }
+        }
+        return current;
+    }
+
+    private Slab newSlab() {
+        allocatedSize += slabSize;
+        return new Slab(slabSize);
+    }
+
+    private void recycle(Slab slab) {
+        if (slab.buffer.capacity() == slabSize && freeSlabs.size() < MAX_FREE_SLABS) {
+            slab.buffer.clear();
+            freeSlabs.add(slab);
+        } else {
+            // the direct memory is returned when the buffer is collected
+            allocatedSize -= slab.buffer.capacity();
+        }
+    }
+}
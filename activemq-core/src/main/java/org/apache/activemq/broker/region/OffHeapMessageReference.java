@@ -0,0 +1,261 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import java.io.IOException;
+
+import org.apache.activemq.command.ConsumerId;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.usage.MemoryUsage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A paged in queue message whose marshalled form is kept in an
+ * {@link OffHeapMessageBuffer}. Only the headers needed to select and dispatch
+ * the message are kept on the heap, the message itself is unmarshalled when it
+ * is first needed and is held while a subscription has it locked.
+ *
+ * The reference takes over the reference count of the message it was created
+ * from, increments and decrements made through that message (by the store or
+ * the cursor) or through the unmarshalled copies are applied to the reference,
+ * so the destination memory usage is accounted for exactly as it is for an
+ * {@link IndirectMessageReference}.
+ */
+public class OffHeapMessageReference implements QueueMessageReference {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapMessageReference.class);
+
+    private final OffHeapMessageBuffer buffer;
+    private OffHeapMessageBuffer.Slot slot;
+    private final MessageId messageId;
+    private final Destination regionDestination;
+    private final MemoryUsage memoryUsage;
+    private final ConsumerId targetConsumerId;
+    private final String groupId;
+    private final int groupSequence;
+    private final long expiration;
+    private final byte priority;
+    private final boolean persistent;
+    private final boolean advisory;
+    private final int size;
+    private int redeliveryCounter;
+    private int referenceCount;
+    private LockOwner lockOwner;
+    private boolean dropped;
+    private boolean acked;
+    private Message message;
+
+    public OffHeapMessageReference(OffHeapMessageBuffer buffer, Message message) throws IOException {
+        this.buffer = buffer;
+        this.slot = buffer.store(message);
+        this.messageId = message.getMessageId();
+        this.regionDestination = message.getRegionDestination();
+        this.memoryUsage = message.getMemoryUsage();
+        this.targetConsumerId = message.getTargetConsumerId();
+        this.groupId = message.getGroupID();
+        this.groupSequence = message.getGroupSequence();
+        this.expiration = message.getExpiration();
+        this.priority = message.getPriority();
+        this.persistent = message.isPersistent();
+        this.advisory = message.isAdvisory();
+        this.size = message.getSize();
+        this.redeliveryCounter = message.getRedeliveryCounter();
+        synchronized (this) {
+            this.referenceCount = message.transferReferenceCount(this);
+        }
+    }
+
+    public Message getMessageHardRef() {
+        return getMessage();
+    }
+
+    public synchronized Message getMessage() {
+        if (message == null) {
+            if (slot == null) {
+                throw new IllegalStateException("Paged in message " + messageId + " has already been released");
+            }
+            try {
+                message = load(slot);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to unmarshal paged in message " + messageId, e);
+            }
+        }
+        return message;
+    }
+
+    private Message load(OffHeapMessageBuffer.Slot slot) throws IOException {
+        Message result = buffer.load(slot);
+        result.setRegionDestination(regionDestination);
+        result.setMemoryUsage(memoryUsage);
+        result.setRedeliveryCounter(redeliveryCounter);
+        result.transferReferenceCount(this);
+        return result;
+    }
+
+    /**
+     * Drops the unmarshalled message if no subscription has it locked, it is
+     * unmarshalled again from the buffer when it is next needed.
+     */
+    public synchronized void release() {
+        if (lockOwner == null && slot != null) {
+            message = null;
+        }
+    }
+
+    public synchronized int getReferenceCount() {
+        return referenceCount;
+    }
+
+    public int incrementReferenceCount() {
+        int rc;
+        synchronized (this) {
+            rc = ++referenceCount;
+        }
+        if (rc == 1 && memoryUsage != null) {
+            memoryUsage.increaseUsage(size);
+        }
+        return rc;
+    }
+
+    public int decrementReferenceCount() {
+        int rc;
+        OffHeapMessageBuffer.Slot toFree = null;
+        synchronized (this) {
+            rc = --referenceCount;
+            if (rc == 0 && slot != null) {
+                if (message == null) {
+                    // keep the message readable for whoever dropped the last reference
+                    try {
+                        message = load(slot);
+                    } catch (IOException e) {
+                        LOG.warn("Failed to unmarshal released message " + messageId, e);
+                    }
+                }
+                toFree = slot;
+                slot = null;
+            }
+        }
+        if (rc == 0) {
+            if (memoryUsage != null) {
+                memoryUsage.decreaseUsage(size);
+            }
+            if (toFree != null) {
+                buffer.free(toFree);
+            }
+        }
+        return rc;
+    }
+
+    public synchronized void incrementRedeliveryCounter() {
+        redeliveryCounter++;
+        if (message != null) {
+            message.incrementRedeliveryCounter();
+        }
+    }
+
+    public synchronized int getRedeliveryCounter() {
+        return redeliveryCounter;
+    }
+
+    public synchronized boolean isDropped() {
+        return dropped;
+    }
+
+    public void drop() {
+        synchronized (this) {
+            dropped = true;
+            lockOwner = null;
+        }
+        decrementReferenceCount();
+    }
+
+    public synchronized boolean lock(LockOwner subscription) {
+        if (dropped || lockOwner != null) {
+            return false;
+        }
+        lockOwner = subscription;
+        return true;
+    }
+
+    public synchronized boolean unlock() {
+        boolean result = lockOwner != null;
+        lockOwner = null;
+        return result;
+    }
+
+    public synchronized LockOwner getLockOwner() {
+        return lockOwner;
+    }
+
+    public synchronized boolean isAcked() {
+        return acked;
+    }
+
+    public synchronized void setAcked(boolean b) {
+        acked = b;
+    }
+
+    public MessageId getMessageId() {
+        return messageId;
+    }
+
+    public Destination getRegionDestination() {
+        return regionDestination;
+    }
+
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    public ConsumerId getTargetConsumerId() {
+        return targetConsumerId;
+    }
+
+    public String getGroupID() {
+        return groupId;
+    }
+
+    public int getGroupSequence() {
+        return groupSequence;
+    }
+
+    public byte getPriority() {
+        return priority;
+    }
+
+    public long getExpiration() {
+        return expiration;
+    }
+
+    public boolean isExpired() {
+        return expiration > 0 && System.currentTimeMillis() > expiration;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isAdvisory() {
+        return advisory;
+    }
+
+    public String toString() {
+        return "OffHeapMessage " + messageId + " dropped=" + dropped + " acked=" + acked + " locked=" + (lockOwner != null);
+    }
+}
@@ -59,6 +59,7 @@ public abstract class PrefetchSubscription extends AbstractSubscription {
     protected final List<MessageReference> dispatched = new ArrayList<MessageReference>();
     protected final AtomicInteger prefetchExtension = new AtomicInteger();
     protected boolean usePrefetchExtension = true;
+    protected AdaptivePrefetchController adaptivePrefetch;
     protected long enqueueCounter;
     protected long dispatchCounter;
     protected long dequeueCounter;
@@ -257,6 +258,9 @@ public abstract class PrefetchSubscription extends AbstractSubscription {
                 for (final MessageReference node : removeList) {
                     dispatched.remove(node);
                 }
+                if (callDispatchMatched) {
+                    adaptPrefetch(index);
+                }
                 // this only happens after a reconnect - get an ack which is not
                 // valid
                 if (!callDispatchMatched) {
@@ -287,6 +291,7 @@ public abstract class PrefetchSubscription extends AbstractSubscription {
                             }
                         }
                         acknowledge(context, ack, node);
+                        adaptPrefetch(1);
                         destination = node.getRegionDestination();
                         callDispatchMatched = true;
                         break;
@@ -513,26 +518,53 @@ public abstract class PrefetchSubscription extends AbstractSubscription {
      * @return
      */
     public boolean isFull() {
-        return dispatched.size() - prefetchExtension.get() >= info.getPrefetchSize();
+        return dispatched.size() - prefetchExtension.get() >= getEffectivePrefetchSize();
     }
 
     /**
      * @return true when 60% or more room is left for dispatching messages
      */
     public boolean isLowWaterMark() {
-        return (dispatched.size() - prefetchExtension.get()) <= (info.getPrefetchSize() * .4);
+        return (dispatched.size() - prefetchExtension.get()) <= (getEffectivePrefetchSize() * .4);
     }
 
     /**
      * @return true when 10% or less room is left for dispatching messages
      */
     public boolean isHighWaterMark() {
-        return (dispatched.size() - prefetchExtension.get()) >= (info.getPrefetchSize() * .9);
+        return (dispatched.size() - prefetchExtension.get()) >= (getEffectivePrefetchSize() * .9);
     }
 
     @Override
     public int countBeforeFull() {
-        return info.getPrefetchSize() + prefetchExtension.get() - dispatched.size();
+        return getEffectivePrefetchSize() + prefetchExtension.get() - dispatched.size();
+    }
+
+    /**
+     * @return the prefetch size messages are dispatched with, which the
+     *         adaptive prefetch controller may have made smaller than the
+     *         prefetch size of the consumer
+     */
+    public int getEffectivePrefetchSize() {
+        AdaptivePrefetchController controller = this.adaptivePrefetch;
+        int prefetch = info.getPrefetchSize();
+        return controller != null && prefetch > 0 ? controller.getPrefetchSize(prefetch) : prefetch;
+    }
+
+    // called with dispatchLock held
+    private void adaptPrefetch(int acked) {
+        AdaptivePrefetchController controller = this.adaptivePrefetch;
+        int prefetch = info.getPrefetchSize();
+        if (controller != null && prefetch > 0 && acked > 0) {
+            if (controller.acknowledged(acked, dispatched.size(), prefetch, System.currentTimeMillis())) {
+                int effective = controller.getPrefetchSize(prefetch);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(info.getConsumerId() + " prefetch resized to " + effective + ", ack rate: "
+                            + controller.getAckRate() + "/s, ack latency: " + controller.getAckLatency() + "ms");
+                }
+                updateConsumerPrefetch(effective);
+            }
+        }
     }
 
     public int getPendingQueueSize() {
@@ -815,6 +847,19 @@ public abstract class PrefetchSubscription extends AbstractSubscription {
         return this.prefetchExtension.get();
     }
 
+    public AdaptivePrefetchController getAdaptivePrefetch() {
+        return this.adaptivePrefetch;
+    }
+
+    /**
+     * @param adaptivePrefetch the controller that resizes the prefetch window
+     *                of this subscription, or null to dispatch with the
+     *                prefetch size of the consumer
+     */
+    public void setAdaptivePrefetch(AdaptivePrefetchController adaptivePrefetch) {
+        this.adaptivePrefetch = adaptivePrefetch;
+    }
+
     @Override
     public void setPrefetchSize(int prefetchSize) {
         this.info.setPrefetchSize(prefetchSize);
@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ProducerAck;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.command.ProducerInfo;
+import org.apache.activemq.usage.Usage;
+import org.apache.activemq.usage.UsageListener;
+
+/**
+ * Hands out send credit to the producers of a destination from the headroom
+ * left in its memory usage.
+ * <p/>
+ * A producer with a producer window may only have its window of bytes in
+ * flight, and gets credit back through the ProducerAck the destination sends
+ * for every message. Once the memory usage goes over the start percent, part
+ * of that credit is withheld, so the window the producer can use shrinks in
+ * step with the headroom left and is closed entirely when the usage is full.
+ * The producer then waits in its own window rather than the broker parking or
+ * blocking its sends. Withheld credit is handed back as the usage falls.
+ */
+public class ProducerCredits implements UsageListener {
+
+    private final Map<ProducerId, Credit> credits = new HashMap<ProducerId, Credit>();
+    private int startPercent = 70;
+
+    static class Credit {
+        final ConnectionContext context;
+        final ProducerId producerId;
+        int windowSize;
+        int withheld;
+
+        Credit(ConnectionContext context, ProducerInfo info) {
+            this.context = context;
+            this.producerId = info.getProducerId();
+            this.windowSize = info.getWindowSize();
+        }
+    }
+
+    /**
+     * Gives a producer credit for a message the destination has taken, less
+     * whatever the memory usage says should be withheld.
+     */
+    public void grant(ConnectionContext context, ProducerInfo info, int size, int percentUsage) {
+        int ack;
+        synchronized (credits) {
+            Credit credit = credits.get(info.getProducerId());
+            if (credit == null) {
+                if (percentUsage <= startPercent) {
+                    ack = size;
+                } else {
+                    credit = new Credit(context, info);
+                    credits.put(info.getProducerId(), credit);
+                    ack = withhold(credit, size, percentUsage);
+                }
+            } else {
+                credit.windowSize = info.getWindowSize();
+                ack = withhold(credit, size, percentUsage);
+                if (credit.withheld == 0) {
+                    credits.remove(info.getProducerId());
+                }
+            }
+        }
+        sendAck(context, info.getProducerId(), ack);
+    }
+
+    /**
+     * Hands back the credit that is no longer withheld at the given usage.
+     */
+    public void release(int percentUsage) {
+        List<Credit> released = null;
+        List<Integer> sizes = null;
+        synchronized (credits) {
+            for (Iterator<Credit> iter = credits.values().iterator(); iter.hasNext();) {
+                Credit credit = iter.next();
+                int ack = withhold(credit, 0, percentUsage);
+                if (ack > 0) {
+                    if (released == null) {
+                        released = new ArrayList<Credit>();
+                        sizes = new ArrayList<Integer>();
+                    }
+                    released.add(credit);
+                    sizes.add(Integer.valueOf(ack));
+                }
+                if (credit.withheld == 0) {
+                    iter.remove();
+                }
+            }
+        }
+        if (released != null) {
+            for (int i = 0; i < released.size(); i++) {
+                Credit credit = released.get(i);
+                sendAck(credit.context, credit.producerId, sizes.get(i).intValue());
+            }
+        }
+    }
+
+    /**
+     * Forgets the credit withheld from a producer that has gone away.
+     */
+    public void remove(ProducerId producerId) {
+        synchronized (credits) {
+            credits.remove(producerId);
+        }
+    }
+
+    /**
+     * @return the bytes of credit withheld from the producer
+     */
+    public int getWithheld(ProducerId producerId) {
+        synchronized (credits) {
+            Credit credit = credits.get(producerId);
+            return credit != null ? credit.withheld : 0;
+        }
+    }
+
+    public void onUsageChanged(@SuppressWarnings("rawtypes") Usage usage, int oldPercentUsage, int newPercentUsage) {
+        if (newPercentUsage < oldPercentUsage) {
+            release(newPercentUsage);
+        }
+    }
+
+    public int getStartPercent() {
+        return startPercent;
+    }
+
+    /**
+     * @param startPercent the memory usage percent above which credit starts
+     *                to be withheld from producers
+     */
+    public void setStartPercent(int startPercent) {
+        this.startPercent = startPercent;
+    }
+
+    protected void sendAck(ConnectionContext context, ProducerId producerId, int size) {
+        if (size > 0 && context.getConnection() != null) {
+            context.getConnection().dispatchAsync(new ProducerAck(producerId, size));
+        }
+    }
+
+    private int withhold(Credit credit, int size, int percentUsage) {
+        int owed = credit.withheld + size;
+        int limit = getWithholdLimit(credit.windowSize, percentUsage);
+        credit.withheld = Math.min(owed, limit);
+        return owed - credit.withheld;
+    }
+
+    private int getWithholdLimit(int windowSize, int percentUsage) {
+        if (percentUsage <= startPercent) {
+            return 0;
+        }
+        if (percentUsage >= 100 || startPercent >= 100) {
+            return windowSize;
+        }
+        return (int) ((long) windowSize * (percentUsage - startPercent) / (100 - startPercent));
+    }
+}
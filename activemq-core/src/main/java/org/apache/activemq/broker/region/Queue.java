@@ -30,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.DelayQueue;
@@ -47,6 +48,7 @@ import javax.jms.JMSException;
 import javax.jms.ResourceAllocationException;
 
 import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.Connection;
 import org.apache.activemq.broker.ConnectionContext;
 import org.apache.activemq.broker.ProducerBrokerExchange;
 import org.apache.activemq.broker.region.cursors.OrderedPendingList;
@@ -55,6 +57,8 @@ import org.apache.activemq.broker.region.cursors.PendingMessageCursor;
 import org.apache.activemq.broker.region.cursors.PrioritizedPendingList;
 import org.apache.activemq.broker.region.cursors.StoreQueueCursor;
 import org.apache.activemq.broker.region.cursors.VMPendingMessageCursor;
+import org.apache.activemq.broker.region.group.ConsistentHashMessageGroupMap;
+import org.apache.activemq.broker.region.group.ConsistentHashMessageGroupMapFactory;
 import org.apache.activemq.broker.region.group.MessageGroupHashBucketFactory;
 import org.apache.activemq.broker.region.group.MessageGroupMap;
 import org.apache.activemq.broker.region.group.MessageGroupMapFactory;
@@ -63,13 +67,13 @@ import org.apache.activemq.broker.region.policy.RoundRobinDispatchPolicy;
 import org.apache.activemq.broker.util.InsertionCountList;
 import org.apache.activemq.command.ActiveMQDestination;
 import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ConsumerControl;
 import org.apache.activemq.command.ConsumerId;
 import org.apache.activemq.command.ExceptionResponse;
 import org.apache.activemq.command.Message;
 import org.apache.activemq.command.MessageAck;
 import org.apache.activemq.command.MessageDispatchNotification;
 import org.apache.activemq.command.MessageId;
-import org.apache.activemq.command.ProducerAck;
 import org.apache.activemq.command.ProducerInfo;
 import org.apache.activemq.command.Response;
 import org.apache.activemq.filter.BooleanExpression;
@@ -87,6 +91,7 @@ import org.apache.activemq.usage.Usage;
 import org.apache.activemq.usage.UsageListener;
 import org.apache.activemq.util.BrokerSupport;
 import org.apache.activemq.util.ThreadPoolUtils;
+import org.apache.activemq.util.TimingWheel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -97,14 +102,20 @@ import org.slf4j.MDC;
  */
 public class Queue extends BaseDestination implements Task, UsageListener {
     protected static final Logger LOG = LoggerFactory.getLogger(Queue.class);
+    private static final long EXPIRATION_TICK = 1000;
+    private static final int EXPIRATION_WHEEL_SIZE = 512;
     protected final TaskRunnerFactory taskFactory;
     protected TaskRunner taskRunner;
     private final ReentrantReadWriteLock consumersLock = new ReentrantReadWriteLock();
     protected final List<Subscription> consumers = new ArrayList<Subscription>(50);
+    // the consumers by id, kept with the list so a group owner is found without a scan
+    private final ConcurrentHashMap<ConsumerId, Subscription> consumersById = new ConcurrentHashMap<ConsumerId, Subscription>();
     private final ReentrantReadWriteLock messagesLock = new ReentrantReadWriteLock();
     protected PendingMessageCursor messages;
     private final ReentrantReadWriteLock pagedInMessagesLock = new ReentrantReadWriteLock();
     private final LinkedHashMap<MessageId, QueueMessageReference> pagedInMessages = new LinkedHashMap<MessageId, QueueMessageReference>();
+    // The paged in messages that have an expiration, by when they expire
+    private final TimingWheel<MessageId> pagedInExpirations = new TimingWheel<MessageId>(EXPIRATION_TICK, EXPIRATION_WHEEL_SIZE, System.currentTimeMillis());
     // Messages that are paged in but have not yet been targeted at a
     // subscription
     private final ReentrantReadWriteLock pagedInPendingDispatchLock = new ReentrantReadWriteLock();
@@ -120,6 +131,10 @@ public class Queue extends BaseDestination implements Task, UsageListener {
     private boolean strictOrderDispatch = false;
     private final QueueDispatchSelector dispatchSelector;
     private boolean optimizedDispatch = false;
+    private boolean concurrentDispatch = false;
+    private final ConcurrentHashMap<Subscription, QueueSubscriptionDispatcher> subscriptionDispatchers = new ConcurrentHashMap<Subscription, QueueSubscriptionDispatcher>();
+    private boolean offHeapPagedInMessages = false;
+    private OffHeapMessageBuffer offHeapMessageBuffer;
     private boolean iterationRunning = false;
     private boolean firstConsumer = false;
     private int timeBeforeDispatchStarts = 0;
@@ -355,6 +370,9 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         }
 
         this.taskRunner = taskFactory.createTaskRunner(this, "Queue:" + destination.getPhysicalName());
+        if (offHeapPagedInMessages && offHeapMessageBuffer == null) {
+            offHeapMessageBuffer = new OffHeapMessageBuffer();
+        }
 
         super.initialize();
         if (store != null) {
@@ -416,6 +434,10 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         }
 
         super.addSubscription(context, sub);
+        if (concurrentDispatch && !(sub instanceof QueueBrowserSubscription)) {
+            subscriptionDispatchers.put(sub, new QueueSubscriptionDispatcher(this, sub, taskFactory,
+                    "QueueDispatch:" + destination.getPhysicalName() + ":" + sub.getConsumerInfo().getConsumerId()));
+        }
         // synchronize with dispatch method so that no new messages are sent
         // while setting up a subscription. avoid out of order messages,
         // duplicates, etc.
@@ -442,6 +464,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                 }
 
                 addToConsumerList(sub);
+                addMessageGroupConsumer(sub);
                 if (sub.getConsumerInfo().isExclusive() || isAllConsumersExclusiveByDefault()) {
                     Subscription exclusiveConsumer = dispatchSelector.getExclusiveConsumer();
                     if (exclusiveConsumer == null) {
@@ -480,6 +503,13 @@ public class Queue extends BaseDestination implements Task, UsageListener {
     public void removeSubscription(ConnectionContext context, Subscription sub, long lastDeiveredSequenceId)
             throws Exception {
         super.removeSubscription(context, sub, lastDeiveredSequenceId);
+        // stop the dispatch stage before taking the dispatch lock as an in
+        // progress add to the subscription may need it to expire a message
+        List<MessageReference> undispatched = null;
+        QueueSubscriptionDispatcher dispatcher = subscriptionDispatchers.remove(sub);
+        if (dispatcher != null) {
+            undispatched = dispatcher.stop();
+        }
         // synchronize with dispatch method so that no new messages are sent
         // while removing up a subscription.
         pagedInPendingDispatchLock.writeLock().lock();
@@ -493,31 +523,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
             consumersLock.writeLock().lock();
             try {
                 removeFromConsumerList(sub);
-                if (sub.getConsumerInfo().isExclusive()) {
-                    Subscription exclusiveConsumer = dispatchSelector.getExclusiveConsumer();
-                    if (exclusiveConsumer == sub) {
-                        exclusiveConsumer = null;
-                        for (Subscription s : consumers) {
-                            if (s.getConsumerInfo().isExclusive()
-                                    && (exclusiveConsumer == null || s.getConsumerInfo().getPriority() > exclusiveConsumer
-                                            .getConsumerInfo().getPriority())) {
-                                exclusiveConsumer = s;
-
-                            }
-                        }
-                        dispatchSelector.setExclusiveConsumer(exclusiveConsumer);
-                    }
-                } else if (isAllConsumersExclusiveByDefault()) {
-                    Subscription exclusiveConsumer = null;
-                    for (Subscription s : consumers) {
-                        if (exclusiveConsumer == null
-                                || s.getConsumerInfo().getPriority() > exclusiveConsumer
-                                .getConsumerInfo().getPriority()) {
-                            exclusiveConsumer = s;
-                                }
-                    }
-                    dispatchSelector.setExclusiveConsumer(exclusiveConsumer);
-                }
+                updateExclusiveConsumer(sub);
                 ConsumerId consumerId = sub.getConsumerInfo().getConsumerId();
                 getMessageGroupOwners().removeConsumer(consumerId);
 
@@ -560,6 +566,12 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                     }
                     redeliveredWaitingDispatch.addMessageLast(qmr);
                 }
+                if (undispatched != null) {
+                    // selected for the subscription but never handed to it
+                    for (MessageReference ref : undispatched) {
+                        redeliveredWaitingDispatch.addMessageLast(ref);
+                    }
+                }
                 if (!redeliveredWaitingDispatch.isEmpty()) {
                     doDispatch(new OrderedPendingList());
                 }
@@ -580,6 +592,92 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         }
     }
 
+    /**
+     * Picks the exclusive consumer again once a subscription no longer takes
+     * messages, called with the consumersLock held.
+     */
+    private void updateExclusiveConsumer(Subscription sub) {
+        if (sub.getConsumerInfo().isExclusive()) {
+            Subscription exclusiveConsumer = dispatchSelector.getExclusiveConsumer();
+            if (exclusiveConsumer == sub) {
+                exclusiveConsumer = null;
+                for (Subscription s : consumers) {
+                    if (s.getConsumerInfo().isExclusive()
+                            && (exclusiveConsumer == null || s.getConsumerInfo().getPriority() > exclusiveConsumer
+                                    .getConsumerInfo().getPriority())) {
+                        exclusiveConsumer = s;
+
+                    }
+                }
+                dispatchSelector.setExclusiveConsumer(exclusiveConsumer);
+            }
+        } else if (isAllConsumersExclusiveByDefault()) {
+            Subscription exclusiveConsumer = null;
+            for (Subscription s : consumers) {
+                if (exclusiveConsumer == null
+                        || s.getConsumerInfo().getPriority() > exclusiveConsumer
+                        .getConsumerInfo().getPriority()) {
+                    exclusiveConsumer = s;
+                        }
+            }
+            dispatchSelector.setExclusiveConsumer(exclusiveConsumer);
+        }
+    }
+
+    /**
+     * Called by a subscription's dispatcher that failed to add a message to
+     * it. The subscription is taken out of the dispatch, its message groups
+     * are released and its consumer is asked to close, and the messages the
+     * dispatcher did not add are dispatched again to the other subscriptions.
+     */
+    void dispatchFailed(QueueSubscriptionDispatcher dispatcher, List<MessageReference> undispatched) {
+        Subscription sub = dispatcher.getSubscription();
+        subscriptionDispatchers.remove(sub, dispatcher);
+        pagedInPendingDispatchLock.writeLock().lock();
+        try {
+            consumersLock.writeLock().lock();
+            try {
+                // it gets nothing more, the rest of the clean up is done when
+                // its consumer is removed
+                if (removeFromConsumerList(sub)) {
+                    updateExclusiveConsumer(sub);
+                    getMessageGroupOwners().removeConsumer(sub.getConsumerInfo().getConsumerId());
+                }
+            } finally {
+                consumersLock.writeLock().unlock();
+            }
+            for (MessageReference ref : undispatched) {
+                QueueMessageReference qmr = (QueueMessageReference) ref;
+                if (qmr.getLockOwner() == sub) {
+                    // it got as far as the subscription, which redelivers
+                    // it when it is removed
+                    continue;
+                }
+                redeliveredWaitingDispatch.addMessageLast(qmr);
+            }
+        } finally {
+            pagedInPendingDispatchLock.writeLock().unlock();
+        }
+        closeConsumer(sub);
+        asyncWakeup();
+    }
+
+    private void closeConsumer(Subscription sub) {
+        ConnectionContext context = sub.getContext();
+        Connection connection = context != null ? context.getConnection() : null;
+        if (connection == null) {
+            return;
+        }
+        try {
+            ConsumerControl close = new ConsumerControl();
+            close.setConsumerId(sub.getConsumerInfo().getConsumerId());
+            close.setClose(true);
+            connection.dispatchAsync(close);
+        } catch (Exception e) {
+            LOG.warn("Failed to ask " + sub + " to close", e);
+        }
+    }
+
     public void send(final ProducerBrokerExchange producerExchange, final Message message) throws Exception {
         final ConnectionContext context = producerExchange.getConnectionContext();
         // There is delay between the client sending it and it arriving at the
@@ -597,8 +695,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
             // message not stored - or added to stats yet - so chuck here
             broker.getRoot().messageExpired(context, message, null);
             if (sendProducerAck) {
-                ProducerAck ack = new ProducerAck(producerInfo.getProducerId(), message.getSize());
-                context.getConnection().dispatchAsync(ack);
+                producerAck(context, producerInfo, message);
             }
             return;
         }
@@ -654,9 +751,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                                     }
 
                                     if (sendProducerAck) {
-                                        ProducerAck ack = new ProducerAck(producerInfo.getProducerId(), message
-                                                .getSize());
-                                        context.getConnection().dispatchAsync(ack);
+                                        producerAck(context, producerInfo, message);
                                     } else {
                                         Response response = new Response();
                                         response.setCorrelationId(message.getCommandId());
@@ -708,8 +803,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         }
         doMessageSend(producerExchange, message);
         if (sendProducerAck) {
-            ProducerAck ack = new ProducerAck(producerInfo.getProducerId(), message.getSize());
-            context.getConnection().dispatchAsync(ack);
+            producerAck(context, producerInfo, message);
         }
     }
 
@@ -819,15 +913,115 @@ public class Queue extends BaseDestination implements Task, UsageListener {
             LOG.debug(getActiveMQDestination().getQualifiedName() + " expiring messages ..");
         }
 
-        // just track the insertion count
-        List<Message> browsedMessages = new InsertionCountList<Message>();
-        doBrowse(browsedMessages, this.getMaxExpirePageSize());
+        final ConnectionContext connectionContext = createConnectionContext();
+        long now = System.currentTimeMillis();
+        expirePagedInMessages(connectionContext, now);
+        boolean indexed = false;
+        if (store != null) {
+            try {
+                indexed = expireStoredMessages(connectionContext, now);
+            } catch (Exception e) {
+                LOG.error("Failed to expire messages from the store of " + getActiveMQDestination().getQualifiedName(), e);
+            }
+        }
+        if (!indexed) {
+            // just track the insertion count
+            List<Message> browsedMessages = new InsertionCountList<Message>();
+            doBrowse(browsedMessages, this.getMaxExpirePageSize());
+        }
         asyncWakeup();
         if (LOG.isDebugEnabled()) {
             LOG.debug(getActiveMQDestination().getQualifiedName() + " expiring messages done.");
         }
     }
 
+    /**
+     * Expires the paged in messages whose expiration has passed, found through
+     * the timing wheel they were added to when they were paged in.
+     */
+    private void expirePagedInMessages(ConnectionContext connectionContext, long now) {
+        for (MessageId id : pagedInExpirations.expire(now)) {
+            QueueMessageReference ref;
+            pagedInMessagesLock.readLock().lock();
+            try {
+                ref = pagedInMessages.get(id);
+            } finally {
+                pagedInMessagesLock.readLock().unlock();
+            }
+            if (ref != null && !ref.isDropped() && broker.isExpired(ref)) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("expiring from pagedInMessages: " + ref);
+                }
+                pagedInPendingDispatchLock.writeLock().lock();
+                try {
+                    pagedInPendingDispatch.remove(ref);
+                } finally {
+                    pagedInPendingDispatchLock.writeLock().unlock();
+                }
+                messageExpired(connectionContext, ref);
+            }
+        }
+    }
+
+    /**
+     * Expires the messages of the store that are not paged in, if the store
+     * can find the expired messages without a scan of the queue.
+     * 
+     * @return false if the store cannot find the expired messages
+     */
+    private boolean expireStoredMessages(ConnectionContext connectionContext, long now) throws Exception {
+        final List<Message> expired = new ArrayList<Message>();
+        boolean indexed = store.recoverExpired(now, getMaxExpirePageSize(), new MessageRecoveryListener() {
+            public boolean recoverMessage(Message message) {
+                expired.add(message);
+                return true;
+            }
+
+            public boolean recoverMessageReference(MessageId messageReference) {
+                return true;
+            }
+
+            public boolean hasSpace() {
+                return true;
+            }
+
+            public boolean isDuplicate(MessageId id) {
+                return false;
+            }
+        });
+        if (!expired.isEmpty()) {
+            messagesLock.writeLock().lock();
+            try {
+                for (Message message : expired) {
+                    boolean pagedIn;
+                    pagedInMessagesLock.readLock().lock();
+                    try {
+                        pagedIn = pagedInMessages.containsKey(message.getMessageId());
+                    } finally {
+                        pagedInMessagesLock.readLock().unlock();
+                    }
+                    if (!pagedIn) {
+                        QueueMessageReference ref = createMessageReference(message);
+                        if (broker.isExpired(ref)) {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("expiring from store: " + ref);
+                            }
+                            messages.remove(ref);
+                            messageExpired(connectionContext, ref);
+                        }
+                    }
+                }
+                // the cursor may have batched the messages that have gone
+                store.resetBatching();
+                messages.gc();
+                messages.reset();
+            } finally {
+                messagesLock.writeLock().unlock();
+            }
+        }
+        return indexed;
+    }
+
     public void gc() {
     }
 
@@ -883,6 +1077,10 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         if (taskRunner != null) {
             taskRunner.shutdown();
         }
+        for (QueueSubscriptionDispatcher dispatcher : subscriptionDispatchers.values()) {
+            dispatcher.stop();
+        }
+        subscriptionDispatchers.clear();
         if (this.executor != null) {
             ThreadPoolUtils.shutdownNow(executor);
             executor = null;
@@ -969,6 +1167,22 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         this.optimizedDispatch = optimizedDispatch;
     }
 
+    public boolean isConcurrentDispatch() {
+        return concurrentDispatch;
+    }
+
+    public void setConcurrentDispatch(boolean concurrentDispatch) {
+        this.concurrentDispatch = concurrentDispatch;
+    }
+
+    public boolean isOffHeapPagedInMessages() {
+        return offHeapPagedInMessages;
+    }
+
+    public void setOffHeapPagedInMessages(boolean offHeapPagedInMessages) {
+        this.offHeapPagedInMessages = offHeapPagedInMessages;
+    }
+
     public int getTimeBeforeDispatchStarts() {
         return timeBeforeDispatchStarts;
     }
@@ -1001,6 +1215,17 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         return result;
     }
 
+    private QueueMessageReference createPagedInMessageReference(Message message) {
+        if (offHeapMessageBuffer != null) {
+            try {
+                return new OffHeapMessageReference(offHeapMessageBuffer, message);
+            } catch (IOException e) {
+                LOG.warn("Failed to move paged in message " + message.getMessageId() + " off heap", e);
+            }
+        }
+        return createMessageReference(message);
+    }
+
     public Message[] browse() {
         List<Message> browseList = new ArrayList<Message>();
         doBrowse(browseList, getMaxBrowsePageSize());
@@ -1048,6 +1273,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                     } finally {
                         pagedInMessagesLock.writeLock().unlock();
                     }
+                    pagedInExpirations.remove(ref.getMessageId(), ref.getExpiration());
                 }
             }
 
@@ -1224,7 +1450,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
             }
             List<MessageReference> list = new ArrayList<MessageReference>(set);
             for (MessageReference ref : list) {
-                IndirectMessageReference r = (IndirectMessageReference) ref;
+                QueueMessageReference r = (QueueMessageReference) ref;
                 if (filter.evaluate(context, r)) {
 
                     removeMessage(context, r);
@@ -1291,7 +1517,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
             }
             List<MessageReference> list = new ArrayList<MessageReference>(set);
             for (MessageReference ref : list) {
-                IndirectMessageReference r = (IndirectMessageReference) ref;
+                QueueMessageReference r = (QueueMessageReference) ref;
                 if (filter.evaluate(context, r)) {
 
                     r.incrementReferenceCount();
@@ -1636,6 +1862,9 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         }finally {
             pagedInMessagesLock.writeLock().unlock();
         }
+        if (reference.getExpiration() != 0) {
+            pagedInExpirations.remove(reference.getMessageId(), reference.getExpiration());
+        }
     }
 
     public void messageExpired(ConnectionContext context, MessageReference reference) {
@@ -1759,7 +1988,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                         MessageReference node = messages.next();
                         messages.remove();
 
-                        QueueMessageReference ref = createMessageReference(node.getMessage());
+                        QueueMessageReference ref = createPagedInMessageReference(node.getMessage());
                         if (ref.isExpired()) {
                             if (broker.isExpired(ref)) {
                                 messageExpired(createConnectionContext(), ref);
@@ -1774,28 +2003,33 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                 } finally {
                     messages.release();
                 }
-            } finally {
-                messagesLock.writeLock().unlock();
-            }
-            // Only add new messages, not already pagedIn to avoid multiple
-            // dispatch attempts
-            pagedInMessagesLock.writeLock().lock();
-            try {
-                if(isPrioritizedMessages()) {
-                    resultList = new PrioritizedPendingList();
-                } else {
-                    resultList = new OrderedPendingList();
-                }
-                for (QueueMessageReference ref : result) {
-                    if (!pagedInMessages.containsKey(ref.getMessageId())) {
-                        pagedInMessages.put(ref.getMessageId(), ref);
-                        resultList.addMessageLast(ref);
+                // Only add new messages, not already pagedIn to avoid multiple
+                // dispatch attempts. This is done before the messagesLock is
+                // released so that expiry of messages from the store does not
+                // see a message that is neither in the cursor nor paged in
+                pagedInMessagesLock.writeLock().lock();
+                try {
+                    if(isPrioritizedMessages()) {
+                        resultList = new PrioritizedPendingList();
                     } else {
-                        ref.decrementReferenceCount();
+                        resultList = new OrderedPendingList();
                     }
+                    for (QueueMessageReference ref : result) {
+                        if (!pagedInMessages.containsKey(ref.getMessageId())) {
+                            pagedInMessages.put(ref.getMessageId(), ref);
+                            if (ref.getExpiration() != 0) {
+                                pagedInExpirations.add(ref.getMessageId(), ref.getExpiration());
+                            }
+                            resultList.addMessageLast(ref);
+                        } else {
+                            ref.decrementReferenceCount();
+                        }
+                    }
+                } finally {
+                    pagedInMessagesLock.writeLock().unlock();
                 }
             } finally {
-                pagedInMessagesLock.writeLock().unlock();
+                messagesLock.writeLock().unlock();
             }
         } else {
             // Avoid return null list, if condition is not validated
@@ -1883,12 +2117,19 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                     continue;
                 }
                 if (!fullConsumers.contains(s)) {
-                    if (!s.isFull()) {
+                    QueueSubscriptionDispatcher dispatcher = subscriptionDispatchers.get(s);
+                    if (dispatcher != null ? !dispatcher.isFull() : !s.isFull()) {
                         if (dispatchSelector.canSelect(s, node) && assignMessageGroup(s, (QueueMessageReference)node) && !((QueueMessageReference) node).isAcked() ) {
-                            // Dispatch it.
-                            s.add(node);
-                            target = s;
-                            break;
+                            // Dispatch it, or hand it to the subscription's
+                            // dispatcher, which keeps the per consumer order
+                            if (dispatcher == null) {
+                                s.add(node);
+                                target = s;
+                                break;
+                            } else if (dispatcher.enqueue(node)) {
+                                target = s;
+                                break;
+                            }
                         }
                     } else {
                         // no further dispatch of list to a full consumer to
@@ -1907,6 +2148,10 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                 // This means all subs were full or that there are no
                 // consumers...
                 rc.addMessageLast((QueueMessageReference) node);
+                if (node instanceof OffHeapMessageReference) {
+                    // don't hold the body on the heap while it waits
+                    ((OffHeapMessageReference) node).release();
+                }
             }
 
             // If it got dispatched, rotate the consumer list to get round robin
@@ -1941,6 +2186,9 @@ public class Queue extends BaseDestination implements Task, UsageListener {
             // If we can own the first, then no-one else should own the
             // rest.
             if (sequence == 1) {
+                if (isPreferredGroupOwnerAvailable(subscription, messageGroupOwners, node, groupId)) {
+                    return false;
+                }
                 assignGroup(subscription, messageGroupOwners, node, groupId);
             } else {
 
@@ -1950,6 +2198,9 @@ public class Queue extends BaseDestination implements Task, UsageListener {
 
                 groupOwner = messageGroupOwners.get(groupId);
                 if (groupOwner == null) {
+                    if (isPreferredGroupOwnerAvailable(subscription, messageGroupOwners, node, groupId)) {
+                        return false;
+                    }
                     assignGroup(subscription, messageGroupOwners, node, groupId);
                 } else {
                     if (groupOwner.equals(subscription.getConsumerInfo().getConsumerId())) {
@@ -1968,6 +2219,29 @@ public class Queue extends BaseDestination implements Task, UsageListener {
 
     }
 
+    /**
+     * With a consistent hash message group map a new group is left for the
+     * consumer that owns its range of the hash ring, as long as that consumer
+     * is some other subscription that could take the message now.
+     */
+    private boolean isPreferredGroupOwnerAvailable(Subscription subscription, MessageGroupMap messageGroupOwners,
+            QueueMessageReference node, String groupId) throws Exception {
+        if (!(messageGroupOwners instanceof ConsistentHashMessageGroupMap)) {
+            return false;
+        }
+        ConsumerId preferred = ((ConsistentHashMessageGroupMap) messageGroupOwners).getPreferredConsumer(groupId);
+        if (preferred == null || preferred.equals(subscription.getConsumerInfo().getConsumerId())) {
+            return false;
+        }
+        Subscription owner = consumersById.get(preferred);
+        if (owner == null) {
+            return false;
+        }
+        QueueSubscriptionDispatcher dispatcher = subscriptionDispatchers.get(owner);
+        boolean full = dispatcher != null ? dispatcher.isFull() : owner.isFull();
+        return !full && dispatchSelector.canSelect(owner, node);
+    }
+
     protected void assignGroup(Subscription subs, MessageGroupMap messageGroupOwners, MessageReference n, String groupId) throws IOException {
         messageGroupOwners.put(groupId, subs.getConsumerInfo().getConsumerId());
         Message message = n.getMessage();
@@ -1992,10 +2266,29 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         } else {
             consumers.add(sub);
         }
+        consumersById.put(sub.getConsumerInfo().getConsumerId(), sub);
+    }
+
+    /**
+     * Places a new consumer on the hash ring of a consistent hash message
+     * group map so it gets its share of the message groups straight away.
+     */
+    private void addMessageGroupConsumer(Subscription sub) {
+        if (messageGroupMapFactory instanceof ConsistentHashMessageGroupMapFactory
+                && !(sub instanceof QueueBrowserSubscription)) {
+            MessageGroupMap owners = getMessageGroupOwners();
+            if (owners instanceof ConsistentHashMessageGroupMap) {
+                ((ConsistentHashMessageGroupMap) owners).addConsumer(sub.getConsumerInfo().getConsumerId());
+            }
+        }
     }
 
     private boolean removeFromConsumerList(Subscription sub) {
-        return consumers.remove(sub);
+        if (consumers.remove(sub)) {
+            consumersById.remove(sub.getConsumerInfo().getConsumerId(), sub);
+            return true;
+        }
+        return false;
     }
 
     private int getConsumerMessageCountBeforeFull() throws Exception {
@@ -108,7 +108,7 @@ public class QueueSubscription extends PrefetchSubscription implements LockOwner
    
     protected boolean isDropped(MessageReference node) {
        boolean result = false;
-       if(node instanceof IndirectMessageReference) {
+       if(node instanceof QueueMessageReference) {
            QueueMessageReference qmr = (QueueMessageReference) node;
            result = qmr.isDropped();
        }
@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.activemq.thread.Task;
+import org.apache.activemq.thread.TaskRunner;
+import org.apache.activemq.thread.TaskRunnerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The per subscription stage of the concurrent queue dispatch pipeline.
+ *
+ * The queue selects a target subscription for each paged in message and hands
+ * the message over to the target's dispatcher, which adds it to the
+ * subscription on its own task runner. Messages for one subscription are
+ * always handed over in the order they were selected so per consumer ordering
+ * is the same as with the inline dispatch.
+ *
+ * If the subscription fails to take a message the dispatcher stops and hands
+ * the message, and everything queued behind it, back to the queue, which
+ * stops dispatching to the subscription and dispatches them to another one.
+ */
+class QueueSubscriptionDispatcher implements Task {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueueSubscriptionDispatcher.class);
+    private static final int MAX_DISPATCH_PER_ITERATION = 100;
+
+    private final Queue queue;
+    private final Subscription subscription;
+    private final ConcurrentLinkedQueue<MessageReference> work = new ConcurrentLinkedQueue<MessageReference>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final TaskRunner taskRunner;
+    private boolean stopped;
+
+    QueueSubscriptionDispatcher(Queue queue, Subscription subscription, TaskRunnerFactory taskFactory, String name) {
+        this.queue = queue;
+        this.subscription = subscription;
+        this.taskRunner = taskFactory.createTaskRunner(this, name);
+    }
+
+    /**
+     * Queues the message for dispatch to the subscription.
+     *
+     * @return false if the dispatcher has been stopped and the message was not
+     *         accepted
+     */
+    boolean enqueue(MessageReference node) {
+        synchronized (this) {
+            if (stopped) {
+                return false;
+            }
+            queued.incrementAndGet();
+            work.add(node);
+        }
+        try {
+            taskRunner.wakeup();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of messages handed to this dispatcher that have not
+     *         yet been added to the subscription
+     */
+    int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return true if the subscription cannot take any more messages once the
+     *         queued work has been added to it
+     */
+    boolean isFull() {
+        return subscription.isFull() || queued.get() >= subscription.countBeforeFull();
+    }
+
+    public boolean iterate() {
+        int count = 0;
+        MessageReference node;
+        while (count < MAX_DISPATCH_PER_ITERATION && (node = work.poll()) != null) {
+            try {
+                subscription.add(node);
+            } catch (Exception e) {
+                LOG.warn("Failed to dispatch " + node.getMessageId() + " to " + subscription
+                        + ", closing it and returning its queued messages to " + queue, e);
+                queued.decrementAndGet();
+                List<MessageReference> undispatched = new ArrayList<MessageReference>(work.size() + 1);
+                undispatched.add(node);
+                synchronized (this) {
+                    stopped = true;
+                }
+                drainTo(undispatched);
+                queue.dispatchFailed(this, undispatched);
+                try {
+                    taskRunner.shutdown();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+            queued.decrementAndGet();
+            count++;
+        }
+        return !work.isEmpty();
+    }
+
+    /**
+     * Stops the dispatcher, waiting for any in progress dispatch to complete.
+     *
+     * @return the messages that were queued but not added to the subscription,
+     *         in the order they were queued
+     */
+    List<MessageReference> stop() {
+        synchronized (this) {
+            stopped = true;
+        }
+        try {
+            taskRunner.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<MessageReference> remaining = new ArrayList<MessageReference>(work.size());
+        drainTo(remaining);
+        return remaining;
+    }
+
+    private void drainTo(List<MessageReference> list) {
+        MessageReference node;
+        while ((node = work.poll()) != null) {
+            queued.decrementAndGet();
+            list.add(node);
+        }
+    }
+
+    Subscription getSubscription() {
+        return subscription;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueSubscriptionDispatcher: " + subscription.getConsumerInfo().getConsumerId() + ", queued=" + queued.get();
+    }
+}
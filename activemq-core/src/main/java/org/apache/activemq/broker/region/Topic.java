@@ -40,12 +40,12 @@ import org.apache.activemq.command.ExceptionResponse;
 import org.apache.activemq.command.Message;
 import org.apache.activemq.command.MessageAck;
 import org.apache.activemq.command.MessageId;
-import org.apache.activemq.command.ProducerAck;
 import org.apache.activemq.command.ProducerInfo;
 import org.apache.activemq.command.Response;
 import org.apache.activemq.command.SubscriptionInfo;
 import org.apache.activemq.filter.MessageEvaluationContext;
 import org.apache.activemq.filter.NonCachedMessageEvaluationContext;
+import org.apache.activemq.filter.SelectorIndex;
 import org.apache.activemq.store.MessageRecoveryListener;
 import org.apache.activemq.store.TopicMessageStore;
 import org.apache.activemq.thread.Task;
@@ -67,6 +67,7 @@ public class Topic extends BaseDestination implements Task {
     private final ReentrantReadWriteLock dispatchLock = new ReentrantReadWriteLock();
     private DispatchPolicy dispatchPolicy = new SimpleDispatchPolicy();
     private SubscriptionRecoveryPolicy subscriptionRecoveryPolicy;
+    private SelectorIndex selectorIndex;
     private final ConcurrentHashMap<SubscriptionKey, DurableTopicSubscription> durableSubcribers = new ConcurrentHashMap<SubscriptionKey, DurableTopicSubscription>();
     private final TaskRunner taskRunner;
     private final LinkedList<Runnable> messagesWaitingForSpace = new LinkedList<Runnable>();
@@ -181,6 +182,9 @@ public class Topic extends BaseDestination implements Task {
             synchronized (consumers) {
                 consumers.remove(sub);
             }
+            if (selectorIndex != null) {
+                selectorIndex.remove(sub);
+            }
         }
         sub.remove(context, this);
     }
@@ -194,6 +198,9 @@ public class Topic extends BaseDestination implements Task {
                 // deactivate and remove
                 removed.deactivate(false);
                 consumers.remove(removed);
+                if (selectorIndex != null) {
+                    selectorIndex.remove(removed);
+                }
             }
         }
     }
@@ -309,8 +316,7 @@ public class Topic extends BaseDestination implements Task {
             broker.messageExpired(context, message, null);
             getDestinationStatistics().getExpired().increment();
             if (sendProducerAck) {
-                ProducerAck ack = new ProducerAck(producerInfo.getProducerId(), message.getSize());
-                context.getConnection().dispatchAsync(ack);
+                producerAck(context, producerInfo, message);
             }
             return;
         }
@@ -354,9 +360,7 @@ public class Topic extends BaseDestination implements Task {
                                     }
 
                                     if (sendProducerAck) {
-                                        ProducerAck ack = new ProducerAck(producerInfo.getProducerId(), message
-                                                .getSize());
-                                        context.getConnection().dispatchAsync(ack);
+                                        producerAck(context, producerInfo, message);
                                     } else {
                                         Response response = new Response();
                                         response.setCorrelationId(message.getCommandId());
@@ -427,8 +431,7 @@ public class Topic extends BaseDestination implements Task {
         doMessageSend(producerExchange, message);
         messageDelivered(context, message);
         if (sendProducerAck) {
-            ProducerAck ack = new ProducerAck(producerInfo.getProducerId(), message.getSize());
-            context.getConnection().dispatchAsync(ack);
+            producerAck(context, producerInfo, message);
         }
     }
 
@@ -642,6 +645,20 @@ public class Topic extends BaseDestination implements Task {
         this.dispatchPolicy = dispatchPolicy;
     }
 
+    public boolean isUseSelectorIndex() {
+        return selectorIndex != null;
+    }
+
+    public void setUseSelectorIndex(boolean useSelectorIndex) {
+        if (useSelectorIndex != isUseSelectorIndex()) {
+            selectorIndex = useSelectorIndex ? new SelectorIndex() : null;
+        }
+    }
+
+    public SelectorIndex getSelectorIndex() {
+        return selectorIndex;
+    }
+
     public SubscriptionRecoveryPolicy getSubscriptionRecoveryPolicy() {
         return subscriptionRecoveryPolicy;
     }
@@ -677,6 +694,7 @@ public class Topic extends BaseDestination implements Task {
             msgContext = context.getMessageEvaluationContext();
             msgContext.setDestination(destination);
             msgContext.setMessageReference(message);
+            msgContext.setSelectorIndex(selectorIndex);
             if (!dispatchPolicy.dispatch(message, msgContext, consumers)) {
                 onMessageWithNoConsumers(context, message);
             }
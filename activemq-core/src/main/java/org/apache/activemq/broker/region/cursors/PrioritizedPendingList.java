@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.apache.activemq.broker.region.MessageReference;
 import org.apache.activemq.command.MessageId;
@@ -98,35 +99,39 @@ public class PrioritizedPendingList implements PendingList {
         return lists[getPriority(msg)];
     }
 
+    /**
+     * Walks the priority levels from the highest down, only moving to a level
+     * once the levels above it are used up, rather than copying every pending
+     * message up front.
+     */
     private class PrioritizedPendingListIterator implements Iterator<MessageReference> {
-        private int index = 0;
-        private int currentIndex = 0;
-        List<PendingNode> list = new ArrayList<PendingNode>(size());
-
-        PrioritizedPendingListIterator() {
-            for (int i = MAX_PRIORITY - 1; i >= 0; i--) {
-                OrderedPendingList orderedPendingList = lists[i];
-                if (!orderedPendingList.isEmpty()) {
-                    list.addAll(orderedPendingList.getAsList());
+        private int level = MAX_PRIORITY;
+        private Iterator<MessageReference> current;
+        private MessageReference last;
+
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                if (level == 0) {
+                    return false;
                 }
+                current = lists[--level].iterator();
             }
-        }
-        public boolean hasNext() {
-            return list.size() > index;
+            return true;
         }
 
         public MessageReference next() {
-            PendingNode node = list.get(this.index);
-            this.currentIndex = this.index;
-            this.index++;
-            return node.getMessage();
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = current.next();
+            return last;
         }
 
         public void remove() {
-            PendingNode node = list.get(this.currentIndex);
-            if (node != null) {
-                map.remove(node.getMessage().getMessageId());
-                node.getList().removeNode(node);
+            if (last != null) {
+                map.remove(last.getMessageId());
+                current.remove();
+                last = null;
             }
         }
     }
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region.group;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.activemq.command.ConsumerId;
+import org.apache.activemq.util.LRUCache;
+
+/**
+ * Uses consistent hashing over the consumers of a destination to own message
+ * group IDs. Every consumer places a number of virtual nodes on a hash ring and
+ * owns the group IDs that hash to the ring ranges ending at its nodes. The
+ * ring is folded into a fixed table of slots so that finding the owner of a
+ * group ID takes constant time.
+ * <p/>
+ * Like the other maps, {@link #get(String)} only returns the owner a group has
+ * been assigned to; the ring owner is the consumer the destination offers a
+ * new group to first, see {@link #getPreferredConsumer(String)}. If that
+ * consumer cannot take it the group goes to another consumer as usual.
+ * <p/>
+ * Groups that have been assigned recently are kept in a bounded LRU map, so
+ * they stay with their owner when a consumer joins and the ring changes. Only
+ * the groups that hash to the ranges taken over by the new consumer and have
+ * not been active lately move to it. When a consumer is removed its ranges
+ * are spread over the remaining consumers.
+ * 
+ * 
+ */
+public class ConsistentHashMessageGroupMap implements MessageGroupMap {
+
+    private static final int SLOT_BITS = 12;
+
+    private final int virtualNodes;
+    private final SortedMap<Integer, ConsumerId> ring = new TreeMap<Integer, ConsumerId>();
+    private final ConsumerId[] slots = new ConsumerId[1 << SLOT_BITS];
+    private final Map<String, ConsumerId> groups;
+    private int consumerCount;
+
+    public ConsistentHashMessageGroupMap(int virtualNodes, int maxGroups) {
+        this.virtualNodes = virtualNodes;
+        this.groups = new LRUCache<String, ConsumerId>(16, maxGroups, 0.75f, true);
+    }
+
+    public synchronized void put(String groupId, ConsumerId consumerId) {
+        addConsumer(consumerId);
+        groups.put(groupId, consumerId);
+    }
+
+    public synchronized ConsumerId get(String groupId) {
+        return groups.get(groupId);
+    }
+
+    /**
+     * @return the consumer that owns the hash ring range the group ID falls
+     *         in, or null if there are no consumers
+     */
+    public synchronized ConsumerId getPreferredConsumer(String groupId) {
+        return consumerCount > 0 ? slots[getSlotNumber(groupId)] : null;
+    }
+
+    public synchronized ConsumerId removeGroup(String groupId) {
+        return groups.remove(groupId);
+    }
+
+    public synchronized MessageGroupSet removeConsumer(ConsumerId consumerId) {
+        final SimpleMessageGroupSet ownedGroups = new SimpleMessageGroupSet();
+        for (Iterator<Map.Entry<String, ConsumerId>> iter = groups.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<String, ConsumerId> entry = iter.next();
+            if (entry.getValue().equals(consumerId)) {
+                ownedGroups.add(entry.getKey());
+                iter.remove();
+            }
+        }
+
+        final boolean[] ownedSlots = new boolean[slots.length];
+        boolean removed = false;
+        for (int i = 0; i < virtualNodes; i++) {
+            Integer node = Integer.valueOf(getNodeHash(consumerId, i));
+            if (consumerId.equals(ring.get(node))) {
+                ring.remove(node);
+                removed = true;
+            }
+        }
+        if (removed) {
+            consumerCount--;
+            for (int i = 0; i < slots.length; i++) {
+                ownedSlots[i] = consumerId.equals(slots[i]);
+            }
+            updateSlots();
+        }
+
+        return new MessageGroupSet() {
+            public boolean contains(String groupID) {
+                return ownedGroups.contains(groupID) || ownedSlots[getSlotNumber(groupID)];
+            }
+        };
+    }
+
+    /**
+     * Places the consumer on the hash ring, if it is not on it yet, so that it
+     * takes over its share of the group IDs from the other consumers.
+     */
+    public synchronized void addConsumer(ConsumerId consumerId) {
+        boolean added = false;
+        for (int i = 0; i < virtualNodes; i++) {
+            Integer node = Integer.valueOf(getNodeHash(consumerId, i));
+            if (!ring.containsKey(node)) {
+                ring.put(node, consumerId);
+                added = true;
+            }
+        }
+        if (added) {
+            consumerCount++;
+            updateSlots();
+        }
+    }
+
+    public synchronized String toString() {
+        return "message groups: " + groups.size() + ", consumers: " + consumerCount;
+    }
+
+    /**
+     * Sets each slot to the consumer with the first node on the ring at or
+     * after the start of the slot.
+     */
+    protected void updateSlots() {
+        for (int i = 0; i < slots.length; i++) {
+            if (ring.isEmpty()) {
+                slots[i] = null;
+            } else {
+                SortedMap<Integer, ConsumerId> tail = ring.tailMap(Integer.valueOf(i << (32 - SLOT_BITS)));
+                slots[i] = tail.isEmpty() ? ring.get(ring.firstKey()) : tail.get(tail.firstKey());
+            }
+        }
+    }
+
+    protected int getSlotNumber(String groupId) {
+        return hash(groupId.hashCode()) >>> (32 - SLOT_BITS);
+    }
+
+    protected int getNodeHash(ConsumerId consumerId, int node) {
+        return hash(consumerId.toString().hashCode() * 31 + node);
+    }
+
+    /**
+     * Spreads the bits of a hash code so that similar strings end up far
+     * apart on the ring.
+     */
+    protected static int hash(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region.group;
+
+/**
+ * A factory to create instances of {@link ConsistentHashMessageGroupMap} when
+ * implementing the <a
+ * href="http://activemq.apache.org/message-groups.html">Message
+ * Groups</a> functionality.
+ * 
+ * @org.apache.xbean.XBean
+ * 
+ * 
+ */
+public class ConsistentHashMessageGroupMapFactory implements MessageGroupMapFactory {
+
+    private int virtualNodes = 64;
+    private int maxGroups = 8192;
+
+    public MessageGroupMap createMessageGroupMap() {
+        return new ConsistentHashMessageGroupMap(virtualNodes, maxGroups);
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * Sets the number of points each consumer has on the hash ring. More
+     * points spread the message groups more evenly over the consumers.
+     */
+    public void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    public int getMaxGroups() {
+        return maxGroups;
+    }
+
+    /**
+     * Sets the maximum number of recently used message groups whose owner is
+     * remembered. Older groups go back to the owner the hash ring gives them,
+     * which only differs from their last owner if the consumers have changed.
+     */
+    public void setMaxGroups(int maxGroups) {
+        this.maxGroups = maxGroups;
+    }
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region.policy;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.activemq.broker.region.MessageReference;
+import org.apache.activemq.broker.region.Subscription;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.filter.MessageEvaluationContext;
+
+/**
+ * Dispatch policy that sends a message to every subscription that matches the
+ * message, like the {@link SimpleDispatchPolicy}, but splits a large number of
+ * subscriptions into partitions that are dispatched in parallel by a bounded
+ * pool of worker threads. The sending thread dispatches one partition itself
+ * and waits for the others before it returns, so every subscription still
+ * sees the messages of a producer in the order they were sent. When all the
+ * workers are busy the sending thread dispatches the partition itself.
+ * 
+ * @org.apache.xbean.XBean
+ * 
+ */
+public class ParallelDispatchPolicy implements DispatchPolicy {
+
+    private int maxThreads = Runtime.getRuntime().availableProcessors();
+    private int minPartitionSize = 100;
+    private volatile ThreadPoolExecutor executor;
+
+    public boolean dispatch(final MessageReference node, MessageEvaluationContext msgContext, List<Subscription> consumers)
+            throws Exception {
+
+        final Subscription[] subscriptions = consumers.toArray(new Subscription[0]);
+        int partitions = Math.min(maxThreads + 1, subscriptions.length / Math.max(1, minPartitionSize));
+        if (partitions < 2 || msgContext.isDropped()) {
+            return dispatch(node, msgContext, subscriptions, 0, subscriptions.length) > 0;
+        }
+
+        // decode the lazily unmarshalled properties the selectors look at
+        // before other threads read them
+        Message message = msgContext.getMessage();
+        message.getProperties();
+
+        final CountDownLatch done = new CountDownLatch(partitions - 1);
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int i = 1; i < partitions; i++) {
+            final MessageEvaluationContext partitionContext = new MessageEvaluationContext();
+            partitionContext.share(msgContext);
+            final int from = i * subscriptions.length / partitions;
+            final int to = (i + 1) * subscriptions.length / partitions;
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        count.addAndGet(dispatch(node, partitionContext, subscriptions, from, to));
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        partitionContext.clear();
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        count.addAndGet(dispatch(node, msgContext, subscriptions, 0, subscriptions.length / partitions));
+        done.await();
+
+        Throwable e = failure.get();
+        if (e instanceof Exception) {
+            throw (Exception) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return count.get() > 0;
+    }
+
+    protected int dispatch(MessageReference node, MessageEvaluationContext msgContext, Subscription[] subscriptions,
+            int from, int to) throws Exception {
+
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            Subscription sub = subscriptions[i];
+            // Don't deliver to browsers
+            if (sub.getConsumerInfo().isBrowser()) {
+                continue;
+            }
+            // Only dispatch to interested subscriptions, the topic's selector
+            // index (if any) rules out most others without evaluating their selectors
+            if (!msgContext.isSelectorCandidate(sub, sub.getSelector()) || !sub.matches(node, msgContext)) {
+                sub.unmatched(node);
+                continue;
+            }
+
+            sub.add(node);
+            count++;
+        }
+        return count;
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        ThreadPoolExecutor result = executor;
+        if (result == null) {
+            synchronized (this) {
+                result = executor;
+                if (result == null) {
+                    result = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                                private final AtomicInteger threads = new AtomicInteger();
+
+                                public Thread newThread(Runnable runnable) {
+                                    Thread thread = new Thread(runnable, "ActiveMQ Topic Dispatch-" + threads.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            }, new ThreadPoolExecutor.CallerRunsPolicy());
+                    // idle workers go away, so the pool needs no shutdown
+                    result.allowCoreThreadTimeOut(true);
+                    executor = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Sets the number of worker threads that dispatch partitions of the
+     * subscriptions, in addition to the sending thread. Defaults to the number
+     * of processors.
+     */
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public int getMinPartitionSize() {
+        return minPartitionSize;
+    }
+
+    /**
+     * Sets the smallest number of subscriptions worth handing to a worker
+     * thread. A destination with fewer than twice as many subscriptions is
+     * dispatched by the sending thread alone. Defaults to 100.
+     */
+    public void setMinPartitionSize(int minPartitionSize) {
+        this.minPartitionSize = minPartitionSize;
+    }
+}
@@ -18,6 +18,7 @@ package org.apache.activemq.broker.region.policy;
 
 import org.apache.activemq.ActiveMQPrefetchPolicy;
 import org.apache.activemq.broker.Broker;
+import org.apache.activemq.broker.region.AdaptivePrefetchController;
 import org.apache.activemq.broker.region.BaseDestination;
 import org.apache.activemq.broker.region.Destination;
 import org.apache.activemq.broker.region.DurableTopicSubscription;
@@ -64,6 +65,8 @@ public class PolicyEntry extends DestinationMapEntry {
     private boolean alwaysRetroactive = false;
     private long blockedProducerWarningInterval = Destination.DEFAULT_BLOCKED_PRODUCER_WARNING_INTERVAL;
     private boolean optimizedDispatch=false;
+    private boolean concurrentDispatch=false;
+    private boolean offHeapPagedInMessages=false;
     private int maxPageSize=BaseDestination.MAX_PAGE_SIZE;
     private int maxBrowsePageSize=BaseDestination.MAX_BROWSE_PAGE_SIZE;
     private boolean useCache=true;
@@ -71,6 +74,8 @@ public class PolicyEntry extends DestinationMapEntry {
     private boolean useConsumerPriority=true;
     private boolean strictOrderDispatch=false;
     private boolean lazyDispatch=false;
+    private boolean useTopicSelectorIndex=false;
+    private boolean useProducerCredits=false;
     private int timeBeforeDispatchStarts = 0;
     private int consumersBeforeDispatchStarts = 0;
     private boolean advisoryForSlowConsumers;
@@ -86,6 +91,10 @@ public class PolicyEntry extends DestinationMapEntry {
     private int topicPrefetch=ActiveMQPrefetchPolicy.DEFAULT_TOPIC_PREFETCH;
     private int durableTopicPrefetch=ActiveMQPrefetchPolicy.DEFAULT_DURABLE_TOPIC_PREFETCH;
     private boolean usePrefetchExtension = true;
+    private boolean adaptivePrefetch;
+    private int adaptivePrefetchMinimum = 1;
+    private int adaptivePrefetchMaximum;
+    private long adaptivePrefetchBufferTime = 1000;
     private int cursorMemoryHighWaterMark = 70;
     private int storeUsageHighWaterMark = 100;
     private SlowConsumerStrategy slowConsumerStrategy;
@@ -121,6 +130,8 @@ public class PolicyEntry extends DestinationMapEntry {
         queue.setUseConsumerPriority(isUseConsumerPriority());
         queue.setStrictOrderDispatch(isStrictOrderDispatch());
         queue.setOptimizedDispatch(isOptimizedDispatch());
+        queue.setConcurrentDispatch(isConcurrentDispatch());
+        queue.setOffHeapPagedInMessages(isOffHeapPagedInMessages());
         queue.setLazyDispatch(isLazyDispatch());
         queue.setTimeBeforeDispatchStarts(getTimeBeforeDispatchStarts());
         queue.setConsumersBeforeDispatchStarts(getConsumersBeforeDispatchStarts());
@@ -142,6 +153,7 @@ public class PolicyEntry extends DestinationMapEntry {
             topic.getMemoryUsage().setLimit(memoryLimit);
         }
         topic.setLazyDispatch(isLazyDispatch());
+        topic.setUseSelectorIndex(isUseTopicSelectorIndex());
     }
     
     public void baseConfiguration(Broker broker,BaseDestination destination) {
@@ -165,6 +177,7 @@ public class PolicyEntry extends DestinationMapEntry {
         destination.setExpireMessagesPeriod(getExpireMessagesPeriod());
         destination.setMaxExpirePageSize(getMaxExpirePageSize());
         destination.setCursorMemoryHighWaterMark(getCursorMemoryHighWaterMark());
+        destination.setUseProducerCredits(isUseProducerCredits());
         destination.setStoreUsageHighWaterMark(getStoreUsageHighWaterMark());
         SlowConsumerStrategy scs = getSlowConsumerStrategy();
         if (scs != null) {
@@ -263,6 +276,13 @@ public class PolicyEntry extends DestinationMapEntry {
         }
         sub.setCursorMemoryHighWaterMark(getCursorMemoryHighWaterMark());
         sub.setUsePrefetchExtension(isUsePrefetchExtension());
+        if (isAdaptivePrefetch()) {
+            AdaptivePrefetchController controller = new AdaptivePrefetchController();
+            controller.setMinimumPrefetch(getAdaptivePrefetchMinimum());
+            controller.setMaximumPrefetch(getAdaptivePrefetchMaximum());
+            controller.setBufferTime(getAdaptivePrefetchBufferTime());
+            sub.setAdaptivePrefetch(controller);
+        }
     }
 
     // Properties
@@ -514,6 +534,35 @@ public class PolicyEntry extends DestinationMapEntry {
     public void setOptimizedDispatch(boolean optimizedDispatch) {
         this.optimizedDispatch = optimizedDispatch;
     }
+
+    public boolean isConcurrentDispatch() {
+        return concurrentDispatch;
+    }
+
+    /**
+     * Hands messages selected for a queue subscription to a per subscription
+     * dispatcher so that dispatch to many consumers is spread across the task
+     * runner threads rather than done on the single queue iteration thread.
+     * Per consumer order is kept, so strict order dispatch and message groups
+     * behave as before.
+     */
+    public void setConcurrentDispatch(boolean concurrentDispatch) {
+        this.concurrentDispatch = concurrentDispatch;
+    }
+
+    public boolean isOffHeapPagedInMessages() {
+        return offHeapPagedInMessages;
+    }
+
+    /**
+     * Keeps the marshalled form of paged in queue messages in direct memory
+     * slabs, holding only the headers needed for dispatch on the heap. Useful
+     * for deep queues with a large maxPageSize, at the cost of unmarshalling
+     * each message when it is dispatched.
+     */
+    public void setOffHeapPagedInMessages(boolean offHeapPagedInMessages) {
+        this.offHeapPagedInMessages = offHeapPagedInMessages;
+    }
     
     public int getMaxPageSize() {
         return maxPageSize;
@@ -563,6 +612,36 @@ public class PolicyEntry extends DestinationMapEntry {
         this.strictOrderDispatch = strictOrderDispatch;
     }
 
+    public boolean isUseTopicSelectorIndex() {
+        return useTopicSelectorIndex;
+    }
+
+    /**
+     * Keeps an index of the selectors of a topic's subscriptions, grouping
+     * equality and range comparisons on the same property, so that the
+     * {@link SimpleDispatchPolicy} and {@link RoundRobinDispatchPolicy} only
+     * evaluate the selectors that can match a message. Worth enabling for
+     * topics with many subscriptions that select on a few common properties.
+     */
+    public void setUseTopicSelectorIndex(boolean useTopicSelectorIndex) {
+        this.useTopicSelectorIndex = useTopicSelectorIndex;
+    }
+
+    public boolean isUseProducerCredits() {
+        return useProducerCredits;
+    }
+
+    /**
+     * @param useProducerCredits if true producers that send with a producer
+     *                window get back less credit as the memory usage of the
+     *                destination goes over the cursor memory high water mark,
+     *                so they slow down in their own window before the
+     *                destination is full
+     */
+    public void setUseProducerCredits(boolean useProducerCredits) {
+        this.useProducerCredits = useProducerCredits;
+    }
+
     public boolean isLazyDispatch() {
         return lazyDispatch;
     }
@@ -759,6 +838,51 @@ public class PolicyEntry extends DestinationMapEntry {
     public void setUsePrefetchExtension(boolean usePrefetchExtension) {
         this.usePrefetchExtension = usePrefetchExtension;
     }
+
+    public boolean isAdaptivePrefetch() {
+        return this.adaptivePrefetch;
+    }
+
+    /**
+     * Resize the prefetch window of queue consumers from the rate they
+     * acknowledge messages at, so slow consumers hold fewer messages
+     * @param adaptivePrefetch
+     */
+    public void setAdaptivePrefetch(boolean adaptivePrefetch) {
+        this.adaptivePrefetch = adaptivePrefetch;
+    }
+
+    public int getAdaptivePrefetchMinimum() {
+        return this.adaptivePrefetchMinimum;
+    }
+
+    public void setAdaptivePrefetchMinimum(int adaptivePrefetchMinimum) {
+        this.adaptivePrefetchMinimum = adaptivePrefetchMinimum;
+    }
+
+    public int getAdaptivePrefetchMaximum() {
+        return this.adaptivePrefetchMaximum;
+    }
+
+    /**
+     * @param adaptivePrefetchMaximum the largest adaptive prefetch window, 0
+     *                for the prefetch size of the consumer
+     */
+    public void setAdaptivePrefetchMaximum(int adaptivePrefetchMaximum) {
+        this.adaptivePrefetchMaximum = adaptivePrefetchMaximum;
+    }
+
+    public long getAdaptivePrefetchBufferTime() {
+        return this.adaptivePrefetchBufferTime;
+    }
+
+    /**
+     * @param adaptivePrefetchBufferTime how long in milliseconds the messages
+     *                prefetched by a consumer should last it
+     */
+    public void setAdaptivePrefetchBufferTime(long adaptivePrefetchBufferTime) {
+        this.adaptivePrefetchBufferTime = adaptivePrefetchBufferTime;
+    }
     
     public int getCursorMemoryHighWaterMark() {
         return this.cursorMemoryHighWaterMark;
@@ -54,8 +54,9 @@ public class RoundRobinDispatchPolicy implements DispatchPolicy {
                     .hasNext();) {
                 Subscription sub = iter.next();
 
-                // Only dispatch to interested subscriptions
-                if (!sub.matches(node, msgContext)) {
+                // Only dispatch to interested subscriptions, the topic's selector
+                // index (if any) rules out most others without evaluating their selectors
+                if (!msgContext.isSelectorCandidate(sub, sub.getSelector()) || !sub.matches(node, msgContext)) {
                     sub.unmatched(node);
                     continue;
                 }
@@ -29,6 +29,7 @@ import org.apache.activemq.command.Message;
 import org.apache.activemq.filter.BooleanExpression;
 import org.apache.activemq.filter.MessageEvaluationContext;
 import org.apache.activemq.filter.NonCachedMessageEvaluationContext;
+import org.apache.activemq.filter.SelectorCompiler;
 import org.apache.activemq.plugin.SubQueueSelectorCacheBroker;
 import org.apache.activemq.selector.SelectorParser;
 import org.apache.activemq.util.LRUCache;
@@ -129,6 +130,10 @@ public class SelectorAwareVirtualTopicInterceptor extends VirtualTopicIntercepto
      * @param selectorExpression The non-null JMS selector expression.
      */
     private BooleanExpression compileSelector(final String selectorExpression) throws Exception {
-        return SelectorParser.parse(selectorExpression);
+        BooleanExpression expression = SelectorParser.parse(selectorExpression);
+        if (SelectorCompiler.compileSelectors) {
+            expression = SelectorCompiler.compile(expression);
+        }
+        return expression;
     }
 }
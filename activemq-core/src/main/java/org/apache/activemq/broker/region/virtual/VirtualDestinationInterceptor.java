@@ -72,6 +72,10 @@ public class VirtualDestinationInterceptor implements DestinationInterceptor {
     public synchronized void remove(Destination destination) {     
     }
 
+    public DestinationMap getDestinationMap() {
+        return destinationMap;
+    }
+
     public VirtualDestination[] getVirtualDestinations() {
         return virtualDestinations;
     }
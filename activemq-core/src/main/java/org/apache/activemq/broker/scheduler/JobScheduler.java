@@ -17,6 +17,8 @@
 package org.apache.activemq.broker.scheduler;
 
 import java.util.List;
+
+import org.apache.activemq.management.TimeStatisticImpl;
 import org.apache.kahadb.util.ByteSequence;
 
 public interface JobScheduler {
@@ -130,4 +132,11 @@ public interface JobScheduler {
      */
     public abstract List<Job> getAllJobs(long start,long finish)throws Exception;
 
+    /**
+     * Get the statistic of how long after their scheduled time jobs are fired
+     * @return the scheduling latency in milliseconds
+     * @throws Exception
+     */
+    public abstract TimeStatisticImpl getSchedulingLatency() throws Exception;
+
 }
\ No newline at end of file
@@ -18,6 +18,8 @@ package org.apache.activemq.broker.scheduler;
 
 import java.util.Collections;
 import java.util.List;
+
+import org.apache.activemq.management.TimeStatisticImpl;
 import org.apache.kahadb.util.ByteSequence;
 
 public class JobSchedulerFacade implements JobScheduler {
@@ -74,6 +76,14 @@ public class JobSchedulerFacade implements JobScheduler {
         return 0;
     }
 
+    public TimeStatisticImpl getSchedulingLatency() throws Exception {
+        JobScheduler js = this.broker.getInternalScheduler();
+        if (js !=null) {
+            return js.getSchedulingLatency();
+        }
+        return new TimeStatisticImpl("schedulingLatency", "The time from when jobs are due to when they are fired");
+    }
+
     public void remove(long time) throws Exception {
         JobScheduler js = this.broker.getInternalScheduler();
         if (js !=null) {
@@ -28,6 +28,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.jms.MessageFormatException;
 
+import org.apache.activemq.management.TimeStatisticImpl;
 import org.apache.activemq.util.IdGenerator;
 import org.apache.activemq.util.ServiceStopper;
 import org.apache.activemq.util.ServiceSupport;
@@ -43,13 +44,15 @@ import org.apache.kahadb.util.VariableMarshaller;
 class JobSchedulerImpl extends ServiceSupport implements Runnable, JobScheduler {
     private static final Logger LOG = LoggerFactory.getLogger(JobSchedulerImpl.class);
     final JobSchedulerStore store;
-    private final AtomicBoolean running = new AtomicBoolean();
+    final AtomicBoolean running = new AtomicBoolean();
     private String name;
     BTreeIndex<Long, List<JobLocation>> index;
     private Thread thread;
     private final List<JobListener> jobListeners = new CopyOnWriteArrayList<JobListener>();
-    private static final IdGenerator ID_GENERATOR = new IdGenerator();
-    private final ScheduleTime scheduleTime = new ScheduleTime();
+    static final IdGenerator ID_GENERATOR = new IdGenerator();
+    final ScheduleTime scheduleTime = new ScheduleTime();
+    final TimeStatisticImpl schedulingLatency = new TimeStatisticImpl("schedulingLatency",
+            "The time from when jobs are due to when they are fired");
 
     JobSchedulerImpl(JobSchedulerStore store) {
 
@@ -160,6 +163,10 @@ class JobSchedulerImpl extends ServiceSupport implements Runnable, JobScheduler
         });
     }
 
+    public TimeStatisticImpl getSchedulingLatency() {
+        return this.schedulingLatency;
+    }
+
     public synchronized long getNextScheduleTime() throws IOException {
         Map.Entry<Long, List<JobLocation>> first = this.index.getFirst(this.store.getPageFile().tx());
         return first != null ? first.getKey() : -1l;
@@ -465,6 +472,7 @@ class JobSchedulerImpl extends ServiceSupport implements Runnable, JobScheduler
                         long nextExecutionTime = 0;
                         if (executionTime <= currentTime) {
                             for (final JobLocation job : list) {
+                                this.schedulingLatency.addTime(currentTime - executionTime);
                                 int repeat = job.getRepeat();
                                 nextExecutionTime = calculateNextExecutionTime(job, currentTime, repeat);
                                 long waitTime = nextExecutionTime - currentTime;
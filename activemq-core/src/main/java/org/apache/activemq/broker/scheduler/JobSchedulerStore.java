@@ -156,7 +156,7 @@ public class JobSchedulerStore extends ServiceSupport {
             this.store = store;
         }
         public JobSchedulerImpl readPayload(DataInput dataIn) throws IOException {
-            JobSchedulerImpl result = new JobSchedulerImpl(this.store);
+            JobSchedulerImpl result = this.store.createJobScheduler();
             result.read(dataIn);
             return result;
         }
@@ -188,7 +188,7 @@ public class JobSchedulerStore extends ServiceSupport {
     public JobScheduler getJobScheduler(final String name) throws Exception {
         JobSchedulerImpl result = this.schedulers.get(name);
         if (result == null) {
-            final JobSchedulerImpl js = new JobSchedulerImpl(this);
+            final JobSchedulerImpl js = createJobScheduler();
             js.setName(name);
             getPageFile().tx().execute(new Transaction.Closure<IOException>() {
                 public void execute(Transaction tx) throws IOException {
@@ -207,6 +207,14 @@ public class JobSchedulerStore extends ServiceSupport {
         return result;
     }
 
+    /**
+     * Creates the scheduler that keeps the jobs of a named scheduler of this
+     * store
+     */
+    JobSchedulerImpl createJobScheduler() {
+        return new JobSchedulerImpl(this);
+    }
+
     synchronized public boolean removeJobScheduler(final String name) throws Exception {
         boolean result = false;
         final JobSchedulerImpl js = this.schedulers.remove(name);
@@ -312,6 +320,28 @@ public class JobSchedulerStore extends ServiceSupport {
 
     }
 
+    /**
+     * Decrements the reference counts of several journal files at once
+     * @param counts the number of references to remove by data file id
+     */
+    synchronized void decrementJournalCounts(Transaction tx, Map<Integer, Integer> counts) throws IOException {
+        Set<Integer> unreferenced = new HashSet<Integer>();
+        for (Entry<Integer, Integer> entry : counts.entrySet()) {
+            Integer logId = entry.getKey();
+            Integer val = this.metaData.journalRC.get(tx, logId);
+            int refCount = (val != null ? val.intValue() : 0) - entry.getValue().intValue();
+            if (refCount <= 0) {
+                this.metaData.journalRC.remove(tx, logId);
+                unreferenced.add(logId);
+            } else {
+                this.metaData.journalRC.put(tx, logId, refCount);
+            }
+        }
+        if (!unreferenced.isEmpty()) {
+            this.journal.removeDataFiles(unreferenced);
+        }
+    }
+
     synchronized ByteSequence getPayload(Location location) throws IllegalStateException, IOException {
         ByteSequence result = null;
         result = this.journal.read(location);
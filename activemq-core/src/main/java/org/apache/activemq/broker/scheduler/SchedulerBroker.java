@@ -55,8 +55,17 @@ public class SchedulerBroker extends BrokerFilter implements JobListener {
     private JobScheduler scheduler;
 
     public SchedulerBroker(Broker next, File directory) throws Exception {
+        this(next, directory, null);
+    }
+
+    /**
+     * @param store the store to keep scheduled messages in, or null to create
+     *                a default store in the directory
+     */
+    public SchedulerBroker(Broker next, File directory, JobSchedulerStore store) throws Exception {
         super(next);
         this.directory = directory;
+        this.store = store;
         this.producerId.setConnectionId(ID_GENERATOR.generateId());
         this.context.setSecurityContext(SecurityContext.BROKER_SECURITY_CONTEXT);
         context.setBroker(next);
@@ -269,7 +278,11 @@ public class SchedulerBroker extends BrokerFilter implements JobListener {
         if (started.get()) {
             if (this.store == null) {
                 this.store = new JobSchedulerStore();
-                this.store.setDirectory(directory);
+            }
+            if (!this.store.isStarted()) {
+                if (this.store.getDirectory() == null) {
+                    this.store.setDirectory(directory);
+                }
                 this.store.start();
             }
             return this.store;
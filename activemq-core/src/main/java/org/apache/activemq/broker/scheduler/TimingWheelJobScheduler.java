@@ -0,0 +1,406 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.scheduler;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.MessageFormatException;
+
+import org.apache.activemq.util.TimingWheel;
+import org.apache.kahadb.index.BTreeIndex;
+import org.apache.kahadb.journal.Location;
+import org.apache.kahadb.page.Transaction;
+import org.apache.kahadb.util.ByteSequence;
+import org.apache.kahadb.util.StringMarshaller;
+import org.apache.kahadb.util.VariableMarshaller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JobScheduler that keeps one index entry per job, ordered by the time the
+ * job is due, and holds the jobs due within the next window in a timing wheel.
+ * <p/>
+ * Adding or removing a job writes only its own entry rather than the list of
+ * all the jobs due at the same time, a job is found by its id through a
+ * second index, and the scheduler thread fires the jobs that are due from
+ * memory and reads the index only once per window.
+ */
+class TimingWheelJobScheduler extends JobSchedulerImpl {
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheelJobScheduler.class);
+    // written in place of the index page id of a JobSchedulerImpl
+    static final long FORMAT = -1;
+
+    private final TimingWheelJobSchedulerStore wheelStore;
+    BTreeIndex<JobKey, JobLocation> timeIndex;
+    BTreeIndex<String, JobKey> idIndex;
+    private TimingWheel<JobKey> wheel;
+    private final Map<JobKey, JobLocation> window = new HashMap<JobKey, JobLocation>();
+    private long windowEnd = Long.MIN_VALUE;
+
+    TimingWheelJobScheduler(TimingWheelJobSchedulerStore store) {
+        super(store);
+        this.wheelStore = store;
+    }
+
+    @Override
+    public synchronized long getNextScheduleTime() throws IOException {
+        Map.Entry<JobKey, JobLocation> first = this.timeIndex.getFirst(this.store.getPageFile().tx());
+        return first != null ? first.getKey().time : -1l;
+    }
+
+    @Override
+    public synchronized List<Job> getNextScheduleJobs() throws IOException {
+        long next = getNextScheduleTime();
+        return next != -1 ? getAllJobs(next, next) : new ArrayList<Job>();
+    }
+
+    @Override
+    public synchronized List<Job> getAllJobs() throws IOException {
+        return getAllJobs(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized List<Job> getAllJobs(final long start, final long finish) throws IOException {
+        final List<Job> result = new ArrayList<Job>();
+        this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
+            public void execute(Transaction tx) throws IOException {
+                for (Map.Entry<JobKey, JobLocation> entry : jobs(tx, start, finish)) {
+                    JobLocation jl = entry.getValue();
+                    result.add(new JobImpl(jl, getPayload(jl.getLocation())));
+                }
+            }
+        });
+        return result;
+    }
+
+    @Override
+    void storeJob(Transaction tx, JobLocation jobLocation, long nextExecutionTime) throws IOException {
+        jobLocation.setNextTime(nextExecutionTime);
+        JobKey key = new JobKey(nextExecutionTime, jobLocation.getLocation());
+        this.timeIndex.put(tx, key, jobLocation);
+        this.idIndex.put(tx, jobLocation.getJobId(), key);
+        if (nextExecutionTime < this.windowEnd) {
+            this.window.put(key, jobLocation);
+            this.wheel.add(key, nextExecutionTime);
+        }
+    }
+
+    @Override
+    JobLocation removeFromIndex(Transaction tx, long time, String jobId) throws IOException {
+        JobKey key = this.idIndex.get(tx, jobId);
+        if (key != null && key.time == time) {
+            return unindex(tx, key);
+        }
+        return null;
+    }
+
+    @Override
+    void remove(Transaction tx, long time) throws IOException {
+        removeRange(tx, time, time);
+    }
+
+    @Override
+    void remove(Transaction tx, String id) throws IOException {
+        JobKey key = this.idIndex.get(tx, id);
+        if (key != null) {
+            remove(tx, key.time, id);
+        }
+    }
+
+    @Override
+    synchronized void destroy(Transaction tx) throws IOException {
+        removeRange(tx, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Override
+    synchronized void destroy(Transaction tx, long start, long finish) throws IOException {
+        removeRange(tx, start, finish);
+    }
+
+    /**
+     * Removes all the jobs due between the start and finish times, releasing
+     * their journal references with one update per data file.
+     */
+    private void removeRange(Transaction tx, long start, long finish) throws IOException {
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (Map.Entry<JobKey, JobLocation> entry : jobs(tx, start, finish)) {
+            unindex(tx, entry.getKey());
+            Integer logId = entry.getKey().location.getDataFileId();
+            Integer count = counts.get(logId);
+            counts.put(logId, count != null ? count + 1 : 1);
+        }
+        if (!counts.isEmpty()) {
+            this.store.decrementJournalCounts(tx, counts);
+        }
+    }
+
+    private JobLocation unindex(Transaction tx, JobKey key) throws IOException {
+        JobLocation result = this.timeIndex.remove(tx, key);
+        if (result != null) {
+            // the id may have been used again for a later job
+            if (key.equals(this.idIndex.get(tx, result.getJobId()))) {
+                this.idIndex.remove(tx, result.getJobId());
+            }
+            if (this.window.remove(key) != null) {
+                this.wheel.remove(key, key.time);
+            }
+        }
+        return result;
+    }
+
+    private List<Map.Entry<JobKey, JobLocation>> jobs(Transaction tx, long start, long finish) throws IOException {
+        List<Map.Entry<JobKey, JobLocation>> result = new ArrayList<Map.Entry<JobKey, JobLocation>>();
+        for (Iterator<Map.Entry<JobKey, JobLocation>> i = this.timeIndex.iterator(tx, new JobKey(start, null)); i.hasNext();) {
+            Map.Entry<JobKey, JobLocation> entry = i.next();
+            if (entry.getKey().time > finish) {
+                break;
+            }
+            result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * Moves the jobs that are due before the given time from the index into
+     * the wheel.
+     */
+    private void loadWindow(Transaction tx, long end) throws IOException {
+        int loaded = 0;
+        for (Map.Entry<JobKey, JobLocation> entry : jobs(tx, this.windowEnd, end - 1)) {
+            if (this.window.put(entry.getKey(), entry.getValue()) == null) {
+                this.wheel.add(entry.getKey(), entry.getKey().time);
+                loaded++;
+            }
+        }
+        this.windowEnd = end;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(this + " loaded " + loaded + " jobs due before " + JobImpl.getDateTime(end));
+        }
+    }
+
+    @Override
+    protected void mainLoop() {
+        final long windowMillis = this.wheelStore.getWindowMillis();
+        while (this.running.get()) {
+            this.scheduleTime.clearNewJob();
+            try {
+                final long currentTime = System.currentTimeMillis();
+                synchronized (this) {
+                    if (!this.store.isStopped() && !this.store.isStopping()) {
+                        this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
+                            public void execute(Transaction tx) throws IOException {
+                                if (currentTime + windowMillis / 2 >= windowEnd) {
+                                    loadWindow(tx, currentTime + windowMillis);
+                                }
+                                List<JobKey> due = wheel.expire(currentTime);
+                                Collections.sort(due);
+                                for (JobKey key : due) {
+                                    JobLocation job = window.remove(key);
+                                    if (job != null) {
+                                        fireJob(tx, key, job, currentTime);
+                                    }
+                                }
+                            }
+                        });
+                        long waitTime = this.window.isEmpty() ? this.windowEnd - windowMillis / 2 - currentTime
+                                : this.wheelStore.getTickMillis();
+                        this.scheduleTime.setWaitTime(waitTime);
+                    }
+                }
+                this.scheduleTime.pause();
+            } catch (Exception ioe) {
+                LOG.error(getName() + " Failed to schedule job", ioe);
+                try {
+                    this.store.stop();
+                } catch (Exception e) {
+                    LOG.error(getName() + " Failed to shutdown JobSchedulerStore", e);
+                }
+            }
+        }
+    }
+
+    private void fireJob(Transaction tx, JobKey key, JobLocation job, long currentTime) throws IOException {
+        this.schedulingLatency.addTime(currentTime - key.time);
+        int repeat = job.getRepeat();
+        long nextExecutionTime;
+        try {
+            nextExecutionTime = calculateNextExecutionTime(job, currentTime, repeat);
+        } catch (MessageFormatException e) {
+            throw new IOException(e.getMessage());
+        }
+        boolean rescheduled = false;
+        if (job.isCron() == false) {
+            fireJob(job);
+            if (repeat != 0) {
+                job.setRepeat(repeat - 1);
+                rescheduled = true;
+            }
+        } else {
+            if (repeat == 0) {
+                // just a cron job - so fire it
+                fireJob(job);
+            }
+            if (nextExecutionTime > currentTime) {
+                rescheduled = true;
+                if (repeat != 0) {
+                    // the cron entry starts a separate schedule rather than
+                    // being fired itself
+                    ByteSequence payload = getPayload(job.getLocation());
+                    schedule(tx, ID_GENERATOR.generateId(), payload, "", job.getDelay(), job.getPeriod(), job.getRepeat());
+                }
+            }
+        }
+        unindex(tx, key);
+        if (rescheduled) {
+            storeJob(tx, job, nextExecutionTime);
+        } else {
+            this.store.decrementJournalCount(tx, job.getLocation());
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        this.wheel = new TimingWheel<JobKey>(this.wheelStore.getTickMillis(), this.wheelStore.getWheelSize(),
+                System.currentTimeMillis());
+        this.window.clear();
+        this.windowEnd = Long.MIN_VALUE;
+        super.doStart();
+    }
+
+    @Override
+    void createIndexes(Transaction tx) throws IOException {
+        this.timeIndex = new BTreeIndex<JobKey, JobLocation>(this.store.getPageFile(), tx.allocate().getPageId());
+        this.idIndex = new BTreeIndex<String, JobKey>(this.store.getPageFile(), tx.allocate().getPageId());
+    }
+
+    @Override
+    void load(Transaction tx) throws IOException {
+        setMarshallers();
+        this.timeIndex.load(tx);
+        this.idIndex.load(tx);
+    }
+
+    @Override
+    void read(DataInput in) throws IOException {
+        setName(in.readUTF());
+        if (in.readLong() != FORMAT) {
+            throw new IOException("The job scheduler " + getName() + " was not written by a "
+                    + TimingWheelJobSchedulerStore.class.getSimpleName() + " and can not be read by one");
+        }
+        this.timeIndex = new BTreeIndex<JobKey, JobLocation>(this.store.getPageFile(), in.readLong());
+        this.idIndex = new BTreeIndex<String, JobKey>(this.store.getPageFile(), in.readLong());
+        setMarshallers();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(getName());
+        out.writeLong(FORMAT);
+        out.writeLong(this.timeIndex.getPageId());
+        out.writeLong(this.idIndex.getPageId());
+    }
+
+    private void setMarshallers() {
+        this.timeIndex.setKeyMarshaller(JobKeyMarshaller.INSTANCE);
+        this.timeIndex.setValueMarshaller(JobLocationMarshaller.INSTANCE);
+        this.idIndex.setKeyMarshaller(StringMarshaller.INSTANCE);
+        this.idIndex.setValueMarshaller(JobKeyMarshaller.INSTANCE);
+    }
+
+    /**
+     * The key of a job in the time index: the time it is due at, then the
+     * journal location of its payload to tell apart jobs due at the same time.
+     */
+    static final class JobKey implements Comparable<JobKey> {
+        final long time;
+        final Location location;
+
+        JobKey(long time, Location location) {
+            this.time = time;
+            this.location = location;
+        }
+
+        public int compareTo(JobKey other) {
+            if (this.time != other.time) {
+                return this.time < other.time ? -1 : 1;
+            }
+            if (this.location == null || other.location == null) {
+                // a key without a location sorts before all the jobs at its time
+                return this.location == other.location ? 0 : this.location == null ? -1 : 1;
+            }
+            return this.location.compareTo(other.location);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof JobKey)) {
+                return false;
+            }
+            JobKey other = (JobKey) o;
+            return this.time == other.time
+                    && (this.location == null ? other.location == null : this.location.equals(other.location));
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (this.time ^ (this.time >>> 32)) * 31 + (this.location != null ? this.location.hashCode() : 0);
+        }
+
+        @Override
+        public String toString() {
+            return this.time + ":" + this.location;
+        }
+    }
+
+    static class JobKeyMarshaller extends VariableMarshaller<JobKey> {
+        static final JobKeyMarshaller INSTANCE = new JobKeyMarshaller();
+
+        public JobKey readPayload(DataInput dataIn) throws IOException {
+            long time = dataIn.readLong();
+            Location location = new Location(dataIn.readInt(), dataIn.readInt());
+            return new JobKey(time, location);
+        }
+
+        public void writePayload(JobKey key, DataOutput dataOut) throws IOException {
+            dataOut.writeLong(key.time);
+            dataOut.writeInt(key.location.getDataFileId());
+            dataOut.writeInt(key.location.getOffset());
+        }
+    }
+
+    static class JobLocationMarshaller extends VariableMarshaller<JobLocation> {
+        static final JobLocationMarshaller INSTANCE = new JobLocationMarshaller();
+
+        public JobLocation readPayload(DataInput dataIn) throws IOException {
+            JobLocation jobLocation = new JobLocation();
+            jobLocation.readExternal(dataIn);
+            return jobLocation;
+        }
+
+        public void writePayload(JobLocation jobLocation, DataOutput dataOut) throws IOException {
+            jobLocation.writeExternal(dataOut);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.scheduler;
+
+/**
+ * A JobSchedulerStore for large numbers of scheduled messages. Each job is
+ * indexed on its own by the time it is due and by its id, and the jobs due
+ * within the next window are held in memory in a hierarchical timing wheel
+ * that the scheduler fires them from.
+ * <p/>
+ * The store keeps its jobs in a different layout to a {@link JobSchedulerStore}
+ * so it must be given a directory of its own.
+ * 
+ * @org.apache.xbean.XBean element="timingWheelJobSchedulerStore"
+ */
+public class TimingWheelJobSchedulerStore extends JobSchedulerStore {
+
+    private long tickMillis = 100;
+    private int wheelSize = 512;
+    private long windowMillis = 60 * 1000;
+
+    @Override
+    JobSchedulerImpl createJobScheduler() {
+        return new TimingWheelJobScheduler(this);
+    }
+
+    /**
+     * @return the time spanned by a slot of the timing wheel
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * @param tickMillis the time spanned by a slot of the timing wheel, which
+     *                is how often the scheduler looks for due jobs
+     */
+    public void setTickMillis(long tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    public int getWheelSize() {
+        return wheelSize;
+    }
+
+    /**
+     * @param wheelSize the number of slots of each level of the timing wheel
+     */
+    public void setWheelSize(int wheelSize) {
+        this.wheelSize = wheelSize;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @param windowMillis how far ahead the jobs are loaded from the index into
+     *                the timing wheel
+     */
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "TimingWheelJobSchedulerStore:" + getDirectory();
+    }
+}
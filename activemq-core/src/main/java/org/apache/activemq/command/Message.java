@@ -37,6 +37,7 @@ import org.apache.activemq.util.ByteArrayInputStream;
 import org.apache.activemq.util.ByteArrayOutputStream;
 import org.apache.activemq.util.ByteSequence;
 import org.apache.activemq.util.MarshallingSupport;
+import org.apache.activemq.util.PrimitiveMapScanner;
 import org.apache.activemq.wireformat.WireFormat;
 
 /**
@@ -52,6 +53,12 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
      */
     public static final int DEFAULT_MINIMUM_MESSAGE_SIZE = 1024;
 
+    /**
+     * The number of single property reads and writes done on the marshalled
+     * properties before they are unmarshalled into a map
+     */
+    public static final int MAX_MARSHALLED_PROPERTY_ACCESSES = 8;
+
     protected MessageId messageId;
     protected ActiveMQDestination originalDestination;
     protected TransactionId originalTransactionId;
@@ -89,9 +96,12 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     protected boolean droppable;
 
     private transient short referenceCount;
+    private transient int marshalledPropertyAccesses;
     private transient ActiveMQConnection connection;
     private transient org.apache.activemq.broker.region.Destination regionDestination;
     private transient MemoryUsage memoryUsage;
+    private transient Object cachedMarshalledForm;
+    private transient org.apache.activemq.broker.region.MessageReference referenceCountOwner;
 
     private BrokerId[] brokerPath;
     private BrokerId[] cluster;
@@ -161,6 +171,12 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
             if (marshalledProperties == null) {
                 return null;
             }
+            // a broker that only routes the message usually needs a few
+            // properties, find them without building the whole map
+            if (marshalledPropertyAccesses < MAX_MARSHALLED_PROPERTY_ACCESSES) {
+                marshalledPropertyAccesses++;
+                return PrimitiveMapScanner.getValue(marshalledProperties, name);
+            }
             properties = unmarsallProperties(marshalledProperties);
         }
         return properties.get(name);
@@ -178,16 +194,28 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void clearProperties() {
+        cachedMarshalledForm = null;
         marshalledProperties = null;
         properties = null;
     }
 
     public void setProperty(String name, Object value) throws IOException {
+        cachedMarshalledForm = null;
+        if (properties == null && marshalledProperties != null
+            && marshalledPropertyAccesses < MAX_MARSHALLED_PROPERTY_ACCESSES
+            && MarshallingSupport.isPrimitive(value)) {
+            marshalledPropertyAccesses++;
+            if (!PrimitiveMapScanner.containsKey(marshalledProperties, name)) {
+                marshalledProperties = PrimitiveMapScanner.append(marshalledProperties, name, value);
+                return;
+            }
+        }
         lazyCreateProperties();
         properties.put(name, value);
     }
 
     public void removeProperty(String name) throws IOException {
+        cachedMarshalledForm = null;
         lazyCreateProperties();
         properties.remove(name);
     }
@@ -221,6 +249,19 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     public void afterMarshall(WireFormat wireFormat) throws IOException {
     }
 
+    /**
+     * A wire format can keep the marshalled form of the message here so that
+     * a message dispatched to many consumers is only marshalled once. It is
+     * dropped whenever a marshalled field of the message is changed.
+     */
+    public Object getCachedMarshalledForm() {
+        return cachedMarshalledForm;
+    }
+
+    public void setCachedMarshalledForm(Object cachedMarshalledForm) {
+        this.cachedMarshalledForm = cachedMarshalledForm;
+    }
+
     public void beforeUnmarshall(WireFormat wireFormat) throws IOException {
     }
 
@@ -241,6 +282,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setProducerId(ProducerId producerId) {
+        cachedMarshalledForm = null;
         this.producerId = producerId;
     }
 
@@ -252,6 +294,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setDestination(ActiveMQDestination destination) {
+        cachedMarshalledForm = null;
         this.destination = destination;
     }
 
@@ -263,6 +306,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setTransactionId(TransactionId transactionId) {
+        cachedMarshalledForm = null;
         this.transactionId = transactionId;
     }
 
@@ -278,6 +322,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setOriginalDestination(ActiveMQDestination destination) {
+        cachedMarshalledForm = null;
         this.originalDestination = destination;
     }
 
@@ -289,6 +334,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setMessageId(MessageId messageId) {
+        cachedMarshalledForm = null;
         this.messageId = messageId;
     }
 
@@ -300,6 +346,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setOriginalTransactionId(TransactionId transactionId) {
+        cachedMarshalledForm = null;
         this.originalTransactionId = transactionId;
     }
 
@@ -311,6 +358,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setGroupID(String groupID) {
+        cachedMarshalledForm = null;
         this.groupID = groupID;
     }
 
@@ -322,6 +370,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setGroupSequence(int groupSequence) {
+        cachedMarshalledForm = null;
         this.groupSequence = groupSequence;
     }
 
@@ -333,6 +382,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setCorrelationId(String correlationId) {
+        cachedMarshalledForm = null;
         this.correlationId = correlationId;
     }
 
@@ -344,6 +394,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setPersistent(boolean deliveryMode) {
+        cachedMarshalledForm = null;
         this.persistent = deliveryMode;
     }
 
@@ -355,6 +406,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setExpiration(long expiration) {
+        cachedMarshalledForm = null;
         this.expiration = expiration;
     }
 
@@ -366,6 +418,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setPriority(byte priority) {
+        cachedMarshalledForm = null;
         if (priority < 0) {
             this.priority = 0;
         } else if (priority > 9) {
@@ -383,6 +436,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setReplyTo(ActiveMQDestination replyTo) {
+        cachedMarshalledForm = null;
         this.replyTo = replyTo;
     }
 
@@ -394,6 +448,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setTimestamp(long timestamp) {
+        cachedMarshalledForm = null;
         this.timestamp = timestamp;
     }
 
@@ -405,6 +460,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setType(String type) {
+        cachedMarshalledForm = null;
         this.type = type;
     }
 
@@ -416,6 +472,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setContent(ByteSequence content) {
+        cachedMarshalledForm = null;
         this.content = content;
     }
 
@@ -427,6 +484,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setMarshalledProperties(ByteSequence marshalledProperties) {
+        cachedMarshalledForm = null;
         this.marshalledProperties = marshalledProperties;
     }
 
@@ -438,6 +496,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setDataStructure(DataStructure data) {
+        cachedMarshalledForm = null;
         this.dataStructure = data;
     }
 
@@ -455,6 +514,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setTargetConsumerId(ConsumerId targetConsumerId) {
+        cachedMarshalledForm = null;
         this.targetConsumerId = targetConsumerId;
     }
 
@@ -475,6 +535,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setCompressed(boolean compressed) {
+        cachedMarshalledForm = null;
         this.compressed = compressed;
     }
 
@@ -495,6 +556,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void incrementRedeliveryCounter() {
+        cachedMarshalledForm = null;
         redeliveryCounter++;
     }
 
@@ -506,6 +568,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setRedeliveryCounter(int deliveryCounter) {
+        cachedMarshalledForm = null;
         this.redeliveryCounter = deliveryCounter;
     }
 
@@ -519,6 +582,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setBrokerPath(BrokerId[] brokerPath) {
+        cachedMarshalledForm = null;
         this.brokerPath = brokerPath;
     }
 
@@ -558,6 +622,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setArrival(long arrival) {
+        cachedMarshalledForm = null;
         this.arrival = arrival;
     }
 
@@ -573,10 +638,30 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setUserID(String jmsxUserID) {
+        cachedMarshalledForm = null;
         this.userID = jmsxUserID;
     }
 
     public int getReferenceCount() {
+        org.apache.activemq.broker.region.MessageReference owner;
+        synchronized (this) {
+            owner = referenceCountOwner;
+            if (owner == null) {
+                return referenceCount;
+            }
+        }
+        return owner.getReferenceCount();
+    }
+
+    /**
+     * Hands the reference count of this message over to a broker side
+     * reference that stands in for it, increments and decrements made through
+     * the message from then on are applied to that reference.
+     *
+     * @return the reference count at the time it was handed over
+     */
+    public synchronized int transferReferenceCount(org.apache.activemq.broker.region.MessageReference owner) {
+        referenceCountOwner = owner;
         return referenceCount;
     }
 
@@ -615,10 +700,15 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     public int incrementReferenceCount() {
         int rc;
         int size;
+        org.apache.activemq.broker.region.MessageReference owner;
         synchronized (this) {
-            rc = ++referenceCount;
+            owner = referenceCountOwner;
+            rc = owner == null ? ++referenceCount : 0;
             size = getSize();
         }
+        if (owner != null) {
+            return owner.incrementReferenceCount();
+        }
 
         if (rc == 1 && getMemoryUsage() != null) {
             getMemoryUsage().increaseUsage(size);
@@ -633,10 +723,15 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     public int decrementReferenceCount() {
         int rc;
         int size;
+        org.apache.activemq.broker.region.MessageReference owner;
         synchronized (this) {
-            rc = --referenceCount;
+            owner = referenceCountOwner;
+            rc = owner == null ? --referenceCount : 0;
             size = getSize();
         }
+        if (owner != null) {
+            return owner.decrementReferenceCount();
+        }
 
         if (rc == 0 && getMemoryUsage() != null) {
             getMemoryUsage().decreaseUsage(size);
@@ -685,6 +780,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
      * @param recievedByDFBridge The recievedByDFBridge to set.
      */
     public void setRecievedByDFBridge(boolean recievedByDFBridge) {
+        cachedMarshalledForm = null;
         this.recievedByDFBridge = recievedByDFBridge;
     }
 
@@ -700,6 +796,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setDroppable(boolean droppable) {
+        cachedMarshalledForm = null;
         this.droppable = droppable;
     }
 
@@ -714,6 +811,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setCluster(BrokerId[] cluster) {
+        cachedMarshalledForm = null;
         this.cluster = cluster;
     }
 
@@ -730,6 +828,7 @@ public abstract class Message extends BaseCommand implements MarshallAware, Mess
     }
 
     public void setBrokerInTime(long brokerInTime) {
+        cachedMarshalledForm = null;
         this.brokerInTime = brokerInTime;
     }
 
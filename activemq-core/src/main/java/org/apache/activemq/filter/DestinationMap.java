@@ -22,6 +22,8 @@ import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.activemq.command.ActiveMQDestination;
 
@@ -34,13 +36,24 @@ import org.apache.activemq.command.ActiveMQDestination;
  * destination steps. So looking up the values for "TEST.*" or "*.TEST" will be
  * pretty fast. <br>
  * Looking up of a value could return a single value or a List of matching
- * values if a wildcard or composite destination is used.
+ * values if a wildcard or composite destination is used. <br>
+ * The matches found for a destination and the value chosen for it are cached
+ * until the map is next changed, so repeated lookups of the same destination
+ * do not walk the index again.
  *
  *
  */
 public class DestinationMap {
     protected static final String ANY_DESCENDENT = DestinationFilter.ANY_DESCENDENT;
     protected static final String ANY_CHILD = DestinationFilter.ANY_CHILD;
+    private static final Object NO_VALUE = new Object();
+
+    @SuppressWarnings("rawtypes")
+    private final ConcurrentHashMap<ActiveMQDestination, Set> matchCache = new ConcurrentHashMap<ActiveMQDestination, Set>();
+    private final ConcurrentHashMap<ActiveMQDestination, Object> valueCache = new ConcurrentHashMap<ActiveMQDestination, Object>();
+    private final AtomicLong lookupCacheHits = new AtomicLong();
+    private final AtomicLong lookupCacheMisses = new AtomicLong();
+    private int lookupCacheSize = 100000;
 
     private DestinationMapNode queueRootNode = new DestinationMapNode(null);
     private DestinationMapNode tempQueueRootNode = new DestinationMapNode(null);
@@ -87,6 +100,7 @@ public class DestinationMap {
         }
         String[] paths = key.getDestinationPaths();
         getRootNode(key).add(paths, 0, value);
+        clearLookupCache();
     }
 
     /**
@@ -103,7 +117,7 @@ public class DestinationMap {
         }
         String[] paths = key.getDestinationPaths();
         getRootNode(key).remove(paths, 0, value);
-
+        clearLookupCache();
     }
 
     public int getTopicRootChildCount() {
@@ -130,6 +144,38 @@ public class DestinationMap {
         return tempTopicRootNode;
     }
 
+    public int getLookupCacheSize() {
+        return lookupCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of destinations whose lookup results are
+     * cached, or 0 to disable the cache. The cache is emptied when it is full.
+     */
+    public synchronized void setLookupCacheSize(int lookupCacheSize) {
+        this.lookupCacheSize = lookupCacheSize;
+        clearLookupCache();
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    public long getLookupCacheHits() {
+        return lookupCacheHits.get();
+    }
+
+    /**
+     * @return the number of lookups that had to walk the index
+     */
+    public long getLookupCacheMisses() {
+        return lookupCacheMisses.get();
+    }
+
+    public void resetLookupCacheStatistics() {
+        lookupCacheHits.set(0);
+        lookupCacheMisses.set(0);
+    }
+
     // Implementation methods
     // -------------------------------------------------------------------------
 
@@ -163,9 +209,21 @@ public class DestinationMap {
 
     @SuppressWarnings({ "rawtypes", "unchecked" })
     protected Set findWildcardMatches(ActiveMQDestination key) {
+        if (lookupCacheSize > 0) {
+            Set cached = matchCache.get(key);
+            if (cached != null) {
+                lookupCacheHits.incrementAndGet();
+                // callers are free to change the set they get back
+                return new HashSet(cached);
+            }
+        }
+        lookupCacheMisses.incrementAndGet();
         String[] paths = key.getDestinationPaths();
         Set answer = new HashSet();
         getRootNode(key).appendMatchingValues(answer, paths, 0);
+        if (lookupCacheSize > 0) {
+            cache(matchCache, key, new HashSet(answer));
+        }
         return answer;
     }
 
@@ -174,7 +232,7 @@ public class DestinationMap {
      * @return
      */
     @SuppressWarnings({ "rawtypes", "unchecked" })
-    public Set removeAll(ActiveMQDestination key) {
+    public synchronized Set removeAll(ActiveMQDestination key) {
         Set rc = new HashSet();
         if (key.isComposite()) {
             ActiveMQDestination[] destinations = key.getCompositeDestinations();
@@ -185,6 +243,7 @@ public class DestinationMap {
         }
         String[] paths = key.getDestinationPaths();
         getRootNode(key).removeAll(rc, paths, 0);
+        clearLookupCache();
         return rc;
     }
 
@@ -198,12 +257,27 @@ public class DestinationMap {
      */
     @SuppressWarnings({ "rawtypes", "unchecked" })
     public Object chooseValue(ActiveMQDestination destination) {
-        Set set = get(destination);
-        if (set == null || set.isEmpty()) {
-            return null;
+        if (lookupCacheSize > 0) {
+            Object value = valueCache.get(destination);
+            if (value != null) {
+                lookupCacheHits.incrementAndGet();
+                return value == NO_VALUE ? null : value;
+            }
+        }
+        // hold the lock so a change to the map cannot slip in between the
+        // lookup and caching its result
+        synchronized (this) {
+            Object value = null;
+            Set set = get(destination);
+            if (set != null && !set.isEmpty()) {
+                SortedSet sortedSet = new TreeSet(set);
+                value = sortedSet.last();
+            }
+            if (lookupCacheSize > 0) {
+                cache(valueCache, destination, value == null ? NO_VALUE : value);
+            }
+            return value;
         }
-        SortedSet sortedSet = new TreeSet(set);
-        return sortedSet.last();
     }
 
     /**
@@ -225,11 +299,28 @@ public class DestinationMap {
         }
     }
 
-    public void reset() {
+    public synchronized void reset() {
         queueRootNode = new DestinationMapNode(null);
         tempQueueRootNode = new DestinationMapNode(null);
         topicRootNode = new DestinationMapNode(null);
         tempTopicRootNode = new DestinationMapNode(null);
+        clearLookupCache();
+    }
+
+    /**
+     * Drops the cached lookup results, which must be done whenever the index
+     * changes.
+     */
+    protected void clearLookupCache() {
+        matchCache.clear();
+        valueCache.clear();
+    }
+
+    private <V> void cache(ConcurrentHashMap<ActiveMQDestination, V> cache, ActiveMQDestination key, V value) {
+        if (cache.size() >= lookupCacheSize) {
+            cache.clear();
+        }
+        cache.put(key, value);
     }
 
     public static Set union(Set existing, Set candidates) {
@@ -38,6 +38,8 @@ public class MessageEvaluationContext {
     protected boolean dropped;
     protected Message message;
     protected ActiveMQDestination destination;
+    protected SelectorIndex selectorIndex;
+    protected SelectorIndex.Matches selectorIndexMatches;
 
     public MessageEvaluationContext() {
     }
@@ -71,6 +73,7 @@ public class MessageEvaluationContext {
     public void clear() {
         clearMessageCache();
         destination = null;
+        selectorIndex = null;
     }
 
     public ActiveMQDestination getDestination() {
@@ -81,10 +84,59 @@ public class MessageEvaluationContext {
         this.destination = destination;
     }
 
+    public SelectorIndex getSelectorIndex() {
+        return selectorIndex;
+    }
+
+    /**
+     * Sets the index of the selectors of the consumers the message is being
+     * dispatched to, if the destination keeps one.
+     */
+    public void setSelectorIndex(SelectorIndex selectorIndex) {
+        if (this.selectorIndex != selectorIndex) {
+            selectorIndexMatches = null;
+        }
+        this.selectorIndex = selectorIndex;
+    }
+
+    /**
+     * Makes this context evaluate the message of another context for the same
+     * destination, sharing the selector index matches the other context looks
+     * up. One message can then be evaluated against several groups of
+     * consumers at once, with one context per thread.
+     */
+    public void share(MessageEvaluationContext other) {
+        setMessageReference(other.messageReference);
+        setDestination(other.destination);
+        setSelectorIndex(other.selectorIndex);
+        if (selectorIndex != null) {
+            if (other.selectorIndexMatches == null) {
+                other.selectorIndexMatches = selectorIndex.match(other);
+            }
+            selectorIndexMatches = other.selectorIndexMatches;
+        }
+    }
+
+    /**
+     * @return false if the selector index shows that the selector of the item
+     *         cannot match the message, true if it may match or there is no
+     *         index
+     */
+    public boolean isSelectorCandidate(Object item, String selector) {
+        if (selectorIndex == null) {
+            return true;
+        }
+        if (selectorIndexMatches == null) {
+            selectorIndexMatches = selectorIndex.match(this);
+        }
+        return selectorIndexMatches.isCandidate(item, selector);
+    }
+
     /**
      * A strategy hook to allow per-message caches to be cleared
      */
     protected void clearMessageCache() {
+        selectorIndexMatches = null;
         if (loaded) {
             messageReference.decrementReferenceCount();
         }
@@ -34,6 +34,7 @@ public class NonCachedMessageEvaluationContext extends MessageEvaluationContext
 
     public void setMessageReference(MessageReference messageReference) {
         this.messageReference = messageReference;
+        this.selectorIndexMatches = null;
     }
 
     
@@ -0,0 +1,489 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.filter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+
+import org.apache.activemq.command.Message;
+import org.apache.activemq.util.JMSExceptionSupport;
+
+/**
+ * Compiles a parsed selector into a tree of specialized evaluators.
+ *
+ * The compiled form works with a three state int result rather than boxed
+ * Booleans, short circuits AND and OR directly, compares numeric properties
+ * and JMS headers against literals as primitives and reads the numeric JMS
+ * headers without boxing them. Parts of a selector that are not understood by
+ * the compiler, and property values of unusual types, are handed to the
+ * original expression, so a compiled selector always gives the same answer as
+ * the interpreted one.
+ */
+public final class SelectorCompiler {
+
+    public static final String COMPILE_SELECTORS = "org.apache.activemq.filter.COMPILE_SELECTORS";
+    public static final boolean compileSelectors = Boolean.parseBoolean(System.getProperty(COMPILE_SELECTORS, "false"));
+
+    static final int FALSE = 0;
+    static final int TRUE = 1;
+    static final int UNKNOWN = -1;
+
+    private static final int EQ = 0;
+    private static final int GT = 1;
+    private static final int GE = 2;
+    private static final int LT = 3;
+    private static final int LE = 4;
+
+    private static final Map<String, Header> NUMERIC_HEADERS = new HashMap<String, Header>();
+
+    private SelectorCompiler() {
+    }
+
+    /**
+     * @return the compiled form of the expression, or the expression itself
+     *         if no part of it could be compiled
+     */
+    public static BooleanExpression compile(BooleanExpression expression) {
+        if (expression == null || expression instanceof CompiledExpression) {
+            return expression;
+        }
+        Node root = compileNode(expression);
+        if (root instanceof Interpreted) {
+            return expression;
+        }
+        return new CompiledExpression(expression, root);
+    }
+
+    /**
+     * A selector compiled by {@link SelectorCompiler#compile(BooleanExpression)}
+     */
+    public static final class CompiledExpression implements BooleanExpression {
+        private final BooleanExpression expression;
+        private final Node root;
+
+        CompiledExpression(BooleanExpression expression, Node root) {
+            this.expression = expression;
+            this.root = root;
+        }
+
+        public Object evaluate(MessageEvaluationContext message) throws JMSException {
+            switch (root.eval(message)) {
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            default:
+                return null;
+            }
+        }
+
+        public boolean matches(MessageEvaluationContext message) throws JMSException {
+            return root.eval(message) == TRUE;
+        }
+
+        /**
+         * @return the interpreted expression this was compiled from
+         */
+        public BooleanExpression getExpression() {
+            return expression;
+        }
+
+        public String toString() {
+            return expression.toString();
+        }
+
+        public int hashCode() {
+            return expression.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof CompiledExpression)) {
+                return false;
+            }
+            return expression.equals(((CompiledExpression)o).expression);
+        }
+    }
+
+    abstract static class Node {
+        abstract int eval(MessageEvaluationContext message) throws JMSException;
+    }
+
+    private static Node compileNode(BooleanExpression expression) {
+        if (expression == ConstantExpression.TRUE) {
+            return new Constant(TRUE);
+        }
+        if (expression == ConstantExpression.FALSE) {
+            return new Constant(FALSE);
+        }
+        if (expression == ConstantExpression.NULL) {
+            return new Constant(UNKNOWN);
+        }
+        if (expression instanceof LogicExpression) {
+            LogicExpression logic = (LogicExpression)expression;
+            if (logic.getLeft() instanceof BooleanExpression && logic.getRight() instanceof BooleanExpression) {
+                Node left = compileNode((BooleanExpression)logic.getLeft());
+                Node right = compileNode((BooleanExpression)logic.getRight());
+                if ("AND".equals(logic.getExpressionSymbol())) {
+                    return new And(left, right);
+                } else if ("OR".equals(logic.getExpressionSymbol())) {
+                    return new Or(left, right);
+                }
+            }
+        } else if (expression instanceof UnaryExpression) {
+            UnaryExpression unary = (UnaryExpression)expression;
+            if ("NOT".equals(unary.getExpressionSymbol()) && unary.getRight() instanceof BooleanExpression) {
+                return new Not(compileNode((BooleanExpression)unary.getRight()));
+            }
+        } else if (expression instanceof ComparisonExpression) {
+            return compileComparison((ComparisonExpression)expression);
+        }
+        return new Interpreted(expression);
+    }
+
+    private static Node compileComparison(ComparisonExpression comparison) {
+        int op;
+        String symbol = comparison.getExpressionSymbol();
+        if ("=".equals(symbol)) {
+            op = EQ;
+        } else if (">".equals(symbol)) {
+            op = GT;
+        } else if (">=".equals(symbol)) {
+            op = GE;
+        } else if ("<".equals(symbol)) {
+            op = LT;
+        } else if ("<=".equals(symbol)) {
+            op = LE;
+        } else {
+            return new Interpreted(comparison);
+        }
+
+        PropertyExpression property;
+        ConstantExpression constant;
+        boolean swapped;
+        if (comparison.getLeft() instanceof PropertyExpression && comparison.getRight() instanceof ConstantExpression) {
+            property = (PropertyExpression)comparison.getLeft();
+            constant = (ConstantExpression)comparison.getRight();
+            swapped = false;
+        } else if (comparison.getLeft() instanceof ConstantExpression && comparison.getRight() instanceof PropertyExpression) {
+            property = (PropertyExpression)comparison.getRight();
+            constant = (ConstantExpression)comparison.getLeft();
+            swapped = true;
+        } else {
+            return new Interpreted(comparison);
+        }
+
+        Object value = constant.getValue();
+        if (op == EQ && value == null) {
+            return new IsNull(property);
+        }
+        if (op == EQ && value instanceof String) {
+            return new StringEquals(property, (String)value, comparison);
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Double) {
+            if (swapped) {
+                op = mirror(op);
+            }
+            Header header = NUMERIC_HEADERS.get(property.getName());
+            if (header != null && !swapped) {
+                return new HeaderComparison(header, op, (Number)value);
+            }
+            return new PropertyComparison(property, op, (Number)value, swapped, comparison);
+        }
+        return new Interpreted(comparison);
+    }
+
+    private static int mirror(int op) {
+        switch (op) {
+        case GT:
+            return LT;
+        case GE:
+            return LE;
+        case LT:
+            return GT;
+        case LE:
+            return GE;
+        default:
+            return op;
+        }
+    }
+
+    static int test(int op, int compare) {
+        boolean result;
+        switch (op) {
+        case EQ:
+            result = compare == 0;
+            break;
+        case GT:
+            result = compare > 0;
+            break;
+        case GE:
+            result = compare >= 0;
+            break;
+        case LT:
+            result = compare < 0;
+            break;
+        default:
+            result = compare <= 0;
+            break;
+        }
+        return result ? TRUE : FALSE;
+    }
+
+    static int compare(long lv, long rv) {
+        return lv < rv ? -1 : (lv == rv ? 0 : 1);
+    }
+
+    static int toResult(Object value) {
+        if (value == null) {
+            return UNKNOWN;
+        }
+        return ((Boolean)value).booleanValue() ? TRUE : FALSE;
+    }
+
+    static final class Constant extends Node {
+        private final int value;
+
+        Constant(int value) {
+            this.value = value;
+        }
+
+        int eval(MessageEvaluationContext message) {
+            return value;
+        }
+    }
+
+    static final class Interpreted extends Node {
+        private final Expression expression;
+
+        Interpreted(Expression expression) {
+            this.expression = expression;
+        }
+
+        int eval(MessageEvaluationContext message) throws JMSException {
+            return toResult(expression.evaluate(message));
+        }
+    }
+
+    static final class And extends Node {
+        private final Node left;
+        private final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        int eval(MessageEvaluationContext message) throws JMSException {
+            int lv = left.eval(message);
+            if (lv != TRUE) {
+                return lv;
+            }
+            return right.eval(message);
+        }
+    }
+
+    static final class Or extends Node {
+        private final Node left;
+        private final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        int eval(MessageEvaluationContext message) throws JMSException {
+            if (left.eval(message) == TRUE) {
+                return TRUE;
+            }
+            return right.eval(message);
+        }
+    }
+
+    static final class Not extends Node {
+        private final Node node;
+
+        Not(Node node) {
+            this.node = node;
+        }
+
+        int eval(MessageEvaluationContext message) throws JMSException {
+            int value = node.eval(message);
+            if (value == UNKNOWN) {
+                return UNKNOWN;
+            }
+            return value == TRUE ? FALSE : TRUE;
+        }
+    }
+
+    static final class IsNull extends Node {
+        private final PropertyExpression property;
+
+        IsNull(PropertyExpression property) {
+            this.property = property;
+        }
+
+        int eval(MessageEvaluationContext message) throws JMSException {
+            return property.evaluate(message) == null ? TRUE : FALSE;
+        }
+    }
+
+    static final class StringEquals extends Node {
+        private final PropertyExpression property;
+        private final String value;
+        private final ComparisonExpression comparison;
+
+        StringEquals(PropertyExpression property, String value, ComparisonExpression comparison) {
+            this.property = property;
+            this.value = value;
+            this.comparison = comparison;
+        }
+
+        int eval(MessageEvaluationContext message) throws JMSException {
+            Object lv = property.evaluate(message);
+            if (lv == null) {
+                return FALSE;
+            }
+            if (lv instanceof String) {
+                return value.equals(lv) ? TRUE : FALSE;
+            }
+            // the string may be converted to the type of the property
+            return toResult(comparison.evaluate(message));
+        }
+    }
+
+    static final class PropertyComparison extends Node {
+        private final PropertyExpression property;
+        private final int op;
+        private final boolean integral;
+        private final long longValue;
+        private final double doubleValue;
+        private final Class<?> constantClass;
+        private final boolean swapped;
+        private final ComparisonExpression comparison;
+
+        PropertyComparison(PropertyExpression property, int op, Number value, boolean swapped, ComparisonExpression comparison) {
+            this.property = property;
+            this.op = op;
+            this.integral = !(value instanceof Double);
+            this.longValue = value.longValue();
+            this.doubleValue = value.doubleValue();
+            this.constantClass = value.getClass();
+            this.swapped = swapped;
+            this.comparison = comparison;
+        }
+
+        int eval(MessageEvaluationContext message) throws JMSException {
+            Object lv = property.evaluate(message);
+            if (lv == null) {
+                return op == EQ ? FALSE : UNKNOWN;
+            }
+            // a literal on the left is only promoted to some property types,
+            // leave the mixed type cases to the interpreter
+            if (!swapped || lv.getClass() == constantClass) {
+                if (lv instanceof Integer || lv instanceof Long || lv instanceof Short || lv instanceof Byte) {
+                    long value = ((Number)lv).longValue();
+                    return test(op, integral ? compare(value, longValue) : Double.compare(value, doubleValue));
+                }
+                if (lv instanceof Double) {
+                    return test(op, Double.compare(((Double)lv).doubleValue(), doubleValue));
+                }
+            }
+            return toResult(comparison.evaluate(message));
+        }
+    }
+
+    static final class HeaderComparison extends Node {
+        private final Header header;
+        private final int op;
+        private final boolean integral;
+        private final long longValue;
+        private final double doubleValue;
+
+        HeaderComparison(Header header, int op, Number value) {
+            this.header = header;
+            this.op = op;
+            this.integral = !(value instanceof Double);
+            this.longValue = value.longValue();
+            this.doubleValue = value.doubleValue();
+        }
+
+        int eval(MessageEvaluationContext message) throws JMSException {
+            Message m;
+            try {
+                if (message.isDropped()) {
+                    return op == EQ ? FALSE : UNKNOWN;
+                }
+                m = message.getMessage();
+            } catch (IOException e) {
+                throw JMSExceptionSupport.create(e);
+            }
+            long value = header.get(m);
+            return test(op, integral ? compare(value, longValue) : Double.compare(value, doubleValue));
+        }
+    }
+
+    interface Header {
+        long get(Message message);
+    }
+
+    static {
+        NUMERIC_HEADERS.put("JMSDeliveryMode", new Header() {
+            public long get(Message message) {
+                return message.isPersistent() ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT;
+            }
+        });
+        NUMERIC_HEADERS.put("JMSPriority", new Header() {
+            public long get(Message message) {
+                return message.getPriority();
+            }
+        });
+        NUMERIC_HEADERS.put("JMSTimestamp", new Header() {
+            public long get(Message message) {
+                return message.getTimestamp();
+            }
+        });
+        NUMERIC_HEADERS.put("JMSExpiration", new Header() {
+            public long get(Message message) {
+                return message.getExpiration();
+            }
+        });
+        NUMERIC_HEADERS.put("JMSXDeliveryCount", new Header() {
+            public long get(Message message) {
+                return message.getRedeliveryCounter() + 1;
+            }
+        });
+        NUMERIC_HEADERS.put("JMSXGroupSeq", new Header() {
+            public long get(Message message) {
+                return message.getGroupSequence();
+            }
+        });
+        NUMERIC_HEADERS.put("JMSActiveMQBrokerInTime", new Header() {
+            public long get(Message message) {
+                return message.getBrokerInTime();
+            }
+        });
+        NUMERIC_HEADERS.put("JMSActiveMQBrokerOutTime", new Header() {
+            public long get(Message message) {
+                return message.getBrokerOutTime();
+            }
+        });
+    }
+}
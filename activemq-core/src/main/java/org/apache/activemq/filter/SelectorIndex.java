@@ -0,0 +1,450 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.filter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.jms.InvalidSelectorException;
+import javax.jms.JMSException;
+
+import org.apache.activemq.selector.SelectorParser;
+
+/**
+ * An index over the selectors of the consumers of a destination that finds
+ * the consumers whose selector may match a message without evaluating every
+ * selector. <p/> For each selector one guard predicate is picked from the
+ * conjunction at its root, an equality (<code>region = 'EU'</code>) in
+ * preference to a range (<code>price > 10</code>) between a property and a
+ * literal. A selector can only match when its guard does. Guards on the same
+ * property are kept together in hash maps for equalities and sorted maps of
+ * lower and upper bounds for ranges, so a message only has to look up the
+ * value of each indexed property once to find all the consumers whose guard
+ * it satisfies. <p/> The index only rules consumers out, the full selector is
+ * still evaluated for the candidates it returns. Consumers whose selector has
+ * no usable guard, and consumers the index does not know about yet, are always
+ * candidates. Where the type promotion rules of the selector comparisons
+ * make a lookup uncertain (float or boolean values, strings that do not parse
+ * as numbers) every consumer with a guard on that property is a candidate.
+ */
+public class SelectorIndex {
+
+    static final int EQUAL = 0;
+    static final int LOWER_BOUND = 1;
+    static final int UPPER_BOUND = 2;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ConcurrentHashMap<Object, Entry> entries = new ConcurrentHashMap<Object, Entry>();
+    private final Map<String, PropertyIndex> properties = new HashMap<String, PropertyIndex>();
+    private long sequence;
+
+    /**
+     * Adds or replaces the selector of an item, usually a subscription.
+     */
+    public void add(Object item, String selector) {
+        BooleanExpression expression = null;
+        if (selector != null) {
+            try {
+                expression = SelectorParser.parse(selector);
+            } catch (InvalidSelectorException e) {
+                // no guard, the item will always be a candidate
+            }
+        }
+        add(item, selector, expression);
+    }
+
+    /**
+     * Adds or replaces the already parsed selector of an item.
+     */
+    public void add(Object item, String selector, BooleanExpression expression) {
+        Guard guard = expression != null ? Guard.create(expression) : null;
+        lock.writeLock().lock();
+        try {
+            removeGuard(item, entries.get(item));
+            if (guard != null) {
+                PropertyIndex index = properties.get(guard.property.getName());
+                if (index == null) {
+                    index = new PropertyIndex(guard.property);
+                    properties.put(guard.property.getName(), index);
+                }
+                index.add(item, guard);
+            }
+            entries.put(item, new Entry(selector, guard, ++sequence));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Object item) {
+        lock.writeLock().lock();
+        try {
+            removeGuard(item, entries.remove(item));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeGuard(Object item, Entry entry) {
+        if (entry != null && entry.guard != null) {
+            PropertyIndex index = properties.get(entry.guard.property.getName());
+            index.remove(item, entry.guard);
+            if (index.isEmpty()) {
+                properties.remove(entry.guard.property.getName());
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Looks up the items whose guard is satisfied by the message of the
+     * context.
+     */
+    public Matches match(MessageEvaluationContext context) {
+        lock.readLock().lock();
+        try {
+            Set<Object> matched = new HashSet<Object>();
+            for (PropertyIndex index : properties.values()) {
+                index.collect(context, matched);
+            }
+            return new Matches(matched, sequence);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The result of matching one message against the index.
+     */
+    public final class Matches {
+        private final Set<Object> matched;
+        private final long sequence;
+
+        Matches(Set<Object> matched, long sequence) {
+            this.matched = matched;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return false if the selector of the item cannot match the message.
+         *         An item that is not indexed yet, or whose selector has
+         *         changed, is indexed for the messages that follow.
+         */
+        public boolean isCandidate(Object item, String selector) {
+            if (selector == null) {
+                return true;
+            }
+            Entry entry = entries.get(item);
+            if (entry == null || !selector.equals(entry.selector)) {
+                add(item, selector);
+                return true;
+            }
+            return entry.guard == null || entry.sequence > sequence || matched.contains(item);
+        }
+    }
+
+    private static final class Entry {
+        final String selector;
+        final Guard guard;
+        final long sequence;
+
+        Entry(String selector, Guard guard, long sequence) {
+            this.selector = selector;
+            this.guard = guard;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A comparison between a property and a literal that has to be true for
+     * the selector it was taken from to match.
+     */
+    static final class Guard {
+        final PropertyExpression property;
+        final int type;
+        final Object value;
+
+        Guard(PropertyExpression property, int type, Object value) {
+            this.property = property;
+            this.type = type;
+            this.value = value;
+        }
+
+        static Guard create(BooleanExpression expression) {
+            if (expression instanceof SelectorCompiler.CompiledExpression) {
+                expression = ((SelectorCompiler.CompiledExpression)expression).getExpression();
+            }
+            List<Expression> conjuncts = new ArrayList<Expression>();
+            addConjuncts(expression, conjuncts);
+            Guard range = null;
+            for (Expression conjunct : conjuncts) {
+                Guard guard = createFromComparison(conjunct);
+                if (guard != null) {
+                    if (guard.type == EQUAL) {
+                        return guard;
+                    }
+                    if (range == null) {
+                        range = guard;
+                    }
+                }
+            }
+            return range;
+        }
+
+        private static void addConjuncts(Expression expression, List<Expression> conjuncts) {
+            if (expression instanceof LogicExpression && "AND".equals(((LogicExpression)expression).getExpressionSymbol())) {
+                addConjuncts(((LogicExpression)expression).getLeft(), conjuncts);
+                addConjuncts(((LogicExpression)expression).getRight(), conjuncts);
+            } else {
+                conjuncts.add(expression);
+            }
+        }
+
+        private static Guard createFromComparison(Expression expression) {
+            if (!(expression instanceof ComparisonExpression)) {
+                return null;
+            }
+            ComparisonExpression comparison = (ComparisonExpression)expression;
+            boolean swapped;
+            PropertyExpression property;
+            ConstantExpression constant;
+            if (comparison.getLeft() instanceof PropertyExpression && comparison.getRight() instanceof ConstantExpression) {
+                property = (PropertyExpression)comparison.getLeft();
+                constant = (ConstantExpression)comparison.getRight();
+                swapped = false;
+            } else if (comparison.getRight() instanceof PropertyExpression && comparison.getLeft() instanceof ConstantExpression) {
+                property = (PropertyExpression)comparison.getRight();
+                constant = (ConstantExpression)comparison.getLeft();
+                swapped = true;
+            } else {
+                return null;
+            }
+
+            Object value = constant.getValue();
+            boolean number = value instanceof Integer || value instanceof Long
+                || (value instanceof Double && !((Double)value).isNaN());
+            String symbol = comparison.getExpressionSymbol();
+            if ("=".equals(symbol)) {
+                if (value instanceof String) {
+                    return new Guard(property, EQUAL, value);
+                }
+                return number ? new Guard(property, EQUAL, key(((Number)value).doubleValue())) : null;
+            }
+            if (!number) {
+                return null;
+            }
+            Double bound = key(((Number)value).doubleValue());
+            if (">".equals(symbol) || ">=".equals(symbol)) {
+                return new Guard(property, swapped ? UPPER_BOUND : LOWER_BOUND, bound);
+            }
+            if ("<".equals(symbol) || "<=".equals(symbol)) {
+                return new Guard(property, swapped ? LOWER_BOUND : UPPER_BOUND, bound);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Normalizes -0.0 so that it is the same key as 0.0.
+     */
+    static Double key(double value) {
+        return Double.valueOf(value + 0.0d);
+    }
+
+    /**
+     * The guards on one property. Numeric comparisons are looked up on the
+     * double value of the property, which may only add candidates as the
+     * conversion to double keeps the order of the values.
+     */
+    static final class PropertyIndex {
+        final PropertyExpression property;
+        final Set<Object> items = new HashSet<Object>();
+        final Set<Object> numericItems = new HashSet<Object>();
+        final Map<String, Set<Object>> strings = new HashMap<String, Set<Object>>();
+        final Map<Double, Set<Object>> numericStrings = new HashMap<Double, Set<Object>>();
+        final Set<Object> otherStrings = new HashSet<Object>();
+        final Map<Double, Set<Object>> numbers = new HashMap<Double, Set<Object>>();
+        final TreeMap<Double, Set<Object>> lowerBounds = new TreeMap<Double, Set<Object>>();
+        final TreeMap<Double, Set<Object>> upperBounds = new TreeMap<Double, Set<Object>>();
+
+        PropertyIndex(PropertyExpression property) {
+            this.property = property;
+        }
+
+        boolean isEmpty() {
+            return items.isEmpty();
+        }
+
+        void add(Object item, Guard guard) {
+            items.add(item);
+            if (guard.value instanceof String) {
+                String value = (String)guard.value;
+                add(strings, value, item);
+                Double number = parseAscii(value);
+                if (number != null) {
+                    add(numericStrings, number, item);
+                } else if (!isAscii(value)) {
+                    otherStrings.add(item);
+                }
+                return;
+            }
+            numericItems.add(item);
+            if (guard.type == EQUAL) {
+                add(numbers, (Double)guard.value, item);
+            } else if (guard.type == LOWER_BOUND) {
+                add(lowerBounds, (Double)guard.value, item);
+            } else {
+                add(upperBounds, (Double)guard.value, item);
+            }
+        }
+
+        void remove(Object item, Guard guard) {
+            items.remove(item);
+            if (guard.value instanceof String) {
+                String value = (String)guard.value;
+                remove(strings, value, item);
+                Double number = parseAscii(value);
+                if (number != null) {
+                    remove(numericStrings, number, item);
+                }
+                otherStrings.remove(item);
+                return;
+            }
+            numericItems.remove(item);
+            if (guard.type == EQUAL) {
+                remove(numbers, (Double)guard.value, item);
+            } else if (guard.type == LOWER_BOUND) {
+                remove(lowerBounds, (Double)guard.value, item);
+            } else {
+                remove(upperBounds, (Double)guard.value, item);
+            }
+        }
+
+        void collect(MessageEvaluationContext context, Set<Object> matched) {
+            Object value;
+            try {
+                value = property.evaluate(context);
+            } catch (JMSException e) {
+                // let the selectors report it
+                matched.addAll(items);
+                return;
+            }
+            if (value == null) {
+                // comparisons with null are never true
+                return;
+            }
+            if (value instanceof String) {
+                addAll(matched, strings.get(value));
+                if (!numericItems.isEmpty()) {
+                    // the selector compares strings to numbers by parsing them
+                    double number;
+                    try {
+                        number = Double.parseDouble((String)value);
+                    } catch (NumberFormatException e) {
+                        matched.addAll(numericItems);
+                        return;
+                    }
+                    collectNumeric(number, matched);
+                }
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Double
+                       || value instanceof Short || value instanceof Byte) {
+                double number = ((Number)value).doubleValue();
+                collectNumeric(number, matched);
+                if (!Double.isNaN(number)) {
+                    addAll(matched, numericStrings.get(key(number)));
+                    matched.addAll(otherStrings);
+                }
+            } else {
+                matched.addAll(items);
+            }
+        }
+
+        private void collectNumeric(double number, Set<Object> matched) {
+            if (Double.isNaN(number)) {
+                matched.addAll(items);
+                return;
+            }
+            Double key = key(number);
+            addAll(matched, numbers.get(key));
+            for (Set<Object> bucket : lowerBounds.headMap(key, true).values()) {
+                matched.addAll(bucket);
+            }
+            for (Set<Object> bucket : upperBounds.tailMap(key, true).values()) {
+                matched.addAll(bucket);
+            }
+        }
+
+        /**
+         * @return the value of an ASCII string literal the selector may
+         *         parse when it is compared to a number
+         */
+        private static Double parseAscii(String value) {
+            if (!isAscii(value)) {
+                return null;
+            }
+            try {
+                double number = Double.parseDouble(value);
+                return Double.isNaN(number) ? null : key(number);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static boolean isAscii(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                if (value.charAt(i) > 127) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static void addAll(Set<Object> matched, Set<Object> bucket) {
+            if (bucket != null) {
+                matched.addAll(bucket);
+            }
+        }
+
+        private static <K> void add(Map<K, Set<Object>> map, K key, Object item) {
+            Set<Object> bucket = map.get(key);
+            if (bucket == null) {
+                bucket = new HashSet<Object>();
+                map.put(key, bucket);
+            }
+            bucket.add(item);
+        }
+
+        private static <K> void remove(Map<K, Set<Object>> map, K key, Object item) {
+            Set<Object> bucket = map.get(key);
+            if (bucket != null) {
+                bucket.remove(item);
+                if (bucket.isEmpty()) {
+                    map.remove(key);
+                }
+            }
+        }
+    }
+}
@@ -60,6 +60,15 @@ public final class BooleanStream {
         }
     }
 
+    /**
+     * Reads back a boolean that has already been written, counting back from
+     * the last one written, without moving the stream.
+     */
+    boolean readWrittenBoolean(int back) {
+        int bit = arrayPos * 8 + bytePos - 1 - back;
+        return ((data[bit >> 3] >> (bit & 0x07)) & 0x01) != 0;
+    }
+
     public void marshal(DataOutput dataOut) throws IOException {
         if (arrayLimit < 64) {
             dataOut.writeByte(arrayLimit);
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.openwire;
+
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.BrokerId;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.util.ByteSequence;
+
+/**
+ * The marshalled form of a message that an {@link OpenWireFormat} keeps on the
+ * message so that it can be written again to every connection that uses the
+ * same encoding. Only the broker out time, which is the last field of a
+ * message and is set on each dispatch, is written afresh.
+ * <p/>
+ * The message setters drop the cached form, but the store and the broker also
+ * change objects the message holds in place, like the broker sequence id of
+ * its message id. The form keeps a snapshot of those and is only written for
+ * a message that still matches it.
+ */
+final class CachedMarshalledForm {
+
+    final int version;
+    final boolean tightEncodingEnabled;
+    final boolean cacheEnabled;
+    final ByteSequence data;
+    final int brokerOutTimeSize;
+
+    private final MessageId messageId;
+    private final ProducerId producerId;
+    private final String producerConnectionId;
+    private final long producerSessionId;
+    private final long producerValue;
+    private final long producerSequenceId;
+    private final long brokerSequenceId;
+    private final ActiveMQDestination destination;
+    private final String destinationName;
+    private final BrokerId[] brokerPath;
+    private final String[] brokerPathValues;
+    private final int redeliveryCounter;
+
+    CachedMarshalledForm(OpenWireFormat wireFormat, Message message, ByteSequence data, int brokerOutTimeSize) {
+        this.version = wireFormat.getVersion();
+        this.tightEncodingEnabled = wireFormat.isTightEncodingEnabled();
+        this.cacheEnabled = wireFormat.isCacheEnabled();
+        this.data = data;
+        this.brokerOutTimeSize = brokerOutTimeSize;
+
+        this.messageId = message.getMessageId();
+        this.producerId = messageId != null ? messageId.getProducerId() : null;
+        this.producerConnectionId = producerId != null ? producerId.getConnectionId() : null;
+        this.producerSessionId = producerId != null ? producerId.getSessionId() : 0;
+        this.producerValue = producerId != null ? producerId.getValue() : 0;
+        this.producerSequenceId = messageId != null ? messageId.getProducerSequenceId() : 0;
+        this.brokerSequenceId = messageId != null ? messageId.getBrokerSequenceId() : 0;
+        this.destination = message.getDestination();
+        this.destinationName = destination != null ? destination.getPhysicalName() : null;
+        this.brokerPath = message.getBrokerPath();
+        if (brokerPath != null) {
+            this.brokerPathValues = new String[brokerPath.length];
+            for (int i = 0; i < brokerPath.length; i++) {
+                brokerPathValues[i] = brokerPath[i] != null ? brokerPath[i].getValue() : null;
+            }
+        } else {
+            this.brokerPathValues = null;
+        }
+        this.redeliveryCounter = message.getRedeliveryCounter();
+    }
+
+    /**
+     * @return true if nothing the form was marshalled from has been changed in
+     *         place since, the strings are replaced rather than changed so
+     *         comparing them by reference is enough
+     */
+    boolean isCurrentFor(Message message) {
+        MessageId messageId = message.getMessageId();
+        if (messageId != this.messageId || message.getDestination() != destination
+            || message.getBrokerPath() != brokerPath || message.getRedeliveryCounter() != redeliveryCounter) {
+            return false;
+        }
+        if (messageId != null) {
+            ProducerId producerId = messageId.getProducerId();
+            if (producerId != this.producerId || messageId.getProducerSequenceId() != producerSequenceId
+                || messageId.getBrokerSequenceId() != brokerSequenceId) {
+                return false;
+            }
+            if (producerId != null && (producerId.getConnectionId() != producerConnectionId
+                || producerId.getSessionId() != producerSessionId || producerId.getValue() != producerValue)) {
+                return false;
+            }
+        }
+        if (destination != null && destination.getPhysicalName() != destinationName) {
+            return false;
+        }
+        if (brokerPath != null) {
+            for (int i = 0; i < brokerPath.length; i++) {
+                if ((brokerPath[i] != null ? brokerPath[i].getValue() : null) != brokerPathValues[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the form can be written by the wire format for a message
+     *         with the given broker out time
+     */
+    boolean isUsableBy(OpenWireFormat wireFormat, long brokerOutTime) {
+        return version == wireFormat.getVersion()
+               && tightEncodingEnabled == wireFormat.isTightEncodingEnabled()
+               && cacheEnabled == wireFormat.isCacheEnabled()
+               && (brokerOutTimeSize < 0 || brokerOutTimeSize == sizeOf(brokerOutTime, tightEncodingEnabled));
+    }
+
+    /**
+     * @return the number of bytes the broker out time takes up in the given
+     *         encoding
+     */
+    static int sizeOf(long value, boolean tightEncodingEnabled) {
+        if (!tightEncodingEnabled) {
+            return 8;
+        } else if (value == 0) {
+            return 0;
+        } else if ((value & 0xFFFFFFFFFFFF0000L) == 0) {
+            return 2;
+        } else if ((value & 0xFFFFFFFF00000000L) == 0) {
+            return 4;
+        } else {
+            return 8;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.util.Map;
 
 import org.apache.activemq.command.CommandTypes;
 import org.apache.activemq.command.DataStructure;
+import org.apache.activemq.command.Message;
 import org.apache.activemq.command.WireFormatInfo;
 import org.apache.activemq.util.ByteSequence;
 import org.apache.activemq.util.ByteSequenceData;
@@ -45,6 +46,8 @@ public final class OpenWireFormat implements WireFormat {
     static final byte NULL_TYPE = CommandTypes.NULL;
     private static final int MARSHAL_CACHE_SIZE = Short.MAX_VALUE / 2;
     private static final int MARSHAL_CACHE_FREE_SPACE = 100;
+    private static final Short NOT_CACHED_INDEX = Short.valueOf((short)-1);
+    private static final Object MARSHALLED_ONCE = new Object();
 
     private DataStreamMarshaller dataMarshallers[];
     private int version;
@@ -54,6 +57,7 @@ public final class OpenWireFormat implements WireFormat {
     private boolean tightEncodingEnabled;
     private boolean sizePrefixDisabled;
     private long maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private boolean marshalledFormCacheEnabled = true;
 
     // The following fields are used for value caching
     private short nextMarshallCacheIndex;
@@ -64,7 +68,16 @@ public final class OpenWireFormat implements WireFormat {
     private DataByteArrayOutputStream bytesOut = new DataByteArrayOutputStream();
     private DataByteArrayInputStream bytesIn = new DataByteArrayInputStream();
     private WireFormatInfo preferedWireFormatInfo;
-    
+
+    // The following fields are used to write the cached marshalled form of
+    // messages
+    private OpenWireFormat marshalledFormWireFormat;
+    private boolean marshallCacheBypassed;
+    private Short bypassedMarshallCacheIndex;
+    private Message pendingFormMessage;
+    private CachedMarshalledForm pendingForm;
+    private long pendingFormBrokerOutTime;
+
     public OpenWireFormat() {
         this(DEFAULT_VERSION);
     }
@@ -88,6 +101,7 @@ public final class OpenWireFormat implements WireFormat {
         answer.tightEncodingEnabled = tightEncodingEnabled;
         answer.sizePrefixDisabled = sizePrefixDisabled;
         answer.preferedWireFormatInfo = preferedWireFormatInfo;
+        answer.marshalledFormCacheEnabled = marshalledFormCacheEnabled;
         return answer;
     }
 
@@ -118,6 +132,7 @@ public final class OpenWireFormat implements WireFormat {
         if (cacheEnabled) {
             runMarshallCacheEvictionSweep();
         }
+        clearPendingForm();
 
 //        MarshallAware ma = null;
 //        // If not using value caching, then the marshaled form is always the
@@ -219,6 +234,7 @@ public final class OpenWireFormat implements WireFormat {
         if (cacheEnabled) {
             runMarshallCacheEvictionSweep();
         }
+        clearPendingForm();
 
         int size = 1;
         if (o != null) {
@@ -289,6 +305,7 @@ public final class OpenWireFormat implements WireFormat {
      * Used by NIO or AIO transports
      */
     public int tightMarshal1(Object o, BooleanStream bs) throws IOException {
+        clearPendingForm();
         int size = 1;
         if (o != null) {
             DataStructure c = (DataStructure)o;
@@ -389,12 +406,20 @@ public final class OpenWireFormat implements WireFormat {
         }
 
         if (o.isMarshallAware()) {
-            // MarshallAware ma = (MarshallAware)o;
-            ByteSequence sequence = null;
-            // sequence=ma.getCachedMarshalledForm(this);
-            bs.writeBoolean(sequence != null);
-            if (sequence != null) {
-                return 1 + sequence.getLength();
+            CachedMarshalledForm form = null;
+            if (pendingForm == null && isMarshalledFormCacheable(o)) {
+                Message message = (Message)o;
+                long brokerOutTime = message.getBrokerOutTime();
+                form = getCachedMarshalledForm(message, brokerOutTime);
+                if (form != null) {
+                    pendingFormMessage = message;
+                    pendingForm = form;
+                    pendingFormBrokerOutTime = brokerOutTime;
+                }
+            }
+            bs.writeBoolean(form != null);
+            if (form != null) {
+                return 1 + form.data.getLength();
             }
         }
 
@@ -417,12 +442,15 @@ public final class OpenWireFormat implements WireFormat {
 
         if (o.isMarshallAware() && bs.readBoolean()) {
 
-            // We should not be doing any caching
-            throw new IOException("Corrupted stream");
-            // MarshallAware ma = (MarshallAware) o;
-            // ByteSequence sequence=ma.getCachedMarshalledForm(this);
-            // ds.write(sequence.getData(), sequence.getOffset(),
-            // sequence.getLength());
+            // Only the cached form set aside by tightMarshalNestedObject1 can
+            // be written here
+            if (o != pendingFormMessage) {
+                throw new IOException("Corrupted stream");
+            }
+            CachedMarshalledForm form = pendingForm;
+            long brokerOutTime = pendingFormBrokerOutTime;
+            clearPendingForm();
+            writeCachedMarshalledForm(form, brokerOutTime, ds);
 
         } else {
 
@@ -494,10 +522,136 @@ public final class OpenWireFormat implements WireFormat {
             if (dsm == null) {
                 throw new IOException("Unknown data type: " + type);
             }
+            if (isMarshalledFormCacheable(o)) {
+                Message message = (Message)o;
+                long brokerOutTime = message.getBrokerOutTime();
+                CachedMarshalledForm form = getCachedMarshalledForm(message, brokerOutTime);
+                if (form != null) {
+                    writeCachedMarshalledForm(form, brokerOutTime, dataOut);
+                    return;
+                }
+            }
             dsm.looseMarshal(this, o, dataOut);
         }
     }
 
+    private boolean isMarshalledFormCacheable(DataStructure o) {
+        // blob messages have fields after the broker out time
+        return marshalledFormCacheEnabled && !marshallCacheBypassed && o instanceof Message
+               && o.getDataStructureType() != CommandTypes.ACTIVEMQ_BLOB_MESSAGE;
+    }
+
+    /**
+     * Gets the marshalled form of a message cached for wire formats that use
+     * the same encoding as this one. The form is only built and cached the
+     * second time the message is marshalled, so a queue message that goes to
+     * a single consumer is not held in memory twice.
+     *
+     * @return the cached form or null if the message has to be marshalled
+     */
+    private CachedMarshalledForm getCachedMarshalledForm(Message message, long brokerOutTime) throws IOException {
+        message.beforeMarshall(this);
+        Object cached = message.getCachedMarshalledForm();
+        if (cached instanceof CachedMarshalledForm) {
+            CachedMarshalledForm form = (CachedMarshalledForm)cached;
+            if (form.isUsableBy(this, brokerOutTime) && form.isCurrentFor(message)) {
+                return form;
+            }
+        } else if (cached == null) {
+            message.setCachedMarshalledForm(MARSHALLED_ONCE);
+            return null;
+        }
+        CachedMarshalledForm form = createMarshalledForm(message);
+        message.setCachedMarshalledForm(form);
+        return form.isUsableBy(this, brokerOutTime) ? form : null;
+    }
+
+    /**
+     * Marshals a message the way a cached nested object is written, with no
+     * state of this connection in it. Value cached objects are written in full
+     * under an index the other end does not cache them by.
+     */
+    private CachedMarshalledForm createMarshalledForm(Message message) throws IOException {
+        if (marshalledFormWireFormat == null || marshalledFormWireFormat.version != version) {
+            marshalledFormWireFormat = new OpenWireFormat(version);
+            marshalledFormWireFormat.marshallCacheBypassed = true;
+        }
+        OpenWireFormat wf = marshalledFormWireFormat;
+        wf.cacheEnabled = cacheEnabled;
+        wf.tightEncodingEnabled = tightEncodingEnabled;
+
+        byte type = message.getDataStructureType();
+        DataStreamMarshaller dsm = (DataStreamMarshaller)dataMarshallers[type & 0xFF];
+        if (dsm == null) {
+            throw new IOException("Unknown data type: " + type);
+        }
+
+        // the broker out time is the last field of a message from version 3
+        int brokerOutTimeSize = -1;
+        DataByteArrayOutputStream out;
+        if (tightEncodingEnabled) {
+            BooleanStream bs = new BooleanStream();
+            int size = 1 + dsm.tightMarshal1(wf, message, bs);
+            if (version >= 3) {
+                if (bs.readWrittenBoolean(1)) {
+                    brokerOutTimeSize = bs.readWrittenBoolean(0) ? 8 : 4;
+                } else {
+                    brokerOutTimeSize = bs.readWrittenBoolean(0) ? 2 : 0;
+                }
+            }
+            size += bs.marshalledSize();
+
+            out = new DataByteArrayOutputStream(size + 4);
+            out.writeInt(size);
+            out.writeByte(type);
+            bs.marshal(out);
+            wf.bypassedMarshallCacheIndex = NOT_CACHED_INDEX;
+            try {
+                dsm.tightMarshal2(wf, message, out, bs);
+            } finally {
+                wf.bypassedMarshallCacheIndex = null;
+            }
+        } else {
+            if (version >= 3) {
+                brokerOutTimeSize = 8;
+            }
+            out = new DataByteArrayOutputStream();
+            dsm.looseMarshal(wf, message, out);
+        }
+        return new CachedMarshalledForm(this, message, out.toByteSequence(), brokerOutTimeSize);
+    }
+
+    /**
+     * Writes a cached marshalled form with the given broker out time in place
+     * of the one it was marshalled with.
+     */
+    private void writeCachedMarshalledForm(CachedMarshalledForm form, long brokerOutTime, DataOutput dataOut) throws IOException {
+        ByteSequence data = form.data;
+        if (form.brokerOutTimeSize < 0) {
+            dataOut.write(data.getData(), data.getOffset(), data.getLength());
+            return;
+        }
+        dataOut.write(data.getData(), data.getOffset(), data.getLength() - form.brokerOutTimeSize);
+        switch (form.brokerOutTimeSize) {
+        case 8:
+            dataOut.writeLong(brokerOutTime);
+            break;
+        case 4:
+            dataOut.writeInt((int)brokerOutTime);
+            break;
+        case 2:
+            dataOut.writeShort((int)brokerOutTime);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void clearPendingForm() {
+        pendingFormMessage = null;
+        pendingForm = null;
+    }
+
     public void runMarshallCacheEvictionSweep() {
         // Do we need to start evicting??
         while (marshallCacheMap.size() > marshallCache.length - MARSHAL_CACHE_FREE_SPACE) {
@@ -514,10 +668,16 @@ public final class OpenWireFormat implements WireFormat {
     }
 
     public Short getMarshallCacheIndex(DataStructure o) {
+        if (marshallCacheBypassed) {
+            return bypassedMarshallCacheIndex;
+        }
         return marshallCacheMap.get(o);
     }
 
     public Short addToMarshallCache(DataStructure o) {
+        if (marshallCacheBypassed) {
+            return NOT_CACHED_INDEX;
+        }
         short i = nextMarshallCacheIndex++;
         if (nextMarshallCacheIndex >= marshallCache.length) {
             nextMarshallCacheIndex = 0;
@@ -611,6 +771,22 @@ public final class OpenWireFormat implements WireFormat {
         this.maxFrameSize = maxFrameSize;
     }
 
+    public boolean isMarshalledFormCacheEnabled() {
+        return marshalledFormCacheEnabled;
+    }
+
+    /**
+     * Sets whether a message nested in another command, like the message of a
+     * dispatch, is marshalled once and the marshalled form cached on the
+     * message for every connection with the same encoding, rather than being
+     * marshalled again for each consumer it is dispatched to. The form is
+     * marshalled again if the message, or what it holds that the broker
+     * changes in place like its message id, has changed since.
+     */
+    public void setMarshalledFormCacheEnabled(boolean marshalledFormCacheEnabled) {
+        this.marshalledFormCacheEnabled = marshalledFormCacheEnabled;
+    }
+
     public void renegotiateWireFormat(WireFormatInfo info) throws IOException {
 
         if (preferedWireFormatInfo == null) {
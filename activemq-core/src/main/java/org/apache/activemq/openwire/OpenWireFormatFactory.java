@@ -40,6 +40,7 @@ public class OpenWireFormatFactory implements WireFormatFactory {
     private long maxInactivityDurationInitalDelay = 10*1000;
     private int cacheSize = 1024;
     private long maxFrameSize = OpenWireFormat.DEFAULT_MAX_FRAME_SIZE;
+    private boolean marshalledFormCacheEnabled = true;
 
     public WireFormat createWireFormat() {
         WireFormatInfo info = new WireFormatInfo();
@@ -63,6 +64,7 @@ public class OpenWireFormatFactory implements WireFormatFactory {
 
         OpenWireFormat f = new OpenWireFormat(version);
         f.setMaxFrameSize(maxFrameSize);
+        f.setMarshalledFormCacheEnabled(marshalledFormCacheEnabled);
         f.setPreferedWireFormatInfo(info);
         return f;
     }
@@ -147,4 +149,12 @@ public class OpenWireFormatFactory implements WireFormatFactory {
     public void setMaxFrameSize(long maxFrameSize) {
         this.maxFrameSize = maxFrameSize;
     }
+
+    public boolean isMarshalledFormCacheEnabled() {
+        return marshalledFormCacheEnabled;
+    }
+
+    public void setMarshalledFormCacheEnabled(boolean marshalledFormCacheEnabled) {
+        this.marshalledFormCacheEnabled = marshalledFormCacheEnabled;
+    }
 }
@@ -45,6 +45,10 @@ public class AuthorizationBroker extends BrokerFilter implements SecurityAdminMB
         super(next);
         this.authorizationMap = authorizationMap;
     }
+
+    public AuthorizationMap getAuthorizationMap() {
+        return authorizationMap;
+    }
            
     @Override
     public void addDestinationInfo(ConnectionContext context, DestinationInfo info) throws Exception {
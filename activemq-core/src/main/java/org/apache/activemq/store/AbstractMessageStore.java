@@ -83,6 +83,11 @@ abstract public class AbstractMessageStore implements MessageStore {
         return this.prioritizedMessages;
     }
 
+    @Override
+    public boolean recoverExpired(long time, int maxReturned, MessageRecoveryListener listener) throws Exception {
+        return false;
+    }
+
     @Override
     public void addMessage(final ConnectionContext context, final Message message, final boolean canOptimizeHint) throws IOException{
         addMessage(context, message);
@@ -167,6 +167,19 @@ public interface MessageStore extends Service {
 
     void recoverNextMessages(int maxReturned, MessageRecoveryListener listener) throws Exception;
 
+    /**
+     * Recovers the messages that expire at or before the given time, soonest
+     * expiration first, if the store keeps an index of message expirations.
+     *
+     * @param time the time to check the expirations against
+     * @param maxReturned the maximum number of messages to recover
+     * @param listener
+     * @return false if the store does not index expirations, in which case
+     *         nothing is recovered
+     * @throws Exception
+     */
+    boolean recoverExpired(long time, int maxReturned, MessageRecoveryListener listener) throws Exception;
+
     void dispose(ConnectionContext context);
 
     /**
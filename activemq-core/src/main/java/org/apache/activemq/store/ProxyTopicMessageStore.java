@@ -150,6 +150,11 @@ public class ProxyTopicMessageStore implements TopicMessageStore {
         delegate.recoverNextMessages(maxReturned, listener);
     }
 
+    @Override
+    public boolean recoverExpired(long time, int maxReturned, MessageRecoveryListener listener) throws Exception {
+        return delegate.recoverExpired(time, maxReturned, listener);
+    }
+
     @Override
     public void dispose(ConnectionContext context) {
         delegate.dispose(context);
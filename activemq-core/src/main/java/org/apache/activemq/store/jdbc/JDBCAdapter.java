@@ -88,6 +88,8 @@ public interface JDBCAdapter {
 
     void doRecoverNextMessages(TransactionContext c, ActiveMQDestination destination, long nextSeq, long priority, int maxReturned, boolean isPrioritizeMessages, JDBCMessageRecoveryListener listener) throws Exception;
 
+    void doRecoverExpiredMessages(TransactionContext c, ActiveMQDestination destination, long time, int maxReturned, JDBCMessageRecoveryListener listener) throws Exception;
+
     long doGetLastAckedDurableSubscriberMessageId(TransactionContext c, ActiveMQDestination destination, String clientId, String subscriberName) throws SQLException, IOException;
 
     void doMessageIdScan(TransactionContext c, int limit, JDBCMessageIdScanListener listener) throws SQLException, IOException;
@@ -307,6 +307,40 @@ public class JDBCMessageStore extends AbstractMessageStore {
 
     }
 
+    @Override
+    public boolean recoverExpired(long time, int maxReturned, final MessageRecoveryListener listener) throws Exception {
+        TransactionContext c = persistenceAdapter.getTransactionContext();
+        try {
+            adapter.doRecoverExpiredMessages(c, destination, time, maxReturned, new JDBCMessageRecoveryListener() {
+
+                public boolean recoverMessage(long sequenceId, byte[] data) throws Exception {
+                    if (listener.hasSpace()) {
+                        Message msg = (Message)wireFormat.unmarshal(new ByteSequence(data));
+                        msg.getMessageId().setBrokerSequenceId(sequenceId);
+                        listener.recoverMessage(msg);
+                        return true;
+                    }
+                    return false;
+                }
+
+                public boolean recoverMessageReference(String reference) throws Exception {
+                    if (listener.hasSpace()) {
+                        listener.recoverMessageReference(new MessageId(reference));
+                        return true;
+                    }
+                    return false;
+                }
+
+            });
+        } catch (SQLException e) {
+            JDBCPersistenceAdapter.log("JDBC Failure: ", e);
+            throw IOExceptionSupport.create("Failed to recover expired messages: " + destination + ". Reason: " + e, e);
+        } finally {
+            c.close();
+        }
+        return true;
+    }
+
     /**
      * @see org.apache.activemq.store.MessageStore#resetBatching()
      */
@@ -66,6 +66,7 @@ public class Statements {
     private String destinationMessageCountStatement;
     private String findNextMessagesStatement;
     private String findNextMessagesByPriorityStatement;
+    private String findExpiredMessagesStatement;
     private boolean useLockCreateWhereClause;
     private String findAllMessageIdsStatement;
     private String lastProducerSequenceIdStatement;
@@ -500,6 +501,18 @@ public class Statements {
         }
         return findNextMessagesByPriorityStatement;
     }    
+
+    /**
+     * @return the findExpiredMessagesStatement
+     */
+    public String getFindExpiredMessagesStatement() {
+        if (findExpiredMessagesStatement == null) {
+            findExpiredMessagesStatement = "SELECT ID, MSG FROM " + getFullMessageTableName()
+                                        + " WHERE CONTAINER=? AND EXPIRATION > 0 AND EXPIRATION <= ?"
+                                        + " AND XID IS NULL ORDER BY EXPIRATION";
+        }
+        return findExpiredMessagesStatement;
+    }
     
     /**
      * @return the lastAckedDurableSubscriberMessageStatement
@@ -881,6 +894,13 @@ public class Statements {
         this.findNextMessagesStatement = findNextMessagesStatement;
     }
 
+    /**
+     * @param findExpiredMessagesStatement the findExpiredMessagesStatement to set
+     */
+    public void setFindExpiredMessagesStatement(String findExpiredMessagesStatement) {
+        this.findExpiredMessagesStatement = findExpiredMessagesStatement;
+    }
+
     /**
      * @param destinationMessageCountStatement the destinationMessageCountStatement to set
      */
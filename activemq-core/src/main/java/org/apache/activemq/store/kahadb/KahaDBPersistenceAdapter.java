@@ -328,6 +328,26 @@ public class KahaDBPersistenceAdapter implements PersistenceAdapter, BrokerServi
         this.letter.setJournalMaxWriteBatchSize(journalMaxWriteBatchSize);
     }
 
+    /**
+     * Get the journalMemoryMapped
+     *
+     * @return the journalMemoryMapped
+     */
+    public boolean isJournalMemoryMapped() {
+        return this.letter.isJournalMemoryMapped();
+    }
+
+    /**
+     * When enabled the journal data files are preallocated and are written and
+     * read through memory mappings.
+     *
+     * @param journalMemoryMapped
+     *            the journalMemoryMapped to set
+     */
+    public void setJournalMemoryMapped(boolean journalMemoryMapped) {
+        this.letter.setJournalMemoryMapped(journalMemoryMapped);
+    }
+
     /**
      * Get the enableIndexWriteAsync
      *
@@ -347,6 +367,69 @@ public class KahaDBPersistenceAdapter implements PersistenceAdapter, BrokerServi
         this.letter.setEnableIndexWriteAsync(enableIndexWriteAsync);
     }
 
+    /**
+     * Get the enableIndexGroupCommit
+     *
+     * @return the enableIndexGroupCommit
+     */
+    public boolean isEnableIndexGroupCommit() {
+        return this.letter.isEnableIndexGroupCommit();
+    }
+
+    /**
+     * When enabled, non transactional message adds and removes whose journal
+     * writes complete together are applied to the index in a single page file
+     * transaction by one of the writing threads rather than one transaction
+     * per message.
+     *
+     * @param enableIndexGroupCommit
+     *            the enableIndexGroupCommit to set
+     */
+    public void setEnableIndexGroupCommit(boolean enableIndexGroupCommit) {
+        this.letter.setEnableIndexGroupCommit(enableIndexGroupCommit);
+    }
+
+    /**
+     * Get the enableSharedMessageBodies
+     *
+     * @return the enableSharedMessageBodies
+     */
+    public boolean isEnableSharedMessageBodies() {
+        return this.letter.isEnableSharedMessageBodies();
+    }
+
+    /**
+     * When enabled, the copies of a message that virtual topics and composite
+     * destinations send to several queues have the message body written to
+     * the journal once, with a small reference to it for the other queues.
+     * Journal cleanup keeps a data file while references to the bodies in it
+     * remain.
+     *
+     * @param enableSharedMessageBodies
+     *            the enableSharedMessageBodies to set
+     */
+    public void setEnableSharedMessageBodies(boolean enableSharedMessageBodies) {
+        this.letter.setEnableSharedMessageBodies(enableSharedMessageBodies);
+    }
+
+    /**
+     * Get the maxSharedMessageBodies
+     *
+     * @return the maxSharedMessageBodies
+     */
+    public int getMaxSharedMessageBodies() {
+        return this.letter.getMaxSharedMessageBodies();
+    }
+
+    /**
+     * @param maxSharedMessageBodies
+     *            the number of recently stored message bodies that later
+     *            copies of the message can refer to
+     */
+    public void setMaxSharedMessageBodies(int maxSharedMessageBodies) {
+        this.letter.setMaxSharedMessageBodies(maxSharedMessageBodies);
+    }
+
     /**
      * Get the directory
      *
@@ -543,6 +626,44 @@ public class KahaDBPersistenceAdapter implements PersistenceAdapter, BrokerServi
         letter.setUseIndexLFRUEviction(useIndexLFRUEviction);
     }
 
+    public long getIndexCacheMaxSize() {
+        return letter.getIndexCacheMaxSize();
+    }
+
+    /**
+     * Sets the most bytes of index pages to cache, 0 to size the cache by indexCacheSize pages.
+     * When set using Xbean, values of the form "20 Mb", "1024kb", and "1g" can be used
+     * @org.apache.xbean.Property propertyEditor="org.apache.activemq.util.MemoryPropertyEditor"
+     */
+    public void setIndexCacheMaxSize(long indexCacheMaxSize) {
+        letter.setIndexCacheMaxSize(indexCacheMaxSize);
+    }
+
+    public String getIndexCachePolicy() {
+        return letter.getIndexCachePolicy();
+    }
+
+    /**
+     * Sets the eviction policy of the index page cache: LRU (the default), 2Q, which keeps
+     * index scans from flushing the pages in regular use, or LFU.
+     */
+    public void setIndexCachePolicy(String indexCachePolicy) {
+        letter.setIndexCachePolicy(indexCachePolicy);
+    }
+
+    public long getIndexOffHeapCacheSize() {
+        return letter.getIndexOffHeapCacheSize();
+    }
+
+    /**
+     * Sets the bytes of direct memory used to keep index pages off the heap, 0 to not use any.
+     * When set using Xbean, values of the form "20 Mb", "1024kb", and "1g" can be used
+     * @org.apache.xbean.Property propertyEditor="org.apache.activemq.util.MemoryPropertyEditor"
+     */
+    public void setIndexOffHeapCacheSize(long indexOffHeapCacheSize) {
+        letter.setIndexOffHeapCacheSize(indexOffHeapCacheSize);
+    }
+
     public void setEnableIndexDiskSyncs(boolean diskSyncs) {
         letter.setEnableIndexDiskSyncs(diskSyncs);
     }
@@ -567,6 +688,57 @@ public class KahaDBPersistenceAdapter implements PersistenceAdapter, BrokerServi
         return letter.isEnableIndexPageCaching();
     }
 
+    /**
+     * @param journalRecoveryThreads the number of threads that read and decode
+     *                journal data files ahead of the replay when recovering the
+     *                index
+     */
+    public void setJournalRecoveryThreads(int journalRecoveryThreads) {
+        letter.setJournalRecoveryThreads(journalRecoveryThreads);
+    }
+
+    public int getJournalRecoveryThreads() {
+        return letter.getJournalRecoveryThreads();
+    }
+
+    /**
+     * @param journalRecoveryReadSize the number of bytes of the journal read
+     *                at a time, and held for each recovery thread, when
+     *                recovering the index with more than one thread
+     */
+    public void setJournalRecoveryReadSize(int journalRecoveryReadSize) {
+        letter.setJournalRecoveryReadSize(journalRecoveryReadSize);
+    }
+
+    public int getJournalRecoveryReadSize() {
+        return letter.getJournalRecoveryReadSize();
+    }
+
+    /**
+     * @param journalCompactionThreshold the fraction of a journal data file
+     *                below which the messages still in it are copied forward so
+     *                the file can be released, 0 (the default) disables it
+     */
+    public void setJournalCompactionThreshold(float journalCompactionThreshold) {
+        letter.setJournalCompactionThreshold(journalCompactionThreshold);
+    }
+
+    public float getJournalCompactionThreshold() {
+        return letter.getJournalCompactionThreshold();
+    }
+
+    /**
+     * @param journalCompactionMaxBytesPerSecond the journal bandwidth that
+     *                compaction may use, 0 for no limit
+     */
+    public void setJournalCompactionMaxBytesPerSecond(long journalCompactionMaxBytesPerSecond) {
+        letter.setJournalCompactionMaxBytesPerSecond(journalCompactionMaxBytesPerSecond);
+    }
+
+    public long getJournalCompactionMaxBytesPerSecond() {
+        return letter.getJournalCompactionMaxBytesPerSecond();
+    }
+
     public KahaDBStore getStore() {
         return letter;
     }
@@ -63,6 +63,7 @@ import org.apache.activemq.store.kahadb.data.KahaTransactionInfo;
 import org.apache.activemq.store.kahadb.data.KahaDestination.DestinationType;
 import org.apache.activemq.usage.MemoryUsage;
 import org.apache.activemq.usage.SystemUsage;
+import org.apache.activemq.util.LRUCache;
 import org.apache.activemq.util.ServiceStopper;
 import org.apache.activemq.util.ThreadPoolUtils;
 import org.apache.activemq.wireformat.WireFormat;
@@ -98,6 +99,9 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
     private boolean concurrentStoreAndDispatchTopics = false;
     private boolean concurrentStoreAndDispatchTransactions = false;
     private int maxAsyncJobs = MAX_ASYNC_JOBS;
+    private boolean enableSharedMessageBodies = false;
+    private int maxSharedMessageBodies = 100;
+    private LRUCache<String, SharedMessageBody> sharedMessageBodies;
     private final KahaDBTransactionStore transactionStore;
     private TransactionIdTransformer transactionIdTransformer;
 
@@ -175,9 +179,38 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
         this.maxAsyncJobs = maxAsyncJobs;
     }
 
+    public boolean isEnableSharedMessageBodies() {
+        return this.enableSharedMessageBodies;
+    }
+
+    /**
+     * When enabled a message that is stored in several destinations, like the
+     * copies a virtual topic or composite destination sends to its queues, has
+     * its body written to the journal once. The other destinations store a
+     * small reference to it. Only messages sent outside a transaction are
+     * shared. A journal with shared messages cannot be read by a broker that
+     * does not support them.
+     */
+    public void setEnableSharedMessageBodies(boolean enableSharedMessageBodies) {
+        this.enableSharedMessageBodies = enableSharedMessageBodies;
+    }
+
+    public int getMaxSharedMessageBodies() {
+        return this.maxSharedMessageBodies;
+    }
+
+    /**
+     * Sets how many of the most recently stored message bodies are remembered
+     * for the copies of the message that follow.
+     */
+    public void setMaxSharedMessageBodies(int maxSharedMessageBodies) {
+        this.maxSharedMessageBodies = maxSharedMessageBodies;
+    }
+
     @Override
     public void doStart() throws Exception {
         super.doStart();
+        this.sharedMessageBodies = new LRUCache<String, SharedMessageBody>(getMaxSharedMessageBodies());
         this.globalQueueSemaphore = new Semaphore(getMaxAsyncJobs());
         this.globalTopicSemaphore = new Semaphore(getMaxAsyncJobs());
         this.asyncQueueJobQueue = new LinkedBlockingQueue<Runnable>(getMaxAsyncJobs());
@@ -260,7 +293,10 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
 
         if (location != null) {
             KahaAddMessageCommand addMessage = (KahaAddMessageCommand) load(location);
-            Message message = (Message) wireFormat.unmarshal(new DataInputStream(addMessage.getMessage().newInput()));
+            Message message = loadMessage(addMessage);
+            addMessage.clearSharedMessageLocation();
+            addMessage.clearMessageDestination();
+            addMessage.clearBrokerSequenceId();
 
             message.incrementRedeliveryCounter();
             if (LOG.isTraceEnabled()) {
@@ -287,6 +323,11 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
         }
     }
 
+    @Override
+    long loadExpiration(Location location) throws IOException {
+        return loadMessage(location).getExpiration();
+    }
+
     @Override
     void rollbackStatsOnDuplicate(KahaDestination commandDestination) {
         if (brokerService != null) {
@@ -428,9 +469,17 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
             command.setTransactionInfo(transactionIdTransformer.transform(message.getTransactionId()));
             command.setPriority(message.getPriority());
             command.setPrioritySupported(isPrioritizedMessages());
+            if (message.getExpiration() != 0) {
+                command.setExpiration(message.getExpiration());
+            }
+            boolean sync = isEnableJournalDiskSyncs() && message.isResponseRequired();
+            if (isEnableSharedMessageBodies() && message.getTransactionId() == null) {
+                addSharedMessage(command, message, sync);
+                return;
+            }
             org.apache.activemq.util.ByteSequence packet = wireFormat.marshal(message);
             command.setMessage(new Buffer(packet.getData(), packet.getOffset(), packet.getLength()));
-            store(command, isEnableJournalDiskSyncs() && message.isResponseRequired(), null, null);
+            store(command, sync, null, null);
 
         }
 
@@ -570,6 +619,27 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
             }
         }
 
+        @Override
+        public boolean recoverExpired(final long time, final int maxReturned, final MessageRecoveryListener listener) throws Exception {
+            indexLock.writeLock().lock();
+            try {
+                pageFile.tx().execute(new Transaction.Closure<Exception>() {
+                    public void execute(Transaction tx) throws Exception {
+                        StoredDestination sd = getStoredDestination(dest, tx);
+                        for (MessageKeys keys : getExpiredMessages(tx, sd, time, maxReturned)) {
+                            if (ackedAndPrepared.contains(keys.messageId)) {
+                                continue;
+                            }
+                            listener.recoverMessage(loadMessage(keys.location));
+                        }
+                    }
+                });
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+            return true;
+        }
+
         public void resetBatching() {
             if (pageFile.isLoaded()) {
                 indexLock.writeLock().lock();
@@ -1028,14 +1098,109 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
      */
     Message loadMessage(Location location) throws IOException {
         KahaAddMessageCommand addMessage = (KahaAddMessageCommand) load(location);
-        Message msg = (Message) wireFormat.unmarshal(new DataInputStream(addMessage.getMessage().newInput()));
+        return loadMessage(addMessage);
+    }
+
+    private Message loadMessage(KahaAddMessageCommand addMessage) throws IOException {
+        if (!addMessage.hasSharedMessageLocation()) {
+            return (Message) wireFormat.unmarshal(new DataInputStream(addMessage.getMessage().newInput()));
+        }
+        KahaAddMessageCommand body = (KahaAddMessageCommand) load(convert(addMessage.getSharedMessageLocation()));
+        Message msg = (Message) wireFormat.unmarshal(new DataInputStream(body.getMessage().newInput()));
+        if (addMessage.hasMessageDestination()) {
+            msg.setDestination(convert(addMessage.getMessageDestination()));
+        }
+        msg.getMessageId().setBrokerSequenceId(addMessage.getBrokerSequenceId());
         return msg;
     }
 
+    /**
+     * Stores a message that is not part of a transaction. If the body of the
+     * same message was stored recently for another destination and the two
+     * only differ in their destination and broker sequence id, a reference to
+     * that body is stored instead of the message.
+     */
+    void addSharedMessage(KahaAddMessageCommand command, Message message, boolean sync) throws IOException {
+        SharedMessageBody body;
+        synchronized (sharedMessageBodies) {
+            body = sharedMessageBodies.get(command.getMessageId());
+        }
+        KahaDestination messageDestination = convert(message.getDestination());
+        if (body != null && messageDestination != null && pinSharedMessageFile(body.location.getDataFileId())) {
+            try {
+                Message copy = message.copy();
+                copy.setDestination(body.destination);
+                copy.getMessageId().setBrokerSequenceId(body.brokerSequenceId);
+                if (body.matches(wireFormat.marshal(copy))) {
+                    command.setMessage(new Buffer(0));
+                    command.setSharedMessageLocation(convert(body.location));
+                    if (!body.destination.equals(message.getDestination())) {
+                        command.setMessageDestination(messageDestination);
+                    }
+                    command.setBrokerSequenceId(message.getMessageId().getBrokerSequenceId());
+                    store(command, sync, null, null);
+                    return;
+                }
+            } finally {
+                unpinSharedMessageFile(body.location.getDataFileId());
+            }
+        }
+
+        org.apache.activemq.util.ByteSequence packet = wireFormat.marshal(message);
+        command.setMessage(new Buffer(packet.getData(), packet.getOffset(), packet.getLength()));
+        Location location = store(command, sync, null, null);
+        if (messageDestination != null) {
+            body = new SharedMessageBody(location, message.getDestination(), message.getMessageId().getBrokerSequenceId(), packet);
+            synchronized (sharedMessageBodies) {
+                sharedMessageBodies.put(command.getMessageId(), body);
+            }
+        }
+    }
+
+    /**
+     * A recently stored message body that later copies of the message may
+     * refer to.
+     */
+    static final class SharedMessageBody {
+        final Location location;
+        final ActiveMQDestination destination;
+        final long brokerSequenceId;
+        final org.apache.activemq.util.ByteSequence data;
+
+        SharedMessageBody(Location location, ActiveMQDestination destination, long brokerSequenceId,
+                org.apache.activemq.util.ByteSequence data) {
+            this.location = location;
+            this.destination = destination;
+            this.brokerSequenceId = brokerSequenceId;
+            this.data = data;
+        }
+
+        boolean matches(org.apache.activemq.util.ByteSequence other) {
+            if (other.getLength() != data.getLength()) {
+                return false;
+            }
+            byte[] a = data.getData();
+            byte[] b = other.getData();
+            for (int i = 0, j = data.getOffset(), k = other.getOffset(); i < data.getLength(); i++, j++, k++) {
+                if (a[j] != b[k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     // /////////////////////////////////////////////////////////////////
     // Internal conversion methods.
     // /////////////////////////////////////////////////////////////////
 
+    Location convert(KahaLocation location) {
+        Location rc = new Location();
+        rc.setDataFileId(location.getLogId());
+        rc.setOffset(location.getOffset());
+        return rc;
+    }
+
     KahaLocation convert(Location location) {
         KahaLocation rc = new KahaLocation();
         rc.setLogId(location.getDataFileId());
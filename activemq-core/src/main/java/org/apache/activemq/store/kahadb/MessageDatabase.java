@@ -28,23 +28,33 @@ import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.Stack;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -60,6 +70,7 @@ import org.apache.activemq.store.kahadb.data.KahaAddMessageCommand;
 import org.apache.activemq.store.kahadb.data.KahaCommitCommand;
 import org.apache.activemq.store.kahadb.data.KahaDestination;
 import org.apache.activemq.store.kahadb.data.KahaEntryType;
+import org.apache.activemq.store.kahadb.data.KahaLocation;
 import org.apache.activemq.store.kahadb.data.KahaPrepareCommand;
 import org.apache.activemq.store.kahadb.data.KahaProducerAuditCommand;
 import org.apache.activemq.store.kahadb.data.KahaRemoveDestinationCommand;
@@ -69,6 +80,7 @@ import org.apache.activemq.store.kahadb.data.KahaSubscriptionCommand;
 import org.apache.activemq.store.kahadb.data.KahaTraceCommand;
 import org.apache.activemq.store.kahadb.data.KahaTransactionInfo;
 import org.apache.activemq.util.Callback;
+import org.apache.activemq.util.IOExceptionSupport;
 import org.apache.activemq.util.IOHelper;
 import org.apache.activemq.util.ServiceStopper;
 import org.apache.activemq.util.ServiceSupport;
@@ -82,6 +94,7 @@ import org.apache.kahadb.page.Page;
 import org.apache.kahadb.page.PageFile;
 import org.apache.kahadb.page.Transaction;
 import org.apache.kahadb.util.ByteSequence;
+import org.apache.kahadb.util.ByteBufferInputStream;
 import org.apache.kahadb.util.DataByteArrayInputStream;
 import org.apache.kahadb.util.DataByteArrayOutputStream;
 import org.apache.kahadb.util.LocationMarshaller;
@@ -89,6 +102,7 @@ import org.apache.kahadb.util.LockFile;
 import org.apache.kahadb.util.LongMarshaller;
 import org.apache.kahadb.util.Marshaller;
 import org.apache.kahadb.util.Sequence;
+import org.apache.kahadb.util.SequenceBitmap;
 import org.apache.kahadb.util.SequenceSet;
 import org.apache.kahadb.util.StringMarshaller;
 import org.apache.kahadb.util.VariableMarshaller;
@@ -113,7 +127,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
     static final int OPEN_STATE = 2;
     static final long NOT_ACKED = -1;
 
-    static final int VERSION = 4;
+    static final int VERSION = 9;
 
     protected class Metadata {
         protected Page<Metadata> page;
@@ -124,6 +138,8 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         protected Location producerSequenceIdTrackerLocation = null;
         protected transient ActiveMQMessageAuditNoSync producerSequenceIdTracker = new ActiveMQMessageAuditNoSync();
         protected int version = VERSION;
+        // data file of a shared message reference -> data files of the message bodies it refers to
+        protected final Map<Integer, Set<Integer>> sharedMessageFileMap = new HashMap<Integer, Set<Integer>>();
         public void read(DataInput is) throws IOException {
             state = is.readInt();
             destinations = new BTreeIndex<String, StoredDestination>(pageFile, is.readLong());
@@ -150,6 +166,16 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             } catch (EOFException expectedOnUpgrade) {
                 version=1;
             }
+            try {
+                for (int files = is.readInt(); files > 0; files--) {
+                    Set<Integer> bodyFiles = new HashSet<Integer>();
+                    sharedMessageFileMap.put(is.readInt(), bodyFiles);
+                    for (int bodies = is.readInt(); bodies > 0; bodies--) {
+                        bodyFiles.add(is.readInt());
+                    }
+                }
+            } catch (EOFException expectedOnUpgrade) {
+            }
             LOG.info("KahaDB is version " + version);
         }
 
@@ -178,6 +204,15 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 os.writeBoolean(false);
             }
             os.writeInt(VERSION);
+
+            os.writeInt(sharedMessageFileMap.size());
+            for (Entry<Integer, Set<Integer>> entry : sharedMessageFileMap.entrySet()) {
+                os.writeInt(entry.getKey());
+                os.writeInt(entry.getValue().size());
+                for (Integer bodyFile : entry.getValue()) {
+                    os.writeInt(bodyFile);
+                }
+            }
         }
     }
 
@@ -212,8 +247,10 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
     long cleanupInterval = 30*1000;
     int journalMaxFileLength = Journal.DEFAULT_MAX_FILE_LENGTH;
     int journalMaxWriteBatchSize = Journal.DEFAULT_MAX_WRITE_BATCH_SIZE;
+    boolean journalMemoryMapped = false;
     boolean enableIndexWriteAsync = false;
     int setIndexWriteBatchSize = PageFile.DEFAULT_WRITE_BATCH_SIZE;
+    boolean enableIndexGroupCommit = false;
 
     protected AtomicBoolean opened = new AtomicBoolean();
     private LockFile lockFile;
@@ -228,9 +265,16 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
     private boolean archiveCorruptedIndex = false;
     private boolean useIndexLFRUEviction = false;
     private float indexLFUEvictionFactor = 0.2f;
+    private long indexCacheMaxSize = 0;
+    private String indexCachePolicy = "LRU";
+    private long indexOffHeapCacheSize = 0;
     private boolean enableIndexDiskSyncs = true;
     private boolean enableIndexRecoveryFile = true;
     private boolean enableIndexPageCaching = true;
+    private int journalRecoveryThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private int journalRecoveryReadSize = 4 * 1024 * 1024;
+    private float journalCompactionThreshold = 0f;
+    private long journalCompactionMaxBytesPerSecond = 4 * 1024 * 1024;
 
     public MessageDatabase() {
     }
@@ -282,6 +326,9 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                         StoredDestination sd = loadStoredDestination(tx, entry.getKey(), entry.getValue().subscriptions!=null);
                         storedDestinations.put(entry.getKey(), sd);
                     }
+                    // every destination has been stored again in the current
+                    // format, so later reads must not upgrade them again
+                    metadata.version = VERSION;
                 }
             });
             pageFile.flush();
@@ -317,6 +364,9 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                                 Thread.sleep(sleepTime);
                                 long now = System.currentTimeMillis();
                                 if( cleanupInterval > 0 && (now - lastCleanup >= cleanupInterval) ) {
+                                    if (journalCompactionThreshold > 0) {
+                                        compactJournal();
+                                    }
                                     checkpointCleanup(true);
                                     lastCleanup = now;
                                     lastCheckpoint = now;
@@ -473,6 +523,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
      */
     private void recover() throws IllegalStateException, IOException {
         this.indexLock.writeLock().lock();
+        orphanedRemoves = new HashSet<String>();
         try {
 
             long start = System.currentTimeMillis();
@@ -482,21 +533,21 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             Location recoveryPosition = minimum(producerAuditPosition, lastIndoubtPosition);
 
             if (recoveryPosition != null) {
-                int redoCounter = 0;
                 LOG.info("Recovering from the journal ...");
-                while (recoveryPosition != null) {
-                    JournalCommand<?> message = load(recoveryPosition);
-                    metadata.lastUpdate = recoveryPosition;
-                    process(message, recoveryPosition, lastIndoubtPosition);
-                    redoCounter++;
-                    recoveryPosition = journal.getNextLocation(recoveryPosition);
-                     if (LOG.isInfoEnabled() && redoCounter % 100000 == 0) {
-                         LOG.info("@" + recoveryPosition +  ", "  + redoCounter + " entries recovered ..");
-                     }
+                RecoveryProgress progress = new RecoveryProgress(start);
+                if (journalRecoveryThreads > 1 && journal.getFileMap().size() > 1) {
+                    replayInParallel(recoveryPosition, lastIndoubtPosition, progress);
+                } else {
+                    while (recoveryPosition != null) {
+                        JournalCommand<?> message = load(recoveryPosition);
+                        metadata.lastUpdate = recoveryPosition;
+                        process(message, recoveryPosition, lastIndoubtPosition);
+                        progress.replayed(recoveryPosition);
+                        recoveryPosition = journal.getNextLocation(recoveryPosition);
+                    }
                 }
                 if (LOG.isInfoEnabled()) {
-                    long end = System.currentTimeMillis();
-                    LOG.info("Recovery replayed " + redoCounter + " operations from the journal in " + ((end - start) / 1000.0f) + " seconds.");
+                    LOG.info("Recovery replayed " + progress);
                 }
             }
 
@@ -524,10 +575,168 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 }
             }
         } finally {
+            orphanedRemoves = null;
             this.indexLock.writeLock().unlock();
         }
     }
 
+    /**
+     * Replays the journal with its data files read and decoded by a pool of
+     * threads, one reader per data file. A reader reads its file in chunks of
+     * journalRecoveryReadSize bytes and hands them over one at a time, so at
+     * most two chunks per thread are held at once. The index is still updated
+     * by this thread in journal order, as the index updates of a transaction
+     * can span destinations and the page file takes one writer.
+     */
+    private void replayInParallel(final Location recoveryPosition, Location lastIndoubtPosition, RecoveryProgress progress) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(journalRecoveryThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "KahaDB Journal Recovery");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // the pool starts the readers in journal order, so the file being
+        // replayed is always being read
+        List<DataFileReader> readers = new ArrayList<DataFileReader>();
+        try {
+            for (DataFile dataFile : new TreeMap<Integer, DataFile>(journal.getFileMap()).tailMap(recoveryPosition.getDataFileId()).values()) {
+                int offset = dataFile.getDataFileId().intValue() == recoveryPosition.getDataFileId() ? recoveryPosition.getOffset() : 0;
+                DataFileReader reader = new DataFileReader(dataFile.getDataFileId(), dataFile.getLength(), offset);
+                readers.add(reader);
+                executor.execute(reader);
+            }
+            for (DataFileReader reader : readers) {
+                RecoveredRecords recovered;
+                do {
+                    recovered = reader.take();
+                    for (int i = 0; i < recovered.records.size(); i++) {
+                        Location location = recovered.records.get(i).location;
+                        metadata.lastUpdate = location;
+                        process(recovered.commands.get(i), location, lastIndoubtPosition);
+                        progress.replayed(location);
+                    }
+                } while (!recovered.last);
+                if (recovered.endOfData) {
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads and decodes the records of a data file for the parallel replay.
+     */
+    private class DataFileReader implements Runnable {
+        private final Integer dataFileId;
+        private final int length;
+        private int offset;
+        private final BlockingQueue<RecoveredRecords> chunks = new ArrayBlockingQueue<RecoveredRecords>(1);
+
+        DataFileReader(Integer dataFileId, int length, int offset) {
+            this.dataFileId = dataFileId;
+            this.length = length;
+            this.offset = offset;
+        }
+
+        public void run() {
+            try {
+                RecoveredRecords recovered;
+                do {
+                    List<Journal.Record> records = new ArrayList<Journal.Record>();
+                    RecoveredRecords chunk;
+                    try {
+                        int next = journal.readRecords(dataFileId, offset, journalRecoveryReadSize, records);
+                        // an empty record marks the end of the journal data
+                        chunk = new RecoveredRecords(records, next < 0 || next >= length, next < 0);
+                        offset = next;
+                    } catch (Throwable e) {
+                        chunk = new RecoveredRecords(IOExceptionSupport.create(e));
+                    }
+                    recovered = chunk;
+                    chunks.put(recovered);
+                } while (!recovered.last);
+            } catch (InterruptedException e) {
+                // the replay stopped
+            }
+        }
+
+        RecoveredRecords take() throws IOException {
+            RecoveredRecords recovered;
+            try {
+                recovered = chunks.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Journal recovery interrupted");
+            }
+            if (recovered.failure != null) {
+                throw recovered.failure;
+            }
+            return recovered;
+        }
+    }
+
+    /**
+     * A chunk of journal records and their commands, decoded for the replay.
+     */
+    private class RecoveredRecords {
+        final List<Journal.Record> records;
+        final List<JournalCommand<?>> commands;
+        // the last chunk of its data file
+        final boolean last;
+        // the journal data ends in this chunk
+        final boolean endOfData;
+        final IOException failure;
+
+        RecoveredRecords(List<Journal.Record> records, boolean last, boolean endOfData) throws IOException {
+            this.records = records;
+            this.commands = new ArrayList<JournalCommand<?>>(records.size());
+            for (Journal.Record record : records) {
+                commands.add(decode(record.data, record.location));
+            }
+            this.last = last;
+            this.endOfData = endOfData;
+            this.failure = null;
+        }
+
+        RecoveredRecords(IOException failure) {
+            this.records = Collections.emptyList();
+            this.commands = Collections.emptyList();
+            this.last = true;
+            this.endOfData = true;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Counts what recovery replays and logs the rate it goes at.
+     */
+    private static class RecoveryProgress {
+        final long start;
+        long records;
+        long bytes;
+
+        RecoveryProgress(long start) {
+            this.start = start;
+        }
+
+        void replayed(Location location) {
+            records++;
+            bytes += location.getSize();
+            if (LOG.isInfoEnabled() && records % 100000 == 0) {
+                LOG.info("@" + location + ", " + this);
+            }
+        }
+
+        public String toString() {
+            float seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0f;
+            return records + " operations from the journal (" + (bytes / 1024 / 1024) + " MB) in " + seconds
+                    + " seconds, " + (long) (records / seconds) + " operations/s, "
+                    + String.format("%.1f", bytes / 1024f / 1024f / seconds) + " MB/s";
+        }
+    }
+
     @SuppressWarnings("unused")
     private KahaTransactionInfo createLocalTransactionInfo(TransactionId tx) {
         return TransactionIdConversion.convertToLocal(tx);
@@ -587,6 +796,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 MessageKeys keys = sd.orderIndex.remove(tx, sequenceId);
                 sd.locationIndex.remove(tx, keys.location);
                 sd.messageIdIndex.remove(tx, keys.messageId);
+                removeExpiration(tx, sd, sequenceId);
                 metadata.producerSequenceIdTracker.rollback(keys.messageId);
                 undoCounter++;
                 // TODO: do we need to modify the ack positions for the pub sub case?
@@ -688,6 +898,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                             MessageKeys keys = sd.orderIndex.remove(tx, sequenceId);
                             sd.locationIndex.remove(tx, keys.location);
                             sd.messageIdIndex.remove(tx, keys.messageId);
+                            removeExpiration(tx, sd, sequenceId);
                             undoCounter++;
                             // TODO: do we need to modify the ack positions for the pub sub case?
                         }
@@ -834,7 +1045,11 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             long start = System.currentTimeMillis();
             Location location = onJournalStoreComplete == null ? journal.write(sequence, sync) :  journal.write(sequence, onJournalStoreComplete) ;
             long start2 = System.currentTimeMillis();
-            process(data, location, after);
+            if (enableIndexGroupCommit && isGroupCommitCandidate(data)) {
+                processGroupCommit(data, location);
+            } else {
+                process(data, location, after);
+            }
             long end = System.currentTimeMillis();
             if( LOG_SLOW_ACCESS_TIME>0 && end-start > LOG_SLOW_ACCESS_TIME) {
                 if (LOG.isInfoEnabled()) {
@@ -877,15 +1092,27 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
      */
     public JournalCommand<?> load(Location location) throws IOException {
         long start = System.currentTimeMillis();
-        ByteSequence data = journal.read(location);
+        // a memory mapped journal hands back a view of the record rather
+        // than a copy, so it is only copied once, when it is decoded
+        ByteBuffer data = journal.readBuffer(location);
         long end = System.currentTimeMillis();
         if( LOG_SLOW_ACCESS_TIME>0 && end-start > LOG_SLOW_ACCESS_TIME) {
             if (LOG.isInfoEnabled()) {
                 LOG.info("Slow KahaDB access: Journal read took: "+(end-start)+" ms");
             }
         }
-        DataByteArrayInputStream is = new DataByteArrayInputStream(data);
-        byte readByte = is.readByte();
+        return decode(new ByteBufferInputStream(data), location);
+    }
+
+    private JournalCommand<?> decode(ByteSequence data, Location location) throws IOException {
+        return decode(new DataByteArrayInputStream(data), location);
+    }
+
+    private JournalCommand<?> decode(InputStream is, Location location) throws IOException {
+        int readByte = is.read();
+        if (readByte < 0) {
+            throw new IOException("Could not load journal record. Invalid location: "+location);
+        }
         KahaEntryType type = KahaEntryType.valueOf(readByte);
         if( type == null ) {
             throw new IOException("Could not load journal record. Invalid location: "+location);
@@ -1043,6 +1270,156 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         }
     }
 
+    // /////////////////////////////////////////////////////////////////
+    // Group commit of non transactional index updates. Callers whose journal
+    // writes completed together queue their index updates here and one of
+    // them applies the whole group in a single page file transaction.
+    // /////////////////////////////////////////////////////////////////
+
+    static final class IndexUpdate {
+        final JournalCommand<?> command;
+        final Location location;
+        boolean done;
+        IOException failure;
+
+        IndexUpdate(JournalCommand<?> command, Location location) {
+            this.command = command;
+            this.location = location;
+        }
+    }
+
+    private final LinkedList<IndexUpdate> pendingIndexUpdates = new LinkedList<IndexUpdate>();
+    private boolean indexUpdateInProgress;
+    private final AtomicLong indexGroupCommits = new AtomicLong();
+    private final AtomicLong indexGroupCommitUpdates = new AtomicLong();
+
+    private boolean isGroupCommitCandidate(JournalCommand<?> data) {
+        if (data instanceof KahaAddMessageCommand) {
+            return !((KahaAddMessageCommand) data).hasTransactionInfo();
+        }
+        if (data instanceof KahaRemoveMessageCommand) {
+            return !((KahaRemoveMessageCommand) data).hasTransactionInfo();
+        }
+        return false;
+    }
+
+    void processGroupCommit(JournalCommand<?> data, Location location) throws IOException {
+        IndexUpdate update = new IndexUpdate(data, location);
+        List<IndexUpdate> group;
+        synchronized (pendingIndexUpdates) {
+            pendingIndexUpdates.add(update);
+            while (indexUpdateInProgress && !update.done) {
+                try {
+                    pendingIndexUpdates.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (update.done) {
+                if (update.failure != null) {
+                    throw update.failure;
+                }
+                return;
+            }
+            // we lead this group, it includes our own update
+            indexUpdateInProgress = true;
+            group = new ArrayList<IndexUpdate>(pendingIndexUpdates);
+            pendingIndexUpdates.clear();
+        }
+
+        IOException failure = null;
+        try {
+            applyIndexUpdates(group);
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = IOExceptionSupport.create(e);
+        }
+
+        synchronized (pendingIndexUpdates) {
+            for (IndexUpdate done : group) {
+                done.done = true;
+                done.failure = failure;
+            }
+            indexUpdateInProgress = false;
+            pendingIndexUpdates.notifyAll();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void applyIndexUpdates(List<IndexUpdate> group) throws IOException {
+        // keep the updates for each destination together so its indexes are
+        // walked once per group, the sort is stable so per destination order
+        // is unchanged
+        final List<IndexUpdate> ordered = new ArrayList<IndexUpdate>(group);
+        if (ordered.size() > 1) {
+            Collections.sort(ordered, new Comparator<IndexUpdate>() {
+                public int compare(IndexUpdate u1, IndexUpdate u2) {
+                    return key(destinationOf(u1.command)).compareTo(key(destinationOf(u2.command)));
+                }
+            });
+        }
+        this.indexLock.writeLock().lock();
+        try {
+            pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                public void execute(Transaction tx) throws IOException {
+                    for (IndexUpdate update : ordered) {
+                        if (update.command instanceof KahaAddMessageCommand) {
+                            upadateIndex(tx, (KahaAddMessageCommand) update.command, update.location);
+                        } else {
+                            updateIndex(tx, (KahaRemoveMessageCommand) update.command, update.location);
+                        }
+                    }
+                }
+            });
+            Location last = metadata.lastUpdate;
+            for (IndexUpdate update : group) {
+                if (last == null || update.location.compareTo(last) > 0) {
+                    last = update.location;
+                }
+            }
+            metadata.lastUpdate = last;
+        } finally {
+            this.indexLock.writeLock().unlock();
+        }
+        indexGroupCommits.incrementAndGet();
+        indexGroupCommitUpdates.addAndGet(group.size());
+    }
+
+    private KahaDestination destinationOf(JournalCommand<?> command) {
+        if (command instanceof KahaAddMessageCommand) {
+            return ((KahaAddMessageCommand) command).getDestination();
+        }
+        return ((KahaRemoveMessageCommand) command).getDestination();
+    }
+
+    /**
+     * @return the number of page file transactions used to apply grouped
+     *         index updates
+     */
+    public long getIndexGroupCommitCount() {
+        return indexGroupCommits.get();
+    }
+
+    /**
+     * @return the number of index updates applied through group commits
+     */
+    public long getIndexGroupCommitUpdateCount() {
+        return indexGroupCommitUpdates.get();
+    }
+
+    /**
+     * @return the number of index updates waiting for the group commit in
+     *         progress to finish
+     */
+    int getPendingIndexUpdateCount() {
+        synchronized (pendingIndexUpdates) {
+            return pendingIndexUpdates.size();
+        }
+    }
+
     private final Stack<Runnable> orderedTransactionAfters = new Stack<Runnable>();
     private void push(Runnable after) {
         if (after != null) {
@@ -1135,9 +1512,43 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
 
     protected final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
     private final HashSet<Integer> journalFilesBeingReplicated = new HashSet<Integer>();
+    // ids of the queue messages removed during recovery that were not in the
+    // index, a compacted copy of one of them written later must not bring it back
+    private Set<String> orphanedRemoves;
 
     void upadateIndex(Transaction tx, KahaAddMessageCommand command, Location location) throws IOException {
         StoredDestination sd = getStoredDestination(command.getDestination(), tx);
+        int priority = command.getPrioritySupported() ? command.getPriority() : javax.jms.Message.DEFAULT_PRIORITY;
+
+        if (command.hasRelocatedFrom()) {
+            // A copy written by journal compaction, move the message over to it
+            // if the original is still indexed.
+            Location from = new Location(command.getRelocatedFrom().getLogId(), command.getRelocatedFrom().getOffset());
+            Long sequence = sd.locationIndex.remove(tx, from);
+            if (sequence != null) {
+                if (command.hasSharedMessageLocation()) {
+                    recordSharedMessageReferenceLocation(location, command.getSharedMessageLocation().getLogId());
+                }
+                sd.locationIndex.put(tx, location, sequence);
+                MessageKeys keys = sd.orderIndex.get(tx, sequence);
+                if (keys != null && keys.location.equals(from)) {
+                    // keep it on the level it is indexed on, which is not the
+                    // message priority for stores indexed with fewer levels
+                    sd.orderIndex.put(tx, sd.orderIndex.lastGetPriority(), sequence, new MessageKeys(keys.messageId, location));
+                }
+                metadata.lastUpdate = location;
+                return;
+            }
+            // The message has been removed since it was copied, unless the
+            // original is gone as well and this copy is all that is left of it
+            // to recover the index from.
+            if (journal.getFileMap().containsKey(from.getDataFileId())
+                    || sd.messageIdIndex.get(tx, command.getMessageId()) != null
+                    || (orphanedRemoves != null && orphanedRemoves.contains(command.getMessageId()))) {
+                metadata.lastUpdate = location;
+                return;
+            }
+        }
 
         // Skip adding the message to the index if this is a topic and there are
         // no subscriptions.
@@ -1145,8 +1556,11 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             return;
         }
 
+        if (command.hasSharedMessageLocation()) {
+            recordSharedMessageReferenceLocation(location, command.getSharedMessageLocation().getLogId());
+        }
+
         // Add the message.
-        int priority = command.getPrioritySupported() ? command.getPriority() : javax.jms.Message.DEFAULT_PRIORITY;
         long id = sd.orderIndex.getNextMessageId(priority);
         Long previous = sd.locationIndex.put(tx, location, id);
         if (previous == null) {
@@ -1156,6 +1570,9 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 if (sd.subscriptions != null && !sd.subscriptions.isEmpty(tx)) {
                     addAckLocationForNewMessage(tx, sd, id);
                 }
+                if (command.hasExpiration()) {
+                    addExpiration(tx, sd, command.getExpiration(), id);
+                }
             } else {
                 // If the message ID as indexed, then the broker asked us to
                 // store a DUP
@@ -1190,13 +1607,19 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             if (sequenceId != null) {
                 MessageKeys keys = sd.orderIndex.remove(tx, sequenceId);
                 if (keys != null) {
+                    removeExpiration(tx, sd, sequenceId);
                     sd.locationIndex.remove(tx, keys.location);
                     recordAckMessageReferenceLocation(ackLocation, keys.location);
                 }  else if (LOG.isDebugEnabled()) {
                     LOG.debug("message not found in order index: " + sequenceId  + " for: " + command.getMessageId());
                 }
-            } else if (LOG.isDebugEnabled()) {
-                LOG.debug("message not found in sequence id index: " + command.getMessageId());
+            } else {
+                if (orphanedRemoves != null) {
+                    orphanedRemoves.add(command.getMessageId());
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("message not found in sequence id index: " + command.getMessageId());
+                }
             }
         } else {
             // In the topic case we need remove the message once it's been acked
@@ -1236,6 +1659,44 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         }
     }
 
+    private void recordSharedMessageReferenceLocation(Location referenceLocation, int bodyFileId) {
+        Set<Integer> bodyFileIds = metadata.sharedMessageFileMap.get(referenceLocation.getDataFileId());
+        if (bodyFileIds == null) {
+            bodyFileIds = new HashSet<Integer>();
+            metadata.sharedMessageFileMap.put(referenceLocation.getDataFileId(), bodyFileIds);
+        }
+        bodyFileIds.add(bodyFileId);
+    }
+
+    private final Map<Integer, Integer> sharedMessageFilePins = new HashMap<Integer, Integer>();
+
+    /**
+     * Keeps the data file of a message body from being cleaned up until
+     * {@link #unpinSharedMessageFile(int)} is called, which should be once a
+     * reference to the body has been stored and indexed.
+     *
+     * @return false if the data file is already gone
+     */
+    boolean pinSharedMessageFile(int fileId) {
+        synchronized (sharedMessageFilePins) {
+            if (!journal.getFileMap().containsKey(fileId)) {
+                return false;
+            }
+            Integer pins = sharedMessageFilePins.get(fileId);
+            sharedMessageFilePins.put(fileId, pins == null ? 1 : pins + 1);
+            return true;
+        }
+    }
+
+    void unpinSharedMessageFile(int fileId) {
+        synchronized (sharedMessageFilePins) {
+            Integer pins = sharedMessageFilePins.remove(fileId);
+            if (pins != null && pins > 1) {
+                sharedMessageFilePins.put(fileId, pins - 1);
+            }
+        }
+    }
+
     void updateIndex(Transaction tx, KahaRemoveDestinationCommand command, Location location) throws IOException {
         StoredDestination sd = getStoredDestination(command.getDestination(), tx);
         sd.orderIndex.remove(tx);
@@ -1248,6 +1709,14 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         sd.messageIdIndex.unload(tx);
         tx.free(sd.messageIdIndex.getPageId());
 
+        sd.expirationIndex.clear(tx);
+        sd.expirationIndex.unload(tx);
+        tx.free(sd.expirationIndex.getPageId());
+
+        sd.expiringMessages.clear(tx);
+        sd.expiringMessages.unload(tx);
+        tx.free(sd.expiringMessages.getPageId());
+
         if (sd.subscriptions != null) {
             sd.subscriptions.clear(tx);
             sd.subscriptions.unload(tx);
@@ -1257,9 +1726,13 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             sd.subscriptionAcks.unload(tx);
             tx.free(sd.subscriptionAcks.getPageId());
 
-            sd.ackPositions.clear(tx);
-            sd.ackPositions.unload(tx);
-            tx.free(sd.ackPositions.getHeadPageId());
+            sd.ackPositions.index.clear(tx);
+            sd.ackPositions.index.unload(tx);
+            tx.free(sd.ackPositions.index.getPageId());
+
+            sd.messageReferences.index.clear(tx);
+            sd.messageReferences.index.unload(tx);
+            tx.free(sd.messageReferences.index.getPageId());
         }
 
         String key = key(command.getDestination());
@@ -1293,6 +1766,9 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 sd.messageIdIndex.clear(tx);
                 sd.locationIndex.clear(tx);
                 sd.orderIndex.clear(tx);
+                sd.expirationIndex.clear(tx);
+                sd.expiringMessages.clear(tx);
+                sd.messageReferences.index.clear(tx);
             }
         }
     }
@@ -1401,6 +1877,19 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 }
             }
 
+            // Files that are kept keep the message bodies that the shared
+            // message references in them refer to, those in turn may hold
+            // references to other bodies.
+            boolean retainedBodies = !metadata.sharedMessageFileMap.isEmpty();
+            while (retainedBodies && !gcCandidateSet.isEmpty()) {
+                retainedBodies = false;
+                for (Entry<Integer, Set<Integer>> entry : metadata.sharedMessageFileMap.entrySet()) {
+                    if (completeFileSet.contains(entry.getKey()) && !gcCandidateSet.contains(entry.getKey())) {
+                        retainedBodies |= gcCandidateSet.removeAll(entry.getValue());
+                    }
+                }
+            }
+
             // check we are not deleting file with ack for in-use journal files
             if (LOG.isTraceEnabled()) {
                 LOG.trace("gc candidates: " + gcCandidateSet);
@@ -1429,17 +1918,209 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 }
             }
 
-            if (!gcCandidateSet.isEmpty()) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Cleanup removing the data files: " + gcCandidateSet);
+            synchronized (sharedMessageFilePins) {
+                // bodies about to get a new reference
+                gcCandidateSet.removeAll(sharedMessageFilePins.keySet());
+                if (!gcCandidateSet.isEmpty()) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Cleanup removing the data files: " + gcCandidateSet);
+                    }
+                    journal.removeDataFiles(gcCandidateSet);
                 }
-                journal.removeDataFiles(gcCandidateSet);
             }
+            metadata.sharedMessageFileMap.keySet().retainAll(journal.getFileMap().keySet());
         }
 
         LOG.debug("Checkpoint done.");
     }
 
+    /**
+     * Copies the messages still indexed from the data files that are mostly
+     * garbage to the end of the journal, so the next cleanup can release
+     * those files. Runs from the checkpoint thread ahead of the cleanup, for
+     * at most a cleanup interval, and reads and writes at most
+     * journalCompactionMaxBytesPerSecond.
+     */
+    void compactJournal() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        long bytes = 0;
+        for (Integer fileId : getCompactionCandidates()) {
+            if (!opened.get() || System.currentTimeMillis() - start >= cleanupInterval) {
+                break;
+            }
+            bytes = compactDataFile(fileId, start, bytes);
+        }
+    }
+
+    /**
+     * @return the data files that only hold adds the index can be moved off,
+     *         the ones a cleanup would keep for other reasons are left out
+     */
+    private TreeSet<Integer> getCompactionCandidates() {
+        this.indexLock.writeLock().lock();
+        try {
+            TreeSet<Integer> candidates = new TreeSet<Integer>(journal.getFileMap().keySet());
+
+            // Nothing at or past the last update or the first in progress tx
+            Location last = metadata.lastUpdate;
+            Location firstInProgress = getFirstInProgressTxLocation();
+            if (last == null || (firstInProgress != null && firstInProgress.compareTo(last) < 0)) {
+                last = firstInProgress;
+            }
+            if (last != null) {
+                candidates.tailSet(last.getDataFileId()).clear();
+            }
+            Integer current = journal.getCurrentDataFileId();
+            if (current != null) {
+                candidates.tailSet(current).clear();
+            }
+
+            candidates.removeAll(journalFilesBeingReplicated);
+            if (metadata.producerSequenceIdTrackerLocation != null) {
+                candidates.remove(metadata.producerSequenceIdTrackerLocation.getDataFileId());
+            }
+            synchronized (sharedMessageFilePins) {
+                candidates.removeAll(sharedMessageFilePins.keySet());
+            }
+
+            // Bodies referenced from other files, and files with acks for
+            // messages in other files, stay whatever is moved off them.
+            for (Entry<Integer, Set<Integer>> entry : metadata.sharedMessageFileMap.entrySet()) {
+                for (Integer bodyFileId : entry.getValue()) {
+                    if (!bodyFileId.equals(entry.getKey())) {
+                        candidates.remove(bodyFileId);
+                    }
+                }
+            }
+            for (Entry<Integer, Set<Integer>> entry : ackMessageFileMap.entrySet()) {
+                for (Integer referencedFileId : entry.getValue()) {
+                    if (!referencedFileId.equals(entry.getKey()) && journal.getFileMap().containsKey(referencedFileId)) {
+                        candidates.remove(entry.getKey());
+                        break;
+                    }
+                }
+            }
+            return candidates;
+        } finally {
+            this.indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the indexed adds in the data file forward when they take up less
+     * than the compaction threshold of it.
+     * Files that hold topic messages are left to the cleanup.
+     *
+     * @return the bytes read and written by compaction since it started
+     */
+    private long compactDataFile(final int fileId, long start, long bytes) throws IOException, InterruptedException {
+        DataFile dataFile = journal.getFileMap().get(fileId);
+        if (dataFile == null) {
+            return bytes;
+        }
+
+        final List<String> keys = new ArrayList<String>();
+        final List<Location> locations = new ArrayList<Location>();
+        final boolean[] holdsTopicMessages = new boolean[1];
+        this.indexLock.writeLock().lock();
+        try {
+            pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                public void execute(Transaction tx) throws IOException {
+                    for (Entry<String, StoredDestination> entry : storedDestinations.entrySet()) {
+                        Iterator<Entry<Location, Long>> iterator = entry.getValue().locationIndex.iterator(tx, new Location(fileId, 0));
+                        while (iterator.hasNext()) {
+                            Location location = iterator.next().getKey();
+                            if (location.getDataFileId() != fileId) {
+                                break;
+                            }
+                            if (entry.getValue().subscriptions != null) {
+                                // Only queue acks are tracked for a copy that
+                                // outlives its original, a topic copy would be
+                                // redelivered to the subscriptions that acked it.
+                                holdsTopicMessages[0] = true;
+                                return;
+                            }
+                            keys.add(entry.getKey());
+                            locations.add(location);
+                        }
+                    }
+                }
+            });
+        } finally {
+            this.indexLock.writeLock().unlock();
+        }
+        if (holdsTopicMessages[0] || locations.isEmpty()) {
+            // the cleanup releases it as it is
+            return bytes;
+        }
+
+        // Stop reading as soon as the file turns out to be too full.
+        long limit = (long) (dataFile.getLength() * journalCompactionThreshold);
+        long liveBytes = 0;
+        List<ByteSequence> records = new ArrayList<ByteSequence>(locations.size());
+        for (Location location : locations) {
+            ByteSequence data = journal.read(location);
+            records.add(data);
+            liveBytes += Journal.RECORD_HEAD_SPACE + data.getLength();
+            bytes = throttleCompaction(start, bytes, data.getLength());
+            if (liveBytes > limit) {
+                return bytes;
+            }
+        }
+
+        int moved = 0;
+        for (int i = 0; i < records.size() && opened.get(); i++) {
+            this.indexLock.writeLock().lock();
+            try {
+                if (isIndexed(keys.get(i), locations.get(i))) {
+                    Location from = locations.get(i);
+                    KahaAddMessageCommand copy = (KahaAddMessageCommand) decode(records.get(i), from);
+                    copy.clearTransactionInfo();
+                    copy.setRelocatedFrom(new KahaLocation().setLogId(from.getDataFileId()).setOffset(from.getOffset()));
+                    ByteSequence sequence = toByteSequence(copy);
+                    Location location = journal.write(sequence, false);
+                    process(copy, location);
+                    bytes += sequence.getLength();
+                    moved++;
+                }
+            } finally {
+                this.indexLock.writeLock().unlock();
+            }
+            bytes = throttleCompaction(start, bytes, 0);
+        }
+        if (moved > 0) {
+            // the copies have to be on disk before the file can go
+            store(new KahaTraceCommand().setMessage("COMPACTED " + fileId), true, null, null);
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Compacted journal data file " + fileId + ", moved " + moved + " of " + locations.size() + " messages (" + liveBytes + " of " + dataFile.getLength() + " bytes)");
+        }
+        return bytes;
+    }
+
+    private boolean isIndexed(final String key, final Location location) throws IOException {
+        final StoredDestination sd = storedDestinations.get(key);
+        if (sd == null) {
+            return false;
+        }
+        return pageFile.tx().execute(new Transaction.CallableClosure<Boolean, IOException>() {
+            public Boolean execute(Transaction tx) throws IOException {
+                return sd.locationIndex.get(tx, location) != null;
+            }
+        });
+    }
+
+    private long throttleCompaction(long start, long bytes, int size) throws InterruptedException {
+        bytes += size;
+        if (journalCompactionMaxBytesPerSecond > 0) {
+            long wait = start + bytes * 1000 / journalCompactionMaxBytesPerSecond - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+        }
+        return bytes;
+    }
+
     final Runnable nullCompletionCallback = new Runnable() {
         @Override
         public void run() {
@@ -1568,15 +2249,19 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         MessageOrderIndex orderIndex = new MessageOrderIndex();
         BTreeIndex<Location, Long> locationIndex;
         BTreeIndex<String, Long> messageIdIndex;
+        // expiration time -> sequence ids of the messages that expire then
+        BTreeIndex<Long, SequenceSet> expirationIndex;
+        // sequence id -> expiration of the messages in the expiration index,
+        // so they can be taken out of it when they are removed
+        BTreeIndex<Long, Long> expiringMessages;
 
         // These bits are only set for Topics
         BTreeIndex<String, KahaSubscriptionCommand> subscriptions;
         BTreeIndex<String, LastAck> subscriptionAcks;
         HashMap<String, MessageOrderCursor> subscriptionCursors;
-        ListIndex<String, SequenceSet> ackPositions;
-
-        // Transient data used to track which Messages are no longer needed.
-        final TreeMap<Long, Long> messageReferences = new TreeMap<Long, Long>();
+        AckPositions ackPositions;
+        // the number of subscriptions each message is still pending for
+        MessageReferences messageReferences;
         final HashSet<String> subscriptionCache = new LinkedHashSet<String>();
     }
 
@@ -1584,15 +2269,51 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
 
         public StoredDestination readPayload(final DataInput dataIn) throws IOException {
             final StoredDestination value = new StoredDestination();
-            value.orderIndex.defaultPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, dataIn.readLong());
+            value.orderIndex.priorityIndexes[MessageOrderIndex.DEF] = new BTreeIndex<Long, MessageKeys>(pageFile, dataIn.readLong());
             value.locationIndex = new BTreeIndex<Location, Long>(pageFile, dataIn.readLong());
             value.messageIdIndex = new BTreeIndex<String, Long>(pageFile, dataIn.readLong());
 
             if (dataIn.readBoolean()) {
                 value.subscriptions = new BTreeIndex<String, KahaSubscriptionCommand>(pageFile, dataIn.readLong());
                 value.subscriptionAcks = new BTreeIndex<String, LastAck>(pageFile, dataIn.readLong());
-                if (metadata.version >= 4) {
-                    value.ackPositions = new ListIndex<String, SequenceSet>(pageFile, dataIn.readLong());
+                if (metadata.version >= 9) {
+                    value.ackPositions = new AckPositions(new BTreeIndex<SubscriptionBlock, SequenceBitmap>(pageFile, dataIn.readLong()));
+                } else if (metadata.version >= 7) {
+                    // upgrade, split the bitmap of each subscription in blocks
+                    pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                        public void execute(Transaction tx) throws IOException {
+                            ListIndex<String, SequenceBitmap> oldAckPositions =
+                                new ListIndex<String, SequenceBitmap>(pageFile, dataIn.readLong());
+                            oldAckPositions.setKeyMarshaller(StringMarshaller.INSTANCE);
+                            oldAckPositions.setValueMarshaller(SequenceBitmap.Marshaller.INSTANCE);
+                            oldAckPositions.load(tx);
+
+                            value.ackPositions = new AckPositions(new BTreeIndex<SubscriptionBlock, SequenceBitmap>(pageFile, tx.allocate()));
+                            value.ackPositions.load(tx);
+                            for (Iterator<Entry<String, SequenceBitmap>> iterator = oldAckPositions.iterator(tx); iterator.hasNext(); ) {
+                                Entry<String, SequenceBitmap> entry = iterator.next();
+                                value.ackPositions.addAll(tx, entry.getKey(), entry.getValue());
+                            }
+                        }
+                    });
+                } else if (metadata.version >= 4) {
+                    // upgrade
+                    pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                        public void execute(Transaction tx) throws IOException {
+                            ListIndex<String, SequenceSet> oldAckPositions =
+                                new ListIndex<String, SequenceSet>(pageFile, dataIn.readLong());
+                            oldAckPositions.setKeyMarshaller(StringMarshaller.INSTANCE);
+                            oldAckPositions.setValueMarshaller(SequenceSet.Marshaller.INSTANCE);
+                            oldAckPositions.load(tx);
+
+                            LinkedHashMap<String, SequenceSet> temp = new LinkedHashMap<String, SequenceSet>();
+                            for (Iterator<Entry<String, SequenceSet>> iterator = oldAckPositions.iterator(tx); iterator.hasNext(); ) {
+                                Entry<String, SequenceSet> entry = iterator.next();
+                                temp.put(entry.getKey(), entry.getValue());
+                            }
+                            upgradeAckPositions(tx, value, temp);
+                        }
+                    });
                 } else {
                     // upgrade
                     pageFile.tx().execute(new Transaction.Closure<IOException>() {
@@ -1624,52 +2345,133 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
 
                             // Now move the pending messages to ack data into the store backed
                             // structure.
-                            value.ackPositions = new ListIndex<String, SequenceSet>(pageFile, tx.allocate());
-                            for(String subscriptionKey : temp.keySet()) {
-                                value.ackPositions.put(tx, subscriptionKey, temp.get(subscriptionKey));
-                            }
-
+                            upgradeAckPositions(tx, value, temp);
                         }
                     });
                 }
             }
             if (metadata.version >= 2) {
-                value.orderIndex.lowPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, dataIn.readLong());
-                value.orderIndex.highPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, dataIn.readLong());
+                value.orderIndex.priorityIndexes[MessageOrderIndex.LO] = new BTreeIndex<Long, MessageKeys>(pageFile, dataIn.readLong());
+                value.orderIndex.priorityIndexes[MessageOrderIndex.HI] = new BTreeIndex<Long, MessageKeys>(pageFile, dataIn.readLong());
             } else {
                     // upgrade
                     pageFile.tx().execute(new Transaction.Closure<IOException>() {
                         public void execute(Transaction tx) throws IOException {
-                            value.orderIndex.lowPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
-                            value.orderIndex.lowPriorityIndex.setKeyMarshaller(LongMarshaller.INSTANCE);
-                            value.orderIndex.lowPriorityIndex.setValueMarshaller(MessageKeysMarshaller.INSTANCE);
-                            value.orderIndex.lowPriorityIndex.load(tx);
-
-                            value.orderIndex.highPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
-                            value.orderIndex.highPriorityIndex.setKeyMarshaller(LongMarshaller.INSTANCE);
-                            value.orderIndex.highPriorityIndex.setValueMarshaller(MessageKeysMarshaller.INSTANCE);
-                            value.orderIndex.highPriorityIndex.load(tx);
+                            value.orderIndex.priorityIndexes[MessageOrderIndex.LO] = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
+                            value.orderIndex.priorityIndexes[MessageOrderIndex.HI] = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
                         }
                     });
             }
+            if (metadata.version >= 5) {
+                value.expirationIndex = new BTreeIndex<Long, SequenceSet>(pageFile, dataIn.readLong());
+            } else {
+                // upgrade, the index is filled in when the destination is loaded
+                pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                    public void execute(Transaction tx) throws IOException {
+                        value.expirationIndex = new BTreeIndex<Long, SequenceSet>(pageFile, tx.allocate());
+                        value.expirationIndex.setKeyMarshaller(LongMarshaller.INSTANCE);
+                        value.expirationIndex.setValueMarshaller(SequenceSet.Marshaller.INSTANCE);
+                        value.expirationIndex.load(tx);
+                    }
+                });
+            }
+            if (metadata.version >= 6) {
+                for (int i = MessageOrderIndex.LO + 1; i < MessageOrderIndex.HI; i++) {
+                    if (i != MessageOrderIndex.DEF) {
+                        value.orderIndex.priorityIndexes[i] = new BTreeIndex<Long, MessageKeys>(pageFile, dataIn.readLong());
+                    }
+                }
+            } else {
+                // upgrade, the levels between the old LO, DEF and HI indexes start out empty
+                pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                    public void execute(Transaction tx) throws IOException {
+                        for (int i = MessageOrderIndex.LO + 1; i < MessageOrderIndex.HI; i++) {
+                            if (i != MessageOrderIndex.DEF) {
+                                value.orderIndex.priorityIndexes[i] = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
+                            }
+                        }
+                    }
+                });
+            }
+            if (value.subscriptions != null && metadata.version >= 7) {
+                value.messageReferences = new MessageReferences(new BTreeIndex<Long, int[]>(pageFile, dataIn.readLong()));
+            }
+            if (metadata.version >= 8) {
+                value.expiringMessages = new BTreeIndex<Long, Long>(pageFile, dataIn.readLong());
+            } else {
+                // upgrade, the index is filled in when the destination is loaded
+                pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                    public void execute(Transaction tx) throws IOException {
+                        value.expiringMessages = new BTreeIndex<Long, Long>(pageFile, tx.allocate());
+                    }
+                });
+            }
 
             return value;
         }
 
+        /**
+         * Moves the pending acks of a store written before version 7 into
+         * bitmaps, and counts the message references once so they need not
+         * be rebuilt from the acks every time the destination is loaded.
+         */
+        private void upgradeAckPositions(Transaction tx, StoredDestination value, Map<String, SequenceSet> temp) throws IOException {
+            value.ackPositions = new AckPositions(new BTreeIndex<SubscriptionBlock, SequenceBitmap>(pageFile, tx.allocate()));
+            value.ackPositions.load(tx);
+            value.messageReferences = new MessageReferences(new BTreeIndex<Long, int[]>(pageFile, tx.allocate()));
+            value.messageReferences.load(tx);
+
+            for (Entry<String, SequenceSet> entry : temp.entrySet()) {
+                SequenceBitmap pendingAcks = new SequenceBitmap();
+                for (Long sequenceId : entry.getValue()) {
+                    pendingAcks.add(sequenceId);
+                }
+                value.ackPositions.addAll(tx, entry.getKey(), pendingAcks);
+
+                if (!pendingAcks.isEmpty()) {
+                    long lastPendingAck = pendingAcks.last();
+                    for (Long sequenceId : pendingAcks) {
+                        Long current = value.messageReferences.get(tx, sequenceId);
+                        if (current == null) {
+                            current = Long.valueOf(0);
+                        }
+
+                        // We always add a trailing empty entry for the next position to start from
+                        // so we need to ensure we don't count that as a message reference.
+                        if (sequenceId.longValue() != lastPendingAck) {
+                            current = current.longValue() + 1;
+                        }
+
+                        value.messageReferences.put(tx, sequenceId, current);
+                    }
+                }
+            }
+        }
+
         public void writePayload(StoredDestination value, DataOutput dataOut) throws IOException {
-            dataOut.writeLong(value.orderIndex.defaultPriorityIndex.getPageId());
+            dataOut.writeLong(value.orderIndex.priorityIndexes[MessageOrderIndex.DEF].getPageId());
             dataOut.writeLong(value.locationIndex.getPageId());
             dataOut.writeLong(value.messageIdIndex.getPageId());
             if (value.subscriptions != null) {
                 dataOut.writeBoolean(true);
                 dataOut.writeLong(value.subscriptions.getPageId());
                 dataOut.writeLong(value.subscriptionAcks.getPageId());
-                dataOut.writeLong(value.ackPositions.getHeadPageId());
+                dataOut.writeLong(value.ackPositions.index.getPageId());
             } else {
                 dataOut.writeBoolean(false);
             }
-            dataOut.writeLong(value.orderIndex.lowPriorityIndex.getPageId());
-            dataOut.writeLong(value.orderIndex.highPriorityIndex.getPageId());
+            dataOut.writeLong(value.orderIndex.priorityIndexes[MessageOrderIndex.LO].getPageId());
+            dataOut.writeLong(value.orderIndex.priorityIndexes[MessageOrderIndex.HI].getPageId());
+            dataOut.writeLong(value.expirationIndex.getPageId());
+            for (int i = MessageOrderIndex.LO + 1; i < MessageOrderIndex.HI; i++) {
+                if (i != MessageOrderIndex.DEF) {
+                    dataOut.writeLong(value.orderIndex.priorityIndexes[i].getPageId());
+                }
+            }
+            if (value.subscriptions != null) {
+                dataOut.writeLong(value.messageReferences.index.getPageId());
+            }
+            dataOut.writeLong(value.expiringMessages.getPageId());
         }
     }
 
@@ -1726,11 +2528,14 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             rc.orderIndex.allocate(tx);
             rc.locationIndex = new BTreeIndex<Location, Long>(pageFile, tx.allocate());
             rc.messageIdIndex = new BTreeIndex<String, Long>(pageFile, tx.allocate());
+            rc.expirationIndex = new BTreeIndex<Long, SequenceSet>(pageFile, tx.allocate());
+            rc.expiringMessages = new BTreeIndex<Long, Long>(pageFile, tx.allocate());
 
             if (topic) {
                 rc.subscriptions = new BTreeIndex<String, KahaSubscriptionCommand>(pageFile, tx.allocate());
                 rc.subscriptionAcks = new BTreeIndex<String, LastAck>(pageFile, tx.allocate());
-                rc.ackPositions = new ListIndex<String, SequenceSet>(pageFile, tx.allocate());
+                rc.ackPositions = new AckPositions(new BTreeIndex<SubscriptionBlock, SequenceBitmap>(pageFile, tx.allocate()));
+                rc.messageReferences = new MessageReferences(new BTreeIndex<Long, int[]>(pageFile, tx.allocate()));
             }
             metadata.destinations.put(tx, key, rc);
         }
@@ -1749,6 +2554,51 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         rc.messageIdIndex.setValueMarshaller(LongMarshaller.INSTANCE);
         rc.messageIdIndex.load(tx);
 
+        rc.expirationIndex.setKeyMarshaller(LongMarshaller.INSTANCE);
+        rc.expirationIndex.setValueMarshaller(SequenceSet.Marshaller.INSTANCE);
+        rc.expirationIndex.load(tx);
+
+        rc.expiringMessages.setKeyMarshaller(LongMarshaller.INSTANCE);
+        rc.expiringMessages.setValueMarshaller(LongMarshaller.INSTANCE);
+        rc.expiringMessages.load(tx);
+
+        if (metadata.version < 5) {
+            // on upgrade fill the expiration index from the stored messages
+            for (Iterator<Entry<Long, MessageKeys>> iterator =
+                    rc.orderIndex.iterator(tx, new MessageOrderCursor()); iterator.hasNext(); ) {
+                Entry<Long, MessageKeys> entry = iterator.next();
+                long expiration = loadExpiration(entry.getValue().location);
+                if (expiration != 0) {
+                    addExpiration(tx, rc, expiration, entry.getKey());
+                }
+            }
+        }
+        if (metadata.version >= 5 && metadata.version < 8) {
+            // on upgrade index the expirations by sequence, leaving out the
+            // entries of messages that have already been removed
+            Map<Long, SequenceSet> changed = new HashMap<Long, SequenceSet>();
+            for (Iterator<Entry<Long, SequenceSet>> iterator = rc.expirationIndex.iterator(tx); iterator.hasNext(); ) {
+                Entry<Long, SequenceSet> entry = iterator.next();
+                SequenceSet remaining = new SequenceSet();
+                for (Long sequence : entry.getValue()) {
+                    if (rc.orderIndex.get(tx, sequence) != null) {
+                        remaining.add(sequence);
+                        rc.expiringMessages.put(tx, sequence, entry.getKey());
+                    }
+                }
+                if (remaining.rangeSize() != entry.getValue().rangeSize()) {
+                    changed.put(entry.getKey(), remaining);
+                }
+            }
+            for (Entry<Long, SequenceSet> entry : changed.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    rc.expirationIndex.remove(tx, entry.getKey());
+                } else {
+                    rc.expirationIndex.put(tx, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
         // If it was a topic...
         if (topic) {
 
@@ -1760,10 +2610,10 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             rc.subscriptionAcks.setValueMarshaller(new LastAckMarshaller());
             rc.subscriptionAcks.load(tx);
 
-            rc.ackPositions.setKeyMarshaller(StringMarshaller.INSTANCE);
-            rc.ackPositions.setValueMarshaller(SequenceSet.Marshaller.INSTANCE);
             rc.ackPositions.load(tx);
 
+            rc.messageReferences.load(tx);
+
             rc.subscriptionCursors = new HashMap<String, MessageOrderCursor>();
 
             if (metadata.version < 3) {
@@ -1781,30 +2631,6 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 }
             }
 
-            // Configure the message references index
-            Iterator<Entry<String, SequenceSet>> subscriptions = rc.ackPositions.iterator(tx);
-            while (subscriptions.hasNext()) {
-                Entry<String, SequenceSet> subscription = subscriptions.next();
-                SequenceSet pendingAcks = subscription.getValue();
-                if (pendingAcks != null && !pendingAcks.isEmpty()) {
-                    Long lastPendingAck = pendingAcks.getTail().getLast();
-                    for(Long sequenceId : pendingAcks) {
-                        Long current = rc.messageReferences.get(sequenceId);
-                        if (current == null) {
-                            current = new Long(0);
-                        }
-
-                        // We always add a trailing empty entry for the next position to start from
-                        // so we need to ensure we don't count that as a message reference on reload.
-                        if (!sequenceId.equals(lastPendingAck)) {
-                            current = current.longValue() + 1;
-                        }
-
-                        rc.messageReferences.put(sequenceId, current);
-                    }
-                }
-            }
-
             // Configure the subscription cache
             for (Iterator<Entry<String, LastAck>> iterator = rc.subscriptionAcks.iterator(tx); iterator.hasNext(); ) {
                 Entry<String, LastAck> entry = iterator.next();
@@ -1822,8 +2648,8 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 }
             } else {
                 // update based on ackPositions for unmatched, last entry is always the next
-                if (!rc.messageReferences.isEmpty()) {
-                    Long nextMessageId = (Long) rc.messageReferences.keySet().toArray()[rc.messageReferences.size() - 1];
+                Long nextMessageId = rc.messageReferences.lastKey(tx);
+                if (nextMessageId != null) {
                     rc.orderIndex.nextMessageId =
                             Math.max(rc.orderIndex.nextMessageId, nextMessageId);
                 }
@@ -1837,101 +2663,130 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         return rc;
     }
 
-    private void addAckLocation(Transaction tx, StoredDestination sd, Long messageSequence, String subscriptionKey) throws IOException {
-        SequenceSet sequences = sd.ackPositions.get(tx, subscriptionKey);
+    private void addExpiration(Transaction tx, StoredDestination sd, long expiration, Long messageSequence) throws IOException {
+        SequenceSet sequences = sd.expirationIndex.get(tx, expiration);
         if (sequences == null) {
             sequences = new SequenceSet();
-            sequences.add(messageSequence);
-            sd.ackPositions.add(tx, subscriptionKey, sequences);
-        } else {
-            sequences.add(messageSequence);
-            sd.ackPositions.put(tx, subscriptionKey, sequences);
         }
+        sequences.add(messageSequence);
+        sd.expirationIndex.put(tx, expiration, sequences);
+        sd.expiringMessages.put(tx, messageSequence, expiration);
+    }
+
+    /**
+     * Takes a message that is removed out of the expiration index.
+     */
+    private void removeExpiration(Transaction tx, StoredDestination sd, Long messageSequence) throws IOException {
+        Long expiration = sd.expiringMessages.remove(tx, messageSequence);
+        if (expiration != null) {
+            SequenceSet sequences = sd.expirationIndex.get(tx, expiration);
+            if (sequences != null && sequences.remove(messageSequence)) {
+                if (sequences.isEmpty()) {
+                    sd.expirationIndex.remove(tx, expiration);
+                } else {
+                    sd.expirationIndex.put(tx, expiration, sequences);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the messages of a destination that expire at or before the given
+     * time, soonest first. Entries of messages that are no longer in the
+     * order index are dropped from the index on the way.
+     */
+    List<MessageKeys> getExpiredMessages(Transaction tx, StoredDestination sd, long time, int maxReturned) throws IOException {
+        List<MessageKeys> expired = new ArrayList<MessageKeys>();
+        Map<Long, SequenceSet> changed = new HashMap<Long, SequenceSet>();
+        for (Iterator<Entry<Long, SequenceSet>> iterator = sd.expirationIndex.iterator(tx);
+                iterator.hasNext() && expired.size() < maxReturned; ) {
+            Entry<Long, SequenceSet> entry = iterator.next();
+            if (entry.getKey().longValue() > time) {
+                break;
+            }
+            SequenceSet remaining = new SequenceSet();
+            for (Long sequence : entry.getValue()) {
+                MessageKeys keys = sd.orderIndex.get(tx, sequence);
+                if (keys != null) {
+                    remaining.add(sequence);
+                    if (expired.size() < maxReturned) {
+                        expired.add(keys);
+                    }
+                }
+            }
+            if (remaining.rangeSize() != entry.getValue().rangeSize()) {
+                changed.put(entry.getKey(), remaining);
+            }
+        }
+        for (Entry<Long, SequenceSet> entry : changed.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                sd.expirationIndex.remove(tx, entry.getKey());
+            } else {
+                sd.expirationIndex.put(tx, entry.getKey(), entry.getValue());
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return the expiration of the message stored at the location, used to
+     *         fill the expiration index of a store written by an older version
+     */
+    abstract long loadExpiration(Location location) throws IOException;
+
+    private void addAckLocation(Transaction tx, StoredDestination sd, Long messageSequence, String subscriptionKey) throws IOException {
+        sd.ackPositions.add(tx, subscriptionKey, messageSequence);
 
-        Long count = sd.messageReferences.get(messageSequence);
+        Long count = sd.messageReferences.get(tx, messageSequence);
         if (count == null) {
             count = Long.valueOf(0L);
         }
         count = count.longValue() + 1;
-        sd.messageReferences.put(messageSequence, count);
+        sd.messageReferences.put(tx, messageSequence, count);
     }
 
     // new sub is interested in potentially all existing messages
     private void addAckLocationForRetroactiveSub(Transaction tx, StoredDestination sd, String subscriptionKey) throws IOException {
-        SequenceSet allOutstanding = new SequenceSet();
-        Iterator<Map.Entry<String, SequenceSet>> iterator = sd.ackPositions.iterator(tx);
-        while (iterator.hasNext()) {
-            SequenceSet set = iterator.next().getValue();
-            for (Long entry : set) {
-                allOutstanding.add(entry);
-            }
-        }
-        sd.ackPositions.put(tx, subscriptionKey, allOutstanding);
-
-        for (Long ackPosition : allOutstanding) {
-            Long count = sd.messageReferences.get(ackPosition);
-            count = count.longValue() + 1;
-            sd.messageReferences.put(ackPosition, count);
-        }
+        SequenceBitmap allOutstanding = sd.ackPositions.getAll(tx);
+        sd.ackPositions.addAll(tx, subscriptionKey, allOutstanding);
+        sd.messageReferences.addToAll(tx, allOutstanding, 1, null);
     }
 
     // on a new message add, all existing subs are interested in this message
     private void addAckLocationForNewMessage(Transaction tx, StoredDestination sd, Long messageSequence) throws IOException {
+        if (sd.subscriptionCache.isEmpty()) {
+            return;
+        }
+        List<Long> sequences = Arrays.asList(messageSequence, messageSequence + 1);
         for(String subscriptionKey : sd.subscriptionCache) {
-            SequenceSet sequences = sd.ackPositions.get(tx, subscriptionKey);
-            if (sequences == null) {
-                sequences = new SequenceSet();
-                sequences.add(new Sequence(messageSequence, messageSequence + 1));
-                sd.ackPositions.add(tx, subscriptionKey, sequences);
-            } else {
-                sequences.add(new Sequence(messageSequence, messageSequence + 1));
-                sd.ackPositions.put(tx, subscriptionKey, sequences);
-            }
-
-            Long count = sd.messageReferences.get(messageSequence);
-            if (count == null) {
-                count = Long.valueOf(0L);
-            }
-            count = count.longValue() + 1;
-            sd.messageReferences.put(messageSequence, count);
-            sd.messageReferences.put(messageSequence+1, Long.valueOf(0L));
+            sd.ackPositions.addAll(tx, subscriptionKey, sequences);
         }
+
+        // a new message is referenced by every subscription
+        sd.messageReferences.put(tx, messageSequence, sd.subscriptionCache.size());
+        sd.messageReferences.put(tx, messageSequence + 1, 0);
     }
 
     private void removeAckLocationsForSub(Transaction tx, StoredDestination sd, String subscriptionKey) throws IOException {
-        if (!sd.ackPositions.isEmpty(tx)) {
-            SequenceSet sequences = sd.ackPositions.remove(tx, subscriptionKey);
-            if (sequences == null || sequences.isEmpty()) {
-                return;
-            }
-
-            ArrayList<Long> unreferenced = new ArrayList<Long>();
-
-            for(Long sequenceId : sequences) {
-                Long references = sd.messageReferences.get(sequenceId);
-                if (references != null) {
-                    references = references.longValue() - 1;
+        SequenceBitmap sequences = sd.ackPositions.removeAll(tx, subscriptionKey);
+        if (sequences.isEmpty()) {
+            return;
+        }
 
-                    if (references.longValue() > 0) {
-                        sd.messageReferences.put(sequenceId, references);
-                    } else {
-                        sd.messageReferences.remove(sequenceId);
-                        unreferenced.add(sequenceId);
-                    }
-                }
-            }
+        ArrayList<Long> unreferenced = new ArrayList<Long>();
+        sd.messageReferences.addToAll(tx, sequences, -1, unreferenced);
 
-            for(Long sequenceId : unreferenced) {
-                // Find all the entries that need to get deleted.
-                ArrayList<Entry<Long, MessageKeys>> deletes = new ArrayList<Entry<Long, MessageKeys>>();
-                sd.orderIndex.getDeleteList(tx, deletes, sequenceId);
+        for(Long sequenceId : unreferenced) {
+            // Find all the entries that need to get deleted.
+            ArrayList<Entry<Long, MessageKeys>> deletes = new ArrayList<Entry<Long, MessageKeys>>();
+            sd.orderIndex.getDeleteList(tx, deletes, sequenceId);
 
-                // Do the actual deletes.
-                for (Entry<Long, MessageKeys> entry : deletes) {
-                    sd.locationIndex.remove(tx, entry.getValue().location);
-                    sd.messageIdIndex.remove(tx, entry.getValue().messageId);
-                    sd.orderIndex.remove(tx, entry.getKey());
-                }
+            // Do the actual deletes.
+            for (Entry<Long, MessageKeys> entry : deletes) {
+                sd.locationIndex.remove(tx, entry.getValue().location);
+                sd.messageIdIndex.remove(tx, entry.getValue().messageId);
+                sd.orderIndex.remove(tx, entry.getKey());
+                removeExpiration(tx, sd, entry.getKey());
             }
         }
     }
@@ -1946,24 +2801,17 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
     private void removeAckLocation(Transaction tx, StoredDestination sd, String subscriptionKey, Long messageSequence) throws IOException {
         // Remove the sub from the previous location set..
         if (messageSequence != null) {
-            SequenceSet range = sd.ackPositions.get(tx, subscriptionKey);
-            if (range != null && !range.isEmpty()) {
-                range.remove(messageSequence);
-                if (!range.isEmpty()) {
-                    sd.ackPositions.put(tx, subscriptionKey, range);
-                } else {
-                    sd.ackPositions.remove(tx, subscriptionKey);
-                }
+            if (sd.ackPositions.remove(tx, subscriptionKey, messageSequence) || !sd.ackPositions.isEmpty(tx, subscriptionKey)) {
 
                 // Check if the message is reference by any other subscription.
-                Long count = sd.messageReferences.get(messageSequence);
+                Long count = sd.messageReferences.get(tx, messageSequence);
                 if (count != null){
                 long references = count.longValue() - 1;
                     if (references > 0) {
-                        sd.messageReferences.put(messageSequence, Long.valueOf(references));
+                        sd.messageReferences.put(tx, messageSequence, Long.valueOf(references));
                         return;
                     } else {
-                        sd.messageReferences.remove(messageSequence);
+                        sd.messageReferences.remove(tx, messageSequence);
                     }
                 }
 
@@ -1976,6 +2824,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                     sd.locationIndex.remove(tx, entry.getValue().location);
                     sd.messageIdIndex.remove(tx, entry.getValue().messageId);
                     sd.orderIndex.remove(tx, entry.getKey());
+                    removeExpiration(tx, sd, entry.getKey());
                 }
             }
         }
@@ -1986,14 +2835,9 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
     }
 
     public long getStoredMessageCount(Transaction tx, StoredDestination sd, String subscriptionKey) throws IOException {
-        SequenceSet messageSequences = sd.ackPositions.get(tx, subscriptionKey);
-        if (messageSequences != null) {
-            long result = messageSequences.rangeSize();
-            // if there's anything in the range the last value is always the nextMessage marker, so remove 1.
-            return result > 0 ? result - 1 : 0;
-        }
-
-        return 0;
+        long result = sd.ackPositions.cardinality(tx, subscriptionKey);
+        // if there's anything in the range the last value is always the nextMessage marker, so remove 1.
+        return result > 0 ? result - 1 : 0;
     }
 
     private String key(KahaDestination destination) {
@@ -2111,6 +2955,9 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         index.setPageCacheSize(indexCacheSize);
         index.setUseLFRUEviction(isUseIndexLFRUEviction());
         index.setLFUEvictionFactor(getIndexLFUEvictionFactor());
+        index.setPageCacheMaxSize(getIndexCacheMaxSize());
+        index.setPageCachePolicy(getIndexCachePolicy());
+        index.setOffHeapPageCacheSize(getIndexOffHeapCacheSize());
         index.setEnableDiskSyncs(isEnableIndexDiskSyncs());
         index.setEnableRecoveryFile(isEnableIndexRecoveryFile());
         index.setEnablePageCaching(isEnableIndexPageCaching());
@@ -2127,6 +2974,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         manager.setArchiveDataLogs(isArchiveDataLogs());
         manager.setSizeAccumulator(journalSize);
         manager.setEnableAsyncDiskSync(isEnableJournalDiskSyncs());
+        manager.setMemoryMapped(isJournalMemoryMapped());
         if (getDirectoryArchive() != null) {
             IOHelper.mkdirs(getDirectoryArchive());
             manager.setDirectoryArchive(getDirectoryArchive());
@@ -2142,6 +2990,14 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         this.journalMaxWriteBatchSize = journalMaxWriteBatchSize;
     }
 
+    public boolean isJournalMemoryMapped() {
+        return journalMemoryMapped;
+    }
+
+    public void setJournalMemoryMapped(boolean journalMemoryMapped) {
+        this.journalMemoryMapped = journalMemoryMapped;
+    }
+
     public File getDirectory() {
         return directory;
     }
@@ -2174,6 +3030,14 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         return enableIndexWriteAsync;
     }
 
+    public void setEnableIndexGroupCommit(boolean enableIndexGroupCommit) {
+        this.enableIndexGroupCommit = enableIndexGroupCommit;
+    }
+
+    public boolean isEnableIndexGroupCommit() {
+        return enableIndexGroupCommit;
+    }
+
     public boolean isEnableJournalDiskSyncs() {
         return enableJournalDiskSyncs;
     }
@@ -2354,6 +3218,30 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         this.useIndexLFRUEviction = useIndexLFRUEviction;
     }
 
+    public long getIndexCacheMaxSize() {
+        return indexCacheMaxSize;
+    }
+
+    public void setIndexCacheMaxSize(long indexCacheMaxSize) {
+        this.indexCacheMaxSize = indexCacheMaxSize;
+    }
+
+    public String getIndexCachePolicy() {
+        return indexCachePolicy;
+    }
+
+    public void setIndexCachePolicy(String indexCachePolicy) {
+        this.indexCachePolicy = indexCachePolicy;
+    }
+
+    public long getIndexOffHeapCacheSize() {
+        return indexOffHeapCacheSize;
+    }
+
+    public void setIndexOffHeapCacheSize(long indexOffHeapCacheSize) {
+        this.indexOffHeapCacheSize = indexOffHeapCacheSize;
+    }
+
     public void setEnableIndexDiskSyncs(boolean enableIndexDiskSyncs) {
         this.enableIndexDiskSyncs = enableIndexDiskSyncs;
     }
@@ -2378,27 +3266,72 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         return enableIndexPageCaching;
     }
 
+    public int getJournalRecoveryThreads() {
+        return journalRecoveryThreads;
+    }
+
+    /**
+     * @param journalRecoveryThreads the number of threads that read and
+     *                decode journal data files ahead of the journal replay on
+     *                recovery, 1 replays one record at a time as it is read
+     */
+    public void setJournalRecoveryThreads(int journalRecoveryThreads) {
+        this.journalRecoveryThreads = journalRecoveryThreads;
+    }
+
+    public int getJournalRecoveryReadSize() {
+        return journalRecoveryReadSize;
+    }
+
+    /**
+     * @param journalRecoveryReadSize the number of bytes of the journal read
+     *                at a time when recovering with more than one thread, a
+     *                record larger than that is read on its own
+     */
+    public void setJournalRecoveryReadSize(int journalRecoveryReadSize) {
+        this.journalRecoveryReadSize = journalRecoveryReadSize;
+    }
+
+    public float getJournalCompactionThreshold() {
+        return journalCompactionThreshold;
+    }
+
+    /**
+     * @param journalCompactionThreshold the fraction of a data file below which
+     *                the messages still in it are copied forward so the file can
+     *                be released, 0 disables journal compaction
+     */
+    public void setJournalCompactionThreshold(float journalCompactionThreshold) {
+        this.journalCompactionThreshold = journalCompactionThreshold;
+    }
+
+    public long getJournalCompactionMaxBytesPerSecond() {
+        return journalCompactionMaxBytesPerSecond;
+    }
+
+    /**
+     * @param journalCompactionMaxBytesPerSecond the journal bandwidth compaction
+     *                may use for its reads and writes, 0 for no limit
+     */
+    public void setJournalCompactionMaxBytesPerSecond(long journalCompactionMaxBytesPerSecond) {
+        this.journalCompactionMaxBytesPerSecond = journalCompactionMaxBytesPerSecond;
+    }
+
     // /////////////////////////////////////////////////////////////////
     // Internal conversion methods.
     // /////////////////////////////////////////////////////////////////
 
     class MessageOrderCursor{
-        long defaultCursorPosition;
-        long lowPriorityCursorPosition;
-        long highPriorityCursorPosition;
+        final long[] positions = new long[MessageOrderIndex.LEVELS];
         MessageOrderCursor(){
         }
 
         MessageOrderCursor(long position){
-            this.defaultCursorPosition=position;
-            this.lowPriorityCursorPosition=position;
-            this.highPriorityCursorPosition=position;
+            Arrays.fill(this.positions, position);
         }
 
         MessageOrderCursor(MessageOrderCursor other){
-            this.defaultCursorPosition=other.defaultCursorPosition;
-            this.lowPriorityCursorPosition=other.lowPriorityCursorPosition;
-            this.highPriorityCursorPosition=other.highPriorityCursorPosition;
+            sync(other);
         }
 
         MessageOrderCursor copy() {
@@ -2406,103 +3339,75 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         }
 
         void reset() {
-            this.defaultCursorPosition=0;
-            this.highPriorityCursorPosition=0;
-            this.lowPriorityCursorPosition=0;
+            Arrays.fill(this.positions, 0);
         }
 
         void increment() {
-            if (defaultCursorPosition!=0) {
-                defaultCursorPosition++;
-            }
-            if (highPriorityCursorPosition!=0) {
-                highPriorityCursorPosition++;
-            }
-            if (lowPriorityCursorPosition!=0) {
-                lowPriorityCursorPosition++;
+            for (int i = 0; i < positions.length; i++) {
+                if (positions[i] != 0) {
+                    positions[i]++;
+                }
             }
         }
 
         public String toString() {
-           return "MessageOrderCursor:[def:" + defaultCursorPosition
-                   + ", low:" + lowPriorityCursorPosition
-                   + ", high:" +  highPriorityCursorPosition + "]";
+           return "MessageOrderCursor:" + Arrays.toString(positions);
         }
 
         public void sync(MessageOrderCursor other) {
-            this.defaultCursorPosition=other.defaultCursorPosition;
-            this.lowPriorityCursorPosition=other.lowPriorityCursorPosition;
-            this.highPriorityCursorPosition=other.highPriorityCursorPosition;
+            System.arraycopy(other.positions, 0, this.positions, 0, this.positions.length);
         }
     }
 
+    /**
+     * Orders the messages of a destination by JMS priority and then by
+     * sequence, with one index for each of the ten priority levels. Stores
+     * written before version 6 kept priorities 0-3 in the LO index and 5-9 in
+     * the HI index, messages from those stay in the level of their old index.
+     */
     class MessageOrderIndex {
         static final byte HI = 9;
         static final byte LO = 0;
         static final byte DEF = 4;
+        static final int LEVELS = HI + 1;
 
         long nextMessageId;
-        BTreeIndex<Long, MessageKeys> defaultPriorityIndex;
-        BTreeIndex<Long, MessageKeys> lowPriorityIndex;
-        BTreeIndex<Long, MessageKeys> highPriorityIndex;
+        @SuppressWarnings("unchecked")
+        final BTreeIndex<Long, MessageKeys>[] priorityIndexes = new BTreeIndex[LEVELS];
         MessageOrderCursor cursor = new MessageOrderCursor();
-        Long lastDefaultKey;
-        Long lastHighKey;
-        Long lastLowKey;
+        final Long[] lastKeys = new Long[LEVELS];
         byte lastGetPriority;
 
         MessageKeys remove(Transaction tx, Long key) throws IOException {
-            MessageKeys result = defaultPriorityIndex.remove(tx, key);
-            if (result == null && highPriorityIndex!=null) {
-                result = highPriorityIndex.remove(tx, key);
-                if (result ==null && lowPriorityIndex!=null) {
-                    result = lowPriorityIndex.remove(tx, key);
+            MessageKeys result = priorityIndexes[DEF].remove(tx, key);
+            for (int i = HI; result == null && i >= LO; i--) {
+                if (i != DEF) {
+                    result = priorityIndexes[i].remove(tx, key);
                 }
             }
             return result;
         }
 
         void load(Transaction tx) throws IOException {
-            defaultPriorityIndex.setKeyMarshaller(LongMarshaller.INSTANCE);
-            defaultPriorityIndex.setValueMarshaller(MessageKeysMarshaller.INSTANCE);
-            defaultPriorityIndex.load(tx);
-            lowPriorityIndex.setKeyMarshaller(LongMarshaller.INSTANCE);
-            lowPriorityIndex.setValueMarshaller(MessageKeysMarshaller.INSTANCE);
-            lowPriorityIndex.load(tx);
-            highPriorityIndex.setKeyMarshaller(LongMarshaller.INSTANCE);
-            highPriorityIndex.setValueMarshaller(MessageKeysMarshaller.INSTANCE);
-            highPriorityIndex.load(tx);
+            for (BTreeIndex<Long, MessageKeys> index : priorityIndexes) {
+                index.setKeyMarshaller(LongMarshaller.INSTANCE);
+                index.setValueMarshaller(MessageKeysMarshaller.INSTANCE);
+                index.load(tx);
+            }
         }
 
         void allocate(Transaction tx) throws IOException {
-            defaultPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
-            if (metadata.version >= 2) {
-                lowPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
-                highPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
+            for (int i = LO; i <= HI; i++) {
+                priorityIndexes[i] = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
             }
         }
 
         void configureLast(Transaction tx) throws IOException {
             // Figure out the next key using the last entry in the destination.
-            if (highPriorityIndex != null) {
-                Entry<Long, MessageKeys> lastEntry = highPriorityIndex.getLast(tx);
-                if (lastEntry != null) {
-                    nextMessageId = lastEntry.getKey() + 1;
-                } else {
-                    lastEntry = defaultPriorityIndex.getLast(tx);
-                    if (lastEntry != null) {
-                        nextMessageId = lastEntry.getKey() + 1;
-                    } else {
-                        lastEntry = lowPriorityIndex.getLast(tx);
-                        if (lastEntry != null) {
-                            nextMessageId = lastEntry.getKey() + 1;
-                        }
-                    }
-                }
-            } else {
-                Entry<Long, MessageKeys> lastEntry = defaultPriorityIndex.getLast(tx);
+            for (BTreeIndex<Long, MessageKeys> index : priorityIndexes) {
+                Entry<Long, MessageKeys> lastEntry = index.getLast(tx);
                 if (lastEntry != null) {
-                    nextMessageId = lastEntry.getKey() + 1;
+                    nextMessageId = Math.max(nextMessageId, lastEntry.getKey() + 1);
                 }
             }
         }
@@ -2516,97 +3421,57 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         }
 
         void remove(Transaction tx) throws IOException {
-            defaultPriorityIndex.clear(tx);
-            defaultPriorityIndex.unload(tx);
-            tx.free(defaultPriorityIndex.getPageId());
-            if (lowPriorityIndex != null) {
-                lowPriorityIndex.clear(tx);
-                lowPriorityIndex.unload(tx);
-
-                tx.free(lowPriorityIndex.getPageId());
-            }
-            if (highPriorityIndex != null) {
-                highPriorityIndex.clear(tx);
-                highPriorityIndex.unload(tx);
-                tx.free(highPriorityIndex.getPageId());
+            for (BTreeIndex<Long, MessageKeys> index : priorityIndexes) {
+                index.clear(tx);
+                index.unload(tx);
+                tx.free(index.getPageId());
             }
         }
 
         void resetCursorPosition() {
             this.cursor.reset();
-            lastDefaultKey = null;
-            lastHighKey = null;
-            lastLowKey = null;
+            Arrays.fill(lastKeys, null);
         }
 
         void setBatch(Transaction tx, Long sequence) throws IOException {
             if (sequence != null) {
-                Long nextPosition = new Long(sequence.longValue() + 1);
-                if (defaultPriorityIndex.containsKey(tx, sequence)) {
-                    lastDefaultKey = sequence;
-                    cursor.defaultCursorPosition = nextPosition.longValue();
-                } else if (highPriorityIndex != null) {
-                    if (highPriorityIndex.containsKey(tx, sequence)) {
-                        lastHighKey = sequence;
-                        cursor.highPriorityCursorPosition = nextPosition.longValue();
-                    } else if (lowPriorityIndex.containsKey(tx, sequence)) {
-                        lastLowKey = sequence;
-                        cursor.lowPriorityCursorPosition = nextPosition.longValue();
-                    }
-                } else {
-                    LOG.warn("setBatch: sequence " + sequence + " not found in orderindex:" + this);
-                    lastDefaultKey = sequence;
-                    cursor.defaultCursorPosition = nextPosition.longValue();
+                int level = levelOf(tx, sequence);
+                if (level >= 0) {
+                    lastKeys[level] = sequence;
+                    cursor.positions[level] = sequence.longValue() + 1;
                 }
             }
         }
 
         void setBatch(Transaction tx, LastAck last) throws IOException {
             setBatch(tx, last.lastAckedSequence);
-            if (cursor.defaultCursorPosition == 0
-                    && cursor.highPriorityCursorPosition == 0
-                    && cursor.lowPriorityCursorPosition == 0) {
-                long next = last.lastAckedSequence + 1;
-                switch (last.priority) {
-                    case DEF:
-                        cursor.defaultCursorPosition = next;
-                        cursor.highPriorityCursorPosition = next;
-                        break;
-                    case HI:
-                        cursor.highPriorityCursorPosition = next;
-                        break;
-                    case LO:
-                        cursor.lowPriorityCursorPosition = next;
-                        cursor.defaultCursorPosition = next;
-                        cursor.highPriorityCursorPosition = next;
-                        break;
+            for (long position : cursor.positions) {
+                if (position != 0) {
+                    return;
                 }
             }
+            // the last acked message is gone, everything after it in the
+            // levels at or above its priority has been seen already
+            long next = last.lastAckedSequence + 1;
+            for (int i = Math.max(LO, last.priority); i <= HI; i++) {
+                cursor.positions[i] = next;
+            }
         }
 
         void stoppedIterating() {
-            if (lastDefaultKey!=null) {
-                cursor.defaultCursorPosition=lastDefaultKey.longValue()+1;
-            }
-            if (lastHighKey!=null) {
-                cursor.highPriorityCursorPosition=lastHighKey.longValue()+1;
-            }
-            if (lastLowKey!=null) {
-                cursor.lowPriorityCursorPosition=lastLowKey.longValue()+1;
+            for (int i = LO; i <= HI; i++) {
+                if (lastKeys[i] != null) {
+                    cursor.positions[i] = lastKeys[i].longValue() + 1;
+                    lastKeys[i] = null;
+                }
             }
-            lastDefaultKey = null;
-            lastHighKey = null;
-            lastLowKey = null;
         }
 
         void getDeleteList(Transaction tx, ArrayList<Entry<Long, MessageKeys>> deletes, Long sequenceId)
                 throws IOException {
-            if (defaultPriorityIndex.containsKey(tx, sequenceId)) {
-                getDeleteList(tx, deletes, defaultPriorityIndex, sequenceId);
-            } else if (highPriorityIndex != null && highPriorityIndex.containsKey(tx, sequenceId)) {
-                getDeleteList(tx, deletes, highPriorityIndex, sequenceId);
-            } else if (lowPriorityIndex != null && lowPriorityIndex.containsKey(tx, sequenceId)) {
-                getDeleteList(tx, deletes, lowPriorityIndex, sequenceId);
+            int level = levelOf(tx, sequenceId);
+            if (level >= 0) {
+                getDeleteList(tx, deletes, priorityIndexes[level], sequenceId);
             }
         }
 
@@ -2622,29 +3487,19 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         }
 
         MessageKeys get(Transaction tx, Long key) throws IOException {
-            MessageKeys result = defaultPriorityIndex.get(tx, key);
-            if (result == null) {
-                result = highPriorityIndex.get(tx, key);
-                if (result == null) {
-                    result = lowPriorityIndex.get(tx, key);
-                    lastGetPriority = LO;
-                } else {
-                    lastGetPriority = HI;
+            MessageKeys result = priorityIndexes[DEF].get(tx, key);
+            lastGetPriority = DEF;
+            for (int i = HI; result == null && i >= LO; i--) {
+                if (i != DEF) {
+                    result = priorityIndexes[i].get(tx, key);
+                    lastGetPriority = (byte) i;
                 }
-            } else {
-                lastGetPriority = DEF;
             }
             return result;
         }
 
         MessageKeys put(Transaction tx, int priority, Long key, MessageKeys value) throws IOException {
-            if (priority == javax.jms.Message.DEFAULT_PRIORITY) {
-                return defaultPriorityIndex.put(tx, key, value);
-            } else if (priority > javax.jms.Message.DEFAULT_PRIORITY) {
-                return highPriorityIndex.put(tx, key, value);
-            } else {
-                return lowPriorityIndex.put(tx, key, value);
-            }
+            return priorityIndexes[Math.max(LO, Math.min(HI, priority))].put(tx, key, value);
         }
 
         Iterator<Entry<Long, MessageKeys>> iterator(Transaction tx) throws IOException{
@@ -2659,89 +3514,56 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             return lastGetPriority;
         }
 
+        private int levelOf(Transaction tx, Long sequence) throws IOException {
+            if (priorityIndexes[DEF].containsKey(tx, sequence)) {
+                return DEF;
+            }
+            for (int i = HI; i >= LO; i--) {
+                if (i != DEF && priorityIndexes[i].containsKey(tx, sequence)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Walks the priority levels from the highest down, only positioning
+         * on a level once all the levels above it are used up, so that taking
+         * the next few messages does not touch the lower priority ranges.
+         */
         class MessageOrderIterator implements Iterator<Entry<Long, MessageKeys>>{
-            Iterator<Entry<Long, MessageKeys>>currentIterator;
-            final Iterator<Entry<Long, MessageKeys>>highIterator;
-            final Iterator<Entry<Long, MessageKeys>>defaultIterator;
-            final Iterator<Entry<Long, MessageKeys>>lowIterator;
+            final Transaction tx;
+            final MessageOrderCursor m;
+            Iterator<Entry<Long, MessageKeys>> currentIterator;
+            int currentLevel = LEVELS;
 
             MessageOrderIterator(Transaction tx, MessageOrderCursor m) throws IOException {
-                this.defaultIterator = defaultPriorityIndex.iterator(tx, m.defaultCursorPosition);
-                if (highPriorityIndex != null) {
-                    this.highIterator = highPriorityIndex.iterator(tx, m.highPriorityCursorPosition);
-                } else {
-                    this.highIterator = null;
-                }
-                if (lowPriorityIndex != null) {
-                    this.lowIterator = lowPriorityIndex.iterator(tx, m.lowPriorityCursorPosition);
-                } else {
-                    this.lowIterator = null;
-                }
+                this.tx = tx;
+                this.m = m;
             }
 
             public boolean hasNext() {
-                if (currentIterator == null) {
-                    if (highIterator != null) {
-                        if (highIterator.hasNext()) {
-                            currentIterator = highIterator;
-                            return currentIterator.hasNext();
-                        }
-                        if (defaultIterator.hasNext()) {
-                            currentIterator = defaultIterator;
-                            return currentIterator.hasNext();
-                        }
-                        if (lowIterator.hasNext()) {
-                            currentIterator = lowIterator;
-                            return currentIterator.hasNext();
-                        }
+                while (currentIterator == null || !currentIterator.hasNext()) {
+                    if (currentLevel == LO) {
                         return false;
-                    } else {
-                        currentIterator = defaultIterator;
-                        return currentIterator.hasNext();
                     }
-                }
-                if (highIterator != null) {
-                    if (currentIterator.hasNext()) {
-                        return true;
-                    }
-                    if (currentIterator == highIterator) {
-                        if (defaultIterator.hasNext()) {
-                            currentIterator = defaultIterator;
-                            return currentIterator.hasNext();
-                        }
-                        if (lowIterator.hasNext()) {
-                            currentIterator = lowIterator;
-                            return currentIterator.hasNext();
-                        }
-                        return false;
-                    }
-
-                    if (currentIterator == defaultIterator) {
-                        if (lowIterator.hasNext()) {
-                            currentIterator = lowIterator;
-                            return currentIterator.hasNext();
-                        }
-                        return false;
+                    currentLevel--;
+                    try {
+                        currentIterator = priorityIndexes[currentLevel].iterator(tx, m.positions[currentLevel]);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
                     }
                 }
-                return currentIterator.hasNext();
+                return true;
             }
 
             public Entry<Long, MessageKeys> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
                 Entry<Long, MessageKeys> result = currentIterator.next();
                 if (result != null) {
-                    Long key = result.getKey();
-                    if (highIterator != null) {
-                        if (currentIterator == defaultIterator) {
-                            lastDefaultKey = key;
-                        } else if (currentIterator == highIterator) {
-                            lastHighKey = key;
-                        } else {
-                            lastLowKey = key;
-                        }
-                    } else {
-                        lastDefaultKey = key;
-                    }
+                    lastKeys[currentLevel] = result.getKey();
                 }
                 return result;
             }
@@ -2753,6 +3575,356 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         }
     }
 
+    /**
+     * The reference counts of the messages of a topic, how many durable
+     * subscriptions each is still pending for. The counts are kept as ints in
+     * chunks of consecutive sequences in an index of the page file, updated
+     * along with the ack positions, so they take no heap per message and need
+     * not be rebuilt from the ack positions of every subscription on load. A
+     * count is stored plus one so that an entry with no references can be
+     * told from no entry.
+     */
+    class MessageReferences {
+        static final int CHUNK_BITS = 7;
+        static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+        final BTreeIndex<Long, int[]> index;
+
+        MessageReferences(BTreeIndex<Long, int[]> index) {
+            this.index = index;
+        }
+
+        void load(Transaction tx) throws IOException {
+            index.setKeyMarshaller(LongMarshaller.INSTANCE);
+            index.setValueMarshaller(ChunkMarshaller.INSTANCE);
+            index.load(tx);
+        }
+
+        Long get(Transaction tx, long sequence) throws IOException {
+            int[] chunk = index.get(tx, sequence >> CHUNK_BITS);
+            if (chunk == null) {
+                return null;
+            }
+            int stored = chunk[(int) (sequence & (CHUNK_SIZE - 1))];
+            return stored == 0 ? null : Long.valueOf(stored - 1);
+        }
+
+        void put(Transaction tx, long sequence, long count) throws IOException {
+            set(tx, sequence, (int) count + 1);
+        }
+
+        void remove(Transaction tx, long sequence) throws IOException {
+            set(tx, sequence, 0);
+        }
+
+        /**
+         * @return the highest sequence with an entry, null if there is none
+         */
+        Long lastKey(Transaction tx) throws IOException {
+            Entry<Long, int[]> last = index.getLast(tx);
+            if (last != null) {
+                int[] chunk = last.getValue();
+                for (int i = CHUNK_SIZE - 1; i >= 0; i--) {
+                    if (chunk[i] != 0) {
+                        return (last.getKey() << CHUNK_BITS) + i;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Adds delta to the count of each of the sequences, which come in
+         * order, writing each chunk once. Sequences without an entry are
+         * skipped. Entries whose count drops to zero or below are removed and
+         * their sequences added to unreferenced, if given.
+         */
+        void addToAll(Transaction tx, Iterable<Long> sequences, long delta, List<Long> unreferenced) throws IOException {
+            Long key = null;
+            int[] chunk = null;
+            boolean changed = false;
+            for (Long sequence : sequences) {
+                if (key == null || key.longValue() != sequence >> CHUNK_BITS) {
+                    if (changed) {
+                        store(tx, key, chunk);
+                    }
+                    key = sequence >> CHUNK_BITS;
+                    chunk = index.get(tx, key);
+                    if (chunk != null) {
+                        // the index may hand out the instance it caches
+                        chunk = chunk.clone();
+                    }
+                    changed = false;
+                }
+                int slot = (int) (sequence & (CHUNK_SIZE - 1));
+                if (chunk == null || chunk[slot] == 0) {
+                    continue;
+                }
+                long count = chunk[slot] - 1 + delta;
+                if (count > 0) {
+                    chunk[slot] = (int) count + 1;
+                } else {
+                    chunk[slot] = 0;
+                    if (unreferenced != null) {
+                        unreferenced.add(sequence);
+                    }
+                }
+                changed = true;
+            }
+            if (changed) {
+                store(tx, key, chunk);
+            }
+        }
+
+        private void set(Transaction tx, long sequence, int stored) throws IOException {
+            Long key = sequence >> CHUNK_BITS;
+            int slot = (int) (sequence & (CHUNK_SIZE - 1));
+            int[] chunk = index.get(tx, key);
+            if (chunk == null) {
+                if (stored == 0) {
+                    return;
+                }
+                chunk = new int[CHUNK_SIZE];
+            } else if (chunk[slot] == stored) {
+                return;
+            } else {
+                // the index may hand out the instance it caches
+                chunk = chunk.clone();
+            }
+            chunk[slot] = stored;
+            if (stored == 0 && isEmpty(chunk)) {
+                index.remove(tx, key);
+            } else {
+                index.put(tx, key, chunk);
+            }
+        }
+
+        private void store(Transaction tx, Long key, int[] chunk) throws IOException {
+            if (isEmpty(chunk)) {
+                index.remove(tx, key);
+            } else {
+                index.put(tx, key, chunk);
+            }
+        }
+
+        private boolean isEmpty(int[] chunk) {
+            for (int stored : chunk) {
+                if (stored != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The messages each durable subscription of a topic has still to ack,
+     * kept as one bitmap block to an entry under the subscription and the
+     * block, so an ack only rewrites the block it falls in.
+     */
+    class AckPositions {
+        final BTreeIndex<SubscriptionBlock, SequenceBitmap> index;
+
+        AckPositions(BTreeIndex<SubscriptionBlock, SequenceBitmap> index) {
+            this.index = index;
+        }
+
+        void load(Transaction tx) throws IOException {
+            index.setKeyMarshaller(SubscriptionBlockMarshaller.INSTANCE);
+            index.setValueMarshaller(SequenceBitmap.Marshaller.INSTANCE);
+            index.load(tx);
+        }
+
+        void add(Transaction tx, String subscriptionKey, long sequence) throws IOException {
+            SubscriptionBlock key = new SubscriptionBlock(subscriptionKey, SequenceBitmap.blockOf(sequence));
+            SequenceBitmap sequences = index.get(tx, key);
+            if (sequences == null) {
+                sequences = new SequenceBitmap();
+            }
+            if (sequences.add(sequence)) {
+                index.put(tx, key, sequences);
+            }
+        }
+
+        /**
+         * Adds the sequences, which come in order, writing each block once.
+         */
+        void addAll(Transaction tx, String subscriptionKey, Iterable<Long> sequences) throws IOException {
+            SubscriptionBlock key = null;
+            SequenceBitmap block = null;
+            boolean changed = false;
+            for (Long sequence : sequences) {
+                long high = SequenceBitmap.blockOf(sequence);
+                if (key == null || key.block != high) {
+                    if (changed) {
+                        index.put(tx, key, block);
+                    }
+                    key = new SubscriptionBlock(subscriptionKey, high);
+                    block = index.get(tx, key);
+                    if (block == null) {
+                        block = new SequenceBitmap();
+                    }
+                    changed = false;
+                }
+                changed |= block.add(sequence);
+            }
+            if (changed) {
+                index.put(tx, key, block);
+            }
+        }
+
+        /**
+         * @return false if the subscription did not have the sequence
+         */
+        boolean remove(Transaction tx, String subscriptionKey, long sequence) throws IOException {
+            SubscriptionBlock key = new SubscriptionBlock(subscriptionKey, SequenceBitmap.blockOf(sequence));
+            SequenceBitmap sequences = index.get(tx, key);
+            if (sequences == null || !sequences.remove(sequence)) {
+                return false;
+            }
+            if (sequences.isEmpty()) {
+                index.remove(tx, key);
+            } else {
+                index.put(tx, key, sequences);
+            }
+            return true;
+        }
+
+        /**
+         * Takes out all the sequences of the subscription.
+         *
+         * @return the sequences the subscription had
+         */
+        SequenceBitmap removeAll(Transaction tx, String subscriptionKey) throws IOException {
+            SequenceBitmap sequences = new SequenceBitmap();
+            List<SubscriptionBlock> keys = new ArrayList<SubscriptionBlock>();
+            for (Iterator<Entry<SubscriptionBlock, SequenceBitmap>> iterator = iterator(tx, subscriptionKey); iterator.hasNext(); ) {
+                Entry<SubscriptionBlock, SequenceBitmap> entry = iterator.next();
+                if (!entry.getKey().subscriptionKey.equals(subscriptionKey)) {
+                    break;
+                }
+                keys.add(entry.getKey());
+                sequences.addAll(entry.getValue());
+            }
+            for (SubscriptionBlock key : keys) {
+                index.remove(tx, key);
+            }
+            return sequences;
+        }
+
+        /**
+         * @return the sequences any subscription has
+         */
+        SequenceBitmap getAll(Transaction tx) throws IOException {
+            SequenceBitmap sequences = new SequenceBitmap();
+            for (Iterator<Entry<SubscriptionBlock, SequenceBitmap>> iterator = index.iterator(tx); iterator.hasNext(); ) {
+                sequences.addAll(iterator.next().getValue());
+            }
+            return sequences;
+        }
+
+        boolean isEmpty(Transaction tx, String subscriptionKey) throws IOException {
+            Iterator<Entry<SubscriptionBlock, SequenceBitmap>> iterator = iterator(tx, subscriptionKey);
+            return !iterator.hasNext() || !iterator.next().getKey().subscriptionKey.equals(subscriptionKey);
+        }
+
+        long cardinality(Transaction tx, String subscriptionKey) throws IOException {
+            long cardinality = 0;
+            for (Iterator<Entry<SubscriptionBlock, SequenceBitmap>> iterator = iterator(tx, subscriptionKey); iterator.hasNext(); ) {
+                Entry<SubscriptionBlock, SequenceBitmap> entry = iterator.next();
+                if (!entry.getKey().subscriptionKey.equals(subscriptionKey)) {
+                    break;
+                }
+                cardinality += entry.getValue().cardinality();
+            }
+            return cardinality;
+        }
+
+        private Iterator<Entry<SubscriptionBlock, SequenceBitmap>> iterator(Transaction tx, String subscriptionKey) throws IOException {
+            return index.iterator(tx, new SubscriptionBlock(subscriptionKey, 0));
+        }
+    }
+
+    /**
+     * The key of a block of the pending acks of a subscription. The blocks of
+     * a subscription sort together, in block order.
+     */
+    static class SubscriptionBlock implements Comparable<SubscriptionBlock> {
+        final String subscriptionKey;
+        final long block;
+
+        SubscriptionBlock(String subscriptionKey, long block) {
+            this.subscriptionKey = subscriptionKey;
+            this.block = block;
+        }
+
+        public int compareTo(SubscriptionBlock other) {
+            int rc = subscriptionKey.compareTo(other.subscriptionKey);
+            if (rc == 0) {
+                rc = block < other.block ? -1 : block == other.block ? 0 : 1;
+            }
+            return rc;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SubscriptionBlock)) {
+                return false;
+            }
+            SubscriptionBlock other = (SubscriptionBlock) o;
+            return block == other.block && subscriptionKey.equals(other.subscriptionKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return subscriptionKey.hashCode() ^ (int) (block ^ (block >>> 32));
+        }
+
+        public String toString() {
+            return "[" + subscriptionKey + ":" + block + "]";
+        }
+    }
+
+    private static class SubscriptionBlockMarshaller extends VariableMarshaller<SubscriptionBlock> {
+        final static SubscriptionBlockMarshaller INSTANCE = new SubscriptionBlockMarshaller();
+
+        public void writePayload(SubscriptionBlock object, DataOutput dataOut) throws IOException {
+            dataOut.writeUTF(object.subscriptionKey);
+            dataOut.writeLong(object.block);
+        }
+
+        public SubscriptionBlock readPayload(DataInput dataIn) throws IOException {
+            return new SubscriptionBlock(dataIn.readUTF(), dataIn.readLong());
+        }
+    }
+
+    /**
+     * Writes a chunk of message references up to its last entry.
+     */
+    private static class ChunkMarshaller extends VariableMarshaller<int[]> {
+        final static ChunkMarshaller INSTANCE = new ChunkMarshaller();
+
+        public void writePayload(int[] chunk, DataOutput dataOut) throws IOException {
+            int length = chunk.length;
+            while (length > 0 && chunk[length - 1] == 0) {
+                length--;
+            }
+            dataOut.writeByte(length);
+            for (int i = 0; i < length; i++) {
+                dataOut.writeInt(chunk[i]);
+            }
+        }
+
+        public int[] readPayload(DataInput dataIn) throws IOException {
+            int[] chunk = new int[MessageReferences.CHUNK_SIZE];
+            int length = dataIn.readUnsignedByte();
+            for (int i = 0; i < length; i++) {
+                chunk[i] = dataIn.readInt();
+            }
+            return chunk;
+        }
+    }
+
     private static class HashSetStringMarshaller extends VariableMarshaller<HashSet<String>> {
         final static HashSetStringMarshaller INSTANCE = new HashSetStringMarshaller();
 
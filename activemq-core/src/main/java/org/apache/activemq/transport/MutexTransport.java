@@ -26,6 +26,7 @@ public class MutexTransport extends TransportFilter {
 
     private final ReentrantLock wreiteLock = new ReentrantLock();
     private boolean syncOnCommand;
+    private boolean syncOnOneway = true;
 
     public MutexTransport(Transport next) {
         super(next);
@@ -63,6 +64,10 @@ public class MutexTransport extends TransportFilter {
 
     @Override
     public void oneway(Object command) throws IOException {
+        if (!syncOnOneway && !syncOnCommand) {
+            next.oneway(command);
+            return;
+        }
         wreiteLock.lock();
         try {
             next.oneway(command);
@@ -103,4 +108,17 @@ public class MutexTransport extends TransportFilter {
     public void setSyncOnCommand(boolean syncOnCommand) {
         this.syncOnCommand = syncOnCommand;
     }
+
+    public boolean isSyncOnOneway() {
+        return syncOnOneway;
+    }
+
+    /**
+     * Oneway sends can skip the lock when the next transport in the stack is
+     * safe to send on from many threads at once, unless commands are also
+     * synchronized on.
+     */
+    public void setSyncOnOneway(boolean syncOnOneway) {
+        this.syncOnOneway = syncOnOneway;
+    }
 }
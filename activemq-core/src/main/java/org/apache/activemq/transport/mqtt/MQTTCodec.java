@@ -16,11 +16,11 @@
  */
 package org.apache.activemq.transport.mqtt;
 
+import java.io.DataInput;
 import java.io.IOException;
 
 import javax.jms.JMSException;
 import org.apache.activemq.transport.tcp.TcpTransport;
-import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayOutputStream;
 import org.fusesource.mqtt.codec.*;
 
@@ -40,7 +40,7 @@ public class MQTTCodec {
         this.transport = transport;
     }
 
-    public void parse(DataByteArrayInputStream input, int readSize) throws Exception {
+    public void parse(DataInput input, int readSize) throws Exception {
         int i = 0;
         byte b;
         while (i++ < readSize) {
@@ -90,7 +90,7 @@ public class MQTTCodec {
      *
      * @return number of bytes read
      */
-    private int processHeader(byte header, DataByteArrayInputStream input) {
+    private int processHeader(byte header, DataInput input) throws IOException {
         this.header = header;
         byte digit;
         int multiplier = 1;
@@ -16,6 +16,7 @@
  */
 package org.apache.activemq.transport.mqtt;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.URI;
@@ -23,9 +24,9 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
 import javax.net.SocketFactory;
+import org.apache.activemq.transport.nio.NIOInputStream;
 import org.apache.activemq.transport.nio.NIOSSLTransport;
 import org.apache.activemq.wireformat.WireFormat;
-import org.fusesource.hawtbuf.DataByteArrayInputStream;
 
 public class MQTTNIOSSLTransport extends NIOSSLTransport {
 
@@ -50,10 +51,7 @@ public class MQTTNIOSSLTransport extends NIOSSLTransport {
 
     @Override
     protected void processCommand(ByteBuffer plain) throws Exception {
-        byte[] fill = new byte[plain.remaining()];
-        plain.get(fill);
-        DataByteArrayInputStream dis = new DataByteArrayInputStream(fill);
-        codec.parse(dis, fill.length);
+        codec.parse(new DataInputStream(new NIOInputStream(plain)), plain.remaining());
     }
 
 }
\ No newline at end of file
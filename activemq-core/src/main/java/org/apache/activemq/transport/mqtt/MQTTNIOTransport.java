@@ -16,6 +16,7 @@
  */
 package org.apache.activemq.transport.mqtt;
 
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
@@ -27,6 +28,8 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
 import javax.net.SocketFactory;
+import org.apache.activemq.transport.nio.NIOBufferPool;
+import org.apache.activemq.transport.nio.NIOInputStream;
 import org.apache.activemq.transport.nio.NIOOutputStream;
 import org.apache.activemq.transport.nio.SelectorManager;
 import org.apache.activemq.transport.nio.SelectorSelection;
@@ -34,7 +37,6 @@ import org.apache.activemq.transport.tcp.TcpTransport;
 import org.apache.activemq.util.IOExceptionSupport;
 import org.apache.activemq.util.ServiceStopper;
 import org.apache.activemq.wireformat.WireFormat;
-import org.fusesource.hawtbuf.DataByteArrayInputStream;
 
 /**
  * An implementation of the {@link org.apache.activemq.transport.Transport} interface for using MQTT over NIO
@@ -45,6 +47,7 @@ public class MQTTNIOTransport extends TcpTransport {
     private SelectorSelection selection;
 
     private ByteBuffer inputBuffer;
+    private NIOBufferPool bufferPool;
     MQTTCodec codec;
 
     public MQTTNIOTransport(WireFormat wireFormat, SocketFactory socketFactory, URI remoteLocation, URI localLocation) throws UnknownHostException, IOException {
@@ -75,19 +78,28 @@ public class MQTTNIOTransport extends TcpTransport {
             }
         });
 
-        inputBuffer = ByteBuffer.allocate(8 * 1024);
-        NIOOutputStream outPutStream = new NIOOutputStream(channel, 8 * 1024);
+        bufferPool = SelectorManager.getInstance().getBufferPool();
+        NIOOutputStream outPutStream;
+        if (bufferPool != null) {
+            outPutStream = new NIOOutputStream(channel, bufferPool);
+        } else {
+            inputBuffer = ByteBuffer.allocate(8 * 1024);
+            outPutStream = new NIOOutputStream(channel, 8 * 1024);
+        }
         this.dataOut = new DataOutputStream(outPutStream);
         this.buffOut = outPutStream;
         codec = new MQTTCodec(this);
     }
 
     private void serviceRead() {
+        // the codec keeps partial frames itself so a pooled buffer is only
+        // needed for the duration of the read
+        ByteBuffer buffer = bufferPool != null ? bufferPool.acquire() : inputBuffer;
         try {
 
             while (isStarted()) {
                 // read channel
-                int readSize = channel.read(inputBuffer);
+                int readSize = channel.read(buffer);
                 // channel is closed, cleanup
                 if (readSize == -1) {
                     onException(new EOFException());
@@ -99,18 +111,21 @@ public class MQTTNIOTransport extends TcpTransport {
                     break;
                 }
 
-                inputBuffer.flip();
-                DataByteArrayInputStream dis = new DataByteArrayInputStream(inputBuffer.array());
-                codec.parse(dis, readSize);
+                buffer.flip();
+                codec.parse(new DataInputStream(new NIOInputStream(buffer)), readSize);
 
                 // clear the buffer
-                inputBuffer.clear();
+                buffer.clear();
 
             }
         } catch (IOException e) {
             onException(e);
         } catch (Throwable e) {
             onException(IOExceptionSupport.create(e));
+        } finally {
+            if (bufferPool != null) {
+                bufferPool.release(buffer);
+            }
         }
     }
 
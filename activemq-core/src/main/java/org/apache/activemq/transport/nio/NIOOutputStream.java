@@ -35,10 +35,10 @@ public class NIOOutputStream extends OutputStream implements TimeStampStream {
     private static final int BUFFER_SIZE = 8192;
 
     private final WritableByteChannel out;
-    private final byte[] buffer;
-    private final ByteBuffer byteBuffer;
+    private final NIOBufferPool pool;
+    private final int bufferSize;
+    private ByteBuffer buffer;
 
-    private int count;
     private boolean closed;
     private volatile long writeTimestamp = -1;//concurrent reads of this value
 
@@ -66,8 +66,23 @@ public class NIOOutputStream extends OutputStream implements TimeStampStream {
         if (size <= 0) {
             throw new IllegalArgumentException("Buffer size <= 0");
         }
-        buffer = new byte[size];
-        byteBuffer = ByteBuffer.wrap(buffer);
+        this.pool = null;
+        this.bufferSize = size;
+        this.buffer = ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Creates a new buffered output stream that borrows its buffer from the
+     * given pool on the first write and hands it back on every flush, so an
+     * idle stream holds no buffer.
+     *
+     * @param out the underlying output stream.
+     * @param pool the pool of direct buffers to buffer writes in.
+     */
+    public NIOOutputStream(WritableByteChannel out, NIOBufferPool pool) {
+        this.out = out;
+        this.pool = pool;
+        this.bufferSize = pool.getBufferSize();
     }
 
     /**
@@ -79,9 +94,9 @@ public class NIOOutputStream extends OutputStream implements TimeStampStream {
     public void write(int b) throws IOException {
         checkClosed();
         if (availableBufferToWrite() < 1) {
-            flush();
+            writeBuffer();
         }
-        buffer[count++] = (byte)b;
+        buffer().put((byte)b);
     }
 
     /**
@@ -95,11 +110,10 @@ public class NIOOutputStream extends OutputStream implements TimeStampStream {
     public void write(byte b[], int off, int len) throws IOException {
         checkClosed();
         if (availableBufferToWrite() < len) {
-            flush();
+            writeBuffer();
         }
-        if (buffer.length >= len) {
-            System.arraycopy(b, off, buffer, count, len);
-            count += len;
+        if (bufferSize >= len) {
+            buffer().put(b, off, len);
         } else {
             write(ByteBuffer.wrap(b, off, len));
         }
@@ -113,11 +127,13 @@ public class NIOOutputStream extends OutputStream implements TimeStampStream {
      * @throws IOException
      */
     public void flush() throws IOException {
-        if (count > 0 && out != null) {
-            byteBuffer.position(0);
-            byteBuffer.limit(count);
-            write(byteBuffer);
-            count = 0;
+        try {
+            writeBuffer();
+        } finally {
+            if (pool != null && buffer != null) {
+                pool.release(buffer);
+                buffer = null;
+            }
         }
     }
 
@@ -149,13 +165,42 @@ public class NIOOutputStream extends OutputStream implements TimeStampStream {
      * @return the amount free space in the buffer
      */
     private int availableBufferToWrite() {
-        return buffer.length - count;
+        return buffer == null ? bufferSize : buffer.remaining();
+    }
+
+    /**
+     * @return the buffer to write to, borrowing one from the pool if needed
+     */
+    private ByteBuffer buffer() {
+        if (buffer == null) {
+            buffer = pool.acquire();
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes out what has been buffered so far, keeping the buffer.
+     */
+    private void writeBuffer() throws IOException {
+        if (buffer != null && buffer.position() > 0 && out != null) {
+            buffer.flip();
+            try {
+                write(buffer);
+            } finally {
+                buffer.clear();
+            }
+        }
     }
 
     protected void write(ByteBuffer data) throws IOException {
         ByteBuffer plain;
         if (engine != null) {
-            plain = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            int packetBufferSize = engine.getSession().getPacketBufferSize();
+            if (pool != null && pool.getBufferSize() >= packetBufferSize) {
+                plain = pool.acquire();
+            } else {
+                plain = ByteBuffer.allocate(packetBufferSize);
+            }
             plain.clear();
             engine.wrap(data, plain);
             plain.flip();
@@ -195,6 +240,9 @@ public class NIOOutputStream extends OutputStream implements TimeStampStream {
             }
         } finally {
             writeTimestamp = -1;
+            if (plain != data && pool != null) {
+                pool.release(plain);
+            }
         }
     }
 
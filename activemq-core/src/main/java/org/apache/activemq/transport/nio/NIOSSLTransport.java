@@ -36,7 +36,6 @@ import javax.net.ssl.SSLSession;
 
 import org.apache.activemq.command.Command;
 import org.apache.activemq.command.ConnectionInfo;
-import org.apache.activemq.openwire.OpenWireFormat;
 import org.apache.activemq.thread.TaskRunnerFactory;
 import org.apache.activemq.util.IOExceptionSupport;
 import org.apache.activemq.util.ServiceStopper;
@@ -95,7 +94,13 @@ public class NIOSSLTransport extends NIOTransport  {
             inputBuffer.clear();
             currentBuffer = ByteBuffer.allocate(sslSession.getApplicationBufferSize());
 
-            NIOOutputStream outputStream = new NIOOutputStream(channel);
+            bufferPool = SelectorManager.getInstance().getBufferPool();
+            NIOOutputStream outputStream;
+            if (bufferPool != null) {
+                outputStream = new NIOOutputStream(channel, bufferPool);
+            } else {
+                outputStream = new NIOOutputStream(channel);
+            }
             outputStream.setEngine(sslEngine);
             this.dataOut = new DataOutputStream(outputStream);
             this.buffOut = outputStream;
@@ -135,12 +140,19 @@ public class NIOSSLTransport extends NIOTransport  {
     }
 
     protected void serviceRead() {
+        ByteBuffer plain = null;
         try {
             if (handshakeInProgress) {
                 doHandshake();
             }
 
-            ByteBuffer plain = ByteBuffer.allocate(sslSession.getApplicationBufferSize());
+            int applicationBufferSize = sslSession.getApplicationBufferSize();
+            if (bufferPool != null && bufferPool.getBufferSize() >= applicationBufferSize) {
+                plain = bufferPool.acquire();
+                plain.limit(applicationBufferSize);
+            } else {
+                plain = ByteBuffer.allocate(applicationBufferSize);
+            }
             plain.position(plain.limit());
 
             while(true) {
@@ -173,17 +185,16 @@ public class NIOSSLTransport extends NIOTransport  {
             onException(e);
         } catch (Throwable e) {
             onException(IOExceptionSupport.create(e));
+        } finally {
+            if (bufferPool != null) {
+                bufferPool.release(plain);
+            }
         }
     }
 
     protected void processCommand(ByteBuffer plain) throws Exception {
         nextFrameSize = plain.getInt();
-        if (wireFormat instanceof OpenWireFormat) {
-            long maxFrameSize = ((OpenWireFormat) wireFormat).getMaxFrameSize();
-            if (nextFrameSize > maxFrameSize) {
-                throw new IOException("Frame size of " + (nextFrameSize / (1024 * 1024)) + " MB larger than max allowed " + (maxFrameSize / (1024 * 1024)) + " MB");
-            }
-        }
+        checkFrameSize(nextFrameSize + 4);
         currentBuffer = ByteBuffer.allocate(nextFrameSize + 4);
         currentBuffer.putInt(nextFrameSize);
         if (currentBuffer.hasRemaining()) {
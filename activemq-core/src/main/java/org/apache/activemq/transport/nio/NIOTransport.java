@@ -50,6 +50,7 @@ public class NIOTransport extends TcpTransport {
     protected ByteBuffer inputBuffer;
     protected ByteBuffer currentBuffer;
     protected int nextFrameSize;
+    protected NIOBufferPool bufferPool;
 
     public NIOTransport(WireFormat wireFormat, SocketFactory socketFactory, URI remoteLocation, URI localLocation) throws UnknownHostException, IOException {
         super(wireFormat, socketFactory, remoteLocation, localLocation);
@@ -78,18 +79,30 @@ public class NIOTransport extends TcpTransport {
             }
         });
 
-        // Send the data via the channel
-        // inputBuffer = ByteBuffer.allocateDirect(8*1024);
-        inputBuffer = ByteBuffer.allocate(8 * 1024);
-        currentBuffer = inputBuffer;
-        nextFrameSize = -1;
-        currentBuffer.limit(4);
-        NIOOutputStream outPutStream = new NIOOutputStream(channel, 16 * 1024);
+        bufferPool = SelectorManager.getInstance().getBufferPool();
+        NIOOutputStream outPutStream;
+        if (bufferPool != null) {
+            // reads and writes borrow their buffers from the pool
+            nextFrameSize = -1;
+            outPutStream = new NIOOutputStream(channel, bufferPool);
+        } else {
+            // Send the data via the channel
+            // inputBuffer = ByteBuffer.allocateDirect(8*1024);
+            inputBuffer = ByteBuffer.allocate(8 * 1024);
+            currentBuffer = inputBuffer;
+            nextFrameSize = -1;
+            currentBuffer.limit(4);
+            outPutStream = new NIOOutputStream(channel, 16 * 1024);
+        }
         this.dataOut = new DataOutputStream(outPutStream);
         this.buffOut = outPutStream;
     }
 
     protected void serviceRead() {
+        if (bufferPool != null) {
+            servicePooledRead();
+            return;
+        }
         try {
             while (true) {
 
@@ -116,13 +129,7 @@ public class NIOTransport extends TcpTransport {
                     // for it.
                     inputBuffer.flip();
                     nextFrameSize = inputBuffer.getInt() + 4;
-
-                    if (wireFormat instanceof OpenWireFormat) {
-                        long maxFrameSize = ((OpenWireFormat)wireFormat).getMaxFrameSize();
-                        if (nextFrameSize > maxFrameSize) {
-                            throw new IOException("Frame size of " + (nextFrameSize / (1024 * 1024)) + " MB larger than max allowed " + (maxFrameSize / (1024 * 1024)) + " MB");
-                        }
-                    }
+                    checkFrameSize(nextFrameSize);
 
                     if (nextFrameSize > inputBuffer.capacity()) {
                         currentBuffer = ByteBuffer.allocate(nextFrameSize);
@@ -152,6 +159,107 @@ public class NIOTransport extends TcpTransport {
         }
     }
 
+    /**
+     * Reads into a buffer borrowed from the pool and decodes every complete
+     * frame straight out of it. Only the bytes of a trailing partial frame are
+     * copied aside, so a connection holds no buffer between reads. A frame
+     * that does not fit in a pooled buffer is read into one of its own.
+     */
+    protected void servicePooledRead() {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            if (currentBuffer != null && nextFrameSize == -1) {
+                currentBuffer.flip();
+                buffer.put(currentBuffer);
+                currentBuffer = null;
+            }
+
+            while (true) {
+                if (currentBuffer != null) {
+                    int readSize = channel.read(currentBuffer);
+                    if (readSize == -1) {
+                        onException(new EOFException());
+                        selection.close();
+                        return;
+                    }
+                    if (currentBuffer.hasRemaining()) {
+                        if (readSize == 0) {
+                            break;
+                        }
+                        continue;
+                    }
+                    currentBuffer.flip();
+                    consumeFrame(currentBuffer);
+                    currentBuffer = null;
+                    nextFrameSize = -1;
+                }
+
+                int readSize = channel.read(buffer);
+                if (readSize == -1) {
+                    onException(new EOFException());
+                    selection.close();
+                    return;
+                }
+
+                buffer.flip();
+                while (buffer.remaining() >= 4) {
+                    int frameSize = buffer.getInt(buffer.position()) + 4;
+                    checkFrameSize(frameSize);
+                    if (frameSize > buffer.capacity()) {
+                        nextFrameSize = frameSize;
+                        currentBuffer = ByteBuffer.allocate(frameSize);
+                        currentBuffer.put(buffer);
+                        break;
+                    }
+                    if (frameSize > buffer.remaining()) {
+                        break;
+                    }
+                    int limit = buffer.limit();
+                    int end = buffer.position() + frameSize;
+                    buffer.limit(end);
+                    consumeFrame(buffer);
+                    buffer.limit(limit);
+                    buffer.position(end);
+                }
+                buffer.compact();
+
+                if (readSize == 0 && currentBuffer == null) {
+                    break;
+                }
+            }
+
+            // keep the start of a partial frame for the next read
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                currentBuffer = ByteBuffer.allocate(buffer.remaining());
+                currentBuffer.put(buffer);
+            }
+        } catch (IOException e) {
+            onException(e);
+        } catch (Throwable e) {
+            onException(IOExceptionSupport.create(e));
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    protected void consumeFrame(ByteBuffer frame) throws IOException {
+        Object command = wireFormat.unmarshal(new DataInputStream(new NIOInputStream(frame)));
+        doConsume((Command)command);
+    }
+
+    protected void checkFrameSize(int frameSize) throws IOException {
+        if (frameSize < 4) {
+            throw new IOException("Invalid frame size of " + frameSize + " bytes");
+        }
+        if (wireFormat instanceof OpenWireFormat) {
+            long maxFrameSize = ((OpenWireFormat)wireFormat).getMaxFrameSize();
+            if (frameSize > maxFrameSize) {
+                throw new IOException("Frame size of " + (frameSize / (1024 * 1024)) + " MB larger than max allowed " + (maxFrameSize / (1024 * 1024)) + " MB");
+            }
+        }
+    }
+
     protected void doStart() throws Exception {
         connect();
         selection.setInterestOps(SelectionKey.OP_READ);
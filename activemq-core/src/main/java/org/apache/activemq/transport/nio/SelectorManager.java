@@ -35,15 +35,35 @@ import java.util.concurrent.TimeUnit;
  */
 public final class SelectorManager {
 
+    /**
+     * Switches the NIO transports to a fixed number of selector threads and
+     * to read and write buffers borrowed from a shared pool of direct buffers.
+     */
+    public static final String POOLED_PROPERTY = "org.apache.activemq.transport.nio.SelectorManager.pooled";
+    public static final String SELECTOR_THREADS_PROPERTY = "org.apache.activemq.transport.nio.SelectorManager.selectorThreads";
+    public static final String BUFFER_SIZE_PROPERTY = "org.apache.activemq.transport.nio.SelectorManager.bufferSize";
+    public static final String MAX_POOLED_BUFFERS_PROPERTY = "org.apache.activemq.transport.nio.SelectorManager.maxPooledBuffers";
+
     public static final SelectorManager SINGLETON = new SelectorManager();
 
+    private boolean pooled = Boolean.getBoolean(POOLED_PROPERTY);
+    private int selectorThreads = Integer.getInteger(SELECTOR_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+    private int bufferSize = Integer.getInteger(BUFFER_SIZE_PROPERTY, 64 * 1024);
+    private int maxPooledBuffers = Integer.getInteger(MAX_POOLED_BUFFERS_PROPERTY, 256);
+    private SelectorWorker[] fixedWorkers;
+    private NIOBufferPool bufferPool;
+
     private Executor selectorExecutor = createDefaultExecutor();
     private Executor channelExecutor = selectorExecutor;
     private LinkedList<SelectorWorker> freeWorkers = new LinkedList<SelectorWorker>();
     private int maxChannelsPerWorker = 1024;
 
     protected ExecutorService createDefaultExecutor() {
-        ThreadPoolExecutor rc = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        // in pooled mode keep enough threads around for the selectors and the
+        // channels they hand off so a steady load does not churn threads.
+        int coreThreads = pooled ? 2 * selectorThreads : 0;
+        long keepAlive = pooled ? 60 : 10;
+        ThreadPoolExecutor rc = new ThreadPoolExecutor(coreThreads, Integer.MAX_VALUE, keepAlive, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
 
             private long i = 0;
 
@@ -69,6 +89,10 @@ public final class SelectorManager {
     public synchronized SelectorSelection register(SocketChannel socketChannel, Listener listener)
         throws IOException {
 
+        if (pooled) {
+            return registerWithFixedWorker(socketChannel, listener);
+        }
+
         SelectorSelection selection = null;
         while( selection == null ) {
             if (freeWorkers.size() > 0) {
@@ -90,12 +114,56 @@ public final class SelectorManager {
         return selection;
     }
 
+    /**
+     * Assigns the channel to the least loaded of the fixed selector workers,
+     * starting them on first use. Fixed workers are never released.
+     */
+    private SelectorSelection registerWithFixedWorker(SocketChannel socketChannel, Listener listener) throws IOException {
+        if (fixedWorkers == null) {
+            fixedWorkers = new SelectorWorker[Math.max(1, selectorThreads)];
+        }
+        SelectorWorker worker = null;
+        for (int i = 0; i < fixedWorkers.length; i++) {
+            // replaces workers that stopped on an error
+            if (fixedWorkers[i] == null) {
+                fixedWorkers[i] = new SelectorWorker(this, true);
+            }
+            if (worker == null || fixedWorkers[i].retainCounter.get() < worker.retainCounter.get()) {
+                worker = fixedWorkers[i];
+            }
+        }
+        worker.retain();
+        return new SelectorSelection(worker, socketChannel, listener);
+    }
+
+    /**
+     * @return the pool the NIO transports borrow their buffers from, or null
+     *         when the manager is not in pooled mode and every transport
+     *         keeps buffers of its own
+     */
+    public synchronized NIOBufferPool getBufferPool() {
+        if (!pooled) {
+            return null;
+        }
+        if (bufferPool == null) {
+            bufferPool = new NIOBufferPool(bufferSize, maxPooledBuffers);
+        }
+        return bufferPool;
+    }
+
     synchronized void onWorkerFullEvent(SelectorWorker worker) {
         freeWorkers.remove(worker);
     }
 
     public synchronized void onWorkerEmptyEvent(SelectorWorker worker) {
         freeWorkers.remove(worker);
+        if (fixedWorkers != null) {
+            for (int i = 0; i < fixedWorkers.length; i++) {
+                if (fixedWorkers[i] == worker) {
+                    fixedWorkers[i] = null;
+                }
+            }
+        }
     }
 
     public synchronized void onWorkerNotFullEvent(SelectorWorker worker) {
@@ -118,6 +186,44 @@ public final class SelectorManager {
         this.maxChannelsPerWorker = maxChannelsPerWorker;
     }
 
+    public synchronized boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * Only takes effect for channels registered after the call, so it should
+     * be set before any NIO transport is started.
+     */
+    public synchronized void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    public synchronized int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    public synchronized void setSelectorThreads(int selectorThreads) {
+        this.selectorThreads = selectorThreads;
+    }
+
+    public synchronized int getBufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.bufferPool = null;
+    }
+
+    public synchronized int getMaxPooledBuffers() {
+        return maxPooledBuffers;
+    }
+
+    public synchronized void setMaxPooledBuffers(int maxPooledBuffers) {
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.bufferPool = null;
+    }
+
     public Executor getSelectorExecutor() {
         return selectorExecutor;
     }
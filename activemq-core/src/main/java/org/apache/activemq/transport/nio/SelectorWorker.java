@@ -32,25 +32,39 @@ public class SelectorWorker implements Runnable {
     final Selector selector;
     final int id = NEXT_ID.getAndIncrement();
     private final int maxChannelsPerWorker;
+    private final boolean fixed;
 
     final AtomicInteger retainCounter = new AtomicInteger(1);
     private final ConcurrentLinkedQueue<Runnable> ioTasks = new ConcurrentLinkedQueue<Runnable>();
        
     public SelectorWorker(SelectorManager manager) throws IOException {
+        this(manager, false);
+    }
+
+    /**
+     * @param fixed a fixed worker belongs to the manager's selector pool, it
+     *              takes any number of channels and keeps running when it
+     *              has none
+     */
+    SelectorWorker(SelectorManager manager, boolean fixed) throws IOException {
         this.manager = manager;
+        this.fixed = fixed;
         selector = Selector.open();
         maxChannelsPerWorker = manager.getMaxChannelsPerWorker();
         manager.getSelectorExecutor().execute(this);
     }
 
     void retain() {
-        if (retainCounter.incrementAndGet() == maxChannelsPerWorker) {
+        if (retainCounter.incrementAndGet() == maxChannelsPerWorker && !fixed) {
             manager.onWorkerFullEvent(this);
         }
     }
 
     void release() {
         int use = retainCounter.decrementAndGet();
+        if (fixed) {
+            return;
+        }
         if (use == 0) {
             manager.onWorkerEmptyEvent(this);
         } else if (use == maxChannelsPerWorker - 1) {
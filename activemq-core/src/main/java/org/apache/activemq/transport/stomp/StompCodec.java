@@ -20,7 +20,7 @@ import org.apache.activemq.transport.tcp.TcpTransport;
 import org.apache.activemq.util.ByteArrayOutputStream;
 import org.apache.activemq.util.DataByteArrayInputStream;
 
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -45,7 +45,7 @@ public class StompCodec {
         this.transport = transport;
     }
 
-    public void parse(ByteArrayInputStream input, int readSize) throws Exception {
+    public void parse(InputStream input, int readSize) throws Exception {
        int i = 0;
        int b;
        while(i++ < readSize) {
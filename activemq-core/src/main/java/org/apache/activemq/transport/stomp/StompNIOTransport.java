@@ -16,7 +16,6 @@
  */
 package org.apache.activemq.transport.stomp;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
@@ -30,6 +29,8 @@ import java.nio.channels.SocketChannel;
 import javax.net.SocketFactory;
 
 import org.apache.activemq.transport.Transport;
+import org.apache.activemq.transport.nio.NIOBufferPool;
+import org.apache.activemq.transport.nio.NIOInputStream;
 import org.apache.activemq.transport.nio.NIOOutputStream;
 import org.apache.activemq.transport.nio.SelectorManager;
 import org.apache.activemq.transport.nio.SelectorSelection;
@@ -49,6 +50,7 @@ public class StompNIOTransport extends TcpTransport {
     private SelectorSelection selection;
 
     private ByteBuffer inputBuffer;
+    private NIOBufferPool bufferPool;
     StompCodec codec;
 
     public StompNIOTransport(WireFormat wireFormat, SocketFactory socketFactory, URI remoteLocation, URI localLocation) throws UnknownHostException, IOException {
@@ -78,19 +80,28 @@ public class StompNIOTransport extends TcpTransport {
             }
         });
 
-        inputBuffer = ByteBuffer.allocate(8 * 1024);
-        NIOOutputStream outPutStream = new NIOOutputStream(channel, 8 * 1024);
+        bufferPool = SelectorManager.getInstance().getBufferPool();
+        NIOOutputStream outPutStream;
+        if (bufferPool != null) {
+            outPutStream = new NIOOutputStream(channel, bufferPool);
+        } else {
+            inputBuffer = ByteBuffer.allocate(8 * 1024);
+            outPutStream = new NIOOutputStream(channel, 8 * 1024);
+        }
         this.dataOut = new DataOutputStream(outPutStream);
         this.buffOut = outPutStream;
         codec = new StompCodec(this);
     }
 
     private void serviceRead() {
+        // the codec keeps partial frames itself so a pooled buffer is only
+        // needed for the duration of the read
+        ByteBuffer buffer = bufferPool != null ? bufferPool.acquire() : inputBuffer;
         try {
 
            while (true) {
                // read channel
-               int readSize = channel.read(inputBuffer);
+               int readSize = channel.read(buffer);
                // channel is closed, cleanup
                if (readSize == -1) {
                    onException(new EOFException());
@@ -102,19 +113,21 @@ public class StompNIOTransport extends TcpTransport {
                    break;
                }
 
-               inputBuffer.flip();
-
-               ByteArrayInputStream input = new ByteArrayInputStream(inputBuffer.array());
-               codec.parse(input, readSize);
+               buffer.flip();
+               codec.parse(new NIOInputStream(buffer), readSize);
 
                // clear the buffer
-               inputBuffer.clear();
+               buffer.clear();
 
            }
         } catch (IOException e) {
             onException(e);
         } catch (Throwable e) {
             onException(IOExceptionSupport.create(e));
+        } finally {
+            if (bufferPool != null) {
+                bufferPool.release(buffer);
+            }
         }
     }
 
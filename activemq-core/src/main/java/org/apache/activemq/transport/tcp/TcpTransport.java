@@ -41,6 +41,7 @@ import org.apache.activemq.thread.TaskRunnerFactory;
 import org.apache.activemq.transport.Transport;
 import org.apache.activemq.transport.TransportLoggerFactory;
 import org.apache.activemq.transport.TransportThreadSupport;
+import org.apache.activemq.util.ByteSequence;
 import org.apache.activemq.util.InetAddressUtil;
 import org.apache.activemq.util.IntrospectionSupport;
 import org.apache.activemq.util.ServiceStopper;
@@ -65,6 +66,9 @@ public class TcpTransport extends TransportThreadSupport implements Transport, S
     protected int socketBufferSize = 64 * 1024;
     protected int ioBufferSize = 8 * 1024;
     protected boolean closeAsync=true;
+    protected boolean coalesceWrites;
+    protected int maxWriteBatchSize = 64 * 1024;
+    protected long maxWriteLinger;
     protected Socket socket;
     protected DataOutputStream dataOut;
     protected DataInputStream dataIn;
@@ -135,6 +139,7 @@ public class TcpTransport extends TransportThreadSupport implements Transport, S
     private Boolean tcpNoDelay;
     private Thread runnerThread;
     private volatile int receiveCounter;
+    private WriteCoalescer writeCoalescer;
 
     /**
      * Connect to a remote Node - e.g. a Broker
@@ -180,10 +185,22 @@ public class TcpTransport extends TransportThreadSupport implements Transport, S
      */
     public void oneway(Object command) throws IOException {
         checkStarted();
+        if (writeCoalescer != null) {
+            writeCoalescer.write(command);
+            return;
+        }
         wireFormat.marshal(command, dataOut);
         dataOut.flush();
     }
 
+    /**
+     * Writes a batch of marshalled commands when coalescing writes.
+     */
+    protected void writeBatch(ByteSequence batch) throws IOException {
+        dataOut.write(batch.getData(), batch.getOffset(), batch.getLength());
+        dataOut.flush();
+    }
+
     /**
      * @return pretty print of 'this'
      */
@@ -411,6 +428,45 @@ public class TcpTransport extends TransportThreadSupport implements Transport, S
         this.closeAsync = closeAsync;
     }
 
+    public boolean isCoalesceWrites() {
+        return coalesceWrites;
+    }
+
+    /**
+     * When enabled commands sent from several threads are queued without
+     * locking and written out together in batches by whichever sender is not
+     * blocked behind another one, saving a write and flush per command on busy
+     * connections.
+     */
+    public void setCoalesceWrites(boolean coalesceWrites) {
+        this.coalesceWrites = coalesceWrites;
+    }
+
+    public int getMaxWriteBatchSize() {
+        return maxWriteBatchSize;
+    }
+
+    /**
+     * Sets the number of bytes after which a batch of coalesced writes is
+     * written out even if more commands are waiting.
+     */
+    public void setMaxWriteBatchSize(int maxWriteBatchSize) {
+        this.maxWriteBatchSize = maxWriteBatchSize;
+    }
+
+    public long getMaxWriteLinger() {
+        return maxWriteLinger;
+    }
+
+    /**
+     * Sets how many milliseconds the writer waits for more commands before
+     * writing out a batch of coalesced writes, 0 (the default) writes out
+     * whatever is queued right away.
+     */
+    public void setMaxWriteLinger(long maxWriteLinger) {
+        this.maxWriteLinger = maxWriteLinger;
+    }
+
     // Implementation methods
     // -------------------------------------------------------------------------
     protected String resolveHostName(String host) throws UnknownHostException {
@@ -520,6 +576,9 @@ public class TcpTransport extends TransportThreadSupport implements Transport, S
 
         initialiseSocket(socket);
         initializeStreams();
+        if (coalesceWrites) {
+            writeCoalescer = new WriteCoalescer(this, wireFormat, maxWriteBatchSize, maxWriteLinger, ioBufferSize);
+        }
     }
 
     @Override
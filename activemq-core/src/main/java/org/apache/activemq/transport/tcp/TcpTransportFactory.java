@@ -28,6 +28,7 @@ import javax.net.SocketFactory;
 
 import org.apache.activemq.openwire.OpenWireFormat;
 import org.apache.activemq.transport.InactivityMonitor;
+import org.apache.activemq.transport.MutexTransport;
 import org.apache.activemq.transport.Transport;
 import org.apache.activemq.transport.TransportFactory;
 import org.apache.activemq.transport.TransportLoggerFactory;
@@ -79,6 +80,31 @@ public class TcpTransportFactory extends TransportFactory {
         return new TcpTransportServer(this, location, serverSocketFactory);
     }
 
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Transport configure(Transport transport, WireFormat wf, Map options) throws Exception {
+        return unsyncOnewayIfCoalescing(super.configure(transport, wf, options));
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Transport serverConfigure(Transport transport, WireFormat format, HashMap options) throws Exception {
+        return unsyncOnewayIfCoalescing(super.serverConfigure(transport, format, options));
+    }
+
+    /**
+     * A transport that coalesces writes queues concurrent sends itself, so
+     * there is no point in the mutex serializing them first.
+     */
+    protected Transport unsyncOnewayIfCoalescing(Transport transport) {
+        TcpTransport tcpTransport = transport.narrow(TcpTransport.class);
+        MutexTransport mutex = transport.narrow(MutexTransport.class);
+        if (tcpTransport != null && mutex != null && tcpTransport.isCoalesceWrites()) {
+            mutex.setSyncOnOneway(false);
+        }
+        return transport;
+    }
+
     @SuppressWarnings("rawtypes")
     public Transport compositeConfigure(Transport transport, WireFormat format, Map options) {
 
@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.transport.tcp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.activemq.util.DataByteArrayOutputStream;
+import org.apache.activemq.util.IOExceptionSupport;
+import org.apache.activemq.wireformat.WireFormat;
+
+/**
+ * Lets any number of threads send commands over a {@link TcpTransport}
+ * without taking a lock. Commands are queued and whichever sender finds no
+ * write in progress becomes the writer: it marshals everything queued so far,
+ * up to the max batch size, back to back into one buffer and hands that to
+ * the transport as a single write.
+ *
+ * The other senders wait until the batch holding their command has been
+ * written, so as with an unbatched write a command may be changed once
+ * {@link #write(Object)} returns, and a failed write is reported to the
+ * sender of every command that was not written.
+ */
+final class WriteCoalescer {
+
+    private static final long LINGER_SLICE = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final TcpTransport transport;
+    private final WireFormat wireFormat;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final int bufferSize;
+    private final ConcurrentLinkedQueue<PendingWrite> queue = new ConcurrentLinkedQueue<PendingWrite>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final List<PendingWrite> inBatch = new ArrayList<PendingWrite>();
+    private volatile IOException failure;
+    private DataByteArrayOutputStream batch;
+    private long batchCount;
+    private long commandCount;
+
+    /**
+     * A queued command and the outcome its sender waits for
+     */
+    private static final class PendingWrite {
+        final Object command;
+        final CountDownLatch done = new CountDownLatch(1);
+        IOException failure;
+
+        PendingWrite(Object command) {
+            this.command = command;
+        }
+
+        void complete(IOException failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // the command may already be on its way, so the outcome
+                    // is still needed
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @param maxBatchSize the number of bytes after which a batch is written
+     *                out even if more commands are queued
+     * @param maxLinger how many milliseconds the writer waits for further
+     *                commands before writing a batch, 0 to write right away
+     * @param bufferSize the size the batch buffer starts with and is cut back
+     *                to after a larger batch
+     */
+    WriteCoalescer(TcpTransport transport, WireFormat wireFormat, int maxBatchSize, long maxLinger, int bufferSize) {
+        this.transport = transport;
+        this.wireFormat = wireFormat;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLinger);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Queues the command and returns once it has been written.
+     *
+     * @throws IOException if the command could not be written because this or
+     *                 an earlier write failed
+     */
+    public void write(Object command) throws IOException {
+        IOException failed = failure;
+        if (failed != null) {
+            throw new IOException("A previous write failed: " + failed, failed);
+        }
+        PendingWrite pending = new PendingWrite(command);
+        queue.add(pending);
+        // whoever gives up the writer role checks the queue again, so a
+        // command queued while a batch is being written is never stranded.
+        while (!queue.isEmpty() && writing.compareAndSet(false, true)) {
+            try {
+                failed = failure;
+                if (failed != null) {
+                    failQueued(failed);
+                } else {
+                    writeBatch();
+                }
+            } finally {
+                writing.set(false);
+            }
+        }
+        pending.await();
+        if (pending.failure != null) {
+            throw pending.failure;
+        }
+    }
+
+    private void writeBatch() {
+        if (batch == null) {
+            batch = new DataByteArrayOutputStream(bufferSize);
+        }
+        long deadline = 0;
+        try {
+            while (batch.size() < maxBatchSize) {
+                PendingWrite pending = queue.poll();
+                if (pending == null) {
+                    if (maxLingerNanos <= 0) {
+                        break;
+                    }
+                    long now = System.nanoTime();
+                    if (deadline == 0) {
+                        deadline = now + maxLingerNanos;
+                    } else if (now - deadline >= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(Math.min(LINGER_SLICE, deadline - now));
+                    continue;
+                }
+                inBatch.add(pending);
+                wireFormat.marshal(pending.command, batch);
+            }
+
+            if (!inBatch.isEmpty()) {
+                transport.writeBatch(batch.toByteSequence());
+                batchCount++;
+                commandCount += inBatch.size();
+            }
+            for (PendingWrite pending : inBatch) {
+                pending.complete(null);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(IOExceptionSupport.create(e));
+        } finally {
+            inBatch.clear();
+            if (batch.getData().length > bufferSize) {
+                batch = null;
+            } else {
+                batch.reset();
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        for (PendingWrite pending : inBatch) {
+            pending.complete(e);
+        }
+        failQueued(e);
+    }
+
+    private void failQueued(IOException e) {
+        PendingWrite pending;
+        while ((pending = queue.poll()) != null) {
+            pending.complete(e);
+        }
+    }
+
+    /**
+     * @return the number of writes done so far, only accurate once the
+     *         senders are done
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * @return the number of commands written so far, only accurate once the
+     *         senders are done
+     */
+    public long getCommandCount() {
+        return commandCount;
+    }
+}
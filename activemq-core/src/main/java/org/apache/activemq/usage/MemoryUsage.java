@@ -20,13 +20,20 @@ package org.apache.activemq.usage;
  * Used to keep track of how much of something is being used so that a
  * productive working set usage can be controlled. Main use case is manage
  * memory usage.
+ * <p/>
+ * The usage is a striped counter so messages can be added and removed on many
+ * destinations at once without contending on a lock. A change only sums the
+ * stripes and takes the lock when the stripe it went to has moved far enough
+ * that the percent usage may have changed.
  * 
  * @org.apache.xbean.XBean
  * 
  */
 public class MemoryUsage extends Usage<MemoryUsage> {
 
-    private long usage;
+    private final StripedCounter usage = new StripedCounter();
+    // where the stripes stood when the percent usage was last worked out
+    private volatile StripedCounter.Marks marks;
 
     public MemoryUsage() {
         this(null, null);
@@ -92,9 +99,7 @@ public class MemoryUsage extends Usage<MemoryUsage> {
         if (parent != null && parent.isFull()) {
             return true;
         }
-        synchronized (usageMutex) {
-            return percentUsage >= 100;
-        }
+        return percentUsage >= 100;
     }
 
     /**
@@ -118,12 +123,9 @@ public class MemoryUsage extends Usage<MemoryUsage> {
         if (value == 0) {
             return;
         }
-        int percentUsage;
-        synchronized (usageMutex) {
-            usage += value;
-            percentUsage = caclPercentUsage();
+        if (usage.add(value, marks)) {
+            updatePercentUsage();
         }
-        setPercentUsage(percentUsage);
         if (parent != null) {
             ((MemoryUsage)parent).increaseUsage(value);
         }
@@ -138,26 +140,76 @@ public class MemoryUsage extends Usage<MemoryUsage> {
         if (value == 0) {
             return;
         }
-        int percentUsage;
-        synchronized (usageMutex) {
-            usage -= value;
-            percentUsage = caclPercentUsage();
+        if (usage.add(-value, marks)) {
+            updatePercentUsage();
         }
-        setPercentUsage(percentUsage);
         if (parent != null) {
             parent.decreaseUsage(value);
         }
     }
 
+    /**
+     * Works out the percent usage from the stripes and marks how far the usage
+     * can move before it reaches another percentage band. A change made while
+     * the marks were being published was checked against the old marks, so
+     * this is repeated until every stripe is within the new ones.
+     */
+    private void updatePercentUsage() {
+        synchronized (usageMutex) {
+            StripedCounter.Marks marks;
+            do {
+                long[] values = usage.read();
+                long sum = StripedCounter.sum(values);
+                long limit = getLimiter().getLimit();
+                int percent = 0;
+                if (limit == 0) {
+                    marks = new StripedCounter.Marks(values, Long.MAX_VALUE, Long.MAX_VALUE);
+                } else {
+                    int minDelta = getPercentUsageMinDelta();
+                    percent = (int)((((sum * 100) / limit) / minDelta) * minDelta);
+                    long low = percent > 0 ? usageAt(percent, limit) : 0;
+                    long high = usageAt(percent + minDelta, limit);
+                    marks = new StripedCounter.Marks(values, high - 1 - sum, sum - low);
+                }
+                this.marks = marks;
+                setPercentUsage(percent);
+            } while (!usage.isWithin(marks));
+        }
+    }
+
+    /**
+     * @return the least usage that is the given percent of the limit
+     */
+    private static long usageAt(long percent, long limit) {
+        return percent * (limit / 100) + (percent * (limit % 100) + 99) / 100;
+    }
+
+    protected void onLimitChange() {
+        super.onLimitChange();
+        synchronized (usageMutex) {
+            marks = null;
+        }
+    }
+
+    public void setPercentUsageMinDelta(int percentUsageMinDelta) {
+        super.setPercentUsageMinDelta(percentUsageMinDelta);
+        synchronized (usageMutex) {
+            marks = null;
+        }
+    }
+
     protected long retrieveUsage() {
-        return usage;
+        return usage.get();
     }
 
     public long getUsage() {
-        return usage;
+        return usage.get();
     }
 
     public void setUsage(long usage) {
-        this.usage = usage;
+        synchronized (usageMutex) {
+            this.usage.set(usage);
+            marks = null;
+        }
     }
 }
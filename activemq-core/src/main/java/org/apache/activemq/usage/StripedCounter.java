@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.usage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A long counter that many threads can add to without contending on a single
+ * memory location. Adds go to a single base value until two threads collide on
+ * it, after that each thread adds to one of a set of stripes kept on separate
+ * cache lines. The value is the sum of the base and the stripes.
+ * <p/>
+ * An uncontended counter, like the usage of a quiet destination, costs no more
+ * than an AtomicLong.
+ * <p/>
+ * The base and each stripe are slots. {@link #read()} takes the value of every
+ * slot, and {@link Marks} made from those values tell {@link #add(long, Marks)}
+ * when the slot it added to has moved further than its share of some distance.
+ * As long as no slot has, the sum has moved less than that distance, so a
+ * caller can tell without summing the stripes.
+ * 
+ * 
+ */
+final class StripedCounter {
+
+    private static final int STRIPES = stripeCount(Runtime.getRuntime().availableProcessors());
+    // the base and the stripes
+    private static final int SLOTS = STRIPES + 1;
+    // 8 longs to a 64 byte cache line
+    private static final int PADDING = 8;
+
+    private final AtomicLong base = new AtomicLong();
+    private volatile AtomicLongArray stripes;
+
+    public void add(long value) {
+        add(value, null);
+    }
+
+    /**
+     * Adds the value.
+     * 
+     * @return true if the slot added to has moved out of its share of the
+     *         distances the marks were made with, or if there are no marks
+     */
+    public boolean add(long value, Marks marks) {
+        AtomicLongArray stripes = this.stripes;
+        if (stripes == null) {
+            long current = base.get();
+            if (base.compareAndSet(current, current + value)) {
+                return marks == null || !marks.isWithin(0, current + value);
+            }
+            stripes = createStripes();
+        }
+        int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        long slot = stripes.addAndGet(stripe * PADDING, value);
+        return marks == null || !marks.isWithin(stripe + 1, slot);
+    }
+
+    public long get() {
+        long sum = base.get();
+        AtomicLongArray stripes = this.stripes;
+        if (stripes != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                sum += stripes.get(i * PADDING);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the value of every slot, to make {@link Marks} from
+     */
+    public long[] read() {
+        long[] values = new long[SLOTS];
+        values[0] = base.get();
+        AtomicLongArray stripes = this.stripes;
+        if (stripes != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                values[i + 1] = stripes.get(i * PADDING);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return true if no slot has moved out of its share of the distances the
+     *         marks were made with
+     */
+    public boolean isWithin(Marks marks) {
+        if (!marks.isWithin(0, base.get())) {
+            return false;
+        }
+        AtomicLongArray stripes = this.stripes;
+        if (stripes != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                if (!marks.isWithin(i + 1, stripes.get(i * PADDING))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the value. Adds done at the same time may be lost.
+     */
+    public void set(long value) {
+        AtomicLongArray stripes = this.stripes;
+        if (stripes != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes.set(i * PADDING, 0);
+            }
+        }
+        base.set(value);
+    }
+
+    public static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * The values of the slots at a {@link StripedCounter#read()}, with how far
+     * the sum may go up and down from there. Each slot gets an equal share of
+     * both distances.
+     */
+    static final class Marks {
+
+        private final long[] values;
+        private final long up;
+        private final long down;
+
+        Marks(long[] values, long up, long down) {
+            this.values = values;
+            this.up = Math.max(0, up / SLOTS);
+            this.down = Math.max(0, down / SLOTS);
+        }
+
+        boolean isWithin(int slot, long value) {
+            long moved = value - values[slot];
+            return moved <= up && moved >= -down;
+        }
+    }
+
+    private synchronized AtomicLongArray createStripes() {
+        if (stripes == null) {
+            stripes = new AtomicLongArray(STRIPES * PADDING);
+        }
+        return stripes;
+    }
+
+    private static int stripeCount(int processors) {
+        int count = 1;
+        while (count < processors && count < 64) {
+            count <<= 1;
+        }
+        return count;
+    }
+}
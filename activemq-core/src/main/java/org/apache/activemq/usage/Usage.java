@@ -39,7 +39,7 @@ public abstract class Usage<T extends Usage> implements Service {
 
     private static final Logger LOG = LoggerFactory.getLogger(Usage.class);
     protected final Object usageMutex = new Object();
-    protected int percentUsage;
+    protected volatile int percentUsage;
     protected T parent;
     private UsageCapacity limiter = new DefaultUsageCapacity();
     private int percentUsageMinDelta = 1;
@@ -187,9 +187,7 @@ public abstract class Usage<T extends Usage> implements Service {
     }
 
     public int getPercentUsage() {
-        synchronized (usageMutex) {
-            return percentUsage;
-        }
+        return percentUsage;
     }
 
     public int getPercentUsageMinDelta() {
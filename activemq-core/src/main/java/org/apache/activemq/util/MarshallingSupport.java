@@ -148,6 +148,20 @@ public final class MarshallingSupport {
         }
     }
 
+    /**
+     * @return true if the value is null or of one of the simple types
+     *         {@link #marshalPrimitive(DataOutputStream, Object)} can write
+     */
+    public static boolean isPrimitive(Object value) {
+        if (value == null) {
+            return true;
+        }
+        Class<?> type = value.getClass();
+        return type == String.class || type == Boolean.class || type == Byte.class || type == Character.class
+            || type == Short.class || type == Integer.class || type == Long.class || type == Float.class
+            || type == Double.class || type == byte[].class;
+    }
+
     public static Object unmarshalPrimitive(DataInputStream in) throws IOException {
         Object value = null;
         byte type = in.readByte();
@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+
+/**
+ * Reads single entries of a primitive map marshalled by
+ * {@link MarshallingSupport#marshalPrimitiveMap(java.util.Map, DataOutputStream)}
+ * without unmarshalling the whole map. Keys are compared in their encoded
+ * form and the values of other entries are skipped, so looking up one entry
+ * only allocates its value.
+ */
+public final class PrimitiveMapScanner {
+
+    private final byte[] data;
+    private final int limit;
+    private int pos;
+
+    private PrimitiveMapScanner(ByteSequence map) {
+        this.data = map.getData();
+        this.pos = map.getOffset();
+        this.limit = map.getOffset() + map.getLength();
+    }
+
+    /**
+     * @return the value of the named entry, or null if the map does not have
+     *         one
+     */
+    public static Object getValue(ByteSequence map, String name) throws IOException {
+        PrimitiveMapScanner scanner = new PrimitiveMapScanner(map);
+        if (!scanner.find(name)) {
+            return null;
+        }
+        return MarshallingSupport.unmarshalPrimitive(new DataInputStream(new ByteArrayInputStream(scanner.data, scanner.pos, scanner.limit - scanner.pos)));
+    }
+
+    public static boolean containsKey(ByteSequence map, String name) throws IOException {
+        return new PrimitiveMapScanner(map).find(name);
+    }
+
+    /**
+     * @return a copy of the marshalled map with the entry added at the end,
+     *         the map must not have an entry with the same name already
+     */
+    public static ByteSequence append(ByteSequence map, String name, Object value) throws IOException {
+        PrimitiveMapScanner scanner = new PrimitiveMapScanner(map);
+        int size = scanner.readInt();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(map.getLength() + name.length() + 16);
+        DataOutputStream os = new DataOutputStream(baos);
+        if (size < 0) {
+            os.writeInt(1);
+        } else {
+            os.writeInt(size + 1);
+            os.write(map.getData(), scanner.pos, scanner.limit - scanner.pos);
+        }
+        os.writeUTF(name);
+        MarshallingSupport.marshalPrimitive(os, value);
+        os.close();
+        return baos.toByteSequence();
+    }
+
+    /**
+     * Moves to the value of the named entry.
+     */
+    private boolean find(String name) throws IOException {
+        int size = readInt();
+        for (int i = 0; i < size; i++) {
+            if (readKeyEquals(name)) {
+                return true;
+            }
+            skipValue();
+        }
+        return false;
+    }
+
+    private boolean readKeyEquals(String name) throws IOException {
+        int length = readUnsignedShort();
+        int end = pos + length;
+        ensure(length);
+        int index = 0;
+        boolean equal = true;
+        while (pos < end) {
+            int c = data[pos] & 0xff;
+            char ch;
+            if (c < 0x80) {
+                ch = (char)c;
+                pos++;
+            } else if ((c >> 5) == 0x06 && pos + 2 <= end) {
+                ch = (char)(((c & 0x1F) << 6) | (data[pos + 1] & 0x3F));
+                pos += 2;
+            } else if ((c >> 4) == 0x0E && pos + 3 <= end) {
+                ch = (char)(((c & 0x0F) << 12) | ((data[pos + 1] & 0x3F) << 6) | (data[pos + 2] & 0x3F));
+                pos += 3;
+            } else {
+                throw new UTFDataFormatException("bad string");
+            }
+            if (index >= name.length() || name.charAt(index) != ch) {
+                equal = false;
+                break;
+            }
+            index++;
+        }
+        pos = end;
+        return equal && index == name.length();
+    }
+
+    private void skipValue() throws IOException {
+        byte type = readByte();
+        switch (type) {
+        case MarshallingSupport.NULL:
+            break;
+        case MarshallingSupport.BOOLEAN_TYPE:
+        case MarshallingSupport.BYTE_TYPE:
+            skip(1);
+            break;
+        case MarshallingSupport.CHAR_TYPE:
+        case MarshallingSupport.SHORT_TYPE:
+            skip(2);
+            break;
+        case MarshallingSupport.INTEGER_TYPE:
+        case MarshallingSupport.FLOAT_TYPE:
+            skip(4);
+            break;
+        case MarshallingSupport.LONG_TYPE:
+        case MarshallingSupport.DOUBLE_TYPE:
+            skip(8);
+            break;
+        case MarshallingSupport.BYTE_ARRAY_TYPE:
+            skip(readInt());
+            break;
+        case MarshallingSupport.STRING_TYPE:
+            skip(readUnsignedShort());
+            break;
+        case MarshallingSupport.BIG_STRING_TYPE:
+            int length = readInt();
+            if (length > -1) {
+                skip(length);
+            }
+            break;
+        case MarshallingSupport.MAP_TYPE:
+            int entries = readInt();
+            for (int i = 0; i < entries; i++) {
+                skip(readUnsignedShort());
+                skipValue();
+            }
+            break;
+        case MarshallingSupport.LIST_TYPE:
+            int elements = readInt();
+            for (int i = 0; i < elements; i++) {
+                skipValue();
+            }
+            break;
+        default:
+            throw new IOException("Unknown primitive type: " + type);
+        }
+    }
+
+    private void ensure(int length) throws IOException {
+        if (length < 0 || pos + length > limit) {
+            throw new EOFException();
+        }
+    }
+
+    private void skip(int length) throws IOException {
+        ensure(length);
+        pos += length;
+    }
+
+    private byte readByte() throws IOException {
+        ensure(1);
+        return data[pos++];
+    }
+
+    private int readUnsignedShort() throws IOException {
+        ensure(2);
+        int rc = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+        pos += 2;
+        return rc;
+    }
+
+    private int readInt() throws IOException {
+        ensure(4);
+        int rc = ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16) | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+        pos += 4;
+        return rc;
+    }
+}
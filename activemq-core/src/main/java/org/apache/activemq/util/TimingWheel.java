@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel that keeps items until a time they are due at.
+ * Adding and removing an item is constant time and advancing the wheel only
+ * visits the slots that the time passed over, so the items due can be found
+ * without looking at every item that is not.
+ * <p/>
+ * The first level has one slot per tick, each further level has slots that
+ * span a whole turn of the level below and is created when an item is added
+ * that is due beyond the levels there are. Items cascade down a level as the
+ * wheel turns past their slot.
+ * 
+ * @param <T> the type of the items, which must be usable as hash keys
+ */
+public class TimingWheel<T> {
+
+    private final long tickMillis;
+    private final int mask;
+    private final List<Level> levels = new ArrayList<Level>();
+    private final Map<T, Long> current = new HashMap<T, Long>();
+    private long currentTime;
+    private int size;
+
+    /**
+     * @param tickMillis the time spanned by a slot of the first level
+     * @param wheelSize the number of slots of a level, rounded up to a power
+     *                of two
+     * @param startTime the time the wheel starts at
+     */
+    public TimingWheel(long tickMillis, int wheelSize, long startTime) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be > 0");
+        }
+        int slots = 1;
+        while (slots < wheelSize) {
+            slots <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.mask = slots - 1;
+        this.currentTime = startTime;
+        this.levels.add(new Level(tickMillis));
+    }
+
+    /**
+     * Adds an item that is due at the given time. An item that is already due
+     * is returned by the next call to {@link #expire(long)}.
+     */
+    public synchronized void add(T item, long time) {
+        place(item, time);
+        size++;
+    }
+
+    /**
+     * Removes an item that was added with the given time.
+     * 
+     * @return true if the item was in the wheel
+     */
+    public synchronized boolean remove(T item, long time) {
+        boolean removed = current.remove(item) != null;
+        for (int i = 0; !removed && i < levels.size(); i++) {
+            Map<T, Long> slot = levels.get(i).slot(time);
+            removed = slot != null && slot.remove(item) != null;
+        }
+        if (removed) {
+            size--;
+        }
+        return removed;
+    }
+
+    /**
+     * Turns the wheel to the given time and removes the items that are due by
+     * then.
+     * 
+     * @return the items due at or before the time
+     */
+    public synchronized List<T> expire(long now) {
+        List<T> result = new ArrayList<T>();
+        Map<T, Long> moved = new HashMap<T, Long>();
+        if (now > currentTime) {
+            for (Level level : levels) {
+                long from = floor(currentTime, level.tick);
+                long to = floor(now, level.tick);
+                long steps = Math.min((to - from) / level.tick, mask + 1);
+                for (long i = 0; i < steps; i++) {
+                    level.drain(to / level.tick - i, moved);
+                }
+            }
+            currentTime = now;
+        }
+        for (Iterator<Map.Entry<T, Long>> i = current.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<T, Long> entry = i.next();
+            if (entry.getValue().longValue() <= now) {
+                result.add(entry.getKey());
+                i.remove();
+            }
+        }
+        for (Map.Entry<T, Long> entry : moved.entrySet()) {
+            if (entry.getValue().longValue() <= now) {
+                result.add(entry.getKey());
+            } else {
+                place(entry.getKey(), entry.getValue().longValue());
+            }
+        }
+        size -= result.size();
+        return result;
+    }
+
+    /**
+     * @return the number of items in the wheel
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void place(T item, long time) {
+        Long value = Long.valueOf(time);
+        if (time < floor(currentTime, tickMillis) + tickMillis) {
+            current.put(item, value);
+            return;
+        }
+        for (int i = 0;; i++) {
+            if (i == levels.size()) {
+                levels.add(new Level(levels.get(i - 1).interval));
+            }
+            Level level = levels.get(i);
+            if (time - floor(currentTime, level.tick) < level.interval) {
+                level.put(item, value);
+                return;
+            }
+        }
+    }
+
+    private static long floor(long time, long tick) {
+        long rc = time - (time % tick);
+        return time < 0 && rc != time ? rc - tick : rc;
+    }
+
+    private final class Level {
+        final long tick;
+        final long interval;
+        final Map<T, Long>[] slots;
+
+        @SuppressWarnings("unchecked")
+        Level(long tick) {
+            this.tick = tick;
+            this.interval = tick > Long.MAX_VALUE / (mask + 1) ? Long.MAX_VALUE : tick * (mask + 1);
+            this.slots = new Map[mask + 1];
+        }
+
+        Map<T, Long> slot(long time) {
+            return slots[index(time / tick)];
+        }
+
+        void put(T item, Long time) {
+            int index = index(time.longValue() / tick);
+            if (slots[index] == null) {
+                slots[index] = new HashMap<T, Long>();
+            }
+            slots[index].put(item, time);
+        }
+
+        void drain(long ticks, Map<T, Long> into) {
+            int index = index(ticks);
+            if (slots[index] != null) {
+                into.putAll(slots[index]);
+                slots[index] = null;
+            }
+        }
+
+        private int index(long ticks) {
+            return (int) (ticks & mask);
+        }
+    }
+}
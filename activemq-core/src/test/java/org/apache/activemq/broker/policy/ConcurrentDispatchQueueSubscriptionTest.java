@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.policy;
+
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jms.MessageConsumer;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.QueueSubscriptionTest;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.util.MessageIdList;
+
+public class ConcurrentDispatchQueueSubscriptionTest extends QueueSubscriptionTest {
+
+    protected BrokerService createBroker() throws Exception {
+        BrokerService broker = super.createBroker();
+
+        PolicyEntry policy = new PolicyEntry();
+        policy.setConcurrentDispatch(true);
+
+        PolicyMap pMap = new PolicyMap();
+        pMap.setDefaultEntry(policy);
+
+        broker.setDestinationPolicy(pMap);
+
+        return broker;
+    }
+
+    public void testOneProducerTwoConsumersSmallMessagesLargePrefetch() throws Exception {
+        super.testOneProducerTwoConsumersSmallMessagesLargePrefetch();
+        assertConsumersReceivedInOrder();
+    }
+
+    public void testOneProducerManyConsumersManyMessages() throws Exception {
+        super.testOneProducerManyConsumersManyMessages();
+        assertConsumersReceivedInOrder();
+    }
+
+    protected void assertConsumersReceivedInOrder() throws Exception {
+        for (Iterator<MessageConsumer> i = consumers.keySet().iterator(); i.hasNext();) {
+            MessageIdList messageIdList = consumers.get(i.next());
+            List<String> received = messageIdList.getMessageIds();
+            String previous = null;
+            for (String current : received) {
+                if (previous != null) {
+                    assertTrue("in order: " + previous + " before " + current,
+                            sequenceOf(previous) < sequenceOf(current));
+                }
+                previous = current;
+            }
+        }
+    }
+
+    private long sequenceOf(String messageId) {
+        return Long.parseLong(messageId.substring(messageId.lastIndexOf(':') + 1));
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptivePrefetchControllerTest {
+
+    @Test
+    public void testStartsAtConsumerPrefetch() {
+        AdaptivePrefetchController controller = new AdaptivePrefetchController();
+        assertEquals(1000, controller.getPrefetchSize(1000));
+        controller.setMaximumPrefetch(100);
+        assertEquals(100, controller.getPrefetchSize(1000));
+    }
+
+    @Test
+    public void testSlowConsumerShrinks() {
+        AdaptivePrefetchController controller = new AdaptivePrefetchController();
+        // 5 acks a second with 1000 in flight
+        long now = 0;
+        assertFalse(controller.acknowledged(1, 1000, 1000, now));
+        for (int i = 0; i < 5; i++) {
+            now += 200;
+            controller.acknowledged(1, 1000, 1000, now);
+        }
+        assertEquals(6, controller.getPrefetchSize(1000));
+        assertEquals(6.0, controller.getAckRate(), 0.01);
+        assertTrue(controller.getAckLatency() > 100000);
+    }
+
+    @Test
+    public void testFastConsumerGrowsToMaximum() {
+        AdaptivePrefetchController controller = new AdaptivePrefetchController();
+        controller.setMinimumPrefetch(10);
+        long now = 0;
+        controller.acknowledged(1, 1, 500, now);
+        // nearly idle at first, so the window goes down to the minimum
+        now += 1000;
+        assertTrue(controller.acknowledged(1, 1, 500, now));
+        assertEquals(10, controller.getPrefetchSize(500));
+        // then acks 2000 a second
+        for (int i = 0; i < 4; i++) {
+            now += 1000;
+            controller.acknowledged(2000, 10, 500, now);
+        }
+        assertEquals(500, controller.getPrefetchSize(500));
+    }
+
+    @Test
+    public void testIdleConsumerKeepsPrefetchOfOne() {
+        AdaptivePrefetchController controller = new AdaptivePrefetchController();
+        controller.setMinimumPrefetch(0);
+        assertEquals(1, controller.getMinimumPrefetch());
+        long now = 0;
+        controller.acknowledged(0, 10, 100, now);
+        now += 1000;
+        assertTrue(controller.acknowledged(0, 10, 100, now));
+        assertEquals(1, controller.getPrefetchSize(100));
+    }
+
+    @Test
+    public void testNotifiesOnlyOnSignificantChange() {
+        AdaptivePrefetchController controller = new AdaptivePrefetchController();
+        long now = 0;
+        controller.acknowledged(1, 10, 100, now);
+        // 96 a second is within 10% of the prefetch of 100
+        now += 1000;
+        assertFalse(controller.acknowledged(95, 10, 100, now));
+        assertEquals(96, controller.getPrefetchSize(100));
+        now += 1000;
+        assertTrue(controller.acknowledged(45, 10, 100, now));
+        assertEquals(71, controller.getPrefetchSize(100));
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.usage.MemoryUsage;
+import org.apache.activemq.util.Wait;
+import org.junit.Test;
+
+public class OffHeapMessageReferenceTest {
+
+    private ActiveMQTextMessage createMessage(MemoryUsage usage, long sequence, String text) throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setMessageId(new MessageId("ID:test-1:1:1", sequence));
+        message.setDestination(new ActiveMQQueue("TEST"));
+        message.setText(text);
+        message.setMemoryUsage(usage);
+        return message;
+    }
+
+    @Test
+    public void testMessageIsUnmarshalledFromBuffer() throws Exception {
+        OffHeapMessageBuffer buffer = new OffHeapMessageBuffer(4096);
+        MemoryUsage usage = new MemoryUsage();
+        ActiveMQTextMessage message = createMessage(usage, 1, "hello");
+        message.setGroupID("group");
+        message.setGroupSequence(3);
+
+        OffHeapMessageReference ref = new OffHeapMessageReference(buffer, message);
+        assertEquals("group", ref.getGroupID());
+        assertEquals(3, ref.getGroupSequence());
+        assertEquals(message.getSize(), ref.getSize());
+        assertTrue(buffer.getStoredSize() > 0);
+
+        ActiveMQTextMessage loaded = (ActiveMQTextMessage) ref.getMessage();
+        assertEquals("hello", loaded.getText());
+        assertEquals(message.getMessageId(), loaded.getMessageId());
+        assertSame(loaded, ref.getMessage());
+
+        ref.incrementRedeliveryCounter();
+        ref.release();
+        ActiveMQTextMessage reloaded = (ActiveMQTextMessage) ref.getMessage();
+        assertNotSame(loaded, reloaded);
+        assertEquals("hello", reloaded.getText());
+        assertEquals(1, reloaded.getRedeliveryCounter());
+    }
+
+    @Test
+    public void testLockedMessageIsNotReleased() throws Exception {
+        OffHeapMessageBuffer buffer = new OffHeapMessageBuffer(4096);
+        OffHeapMessageReference ref = new OffHeapMessageReference(buffer, createMessage(new MemoryUsage(), 1, "locked"));
+        assertTrue(ref.lock(LockOwner.HIGH_PRIORITY_LOCK_OWNER));
+        Object loaded = ref.getMessage();
+        ref.release();
+        assertSame(loaded, ref.getMessage());
+    }
+
+    @Test
+    public void testMemoryUsageAndSlabSpaceAreReleased() throws Exception {
+        OffHeapMessageBuffer buffer = new OffHeapMessageBuffer(4096);
+        MemoryUsage usage = new MemoryUsage();
+        ActiveMQTextMessage message = createMessage(usage, 1, "accounted");
+        message.incrementReferenceCount();
+        assertEquals(message.getSize(), usage.getUsage());
+
+        OffHeapMessageReference ref = new OffHeapMessageReference(buffer, message);
+        assertEquals(1, ref.getReferenceCount());
+
+        ref.incrementReferenceCount();
+        assertEquals(message.getSize(), usage.getUsage());
+
+        ref.decrementReferenceCount();
+        ref.drop();
+        assertTrue(ref.isDropped());
+        assertEquals(0, usage.getUsage());
+        assertEquals(0, buffer.getStoredSize());
+    }
+
+    @Test
+    public void testSlabsAreRecycled() throws Exception {
+        OffHeapMessageBuffer buffer = new OffHeapMessageBuffer(4096);
+        MemoryUsage usage = new MemoryUsage();
+        OffHeapMessageReference[] refs = new OffHeapMessageReference[100];
+        for (int i = 0; i < refs.length; i++) {
+            ActiveMQTextMessage message = createMessage(usage, i + 1, "message " + i);
+            message.incrementReferenceCount();
+            refs[i] = new OffHeapMessageReference(buffer, message);
+        }
+        long allocated = buffer.getAllocatedSize();
+        assertTrue(allocated > 4096);
+        for (OffHeapMessageReference ref : refs) {
+            ref.drop();
+        }
+        assertEquals(0, buffer.getStoredSize());
+        assertTrue(buffer.getAllocatedSize() <= allocated);
+    }
+
+    @Test
+    public void testCountsThroughOriginalMessageApplyToReference() throws Exception {
+        OffHeapMessageBuffer buffer = new OffHeapMessageBuffer(4096);
+        MemoryUsage usage = new MemoryUsage();
+        ActiveMQTextMessage message = createMessage(usage, 1, "delegated");
+        message.incrementReferenceCount();
+        message.incrementReferenceCount();
+
+        OffHeapMessageReference ref = new OffHeapMessageReference(buffer, message);
+        assertEquals(2, ref.getReferenceCount());
+
+        // the store releasing its lock on the original message
+        message.decrementReferenceCount();
+        assertEquals(1, ref.getReferenceCount());
+        assertEquals(1, message.getReferenceCount());
+
+        ref.getMessage().incrementReferenceCount();
+        assertEquals(2, ref.getReferenceCount());
+        ref.getMessage().decrementReferenceCount();
+
+        ref.drop();
+        assertEquals(0, usage.getUsage());
+        assertEquals(0, buffer.getStoredSize());
+        assertEquals("delegated", ((ActiveMQTextMessage) ref.getMessage()).getText());
+    }
+
+    @Test
+    public void testMemoryUsageIsReleasedAfterConsume() throws Exception {
+        BrokerService broker = new BrokerService();
+        broker.setDeleteAllMessagesOnStartup(true);
+        broker.setUseJmx(false);
+        broker.setAdvisorySupport(false);
+        PolicyEntry policy = new PolicyEntry();
+        policy.setOffHeapPagedInMessages(true);
+        PolicyMap policyMap = new PolicyMap();
+        policyMap.setDefaultEntry(policy);
+        broker.setDestinationPolicy(policyMap);
+        broker.start();
+        try {
+            ActiveMQQueue destination = new ActiveMQQueue("TEST.OFFHEAP");
+            Connection connection = new ActiveMQConnectionFactory("vm://localhost?create=false").createConnection();
+            connection.start();
+            Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(destination);
+            for (int i = 0; i < 100; i++) {
+                producer.send(session.createTextMessage("message " + i));
+            }
+            MessageConsumer consumer = session.createConsumer(destination);
+            for (int i = 0; i < 100; i++) {
+                javax.jms.Message received = consumer.receive(5000);
+                assertNotNull("received " + i, received);
+                received.acknowledge();
+            }
+            connection.close();
+
+            final Destination queue = broker.getDestination(destination);
+            assertTrue("memory usage released", Wait.waitFor(new Wait.Condition() {
+                public boolean isSatisified() throws Exception {
+                    return queue.getMemoryUsage().getUsage() == 0;
+                }
+            }));
+        } finally {
+            broker.stop();
+        }
+    }
+}
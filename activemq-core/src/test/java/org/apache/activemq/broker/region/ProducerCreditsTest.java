@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.command.ProducerInfo;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProducerCreditsTest {
+
+    private final Map<ProducerId, Integer> acked = new HashMap<ProducerId, Integer>();
+    private final ConnectionContext context = new ConnectionContext();
+    private ProducerCredits credits;
+
+    @Before
+    public void setUp() {
+        credits = new ProducerCredits() {
+            @Override
+            protected void sendAck(ConnectionContext context, ProducerId producerId, int size) {
+                Integer total = acked.get(producerId);
+                acked.put(producerId, Integer.valueOf((total != null ? total.intValue() : 0) + size));
+            }
+        };
+        credits.setStartPercent(60);
+    }
+
+    @Test
+    public void testFullCreditBelowStart() {
+        ProducerInfo info = createProducer("ID:test-1:1:1:1", 1000);
+        credits.grant(context, info, 100, 10);
+        credits.grant(context, info, 100, 60);
+        assertEquals(200, getAcked(info));
+        assertEquals(0, credits.getWithheld(info.getProducerId()));
+    }
+
+    @Test
+    public void testWindowShrinksWithHeadroom() {
+        ProducerInfo info = createProducer("ID:test-1:1:1:1", 1000);
+        // at 80% half the window is withheld
+        for (int i = 0; i < 10; i++) {
+            credits.grant(context, info, 100, 80);
+        }
+        assertEquals(500, credits.getWithheld(info.getProducerId()));
+        assertEquals(500, getAcked(info));
+        // when full the whole window is withheld
+        credits.grant(context, info, 100, 100);
+        credits.grant(context, info, 100, 100);
+        assertEquals(700, credits.getWithheld(info.getProducerId()));
+        assertEquals(500, getAcked(info));
+    }
+
+    @Test
+    public void testReleasedAsUsageFalls() {
+        ProducerInfo first = createProducer("ID:test-1:1:1:1", 1000);
+        ProducerInfo second = createProducer("ID:test-1:1:1:2", 2000);
+        credits.grant(context, first, 1000, 100);
+        credits.grant(context, second, 1000, 100);
+        assertEquals(0, getAcked(first));
+        assertEquals(0, getAcked(second));
+
+        credits.onUsageChanged(null, 100, 90);
+        assertEquals(250, getAcked(first));
+        assertEquals(0, getAcked(second));
+        // a rise hands nothing back
+        credits.onUsageChanged(null, 90, 95);
+        assertEquals(250, getAcked(first));
+
+        credits.onUsageChanged(null, 95, 50);
+        assertEquals(1000, getAcked(first));
+        assertEquals(1000, getAcked(second));
+        assertEquals(0, credits.getWithheld(first.getProducerId()));
+    }
+
+    @Test
+    public void testRemovedProducerIsForgotten() {
+        ProducerInfo info = createProducer("ID:test-1:1:1:1", 1000);
+        credits.grant(context, info, 500, 100);
+        credits.remove(info.getProducerId());
+        credits.release(0);
+        assertEquals(0, getAcked(info));
+    }
+
+    private ProducerInfo createProducer(String id, int windowSize) {
+        ProducerInfo info = new ProducerInfo(new ProducerId(id));
+        info.setWindowSize(windowSize);
+        return info;
+    }
+
+    private int getAcked(ProducerInfo info) {
+        Integer total = acked.get(info.getProducerId());
+        return total != null ? total.intValue() : 0;
+    }
+}
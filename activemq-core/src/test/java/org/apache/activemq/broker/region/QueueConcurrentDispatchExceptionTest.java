@@ -0,0 +1,254 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.Connection;
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.broker.Connector;
+import org.apache.activemq.broker.ProducerBrokerExchange;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.Command;
+import org.apache.activemq.command.ConnectionControl;
+import org.apache.activemq.command.ConnectionId;
+import org.apache.activemq.command.ConsumerControl;
+import org.apache.activemq.command.ConsumerId;
+import org.apache.activemq.command.ConsumerInfo;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerInfo;
+import org.apache.activemq.command.Response;
+import org.apache.activemq.command.SessionId;
+import org.apache.activemq.state.ProducerState;
+import org.apache.activemq.store.MessageStore;
+import org.apache.activemq.util.Wait;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueueConcurrentDispatchExceptionTest {
+
+    private static final String brokerName = "testBroker";
+    private static final String mesageIdRoot = "11111:22222:";
+
+    private final ActiveMQQueue destination = new ActiveMQQueue("queue-"
+            + QueueConcurrentDispatchExceptionTest.class.getSimpleName());
+
+    private BrokerService broker;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName(brokerName);
+        broker.setPersistent(false);
+        broker.setSchedulerSupport(false);
+        broker.setUseJmx(false);
+        broker.setUseShutdownHook(false);
+        broker.start();
+        broker.waitUntilStarted();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    @Test
+    public void testFailedSubscriptionIsClosedAndMessagesGoToAnother() throws Exception {
+        MessageStore queueMessageStore = broker.getPersistenceAdapter().createQueueMessageStore(destination);
+        final Queue queue = new Queue(broker, destination,
+                queueMessageStore, new DestinationStatistics(), broker.getTaskRunnerFactory());
+        queue.setConcurrentDispatch(true);
+        queue.initialize();
+        queue.start();
+
+        // the failing subscription is first in line for the first message
+        final RecordingConnection failingConnection = new RecordingConnection();
+        final RecordingSubscription failing = new RecordingSubscription(failingConnection, 1, true);
+        final RecordingSubscription other = new RecordingSubscription(new RecordingConnection(), 2, false);
+        queue.addSubscription(failing.getContext(), failing);
+        queue.addSubscription(other.getContext(), other);
+
+        ProducerBrokerExchange producerExchange = new ProducerBrokerExchange();
+        producerExchange.setProducerState(new ProducerState(new ProducerInfo()));
+        producerExchange.setConnectionContext(createContext(new RecordingConnection()));
+
+        queue.send(producerExchange, getMessage(1, 1));
+        assertTrue("first message redispatched", Wait.waitFor(new Wait.Condition() {
+            public boolean isSatisified() throws Exception {
+                return other.received.size() == 1;
+            }
+        }));
+
+        // the failed subscription is out of the dispatch, gave up the group
+        // and its consumer was asked to close
+        assertFalse(queue.getConsumers().contains(failing));
+        assertTrue(Wait.waitFor(new Wait.Condition() {
+            public boolean isSatisified() throws Exception {
+                for (Command command : failingConnection.dispatched) {
+                    if (command instanceof ConsumerControl && ((ConsumerControl) command).isClose()) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }));
+        assertEquals(other.getConsumerInfo().getConsumerId(), queue.getMessageGroupOwners().get("A"));
+
+        queue.send(producerExchange, getMessage(2, 2));
+        assertTrue("next message goes to the other consumer", Wait.waitFor(new Wait.Condition() {
+            public boolean isSatisified() throws Exception {
+                return other.received.size() == 2;
+            }
+        }));
+        assertEquals(1, failing.attempts);
+    }
+
+    private Message getMessage(int i, int groupSequence) throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setMessageId(new MessageId(mesageIdRoot + i));
+        message.setDestination(destination);
+        message.setPersistent(false);
+        message.setGroupID("A");
+        message.setGroupSequence(groupSequence);
+        message.setText("Msg:" + i);
+        return message;
+    }
+
+    private ConnectionContext createContext(Connection connection) {
+        ConnectionContext context = new ConnectionContext();
+        context.setBroker(broker.getBroker());
+        context.setConnection(connection);
+        return context;
+    }
+
+    private class RecordingSubscription extends QueueSubscription {
+
+        private final List<MessageReference> received = new CopyOnWriteArrayList<MessageReference>();
+        private final boolean fail;
+        private volatile int attempts;
+
+        RecordingSubscription(Connection connection, int id, boolean fail) throws Exception {
+            super(broker.getBroker(), broker.getSystemUsage(), createContext(connection), createConsumerInfo(id));
+            this.fail = fail;
+        }
+
+        @Override
+        public void add(MessageReference node) throws Exception {
+            attempts++;
+            if (fail) {
+                throw new IOException("Failed to dispatch");
+            }
+            received.add(node);
+        }
+    }
+
+    private ConsumerInfo createConsumerInfo(int id) {
+        ConsumerInfo info = new ConsumerInfo(new ConsumerId(new SessionId(new ConnectionId("connection-" + id), 1), 1));
+        info.setDestination(destination);
+        info.setPrefetchSize(100);
+        return info;
+    }
+
+    private static class RecordingConnection implements Connection {
+
+        private final List<Command> dispatched = new CopyOnWriteArrayList<Command>();
+
+        public void stop() throws Exception {
+        }
+
+        public void start() throws Exception {
+        }
+
+        public void updateClient(ConnectionControl control) {
+        }
+
+        public void serviceExceptionAsync(IOException e) {
+        }
+
+        public void serviceException(Throwable error) {
+        }
+
+        public Response service(Command command) {
+            return null;
+        }
+
+        public boolean isSlow() {
+            return false;
+        }
+
+        public boolean isNetworkConnection() {
+            return false;
+        }
+
+        public boolean isManageable() {
+            return false;
+        }
+
+        public boolean isFaultTolerantConnection() {
+            return false;
+        }
+
+        public boolean isConnected() {
+            return true;
+        }
+
+        public boolean isBlocked() {
+            return false;
+        }
+
+        public boolean isActive() {
+            return true;
+        }
+
+        public ConnectionStatistics getStatistics() {
+            return null;
+        }
+
+        public String getRemoteAddress() {
+            return null;
+        }
+
+        public int getDispatchQueueSize() {
+            return 0;
+        }
+
+        public Connector getConnector() {
+            return null;
+        }
+
+        public String getConnectionId() {
+            return null;
+        }
+
+        public void dispatchSync(Command message) {
+            dispatched.add(message);
+        }
+
+        public void dispatchAsync(Command command) {
+            dispatched.add(command);
+        }
+    }
+}
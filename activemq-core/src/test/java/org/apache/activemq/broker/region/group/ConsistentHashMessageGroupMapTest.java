@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region.group;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.command.ConnectionId;
+import org.apache.activemq.command.ConsumerId;
+import org.apache.activemq.command.SessionId;
+
+/**
+ * 
+ */
+public class ConsistentHashMessageGroupMapTest extends TestCase {
+
+    protected ConsistentHashMessageGroupMap map;
+    private ConsumerId consumer1;
+    private ConsumerId consumer2;
+    private ConsumerId consumer3;
+    private long idCounter;
+
+    public void testNoPreferredConsumerWithoutConsumers() throws Exception {
+        assertNull(map.getPreferredConsumer("1"));
+
+        map.addConsumer(consumer1);
+        assertEquals(consumer1, map.getPreferredConsumer("1"));
+        assertNull("not assigned yet", map.get("1"));
+
+        map.removeConsumer(consumer1);
+        assertNull(map.getPreferredConsumer("2"));
+    }
+
+    public void testExplicitOwnerIsKept() throws Exception {
+        map.addConsumer(consumer1);
+        map.addConsumer(consumer2);
+        map.put("A", consumer3);
+
+        assertEquals(consumer3, map.get("A"));
+
+        map.removeGroup("A");
+        assertNull(map.get("A"));
+        ConsumerId preferred = map.getPreferredConsumer("A");
+        assertTrue(consumer1.equals(preferred) || consumer2.equals(preferred) || consumer3.equals(preferred));
+    }
+
+    public void testGroupsAreSpreadOverConsumers() throws Exception {
+        map.addConsumer(consumer1);
+        map.addConsumer(consumer2);
+        map.addConsumer(consumer3);
+
+        Map<ConsumerId, Integer> counts = new HashMap<ConsumerId, Integer>();
+        for (int i = 0; i < 3000; i++) {
+            ConsumerId owner = map.getPreferredConsumer("group-" + i);
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+        }
+        assertEquals(3, counts.size());
+        for (Integer count : counts.values()) {
+            assertTrue("count " + count, count > 500);
+        }
+    }
+
+    public void testActiveGroupsStayWithOwnerWhenConsumerJoins() throws Exception {
+        map.addConsumer(consumer1);
+        map.addConsumer(consumer2);
+
+        Map<String, ConsumerId> before = new HashMap<String, ConsumerId>();
+        for (int i = 0; i < 100; i++) {
+            ConsumerId owner = map.getPreferredConsumer("group-" + i);
+            map.put("group-" + i, owner);
+            before.put("group-" + i, owner);
+        }
+
+        map.addConsumer(consumer3);
+
+        for (Map.Entry<String, ConsumerId> entry : before.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    public void testOnlyIdleGroupsInTakenRangesMove() throws Exception {
+        ConsistentHashMessageGroupMap ring = new ConsistentHashMessageGroupMap(64, 1);
+        ring.addConsumer(consumer1);
+        ring.addConsumer(consumer2);
+
+        Map<String, ConsumerId> before = new HashMap<String, ConsumerId>();
+        for (int i = 0; i < 1000; i++) {
+            ConsumerId owner = ring.getPreferredConsumer("group-" + i);
+            ring.put("group-" + i, owner);
+            before.put("group-" + i, owner);
+        }
+
+        ring.addConsumer(consumer3);
+
+        int moved = 0;
+        for (Map.Entry<String, ConsumerId> entry : before.entrySet()) {
+            ConsumerId owner = ring.get(entry.getKey());
+            if (owner == null) {
+                owner = ring.getPreferredConsumer(entry.getKey());
+            }
+            if (!owner.equals(entry.getValue())) {
+                assertEquals(consumer3, owner);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > 0 && moved < 600);
+    }
+
+    public void testRecentGroupsAreBounded() throws Exception {
+        ConsistentHashMessageGroupMap bounded = new ConsistentHashMessageGroupMap(16, 10);
+        bounded.addConsumer(consumer1);
+        for (int i = 0; i < 100; i++) {
+            bounded.put("group-" + i, consumer2);
+        }
+        assertEquals("message groups: 10, consumers: 2", bounded.toString());
+        assertEquals(consumer2, bounded.get("group-99"));
+        assertNull("evicted", bounded.get("group-0"));
+        assertNotNull(bounded.getPreferredConsumer("group-0"));
+        assertEquals("message groups: 10, consumers: 2", bounded.toString());
+    }
+
+    public void testRemoveConsumer() throws Exception {
+        map.addConsumer(consumer1);
+        map.addConsumer(consumer2);
+        map.put("A", consumer1);
+
+        String owned = null;
+        for (int i = 0; owned == null; i++) {
+            if (consumer1.equals(map.getPreferredConsumer("group-" + i))) {
+                owned = "group-" + i;
+            }
+        }
+
+        MessageGroupSet groups = map.removeConsumer(consumer1);
+        assertTrue(groups.contains("A"));
+        assertTrue(groups.contains(owned));
+
+        assertNull(map.get("A"));
+        assertEquals(consumer2, map.getPreferredConsumer("A"));
+        assertEquals(consumer2, map.getPreferredConsumer(owned));
+        assertTrue(map.toString().endsWith("consumers: 1"));
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        map = new ConsistentHashMessageGroupMap(64, 1000);
+        consumer1 = createConsumerId();
+        consumer2 = createConsumerId();
+        consumer3 = createConsumerId();
+    }
+
+    protected ConsumerId createConsumerId() {
+        ConnectionId connectionId = new ConnectionId("" + ++idCounter);
+        SessionId sessionId = new SessionId(connectionId, ++idCounter);
+        ConsumerId answer = new ConsumerId(sessionId, ++idCounter);
+        return answer;
+    }
+}
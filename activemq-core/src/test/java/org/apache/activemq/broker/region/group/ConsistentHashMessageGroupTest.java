@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region.group;
+
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQMessageConsumer;
+import org.apache.activemq.JmsTestSupport;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.Queue;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ConsumerId;
+
+public class ConsistentHashMessageGroupTest extends JmsTestSupport {
+
+    protected BrokerService createBroker() throws Exception {
+        BrokerService broker = super.createBroker();
+        PolicyEntry policy = new PolicyEntry();
+        policy.setMessageGroupMapFactory(new ConsistentHashMessageGroupMapFactory());
+        PolicyMap policyMap = new PolicyMap();
+        policyMap.setDefaultEntry(policy);
+        broker.setDestinationPolicy(policyMap);
+        return broker;
+    }
+
+    public void testGroupGoesToAnotherConsumerWhenRingOwnerDoesNotMatch() throws Exception {
+        ActiveMQDestination destination = new ActiveMQQueue("TEST");
+        connection.start();
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer red = session.createConsumer(destination, "color = 'red'");
+        MessageConsumer any = session.createConsumer(destination);
+
+        Queue queue = (Queue) broker.getRegionBroker().getDestinationMap().get(destination);
+        ConsistentHashMessageGroupMap owners = (ConsistentHashMessageGroupMap) queue.getMessageGroupOwners();
+        ConsumerId redId = ((ActiveMQMessageConsumer) red).getConsumerId();
+        String groupId = null;
+        for (int i = 0; groupId == null; i++) {
+            if (redId.equals(owners.getPreferredConsumer("group-" + i))) {
+                groupId = "group-" + i;
+            }
+        }
+
+        MessageProducer producer = session.createProducer(destination);
+        for (int i = 0; i < 3; i++) {
+            TextMessage message = session.createTextMessage("message " + i);
+            message.setStringProperty("JMSXGroupID", groupId);
+            message.setStringProperty("color", "blue");
+            producer.send(message);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            Message message = any.receive(5000);
+            assertNotNull("message " + i + " received", message);
+            assertEquals("first for consumer", i == 0, message.getBooleanProperty("JMSXGroupFirstForConsumer"));
+        }
+        assertNull(red.receive(100));
+    }
+}
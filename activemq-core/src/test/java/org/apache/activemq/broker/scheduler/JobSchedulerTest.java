@@ -33,8 +33,8 @@ import org.junit.Test;
 
 public class JobSchedulerTest {
 
-    private JobSchedulerStore store;
-    private JobScheduler scheduler;
+    protected JobSchedulerStore store;
+    protected JobScheduler scheduler;
 
     @Test
     public void testAddLongStringByteSequence() throws Exception {
@@ -238,8 +238,12 @@ public class JobSchedulerTest {
 
     }
 
+    protected JobSchedulerStore createStore() {
+        return new JobSchedulerStore();
+    }
+
     protected void startStore(File directory) throws Exception {
-        store = new JobSchedulerStore();
+        store = createStore();
         store.setDirectory(directory);
         store.start();
         scheduler = store.getJobScheduler("test");
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kahadb.util.ByteSequence;
+import org.junit.Test;
+
+public class TimingWheelJobSchedulerTest extends JobSchedulerTest {
+
+    @Override
+    protected JobSchedulerStore createStore() {
+        TimingWheelJobSchedulerStore store = new TimingWheelJobSchedulerStore();
+        store.setTickMillis(50);
+        store.setWindowMillis(1000);
+        return store;
+    }
+
+    @Test
+    public void testFireJobsBeyondTheWindow() throws Exception {
+        final int COUNT = 10;
+        final CountDownLatch latch = new CountDownLatch(COUNT);
+        scheduler.addListener(new JobListener() {
+            public void scheduledJob(String id, ByteSequence job) {
+                latch.countDown();
+            }
+        });
+        for (int i = 0; i < COUNT; i++) {
+            scheduler.schedule("id" + i, new ByteSequence(("test" + i).getBytes()), 2500 + i * 100);
+        }
+        assertEquals(COUNT, scheduler.getAllJobs().size());
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(scheduler.getAllJobs().isEmpty());
+        assertEquals(COUNT, scheduler.getSchedulingLatency().getCount());
+    }
+
+    @Test
+    public void testRescheduleWithSameId() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        scheduler.addListener(new JobListener() {
+            public void scheduledJob(String id, ByteSequence job) {
+                latch.countDown();
+            }
+        });
+        scheduler.schedule("id", new ByteSequence("first".getBytes()), 60000);
+        scheduler.schedule("id", new ByteSequence("second".getBytes()), 500);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getAllJobs().size());
+        scheduler.removeAllJobs();
+        assertTrue(scheduler.getAllJobs().isEmpty());
+    }
+}
@@ -481,6 +481,48 @@ public class ActiveMQMessageTest extends TestCase {
         assertNull(properties.get("nullProperty"));
     }
 
+    public void testMarshalledPropertyAccess() throws Exception {
+        ActiveMQMessage sent = new ActiveMQMessage();
+        sent.setStringProperty("region", "EU");
+        sent.setIntProperty("price", 10);
+        sent.beforeMarshall(new OpenWireFormat());
+
+        ActiveMQMessage received = new ActiveMQMessage();
+        received.setMarshalledProperties(sent.getMarshalledProperties());
+        received.setReadOnlyProperties(true);
+
+        assertEquals("EU", received.getStringProperty("region"));
+        assertEquals(10, received.getIntProperty("price"));
+        assertNull(received.getStringProperty("missing"));
+        assertNull("properties were not unmarshalled", received.properties);
+
+        received.setBooleanProperty("JMSXGroupFirstForConsumer", true, false);
+        assertNull("property was appended", received.properties);
+        assertTrue(received.getBooleanProperty("JMSXGroupFirstForConsumer"));
+
+        // an existing property is replaced in the map
+        received.setObjectProperty("price", Integer.valueOf(20), false);
+        assertNotNull(received.properties);
+        assertEquals(20, received.getIntProperty("price"));
+        assertEquals("EU", received.getStringProperty("region"));
+        assertTrue(received.getBooleanProperty("JMSXGroupFirstForConsumer"));
+    }
+
+    public void testMarshalledPropertiesUnmarshalledAfterRepeatedAccess() throws Exception {
+        ActiveMQMessage sent = new ActiveMQMessage();
+        sent.setStringProperty("region", "EU");
+        sent.beforeMarshall(new OpenWireFormat());
+
+        ActiveMQMessage received = new ActiveMQMessage();
+        received.setMarshalledProperties(sent.getMarshalledProperties());
+        for (int i = 0; i < org.apache.activemq.command.Message.MAX_MARSHALLED_PROPERTY_ACCESSES; i++) {
+            assertEquals("EU", received.getStringProperty("region"));
+        }
+        assertNull(received.properties);
+        assertEquals("EU", received.getStringProperty("region"));
+        assertNotNull(received.properties);
+    }
+
     public void testSetNullProperty() throws JMSException {
         Message msg = new ActiveMQMessage();
         String name = "cheese";
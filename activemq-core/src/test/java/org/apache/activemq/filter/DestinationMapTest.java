@@ -337,6 +337,60 @@ public class DestinationMapTest extends TestCase {
         assertMapValue("TEST.BAR.*", v3, v4);
     }
 
+    public void testLookupsAreCachedUntilTheMapChanges() throws Exception {
+        put("TEST.>", v1);
+        put("TEST.D1", v2);
+
+        assertMapValue("TEST.D1", v1, v2);
+        assertEquals(1, map.getLookupCacheMisses());
+        assertMapValue("TEST.D1", v1, v2);
+        assertEquals(1, map.getLookupCacheHits());
+
+        put("*.D1", v3);
+        assertMapValue("TEST.D1", v1, v2, v3);
+        assertEquals(2, map.getLookupCacheMisses());
+
+        remove("TEST.>", v1);
+        assertMapValue("TEST.D1", v2, v3);
+        assertEquals(3, map.getLookupCacheMisses());
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testChangingTheResultDoesNotChangeTheCache() throws Exception {
+        map.put(d1, v1);
+
+        map.get(d1).add(v2);
+        map.get(d1).clear();
+
+        assertMapValue(d1, v1);
+    }
+
+    public void testChosenValueIsCached() throws Exception {
+        put("TEST.>", "a");
+        put("TEST.D1", "b");
+
+        assertEquals("b", map.chooseValue(d1));
+        assertNull(map.chooseValue(createDestination("FOO")));
+        long misses = map.getLookupCacheMisses();
+
+        assertEquals("b", map.chooseValue(d1));
+        assertNull(map.chooseValue(createDestination("FOO")));
+        assertEquals(misses, map.getLookupCacheMisses());
+
+        put("TEST.D1", "c");
+        assertEquals("c", map.chooseValue(d1));
+    }
+
+    public void testLookupCacheCanBeDisabled() throws Exception {
+        map.setLookupCacheSize(0);
+        map.put(d1, v1);
+
+        assertMapValue(d1, v1);
+        assertMapValue(d1, v1);
+        assertEquals(0, map.getLookupCacheHits());
+        assertEquals(2, map.getLookupCacheMisses());
+    }
+
     protected void put(String name, Object value) {
         map.put(createDestination(name), value);
     }
@@ -0,0 +1,178 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.filter;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.selector.SelectorParser;
+
+public class SelectorIndexTest extends TestCase {
+
+    private static final String[] SELECTORS = {
+        "region = 'EU'",
+        "region = 'US' AND price > 10",
+        "price > 10",
+        "price >= 50 AND region = 'EU'",
+        "10 < price",
+        "price < 5",
+        "price BETWEEN 5 AND 20",
+        "price = 20.0",
+        "price = '15'",
+        "qty = 3",
+        "qty = '3'",
+        "code = 7",
+        "code <= 7.5",
+        "region LIKE 'E%'",
+        "region = 'EU' OR price > 100",
+        "NOT region = 'EU'",
+        "region IS NULL",
+        "JMSPriority > 5",
+        "JMSPriority = 4 AND region = 'EU'"
+    };
+
+    private SelectorIndex index;
+
+    protected void setUp() throws Exception {
+        index = new SelectorIndex();
+        for (int i = 0; i < SELECTORS.length; i++) {
+            index.add(Integer.valueOf(i), SELECTORS[i]);
+        }
+    }
+
+    public void testCandidatesIncludeEveryMatch() throws Exception {
+        ActiveMQMessage message = createMessage();
+        message.setStringProperty("region", "EU");
+        message.setIntProperty("price", 15);
+        assertCandidatesIncludeMatches(message);
+
+        message = createMessage();
+        message.setStringProperty("region", "US");
+        message.setLongProperty("price", 50);
+        message.setByteProperty("qty", (byte) 3);
+        assertCandidatesIncludeMatches(message);
+
+        message = createMessage();
+        message.setStringProperty("price", "15");
+        message.setStringProperty("qty", "3");
+        message.setStringProperty("code", "7");
+        assertCandidatesIncludeMatches(message);
+
+        message = createMessage();
+        message.setDoubleProperty("price", 20.0);
+        message.setShortProperty("code", (short) 7);
+        message.setJMSPriority(7);
+        assertCandidatesIncludeMatches(message);
+
+        message = createMessage();
+        message.setFloatProperty("price", 4.5f);
+        message.setStringProperty("qty", "three");
+        message.setDoubleProperty("code", Double.NaN);
+        assertCandidatesIncludeMatches(message);
+
+        message = createMessage();
+        message.setStringProperty("region", "AP");
+        message.setIntProperty("price", -0);
+        message.setStringProperty("qty", " 3");
+        assertCandidatesIncludeMatches(message);
+    }
+
+    public void testNonMatchingGuardsAreRuledOut() throws Exception {
+        ActiveMQMessage message = createMessage();
+        message.setStringProperty("region", "US");
+        message.setIntProperty("price", 1);
+
+        SelectorIndex.Matches matches = index.match(evaluationContext(message));
+        assertFalse(matches.isCandidate(Integer.valueOf(0), SELECTORS[0]));
+        assertFalse(matches.isCandidate(Integer.valueOf(2), SELECTORS[2]));
+        assertFalse(matches.isCandidate(Integer.valueOf(3), SELECTORS[3]));
+        assertFalse(matches.isCandidate(Integer.valueOf(6), SELECTORS[6]));
+        assertFalse(matches.isCandidate(Integer.valueOf(9), SELECTORS[9]));
+        assertTrue(matches.isCandidate(Integer.valueOf(1), SELECTORS[1]));
+        assertTrue(matches.isCandidate(Integer.valueOf(5), SELECTORS[5]));
+        // not indexable
+        assertTrue(matches.isCandidate(Integer.valueOf(13), SELECTORS[13]));
+        assertTrue(matches.isCandidate(Integer.valueOf(14), SELECTORS[14]));
+        assertTrue(matches.isCandidate(Integer.valueOf(15), SELECTORS[15]));
+        assertTrue(matches.isCandidate(Integer.valueOf(16), SELECTORS[16]));
+    }
+
+    public void testChangedAndRemovedSelectors() throws Exception {
+        ActiveMQMessage message = createMessage();
+        message.setStringProperty("region", "US");
+        MessageEvaluationContext context = evaluationContext(message);
+
+        SelectorIndex.Matches matches = index.match(context);
+        assertFalse(matches.isCandidate(Integer.valueOf(0), "region = 'EU'"));
+
+        // a changed selector is a candidate and is indexed for later messages
+        assertTrue(matches.isCandidate(Integer.valueOf(0), "region = 'US'"));
+        assertTrue(index.match(context).isCandidate(Integer.valueOf(0), "region = 'US'"));
+        assertFalse(index.match(context).isCandidate(Integer.valueOf(3), SELECTORS[3]));
+
+        index.remove(Integer.valueOf(3));
+        assertEquals(SELECTORS.length - 1, index.size());
+        assertTrue(index.match(context).isCandidate(Integer.valueOf(3), SELECTORS[3]));
+        assertEquals(SELECTORS.length, index.size());
+
+        // no selector is always a candidate
+        assertTrue(index.match(context).isCandidate("other", null));
+    }
+
+    public void testEvaluationContextCachesMatches() throws Exception {
+        ActiveMQMessage message = createMessage();
+        message.setStringProperty("region", "US");
+        MessageEvaluationContext context = evaluationContext(message);
+
+        assertTrue(context.isSelectorCandidate(Integer.valueOf(0), SELECTORS[0]));
+        context.setSelectorIndex(index);
+        assertFalse(context.isSelectorCandidate(Integer.valueOf(0), SELECTORS[0]));
+
+        ActiveMQMessage next = createMessage();
+        next.setStringProperty("region", "EU");
+        context.setMessageReference(next);
+        assertTrue(context.isSelectorCandidate(Integer.valueOf(0), SELECTORS[0]));
+
+        context.clear();
+        assertNull(context.getSelectorIndex());
+    }
+
+    private void assertCandidatesIncludeMatches(ActiveMQMessage message) throws Exception {
+        MessageEvaluationContext context = evaluationContext(message);
+        SelectorIndex.Matches matches = index.match(context);
+        for (int i = 0; i < SELECTORS.length; i++) {
+            if (SelectorParser.parse(SELECTORS[i]).matches(context)) {
+                assertTrue("Matching selector is a candidate: " + SELECTORS[i] + " for " + message.getProperties(),
+                           matches.isCandidate(Integer.valueOf(i), SELECTORS[i]));
+            }
+        }
+    }
+
+    private ActiveMQMessage createMessage() {
+        ActiveMQMessage message = new ActiveMQMessage();
+        message.setDestination(new ActiveMQTopic("TEST"));
+        message.setJMSPriority(4);
+        return message;
+    }
+
+    private MessageEvaluationContext evaluationContext(ActiveMQMessage message) {
+        MessageEvaluationContext context = new MessageEvaluationContext();
+        context.setMessageReference(message);
+        return context;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.openwire;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.BrokerId;
+import org.apache.activemq.command.CommandTypes;
+import org.apache.activemq.command.ConnectionId;
+import org.apache.activemq.command.ConsumerId;
+import org.apache.activemq.command.MessageDispatch;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.command.SessionId;
+import org.apache.activemq.util.ByteSequence;
+
+public class CachedMarshalledFormTest extends TestCase {
+
+    public void testDispatchesUseTheCachedForm() throws Exception {
+        for (int version = 1; version <= CommandTypes.PROTOCOL_VERSION; version++) {
+            for (int i = 0; i < 4; i++) {
+                boolean tight = (i & 1) != 0;
+                boolean cache = (i & 2) != 0;
+                String settings = "version=" + version + ", tight=" + tight + ", cache=" + cache;
+
+                ActiveMQTextMessage message = createMessage();
+                OpenWireFormat first = createWireFormat(version, tight, cache);
+                OpenWireFormat second = createWireFormat(version, tight, cache);
+                OpenWireFormat reader = createWireFormat(version, tight, cache);
+
+                // the form is only cached once a message is dispatched again
+                message.setBrokerOutTime(1000000000000L);
+                ByteSequence sequence = first.marshal(createDispatch(message, "1"));
+                assertFalse(settings, message.getCachedMarshalledForm() instanceof CachedMarshalledForm);
+                assertDispatch(settings, version, message, reader.unmarshal(sequence));
+
+                // another consumer on another connection
+                message.setBrokerOutTime(1000000000001L);
+                OpenWireFormat secondReader = createWireFormat(version, tight, cache);
+                assertDispatch(settings, version, message, secondReader.unmarshal(second.marshal(createDispatch(message, "2"))));
+                Object form = message.getCachedMarshalledForm();
+                assertTrue(settings, form instanceof CachedMarshalledForm);
+
+                // and another on each connection get the same form with their
+                // own broker out time
+                message.setBrokerOutTime(1000000000002L);
+                assertDispatch(settings, version, message, secondReader.unmarshal(second.marshal(createDispatch(message, "2"))));
+                assertSame(settings, form, message.getCachedMarshalledForm());
+
+                message.setBrokerOutTime(1000000000003L);
+                assertDispatch(settings, version, message, reader.unmarshal(first.marshal(createDispatch(message, "3"))));
+                assertSame(settings, form, message.getCachedMarshalledForm());
+            }
+        }
+    }
+
+    public void testChangedMessageIsMarshalledAgain() throws Exception {
+        OpenWireFormat wireFormat = createWireFormat(CommandTypes.PROTOCOL_VERSION, true, true);
+        OpenWireFormat reader = createWireFormat(CommandTypes.PROTOCOL_VERSION, true, true);
+        ActiveMQTextMessage message = createMessage();
+        reader.unmarshal(wireFormat.marshal(createDispatch(message, "1")));
+        reader.unmarshal(wireFormat.marshal(createDispatch(message, "2")));
+        Object form = message.getCachedMarshalledForm();
+        assertTrue(form instanceof CachedMarshalledForm);
+
+        message.setRedeliveryCounter(2);
+        message.setText("changed");
+        message.setBrokerPath(new BrokerId[] {new BrokerId("broker-1"), new BrokerId("broker-2")});
+        message.setDestination(new ActiveMQQueue("Queue.B"));
+        assertNull(message.getCachedMarshalledForm());
+
+        assertDispatch("changed", CommandTypes.PROTOCOL_VERSION, message, reader.unmarshal(wireFormat.marshal(createDispatch(message, "3"))));
+        assertDispatch("changed", CommandTypes.PROTOCOL_VERSION, message, reader.unmarshal(wireFormat.marshal(createDispatch(message, "4"))));
+        assertTrue(message.getCachedMarshalledForm() instanceof CachedMarshalledForm);
+        assertNotSame(form, message.getCachedMarshalledForm());
+    }
+
+    public void testEnabledByDefault() throws Exception {
+        assertTrue(new OpenWireFormat().isMarshalledFormCacheEnabled());
+        assertTrue(new OpenWireFormatFactory().isMarshalledFormCacheEnabled());
+        OpenWireFormat wireFormat = (OpenWireFormat)new OpenWireFormatFactory().createWireFormat();
+        assertTrue(wireFormat.isMarshalledFormCacheEnabled());
+        assertTrue(wireFormat.copy().isMarshalledFormCacheEnabled());
+    }
+
+    public void testInPlaceChangeIsMarshalledAgain() throws Exception {
+        // no value cache, which would hold on to the objects changed in place
+        OpenWireFormat wireFormat = createWireFormat(CommandTypes.PROTOCOL_VERSION, true, false);
+        OpenWireFormat reader = createWireFormat(CommandTypes.PROTOCOL_VERSION, true, false);
+        ActiveMQTextMessage message = createMessage();
+        reader.unmarshal(wireFormat.marshal(createDispatch(message, "1")));
+        reader.unmarshal(wireFormat.marshal(createDispatch(message, "2")));
+        Object form = message.getCachedMarshalledForm();
+        assertTrue(form instanceof CachedMarshalledForm);
+
+        // the store sets the broker sequence id in place, not through the
+        // message setters
+        message.getMessageId().setBrokerSequenceId(7);
+        MessageDispatch md = (MessageDispatch)reader.unmarshal(wireFormat.marshal(createDispatch(message, "3")));
+        assertDispatch("sequence", CommandTypes.PROTOCOL_VERSION, message, md);
+        assertEquals(7, md.getMessage().getMessageId().getBrokerSequenceId());
+        assertNotSame(form, message.getCachedMarshalledForm());
+        form = message.getCachedMarshalledForm();
+
+        message.getMessageId().setProducerSequenceId(2);
+        md = (MessageDispatch)reader.unmarshal(wireFormat.marshal(createDispatch(message, "4")));
+        assertEquals(2, md.getMessage().getMessageId().getProducerSequenceId());
+        assertNotSame(form, message.getCachedMarshalledForm());
+        form = message.getCachedMarshalledForm();
+
+        message.getDestination().setPhysicalName("Topic.B");
+        md = (MessageDispatch)reader.unmarshal(wireFormat.marshal(createDispatch(message, "5")));
+        assertEquals("Topic.B", md.getMessage().getDestination().getPhysicalName());
+        assertNotSame(form, message.getCachedMarshalledForm());
+        form = message.getCachedMarshalledForm();
+
+        message.getBrokerPath()[0].setValue("broker-2");
+        md = (MessageDispatch)reader.unmarshal(wireFormat.marshal(createDispatch(message, "6")));
+        assertEquals("broker-2", md.getMessage().getBrokerPath()[0].getValue());
+        assertNotSame(form, message.getCachedMarshalledForm());
+        form = message.getCachedMarshalledForm();
+
+        // an unchanged message keeps its form
+        reader.unmarshal(wireFormat.marshal(createDispatch(message, "7")));
+        assertSame(form, message.getCachedMarshalledForm());
+    }
+
+    public void testNoCachedFormWhenDisabled() throws Exception {
+        OpenWireFormat wireFormat = createWireFormat(CommandTypes.PROTOCOL_VERSION, true, false);
+        wireFormat.setMarshalledFormCacheEnabled(false);
+        ActiveMQTextMessage message = createMessage();
+        OpenWireFormat reader = createWireFormat(CommandTypes.PROTOCOL_VERSION, true, false);
+        assertDispatch("disabled", CommandTypes.PROTOCOL_VERSION, message, reader.unmarshal(wireFormat.marshal(createDispatch(message, "1"))));
+        assertDispatch("disabled", CommandTypes.PROTOCOL_VERSION, message, reader.unmarshal(wireFormat.marshal(createDispatch(message, "2"))));
+        assertNull(message.getCachedMarshalledForm());
+    }
+
+    protected OpenWireFormat createWireFormat(int version, boolean tight, boolean cache) {
+        OpenWireFormat wireFormat = new OpenWireFormat(version);
+        wireFormat.setTightEncodingEnabled(tight);
+        wireFormat.setCacheEnabled(cache);
+        return wireFormat;
+    }
+
+    protected ActiveMQTextMessage createMessage() throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        ProducerId producerId = new ProducerId("ID:producer-1:1:1");
+        message.setProducerId(producerId);
+        message.setMessageId(new MessageId(producerId, 1));
+        message.setDestination(new ActiveMQTopic("Topic.A"));
+        message.setPersistent(true);
+        message.setTimestamp(System.currentTimeMillis());
+        message.setBrokerInTime(System.currentTimeMillis());
+        message.setBrokerPath(new BrokerId[] {new BrokerId("broker-1")});
+        message.setText("hello");
+        message.setProperty("name", "value");
+        message.setIntProperty("count", 42);
+        return message;
+    }
+
+    protected MessageDispatch createDispatch(ActiveMQTextMessage message, String consumer) {
+        MessageDispatch md = new MessageDispatch();
+        md.setConsumerId(new ConsumerId(new SessionId(new ConnectionId("ID:consumer-" + consumer), 1), 1));
+        md.setDestination(message.getDestination());
+        md.setMessage(message);
+        md.setRedeliveryCounter(message.getRedeliveryCounter());
+        return md;
+    }
+
+    protected void assertDispatch(String settings, int version, ActiveMQTextMessage expected, Object actual) throws Exception {
+        MessageDispatch md = (MessageDispatch)actual;
+        ActiveMQTextMessage message = (ActiveMQTextMessage)md.getMessage();
+        assertEquals(settings, expected.getMessageId(), message.getMessageId());
+        assertEquals(settings, expected.getProducerId(), message.getProducerId());
+        assertEquals(settings, expected.getDestination(), message.getDestination());
+        assertEquals(settings, expected.getText(), message.getText());
+        assertEquals(settings, expected.getProperties(), message.getProperties());
+        assertEquals(settings, expected.getRedeliveryCounter(), message.getRedeliveryCounter());
+        assertEquals(settings, expected.getBrokerPath().length, message.getBrokerPath().length);
+        if (version >= 3) {
+            assertEquals(settings, expected.getBrokerInTime(), message.getBrokerInTime());
+            assertEquals(settings, expected.getBrokerOutTime(), message.getBrokerOutTime());
+        }
+    }
+}
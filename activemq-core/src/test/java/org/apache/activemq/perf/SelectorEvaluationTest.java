@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.perf;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.filter.BooleanExpression;
+import org.apache.activemq.filter.MessageEvaluationContext;
+import org.apache.activemq.filter.SelectorCompiler;
+import org.apache.activemq.selector.SelectorParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the time taken to match a set of typical selectors against a
+ * message with the interpreted and the compiled selector expressions.
+ */
+public class SelectorEvaluationTest extends TestCase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SelectorEvaluationTest.class);
+
+    protected static final String[] SELECTORS = {
+        "JMSPriority > 4",
+        "region = 'EMEA'",
+        "price > 100 AND quantity < 50",
+        "region = 'EMEA' AND (price > 100 OR quantity >= 10)",
+        "NOT (customerId = 42) AND JMSTimestamp > 1000",
+        "symbol LIKE 'AB%' AND price < 200.5"
+    };
+
+    protected int iterations = 1000000;
+
+    public void testEvaluation() throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setDestination(new ActiveMQQueue("TEST"));
+        message.setText("test");
+        message.setJMSPriority(7);
+        message.setJMSTimestamp(System.currentTimeMillis());
+        message.setStringProperty("region", "EMEA");
+        message.setStringProperty("symbol", "ABC");
+        message.setDoubleProperty("price", 150.0);
+        message.setIntProperty("quantity", 20);
+        message.setLongProperty("customerId", 17);
+
+        MessageEvaluationContext context = new MessageEvaluationContext();
+        context.setMessageReference(message);
+
+        for (String text : SELECTORS) {
+            BooleanExpression interpreted = SelectorParser.parse(text);
+            BooleanExpression compiled = SelectorCompiler.compile(interpreted);
+            assertEquals(text, interpreted.matches(context), compiled.matches(context));
+
+            // warm up
+            run(interpreted, context, iterations / 10);
+            run(compiled, context, iterations / 10);
+
+            long interpretedTime = run(interpreted, context, iterations);
+            long compiledTime = run(compiled, context, iterations);
+            LOG.info(text + ": interpreted " + rate(interpretedTime) + " matches/s, compiled " + rate(compiledTime) + " matches/s");
+        }
+    }
+
+    private long run(BooleanExpression expression, MessageEvaluationContext context, int count) throws Exception {
+        long start = System.nanoTime();
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            if (expression.matches(context)) {
+                matched++;
+            }
+        }
+        assertTrue(matched == 0 || matched == count);
+        return System.nanoTime() - start;
+    }
+
+    private long rate(long nanos) {
+        return iterations * 1000000000L / Math.max(1, nanos);
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.selector;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.apache.activemq.filter.BooleanExpression;
+import org.apache.activemq.filter.MessageEvaluationContext;
+import org.apache.activemq.filter.SelectorCompiler;
+
+/**
+ * Runs the selector tests against compiled selectors and checks every
+ * compiled result against the interpreted one.
+ */
+public class CompiledSelectorTest extends SelectorTest {
+
+    protected BooleanExpression parseSelector(String text) throws JMSException {
+        return SelectorCompiler.compile(super.parseSelector(text));
+    }
+
+    protected void assertSelector(Message message, String text, boolean expected) throws JMSException {
+        super.assertSelector(message, text, expected);
+
+        MessageEvaluationContext context = new MessageEvaluationContext();
+        context.setMessageReference((org.apache.activemq.command.Message)message);
+        Object interpreted = super.parseSelector(text).evaluate(context);
+        Object compiled = parseSelector(text).evaluate(context);
+        assertEquals("Compiled value for: " + text, interpreted, compiled);
+    }
+
+    public void testSelectorsAreCompiled() throws Exception {
+        assertTrue(parseSelector("rank > 100 AND name = 'James'") instanceof SelectorCompiler.CompiledExpression);
+        assertTrue(parseSelector("JMSPriority > 3") instanceof SelectorCompiler.CompiledExpression);
+        // nothing to compile, the interpreted expression is used as is
+        BooleanExpression like = super.parseSelector("name LIKE 'J%'");
+        assertSame(like, SelectorCompiler.compile(like));
+    }
+
+    public void testMixedTypeComparisons() throws Exception {
+        Message message = createMessage();
+
+        assertSelector(message, "intProp = '123'", true);
+        assertSelector(message, "123 = byteProp", false);
+        assertSelector(message, "123 = intProp", true);
+        assertSelector(message, "100 < rank", true);
+        assertSelector(message, "200 <= rank", false);
+        assertSelector(message, "longProp = 123", true);
+        assertSelector(message, "longProp < 123.5", true);
+        assertSelector(message, "doubleProp > 122", true);
+        assertSelector(message, "doubleProp = 123.0", true);
+        assertSelector(message, "floatProp >= 123", true);
+        assertSelector(message, "shortProp < 124", true);
+        assertSelector(message, "name > 5", false);
+        assertSelector(message, "trueProp = TRUE", true);
+    }
+
+    public void testUnknownValues() throws Exception {
+        Message message = createMessage();
+
+        assertSelector(message, "dummy > 5", false);
+        assertSelector(message, "NOT (dummy > 5)", false);
+        assertSelector(message, "dummy = 5", false);
+        assertSelector(message, "NOT (dummy = 5)", true);
+        assertSelector(message, "dummy > 5 OR rank > 100", true);
+        assertSelector(message, "rank > 100 OR dummy > 5", true);
+        assertSelector(message, "dummy > 5 AND rank > 100", false);
+        assertSelector(message, "NOT (dummy > 5 AND rank > 100)", false);
+        assertSelector(message, "NOT (rank < 100 AND dummy > 5)", true);
+        assertSelector(message, "NOT (rank < 100 OR dummy > 5)", false);
+    }
+
+    public void testHeaderComparisons() throws Exception {
+        Message message = createMessage();
+        message.setJMSPriority(7);
+        message.setJMSTimestamp(1000L);
+
+        assertSelector(message, "JMSPriority > 4", true);
+        assertSelector(message, "JMSPriority = 7", true);
+        assertSelector(message, "JMSPriority < 6.5", false);
+        assertSelector(message, "JMSTimestamp >= 1000", true);
+        assertSelector(message, "JMSTimestamp < 999", false);
+        assertSelector(message, "JMSXDeliveryCount = 1", true);
+        assertSelector(message, "5 < JMSPriority", true);
+    }
+}
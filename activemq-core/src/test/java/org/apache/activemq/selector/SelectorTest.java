@@ -384,8 +384,12 @@ public class SelectorTest extends TestCase {
         }
     }
 
+    protected BooleanExpression parseSelector(String text) throws JMSException {
+        return SelectorParser.parse(text);
+    }
+
     protected void assertSelector(Message message, String text, boolean expected) throws JMSException {
-        BooleanExpression selector = SelectorParser.parse(text);
+        BooleanExpression selector = parseSelector(text);
         assertTrue("Created a valid selector", selector != null);
         MessageEvaluationContext context = new MessageEvaluationContext();
         context.setMessageReference((org.apache.activemq.command.Message)message);
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.SubscriptionInfo;
+import org.apache.activemq.store.TopicMessageStore;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Acks the messages of a topic for a few durable subscriptions in different
+ * patterns and checks the pending counts of the subscriptions, and that a
+ * message is removed once every subscription has acked it, also after the
+ * store is restarted and the message references are loaded from the index.
+ */
+public class KahaDBDurableSubscriptionAcksTest {
+
+    private static final ActiveMQTopic TOPIC = new ActiveMQTopic("DurableAcks");
+    private static final String PRODUCER = "ID:durable-acks:1:1:1";
+    private static final String CLIENT = "client";
+
+    private final ConnectionContext context = new ConnectionContext();
+    private KahaDBPersistenceAdapter adapter;
+
+    @After
+    public void tearDown() throws Exception {
+        if (adapter != null) {
+            adapter.stop();
+        }
+    }
+
+    @Test
+    public void testPendingAcksSurviveRestart() throws Exception {
+        TopicMessageStore store = startAdapter(true);
+        for (int s = 0; s < 3; s++) {
+            SubscriptionInfo info = new SubscriptionInfo();
+            info.setClientId(CLIENT);
+            info.setSubscriptionName("sub" + s);
+            info.setDestination(TOPIC);
+            info.setSubscribedDestination(TOPIC);
+            store.addSubsciption(info, false);
+        }
+        for (int i = 1; i <= 20; i++) {
+            ActiveMQTextMessage message = new ActiveMQTextMessage();
+            message.setMessageId(new MessageId(PRODUCER, i));
+            message.setDestination(TOPIC);
+            message.setPersistent(true);
+            message.setText("message " + i);
+            store.addMessage(context, message);
+        }
+
+        for (int i = 1; i <= 20; i++) {
+            acknowledge(store, "sub0", i);
+            if (i % 2 == 0) {
+                acknowledge(store, "sub1", i);
+            }
+        }
+        assertEquals(0, store.getMessageCount(CLIENT, "sub0"));
+        assertEquals(10, store.getMessageCount(CLIENT, "sub1"));
+        assertEquals(20, store.getMessageCount(CLIENT, "sub2"));
+        assertEquals(20, store.getMessageCount());
+
+        for (int i = 1; i <= 10; i++) {
+            acknowledge(store, "sub2", i);
+        }
+        assertEquals(10, store.getMessageCount(CLIENT, "sub2"));
+        assertEquals("acked by all", 15, store.getMessageCount());
+
+        adapter.stop();
+        store = startAdapter(false);
+        assertEquals(0, store.getMessageCount(CLIENT, "sub0"));
+        assertEquals(10, store.getMessageCount(CLIENT, "sub1"));
+        assertEquals(10, store.getMessageCount(CLIENT, "sub2"));
+        assertEquals(15, store.getMessageCount());
+
+        for (int i = 1; i <= 20; i++) {
+            if (i % 2 != 0) {
+                acknowledge(store, "sub1", i);
+            }
+            if (i > 10) {
+                acknowledge(store, "sub2", i);
+            }
+        }
+        assertEquals(0, store.getMessageCount(CLIENT, "sub1"));
+        assertEquals(0, store.getMessageCount(CLIENT, "sub2"));
+        assertEquals(0, store.getMessageCount());
+    }
+
+    @Test
+    public void testRetroactiveAndRemovedSubscriptions() throws Exception {
+        TopicMessageStore store = startAdapter(true);
+        // the key of one subscription is a prefix of the other's
+        addSubscription(store, "sub", false);
+        addSubscription(store, "sub1", false);
+        for (int i = 1; i <= 10; i++) {
+            addMessage(store, i);
+        }
+        for (int i = 1; i <= 10; i++) {
+            acknowledge(store, "sub", i);
+        }
+        assertEquals(0, store.getMessageCount(CLIENT, "sub"));
+        assertEquals(10, store.getMessageCount(CLIENT, "sub1"));
+
+        addSubscription(store, "retroactive", true);
+        assertEquals(10, store.getMessageCount(CLIENT, "retroactive"));
+
+        store.deleteSubscription(CLIENT, "sub1");
+        assertEquals("still referenced", 10, store.getMessageCount());
+        for (int i = 1; i <= 5; i++) {
+            acknowledge(store, "retroactive", i);
+        }
+        assertEquals(5, store.getMessageCount());
+
+        adapter.stop();
+        store = startAdapter(false);
+        assertEquals(0, store.getMessageCount(CLIENT, "sub"));
+        assertEquals(5, store.getMessageCount(CLIENT, "retroactive"));
+        store.deleteSubscription(CLIENT, "retroactive");
+        assertEquals(0, store.getMessageCount());
+    }
+
+    private void addSubscription(TopicMessageStore store, String subscriptionName, boolean retroactive) throws Exception {
+        SubscriptionInfo info = new SubscriptionInfo();
+        info.setClientId(CLIENT);
+        info.setSubscriptionName(subscriptionName);
+        info.setDestination(TOPIC);
+        info.setSubscribedDestination(TOPIC);
+        store.addSubsciption(info, retroactive);
+    }
+
+    private void addMessage(TopicMessageStore store, int i) throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setMessageId(new MessageId(PRODUCER, i));
+        message.setDestination(TOPIC);
+        message.setPersistent(true);
+        message.setText("message " + i);
+        store.addMessage(context, message);
+    }
+
+    private TopicMessageStore startAdapter(boolean delete) throws Exception {
+        adapter = new KahaDBPersistenceAdapter();
+        adapter.setDirectory(new File("target/activemq-data/kahadb-durable-acks"));
+        if (delete) {
+            adapter.deleteAllMessages();
+        }
+        adapter.start();
+        return adapter.createTopicMessageStore(TOPIC);
+    }
+
+    private void acknowledge(TopicMessageStore store, String subscriptionName, int i) throws Exception {
+        MessageId messageId = new MessageId(PRODUCER, i);
+        MessageAck ack = new MessageAck();
+        ack.setDestination(TOPIC);
+        ack.setLastMessageId(messageId);
+        ack.setAckType(MessageAck.STANDARD_ACK_TYPE);
+        ack.setMessageCount(1);
+        store.acknowledge(context, CLIENT, subscriptionName, messageId, ack);
+    }
+}
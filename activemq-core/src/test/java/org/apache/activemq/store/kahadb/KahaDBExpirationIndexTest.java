@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.store.MessageStore;
+import org.apache.activemq.store.kahadb.MessageDatabase.StoredDestination;
+import org.apache.kahadb.page.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that messages with a time to live leave the KahaDB expiration index
+ * when they are removed, whether or not anything asks for expired messages.
+ */
+public class KahaDBExpirationIndexTest {
+
+    private static final ActiveMQQueue QUEUE = new ActiveMQQueue("Expiration");
+
+    private final ConnectionContext context = new ConnectionContext();
+    private KahaDBPersistenceAdapter adapter;
+
+    @Before
+    public void setUp() throws Exception {
+        adapter = new KahaDBPersistenceAdapter();
+        adapter.setDirectory(new File("target/activemq-data/kahadb-expiration"));
+        adapter.deleteAllMessages();
+        adapter.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        adapter.stop();
+    }
+
+    @Test
+    public void testRemovedMessagesLeaveTheIndex() throws Exception {
+        MessageStore store = adapter.createQueueMessageStore(QUEUE);
+        long expiration = System.currentTimeMillis() + 60000;
+        for (int i = 1; i <= 10; i++) {
+            store.addMessage(context, createMessage(i, expiration + i % 3));
+        }
+        assertEquals(3, getExpirationIndexSize());
+
+        for (int i = 1; i <= 10; i++) {
+            MessageAck ack = new MessageAck();
+            ack.setDestination(QUEUE);
+            ack.setLastMessageId(new MessageId("ID:expiration:1:1:1", i));
+            ack.setAckType(MessageAck.STANDARD_ACK_TYPE);
+            ack.setMessageCount(1);
+            store.removeMessage(context, ack);
+        }
+        assertEquals(0, getExpirationIndexSize());
+        assertTrue(isExpiringMessagesEmpty());
+    }
+
+    private int getExpirationIndexSize() throws IOException {
+        final KahaDBStore kahaDB = adapter.getStore();
+        return kahaDB.getPageFile().tx().execute(new Transaction.CallableClosure<Integer, IOException>() {
+            public Integer execute(Transaction tx) throws IOException {
+                StoredDestination sd = kahaDB.getStoredDestination(kahaDB.convert(QUEUE), tx);
+                int size = 0;
+                for (java.util.Iterator<?> iterator = sd.expirationIndex.iterator(tx); iterator.hasNext(); iterator.next()) {
+                    size++;
+                }
+                return size;
+            }
+        });
+    }
+
+    private boolean isExpiringMessagesEmpty() throws IOException {
+        final KahaDBStore kahaDB = adapter.getStore();
+        return kahaDB.getPageFile().tx().execute(new Transaction.CallableClosure<Boolean, IOException>() {
+            public Boolean execute(Transaction tx) throws IOException {
+                return kahaDB.getStoredDestination(kahaDB.convert(QUEUE), tx).expiringMessages.isEmpty(tx);
+            }
+        });
+    }
+
+    private ActiveMQTextMessage createMessage(int i, long expiration) throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setMessageId(new MessageId("ID:expiration:1:1:1", i));
+        message.setDestination(QUEUE);
+        message.setPersistent(true);
+        message.setExpiration(expiration);
+        message.setText("message " + i);
+        return message;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.store.MessageStore;
+import org.apache.activemq.util.Wait;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the message store throughput of N producer threads spread over M
+ * queues with and without index group commit, and verifies the index is the
+ * same either way.
+ */
+public class KahaDBIndexGroupCommitTest {
+    private static final Logger LOG = LoggerFactory.getLogger(KahaDBIndexGroupCommitTest.class);
+
+    private final int producers = 20;
+    private final int queues = 5;
+    private final int messagesPerProducer = 500;
+    private final String payload = new String(new byte[1024]);
+    private final Vector<Exception> exceptions = new Vector<Exception>();
+    private KahaDBPersistenceAdapter adapter;
+
+    @After
+    public void tearDown() throws Exception {
+        if (adapter != null) {
+            adapter.stop();
+        }
+    }
+
+    @Test
+    public void testPerMessageIndexUpdates() throws Exception {
+        runProducers(false);
+    }
+
+    @Test
+    public void testGroupCommitIndexUpdates() throws Exception {
+        runProducers(true);
+        LOG.info("Average group size: "
+                + (adapter.getStore().getIndexGroupCommitUpdateCount() / (double) Math.max(1, adapter.getStore().getIndexGroupCommitCount())));
+        assertEquals(2L * producers * messagesPerProducer, adapter.getStore().getIndexGroupCommitUpdateCount());
+        assertTrue("updates were grouped",
+                adapter.getStore().getIndexGroupCommitCount() < adapter.getStore().getIndexGroupCommitUpdateCount());
+    }
+
+    @Test
+    public void testUpdatesQueuedBehindACommitShareTheNext() throws Exception {
+        adapter = new KahaDBPersistenceAdapter();
+        adapter.setDirectory(new File("target/activemq-data/kahadb-group-commit"));
+        adapter.deleteAllMessages();
+        adapter.setEnableIndexGroupCommit(true);
+        adapter.setEnableJournalDiskSyncs(false);
+        adapter.start();
+        final MessageStore store = adapter.createQueueMessageStore(new ActiveMQQueue("GroupCommit.Blocked"));
+
+        // hold the index so the first update blocks while leading its group
+        // and the others queue up behind it
+        final Thread[] threads = new Thread[10];
+        adapter.getStore().indexLock.writeLock().lock();
+        try {
+            for (int i = 0; i < threads.length; i++) {
+                final int producerId = i;
+                threads[i] = new Thread() {
+                    public void run() {
+                        try {
+                            ActiveMQTextMessage message = new ActiveMQTextMessage();
+                            message.setMessageId(new MessageId("ID:group-commit-" + producerId + ":1:1:1", 1));
+                            message.setDestination(store.getDestination());
+                            message.setPersistent(true);
+                            message.setText(payload);
+                            store.addMessage(new ConnectionContext(), message);
+                        } catch (Exception e) {
+                            exceptions.add(e);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            // the leader took its own update, the rest wait for it
+            assertTrue("all updates queued", Wait.waitFor(new Wait.Condition() {
+                public boolean isSatisified() throws Exception {
+                    return adapter.getStore().getPendingIndexUpdateCount() == threads.length - 1;
+                }
+            }));
+        } finally {
+            adapter.getStore().indexLock.writeLock().unlock();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+        assertTrue("No exceptions: " + exceptions, exceptions.isEmpty());
+        assertEquals(threads.length, store.getMessageCount());
+        assertEquals(threads.length, adapter.getStore().getIndexGroupCommitUpdateCount());
+        // the blocked leader commits alone, everything queued behind it
+        // goes in the next commit
+        assertTrue(adapter.getStore().getIndexGroupCommitCount() < adapter.getStore().getIndexGroupCommitUpdateCount());
+        assertEquals(2, adapter.getStore().getIndexGroupCommitCount());
+    }
+
+    private void runProducers(boolean groupCommit) throws Exception {
+        adapter = new KahaDBPersistenceAdapter();
+        adapter.setDirectory(new File("target/activemq-data/kahadb-group-commit"));
+        adapter.deleteAllMessages();
+        adapter.setEnableIndexGroupCommit(groupCommit);
+        adapter.setEnableJournalDiskSyncs(false);
+        adapter.start();
+
+        final MessageStore[] stores = new MessageStore[queues];
+        for (int i = 0; i < queues; i++) {
+            stores[i] = adapter.createQueueMessageStore(new ActiveMQQueue("GroupCommit." + i));
+        }
+
+        long start = System.currentTimeMillis();
+        ExecutorService executorService = Executors.newFixedThreadPool(producers);
+        for (int i = 0; i < producers; i++) {
+            final int producerId = i;
+            executorService.execute(new Runnable() {
+                public void run() {
+                    try {
+                        produce(producerId, stores[producerId % queues]);
+                    } catch (Exception e) {
+                        exceptions.add(e);
+                    }
+                }
+            });
+        }
+        executorService.shutdown();
+        executorService.awaitTermination(10, TimeUnit.MINUTES);
+        assertTrue("Producers done in time", executorService.isTerminated());
+        assertTrue("No exceptions: " + exceptions, exceptions.isEmpty());
+
+        double duration = System.currentTimeMillis() - start;
+        long total = 2L * producers * messagesPerProducer;
+        LOG.info("Group commit " + groupCommit + ", " + producers + " producers, " + queues + " queues");
+        LOG.info("Duration:  " + duration + "ms");
+        LOG.info("Rate:      " + (total * 1000 / duration) + " updates/s");
+
+        // every producer removed half of what it added
+        int expected = producers / queues * messagesPerProducer / 2;
+        for (int i = 0; i < queues; i++) {
+            assertEquals("messages left on queue " + i, expected, stores[i].getMessageCount());
+        }
+    }
+
+    private void produce(int producerId, MessageStore store) throws Exception {
+        ConnectionContext context = new ConnectionContext();
+        String producer = "ID:group-commit-" + producerId + ":1:1:1";
+        for (int i = 1; i <= messagesPerProducer; i++) {
+            ActiveMQTextMessage message = new ActiveMQTextMessage();
+            message.setMessageId(new MessageId(producer, i));
+            message.setDestination(store.getDestination());
+            message.setPersistent(true);
+            message.setText(payload);
+            store.addMessage(context, message);
+
+            if (i % 2 == 0) {
+                MessageAck ack = new MessageAck();
+                ack.setDestination(store.getDestination());
+                ack.setLastMessageId(new MessageId(producer, i - 1));
+                ack.setAckType(MessageAck.STANDARD_ACK_TYPE);
+                ack.setMessageCount(1);
+                store.removeMessage(context, ack);
+            }
+        }
+    }
+}
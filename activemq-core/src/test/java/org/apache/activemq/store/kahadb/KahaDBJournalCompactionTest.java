@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.SubscriptionInfo;
+import org.apache.activemq.store.MessageRecoveryListener;
+import org.apache.activemq.store.MessageStore;
+import org.apache.activemq.store.TopicMessageStore;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Leaves a few messages behind in journal files that are otherwise acked and
+ * checks that compaction moves them forward so the files get released, and
+ * that the messages are recovered from their copies, also when the index is
+ * rebuilt from the journal.
+ */
+public class KahaDBJournalCompactionTest {
+
+    private static final ActiveMQQueue QUEUE = new ActiveMQQueue("Compaction");
+    private static final String PRODUCER = "ID:compaction:1:1:1";
+
+    private final ConnectionContext context = new ConnectionContext();
+    private final String payload = new String(new byte[4 * 1024]);
+    private KahaDBPersistenceAdapter adapter;
+
+    @After
+    public void tearDown() throws Exception {
+        if (adapter != null) {
+            adapter.stop();
+        }
+    }
+
+    @Test
+    public void testSparseFilesAreCompacted() throws Exception {
+        startAdapter(true, false);
+        MessageStore store = adapter.createQueueMessageStore(QUEUE);
+        for (int i = 1; i <= 60; i++) {
+            ActiveMQTextMessage message = createMessage(QUEUE, i);
+            store.addMessage(context, message);
+            if (i % 10 != 0) {
+                remove(store, message.getMessageId());
+            }
+        }
+        MessageStore filler = adapter.createQueueMessageStore(new ActiveMQQueue("Filler"));
+        for (int i = 1; i <= 40; i++) {
+            ActiveMQTextMessage message = createMessage(filler.getDestination(), 100 + i);
+            filler.addMessage(context, message);
+            remove(filler, message.getMessageId());
+        }
+
+        adapter.checkpoint(true);
+        assertTrue("first file kept for its messages", adapter.getStore().getJournal().getFileMap().containsKey(1));
+
+        adapter.getStore().compactJournal();
+        adapter.checkpoint(true);
+        assertFalse("first file released", adapter.getStore().getJournal().getFileMap().containsKey(1));
+        assertRecovered(store);
+
+        adapter.stop();
+        startAdapter(false, false);
+        assertRecovered(adapter.createQueueMessageStore(QUEUE));
+
+        adapter.stop();
+        startAdapter(false, true);
+        assertRecovered(adapter.createQueueMessageStore(QUEUE));
+    }
+
+    @Test
+    public void testFilesWithTopicMessagesAreNotCompacted() throws Exception {
+        startAdapter(true, false);
+        ActiveMQTopic topic = new ActiveMQTopic("Compaction");
+        TopicMessageStore topicStore = adapter.createTopicMessageStore(topic);
+        SubscriptionInfo info = new SubscriptionInfo();
+        info.setClientId("client");
+        info.setSubscriptionName("sub");
+        info.setDestination(topic);
+        topicStore.addSubsciption(info, false);
+        topicStore.addMessage(context, createMessage(topic, 1));
+
+        MessageStore filler = adapter.createQueueMessageStore(new ActiveMQQueue("Filler"));
+        for (int i = 1; i <= 40; i++) {
+            ActiveMQTextMessage message = createMessage(filler.getDestination(), 100 + i);
+            filler.addMessage(context, message);
+            remove(filler, message.getMessageId());
+        }
+
+        adapter.getStore().compactJournal();
+        adapter.checkpoint(true);
+        assertTrue("first file kept for the topic message", adapter.getStore().getJournal().getFileMap().containsKey(1));
+        assertEquals(1, topicStore.getMessageCount("client", "sub"));
+    }
+
+    private void assertRecovered(MessageStore store) throws Exception {
+        final List<Message> recovered = new ArrayList<Message>();
+        store.recover(new Listener(recovered));
+        assertEquals(6, recovered.size());
+        for (int i = 0; i < recovered.size(); i++) {
+            ActiveMQTextMessage message = (ActiveMQTextMessage) recovered.get(i);
+            assertEquals(new MessageId(PRODUCER, (i + 1) * 10), message.getMessageId());
+            assertEquals(payload, message.getText());
+        }
+    }
+
+    private void startAdapter(boolean delete, boolean recoverIndex) throws Exception {
+        adapter = new KahaDBPersistenceAdapter();
+        adapter.setDirectory(new File("target/activemq-data/kahadb-compaction"));
+        if (delete) {
+            adapter.deleteAllMessages();
+        }
+        adapter.setJournalMaxFileLength(64 * 1024);
+        adapter.setJournalCompactionThreshold(0.5f);
+        adapter.setJournalCompactionMaxBytesPerSecond(0);
+        adapter.setForceRecoverIndex(recoverIndex);
+        adapter.start();
+    }
+
+    private ActiveMQTextMessage createMessage(ActiveMQDestination destination, int i) throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setMessageId(new MessageId(PRODUCER, i));
+        message.setDestination(destination);
+        message.setPersistent(true);
+        message.setText(payload);
+        return message;
+    }
+
+    private void remove(MessageStore store, MessageId messageId) throws Exception {
+        MessageAck ack = new MessageAck();
+        ack.setDestination(store.getDestination());
+        ack.setLastMessageId(messageId);
+        ack.setAckType(MessageAck.STANDARD_ACK_TYPE);
+        ack.setMessageCount(1);
+        store.removeMessage(context, ack);
+    }
+
+    private static class Listener implements MessageRecoveryListener {
+        private final List<Message> recovered;
+
+        Listener(List<Message> recovered) {
+            this.recovered = recovered;
+        }
+
+        public boolean recoverMessage(Message message) throws Exception {
+            recovered.add(message);
+            return true;
+        }
+
+        public boolean recoverMessageReference(MessageId ref) throws Exception {
+            return true;
+        }
+
+        public boolean hasSpace() {
+            return true;
+        }
+
+        public boolean isDuplicate(MessageId ref) {
+            return false;
+        }
+    }
+}
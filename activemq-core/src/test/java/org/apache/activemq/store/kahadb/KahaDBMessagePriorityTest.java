@@ -17,7 +17,13 @@
 
 package org.apache.activemq.store.kahadb;
 
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+
 import junit.framework.Test;
+import org.apache.activemq.command.ActiveMQQueue;
 import org.apache.activemq.store.MessagePriorityTest;
 import org.apache.activemq.store.PersistenceAdapter;
 import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
@@ -33,6 +39,28 @@ public class KahaDBMessagePriorityTest extends MessagePriorityTest {
         return adapter;
     }
     
+    public void testQueueAllPriorityLevels() throws Exception {
+        ActiveMQQueue queue = (ActiveMQQueue)sess.createQueue("TEST");
+        MessageProducer producer = sess.createProducer(queue);
+        producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+        // more messages than a page in, with the priorities interleaved
+        final int rounds = 100;
+        for (int i = 0; i < rounds; i++) {
+            for (int priority = 0; priority < 10; priority++) {
+                producer.setPriority(priority);
+                producer.send(createMessage(priority));
+            }
+        }
+        producer.close();
+
+        MessageConsumer queueConsumer = sess.createConsumer(queue);
+        for (int i = 0; i < rounds * 10; i++) {
+            Message msg = queueConsumer.receive(5000);
+            assertNotNull("Message " + i + " was null", msg);
+            assertEquals("Message " + i + " has wrong priority", 9 - i / rounds, msg.getJMSPriority());
+        }
+    }
+
     public static Test suite() {
         return suite(KahaDBMessagePriorityTest.class);
     }
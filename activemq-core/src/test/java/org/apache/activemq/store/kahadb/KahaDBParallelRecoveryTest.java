@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.store.MessageRecoveryListener;
+import org.apache.activemq.store.MessageStore;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Loses the index of a store whose journal spans several data files and checks
+ * that rebuilding it from the journal with one thread and with several threads
+ * gives the same messages on every queue.
+ */
+public class KahaDBParallelRecoveryTest {
+
+    private static final File DIRECTORY = new File("target/activemq-data/kahadb-parallel-recovery");
+    private static final int QUEUES = 3;
+    private static final int MESSAGES = 300;
+
+    private final ConnectionContext context = new ConnectionContext();
+    private final String payload = new String(new byte[1024]);
+    private KahaDBPersistenceAdapter adapter;
+
+    @After
+    public void tearDown() throws Exception {
+        if (adapter != null) {
+            adapter.stop();
+        }
+    }
+
+    @Test
+    public void testParallelRecoveryRebuildsTheSameIndex() throws Exception {
+        adapter = createAdapter(1);
+        adapter.deleteAllMessages();
+        adapter.start();
+        for (int i = 0; i < QUEUES; i++) {
+            MessageStore store = adapter.createQueueMessageStore(new ActiveMQQueue("Recovery." + i));
+            for (int j = 1; j <= MESSAGES; j++) {
+                store.addMessage(context, createMessage(i, j));
+                if (j % 3 == 0) {
+                    MessageAck ack = new MessageAck();
+                    ack.setDestination(store.getDestination());
+                    ack.setLastMessageId(new MessageId(producer(i), j - 1));
+                    ack.setAckType(MessageAck.STANDARD_ACK_TYPE);
+                    ack.setMessageCount(1);
+                    store.removeMessage(context, ack);
+                }
+            }
+        }
+        assertTrue("journal spans several data files", adapter.getStore().getJournal().getFileMap().size() > 2);
+        Map<String, List<MessageId>> expected = getMessages();
+        adapter.stop();
+
+        Map<String, List<MessageId>> serial = recover(1);
+        Map<String, List<MessageId>> parallel = recover(4);
+
+        for (List<MessageId> ids : expected.values()) {
+            assertEquals(MESSAGES - MESSAGES / 3, ids.size());
+        }
+        assertEquals(expected, serial);
+        assertEquals(expected, parallel);
+    }
+
+    private Map<String, List<MessageId>> recover(int threads) throws Exception {
+        // lose the index so it is rebuilt from the whole journal
+        new File(DIRECTORY, "db.data").delete();
+        new File(DIRECTORY, "db.redo").delete();
+        adapter = createAdapter(threads);
+        adapter.start();
+        Map<String, List<MessageId>> messages = getMessages();
+        adapter.stop();
+        adapter = null;
+        return messages;
+    }
+
+    private Map<String, List<MessageId>> getMessages() throws Exception {
+        Map<String, List<MessageId>> messages = new LinkedHashMap<String, List<MessageId>>();
+        for (int i = 0; i < QUEUES; i++) {
+            MessageStore store = adapter.createQueueMessageStore(new ActiveMQQueue("Recovery." + i));
+            final List<MessageId> ids = new ArrayList<MessageId>();
+            store.recover(new MessageRecoveryListener() {
+                public boolean recoverMessage(Message message) throws Exception {
+                    ids.add(message.getMessageId());
+                    return true;
+                }
+
+                public boolean recoverMessageReference(MessageId ref) throws Exception {
+                    ids.add(ref);
+                    return true;
+                }
+
+                public boolean hasSpace() {
+                    return true;
+                }
+
+                public boolean isDuplicate(MessageId ref) {
+                    return false;
+                }
+            });
+            assertEquals(ids.size(), store.getMessageCount());
+            messages.put(store.getDestination().getPhysicalName(), ids);
+        }
+        return messages;
+    }
+
+    private KahaDBPersistenceAdapter createAdapter(int recoveryThreads) {
+        KahaDBPersistenceAdapter adapter = new KahaDBPersistenceAdapter();
+        adapter.setDirectory(DIRECTORY);
+        adapter.setJournalMaxFileLength(128 * 1024);
+        adapter.setJournalRecoveryThreads(recoveryThreads);
+        // several chunks to a data file
+        adapter.setJournalRecoveryReadSize(16 * 1024);
+        adapter.setCleanupInterval(Long.MAX_VALUE);
+        return adapter;
+    }
+
+    private String producer(int queue) {
+        return "ID:recovery-" + queue + ":1:1:1";
+    }
+
+    private ActiveMQTextMessage createMessage(int queue, int i) throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setMessageId(new MessageId(producer(queue), i));
+        message.setDestination(new ActiveMQQueue("Recovery." + queue));
+        message.setPersistent(true);
+        message.setText(payload);
+        return message;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.store.MessageRecoveryListener;
+import org.apache.activemq.store.MessageStore;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Stores the copies of a message that a virtual topic sends to its queues and
+ * checks that the body is written once, that every queue recovers its copy
+ * and that journal cleanup keeps a shared body while references remain.
+ */
+public class KahaDBSharedMessageBodiesTest {
+
+    private static final ActiveMQTopic TOPIC = new ActiveMQTopic("VirtualTopic.Shared");
+    private static final String PRODUCER = "ID:shared-bodies:1:1:1";
+
+    private final ConnectionContext context = new ConnectionContext();
+    private final String payload = new String(new byte[16 * 1024]);
+    private KahaDBPersistenceAdapter adapter;
+    private long brokerSequenceId;
+
+    @After
+    public void tearDown() throws Exception {
+        if (adapter != null) {
+            adapter.stop();
+        }
+    }
+
+    @Test
+    public void testCopiesShareOneBody() throws Exception {
+        long unshared = storeCopies(false, 5, 20);
+        adapter.stop();
+        long shared = storeCopies(true, 5, 20);
+        assertTrue("journal size " + shared + " is a fraction of " + unshared, shared * 3 < unshared);
+
+        // the copies are read back through their references after a restart
+        adapter.stop();
+        startAdapter(true, false);
+        for (int q = 0; q < 5; q++) {
+            final List<Message> recovered = new ArrayList<Message>();
+            createStore(q).recover(new Listener(recovered));
+            assertEquals("messages on queue " + q, 20, recovered.size());
+            for (int i = 0; i < recovered.size(); i++) {
+                ActiveMQTextMessage message = (ActiveMQTextMessage) recovered.get(i);
+                assertEquals(new MessageId(PRODUCER, i + 1), message.getMessageId());
+                assertEquals(TOPIC, message.getDestination());
+                assertEquals(i * 5 + q + 1, message.getMessageId().getBrokerSequenceId());
+                assertEquals(payload, message.getText());
+            }
+        }
+    }
+
+    @Test
+    public void testSharedBodyIsKeptUntilLastReference() throws Exception {
+        startAdapter(true, true);
+        MessageStore[] stores = new MessageStore[3];
+        for (int q = 0; q < stores.length; q++) {
+            stores[q] = createStore(q);
+        }
+        MessageStore filler = adapter.createQueueMessageStore(new ActiveMQQueue("Filler"));
+
+        ActiveMQTextMessage message = createMessage(1);
+        for (MessageStore store : stores) {
+            addCopy(store, message);
+        }
+        int bodyFile = adapter.getStore().getJournal().getFileMap().keySet().iterator().next();
+
+        // move the journal on and remove the copy the body was stored with
+        fill(filler, 2, 20);
+        remove(stores[0], message.getMessageId());
+        remove(stores[1], message.getMessageId());
+        fill(filler, 22, 20);
+        adapter.checkpoint(true);
+
+        assertTrue("body file kept", adapter.getStore().getJournal().getFileMap().containsKey(bodyFile));
+        ActiveMQTextMessage copy = (ActiveMQTextMessage) stores[2].getMessage(message.getMessageId());
+        assertNotNull(copy);
+        assertEquals(payload, copy.getText());
+
+        remove(stores[2], message.getMessageId());
+        fill(filler, 42, 20);
+        adapter.checkpoint(true);
+        assertFalse("body file removed", adapter.getStore().getJournal().getFileMap().containsKey(bodyFile));
+    }
+
+    private long storeCopies(boolean shared, int queues, int messages) throws Exception {
+        startAdapter(shared, true);
+        MessageStore[] stores = new MessageStore[queues];
+        for (int q = 0; q < queues; q++) {
+            stores[q] = createStore(q);
+        }
+        brokerSequenceId = 0;
+        for (int i = 1; i <= messages; i++) {
+            ActiveMQTextMessage message = createMessage(i);
+            for (MessageStore store : stores) {
+                addCopy(store, message);
+            }
+        }
+        return adapter.getStore().getJournal().getDiskSize();
+    }
+
+    private void startAdapter(boolean shared, boolean delete) throws Exception {
+        adapter = new KahaDBPersistenceAdapter();
+        adapter.setDirectory(new File("target/activemq-data/kahadb-shared-bodies-" + shared));
+        if (delete) {
+            adapter.deleteAllMessages();
+        }
+        adapter.setJournalMaxFileLength(64 * 1024);
+        adapter.setEnableSharedMessageBodies(shared);
+        adapter.start();
+    }
+
+    private MessageStore createStore(int q) throws Exception {
+        return adapter.createQueueMessageStore(new ActiveMQQueue("Consumer." + q + ".VirtualTopic.Shared"));
+    }
+
+    private ActiveMQTextMessage createMessage(int i) throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setMessageId(new MessageId(PRODUCER, i));
+        message.setDestination(TOPIC);
+        message.setPersistent(true);
+        message.setText(payload);
+        return message;
+    }
+
+    private void addCopy(MessageStore store, Message message) throws Exception {
+        // like a virtual topic, every queue gets a copy with its own broker sequence id
+        Message copy = message.copy();
+        copy.getMessageId().setBrokerSequenceId(++brokerSequenceId);
+        store.addMessage(context, copy);
+    }
+
+    private void fill(MessageStore store, int first, int count) throws Exception {
+        for (int i = first; i < first + count; i++) {
+            ActiveMQTextMessage message = createMessage(i);
+            message.setDestination(store.getDestination());
+            store.addMessage(context, message);
+            remove(store, message.getMessageId());
+        }
+    }
+
+    private void remove(MessageStore store, MessageId messageId) throws Exception {
+        MessageAck ack = new MessageAck();
+        ack.setDestination(store.getDestination());
+        ack.setLastMessageId(messageId);
+        ack.setAckType(MessageAck.STANDARD_ACK_TYPE);
+        ack.setMessageCount(1);
+        store.removeMessage(context, ack);
+    }
+
+    private static class Listener implements MessageRecoveryListener {
+        private final List<Message> recovered;
+
+        Listener(List<Message> recovered) {
+            this.recovered = recovered;
+        }
+
+        public boolean recoverMessage(Message message) throws Exception {
+            recovered.add(message);
+            return true;
+        }
+
+        public boolean recoverMessageReference(MessageId ref) throws Exception {
+            return true;
+        }
+
+        public boolean hasSpace() {
+            return true;
+        }
+
+        public boolean isDuplicate(MessageId ref) {
+            return false;
+        }
+    }
+}
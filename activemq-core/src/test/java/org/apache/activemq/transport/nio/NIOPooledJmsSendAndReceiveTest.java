@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.transport.nio;
+
+/**
+ * Runs the NIO send and receive test with the selector manager in pooled
+ * mode. The pooled buffers are kept small so frames regularly span reads and
+ * some do not fit in a pooled buffer at all.
+ */
+public class NIOPooledJmsSendAndReceiveTest extends NIOJmsSendAndReceiveTest {
+
+    private boolean pooled;
+    private int bufferSize;
+
+    protected void setUp() throws Exception {
+        SelectorManager manager = SelectorManager.getInstance();
+        pooled = manager.isPooled();
+        bufferSize = manager.getBufferSize();
+        manager.setPooled(true);
+        manager.setBufferSize(256);
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        try {
+            super.tearDown();
+        } finally {
+            SelectorManager manager = SelectorManager.getInstance();
+            manager.setPooled(pooled);
+            manager.setBufferSize(bufferSize);
+        }
+    }
+
+    public void testBuffersAreBorrowedFromThePool() throws Exception {
+        NIOBufferPool pool = SelectorManager.getInstance().getBufferPool();
+        assertNotNull(pool);
+        assertEquals(256, pool.getBufferSize());
+        assertTrue("buffers were allocated", pool.getAllocatedCount() > 0);
+    }
+}
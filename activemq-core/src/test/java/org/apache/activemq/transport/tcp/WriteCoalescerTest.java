@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.transport.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.command.Command;
+import org.apache.activemq.command.ShutdownInfo;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.util.ByteSequence;
+
+public class WriteCoalescerTest extends TestCase {
+
+    private static final int SENDERS = 8;
+    private static final int COMMANDS = 2000;
+
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private final Vector<Exception> exceptions = new Vector<Exception>();
+    private TcpTransport transport;
+    private int writes;
+
+    protected void setUp() throws Exception {
+        transport = new TcpTransport(new OpenWireFormat(), new Socket()) {
+            @Override
+            protected void writeBatch(ByteSequence batch) throws IOException {
+                written.write(batch.getData(), batch.getOffset(), batch.getLength());
+                writes++;
+            }
+        };
+    }
+
+    public void testConcurrentSendsAreAllWrittenInOrder() throws Exception {
+        WriteCoalescer coalescer = new WriteCoalescer(transport, new OpenWireFormat(), 16 * 1024, 0, 1024);
+        send(coalescer);
+        assertWritten(coalescer);
+    }
+
+    public void testLingerBatchesSends() throws Exception {
+        WriteCoalescer coalescer = new WriteCoalescer(transport, new OpenWireFormat(), 16 * 1024, 1, 1024);
+        send(coalescer);
+        assertWritten(coalescer);
+        assertTrue("sends were batched: " + writes, writes < SENDERS * COMMANDS);
+    }
+
+    public void testFailedWriteFailsLaterSends() throws Exception {
+        transport = new TcpTransport(new OpenWireFormat(), new Socket()) {
+            @Override
+            protected void writeBatch(ByteSequence batch) throws IOException {
+                throw new IOException("broken");
+            }
+        };
+        WriteCoalescer coalescer = new WriteCoalescer(transport, new OpenWireFormat(), 16 * 1024, 0, 1024);
+        try {
+            coalescer.write(new ShutdownInfo());
+            fail("expected the write to fail");
+        } catch (IOException expected) {
+        }
+        try {
+            coalescer.write(new ShutdownInfo());
+            fail("expected the send to fail");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testFailedWriteFailsEveryQueuedSender() throws Exception {
+        final CountDownLatch writerBlocked = new CountDownLatch(1);
+        final CountDownLatch fail = new CountDownLatch(1);
+        transport = new TcpTransport(new OpenWireFormat(), new Socket()) {
+            @Override
+            protected void writeBatch(ByteSequence batch) throws IOException {
+                writerBlocked.countDown();
+                try {
+                    fail.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("broken");
+            }
+        };
+        final WriteCoalescer coalescer = new WriteCoalescer(transport, new OpenWireFormat(), 16 * 1024, 0, 1024);
+        final CountDownLatch done = new CountDownLatch(SENDERS);
+        final Vector<IOException> failures = new Vector<IOException>();
+        for (int i = 0; i < SENDERS; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        coalescer.write(new ShutdownInfo());
+                    } catch (IOException e) {
+                        failures.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue("a batch is being written", writerBlocked.await(10, TimeUnit.SECONDS));
+        fail.countDown();
+        assertTrue("all senders returned", done.await(10, TimeUnit.SECONDS));
+        assertEquals("every sender saw the failure", SENDERS, failures.size());
+    }
+
+    public void testCommandIsMarshalledWhenWriteReturns() throws Exception {
+        WriteCoalescer coalescer = new WriteCoalescer(transport, new OpenWireFormat(), 16 * 1024, 0, 1024);
+        ShutdownInfo command = new ShutdownInfo();
+        command.setCommandId(1);
+        coalescer.write(command);
+        command.setCommandId(2);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(written.toByteArray()));
+        assertEquals(1, ((Command) new OpenWireFormat().unmarshal(in)).getCommandId());
+    }
+
+    private void send(final WriteCoalescer coalescer) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(SENDERS);
+        for (int i = 0; i < SENDERS; i++) {
+            final int sender = i;
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < COMMANDS; j++) {
+                            ShutdownInfo command = new ShutdownInfo();
+                            command.setCommandId(sender * COMMANDS + j);
+                            coalescer.write(command);
+                        }
+                    } catch (Exception e) {
+                        exceptions.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        assertTrue("No exceptions: " + exceptions, exceptions.isEmpty());
+    }
+
+    private void assertWritten(WriteCoalescer coalescer) throws Exception {
+        assertEquals(SENDERS * COMMANDS, coalescer.getCommandCount());
+        assertEquals(writes, coalescer.getBatchCount());
+
+        OpenWireFormat wireFormat = new OpenWireFormat();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(written.toByteArray()));
+        int[] next = new int[SENDERS];
+        for (int i = 0; i < SENDERS * COMMANDS; i++) {
+            int id = ((Command) wireFormat.unmarshal(in)).getCommandId();
+            int sender = id / COMMANDS;
+            assertEquals("commands of sender " + sender + " in order", next[sender]++, id % COMMANDS);
+        }
+        assertEquals("nothing left", 0, in.available());
+    }
+}
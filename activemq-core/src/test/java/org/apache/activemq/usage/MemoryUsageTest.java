@@ -18,9 +18,12 @@
 package org.apache.activemq.usage;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -67,6 +70,138 @@ public class MemoryUsageTest {
         assertEquals("new thread created with listener", activeThreadCount + 1, Thread.activeCount());        
     }
     
+    @Test
+    public final void testConcurrentChangesAddUpInParent() throws Exception {
+        underTest.setLimit(1000);
+        underTest.start();
+        final MemoryUsage[] children = new MemoryUsage[4];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = new MemoryUsage(underTest, "child" + i);
+            children[i].start();
+        }
+
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            final MemoryUsage child = children[t % children.length];
+            threads.execute(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        child.increaseUsage(7);
+                        child.decreaseUsage(5);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue("threads done", done.await(60, TimeUnit.SECONDS));
+        threads.shutdown();
+
+        assertEquals("parent usage", 8 * 10000 * 2, underTest.getUsage());
+        assertEquals("child usage", 2 * 10000 * 2, children[0].getUsage());
+        assertTrue("parent full", underTest.isFull());
+        for (MemoryUsage child : children) {
+            child.decreaseUsage(child.getUsage());
+        }
+        assertEquals("parent usage", 0, underTest.getUsage());
+        assertEquals("parent percent usage", 0, underTest.getPercentUsage());
+        assertFalse("parent not full", underTest.isFull());
+    }
+
+    @Test
+    public final void testPercentUsageFollowsConcurrentChanges() throws Exception {
+        underTest.setLimit(100);
+        underTest.start();
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 50; round++) {
+                final CountDownLatch done = new CountDownLatch(4);
+                for (int t = 0; t < 4; t++) {
+                    final boolean last = t == 0;
+                    threads.execute(new Runnable() {
+                        public void run() {
+                            for (int i = 0; i < 1000; i++) {
+                                underTest.increaseUsage(40);
+                                underTest.decreaseUsage(40);
+                            }
+                            if (last) {
+                                underTest.increaseUsage(50);
+                            }
+                            done.countDown();
+                        }
+                    });
+                }
+                assertTrue("threads done", done.await(60, TimeUnit.SECONDS));
+                assertEquals("usage", 50, underTest.getUsage());
+                assertEquals("percent usage matches usage", 50, underTest.getPercentUsage());
+                assertFalse("not full", underTest.isFull());
+                underTest.decreaseUsage(50);
+                assertEquals("percent usage matches usage", 0, underTest.getPercentUsage());
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    @Test
+    public final void testSmallChangesAddUpToTheNextPercent() throws Exception {
+        underTest.setLimit(1024 * 1024);
+        underTest.start();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            threads.execute(new Runnable() {
+                public void run() {
+                    // each change is far less than a percent of the limit
+                    for (int i = 0; i < 1024 * 16; i++) {
+                        underTest.increaseUsage(3);
+                        underTest.decreaseUsage(1);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue("threads done", done.await(60, TimeUnit.SECONDS));
+        threads.shutdown();
+
+        assertEquals("usage", 8 * 1024 * 16 * 2, underTest.getUsage());
+        assertEquals("percent usage matches usage", 25, underTest.getPercentUsage());
+
+        underTest.setLimit(512 * 1024);
+        assertEquals("percent usage follows the limit", 50, underTest.getPercentUsage());
+        underTest.increaseUsage(512 * 1024 - underTest.getUsage() - 1);
+        assertFalse("not full", underTest.isFull());
+        underTest.increaseUsage(1);
+        assertTrue("full", underTest.isFull());
+    }
+
+    @Test
+    public final void testWaitForSpaceReturnsWhenUsageDrops() throws Exception {
+        underTest.setLimit(10);
+        underTest.start();
+        underTest.increaseUsage(10);
+        assertTrue("full", underTest.isFull());
+        assertFalse("no space", underTest.waitForSpace(10));
+
+        final CountDownLatch hasSpace = new CountDownLatch(1);
+        Thread waiter = new Thread("waiter") {
+            public void run() {
+                try {
+                    underTest.waitForSpace();
+                    hasSpace.countDown();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        waiter.setDaemon(true);
+        waiter.start();
+        assertFalse("still waiting", hasSpace.await(100, TimeUnit.MILLISECONDS));
+
+        underTest.decreaseUsage(1);
+        assertTrue("waiter released", hasSpace.await(30, TimeUnit.SECONDS));
+        assertEquals("usage is correct", 90, underTest.getPercentUsage());
+    }
+
     @Before
     public void setUp() throws Exception {
         underTest = new MemoryUsage();
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class PrimitiveMapScannerTest extends TestCase {
+
+    private Map<String, Object> map;
+    private ByteSequence marshalled;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        map = new HashMap<String, Object>();
+        map.put("string", "value");
+        map.put("byte", Byte.valueOf((byte) 1));
+        map.put("boolean", Boolean.TRUE);
+        map.put("char", Character.valueOf('c'));
+        map.put("short", Short.valueOf((short) 2));
+        map.put("int", Integer.valueOf(3));
+        map.put("long", Long.valueOf(4));
+        map.put("float", Float.valueOf(5.5f));
+        map.put("double", Double.valueOf(6.5));
+        map.put("bytes", new byte[] {1, 2, 3});
+        map.put("null", null);
+        map.put("\u00e9t\u00e9 \u4e2d", "unicode key");
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            big.append('x');
+        }
+        map.put("big", big.toString());
+        Map<String, Object> nested = new HashMap<String, Object>();
+        nested.put("inner", Integer.valueOf(7));
+        map.put("map", nested);
+        List<Object> list = new ArrayList<Object>();
+        list.add("a");
+        list.add(Long.valueOf(8));
+        map.put("list", list);
+        map.put("last", "end");
+        marshalled = marshal(map);
+    }
+
+    public void testGetValue() throws Exception {
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object value = PrimitiveMapScanner.getValue(marshalled, entry.getKey());
+            if (entry.getValue() instanceof byte[]) {
+                assertTrue(java.util.Arrays.equals((byte[]) entry.getValue(), (byte[]) value));
+            } else {
+                assertEquals(entry.getKey(), entry.getValue(), value);
+            }
+            assertTrue(PrimitiveMapScanner.containsKey(marshalled, entry.getKey()));
+        }
+        assertNull(PrimitiveMapScanner.getValue(marshalled, "missing"));
+        assertFalse(PrimitiveMapScanner.containsKey(marshalled, "missing"));
+        assertFalse(PrimitiveMapScanner.containsKey(marshalled, "strin"));
+        assertFalse(PrimitiveMapScanner.containsKey(marshalled, "strings"));
+        assertFalse(PrimitiveMapScanner.containsKey(marshalled, "inner"));
+    }
+
+    public void testSequenceOffset() throws Exception {
+        byte[] padded = new byte[marshalled.getLength() + 10];
+        System.arraycopy(marshalled.getData(), marshalled.getOffset(), padded, 5, marshalled.getLength());
+        ByteSequence sequence = new ByteSequence(padded, 5, marshalled.getLength());
+        assertEquals("end", PrimitiveMapScanner.getValue(sequence, "last"));
+        assertEquals(Integer.valueOf(3), PrimitiveMapScanner.getValue(sequence, "int"));
+    }
+
+    public void testAppend() throws Exception {
+        ByteSequence appended = PrimitiveMapScanner.append(marshalled, "added", Boolean.TRUE);
+        assertEquals(Boolean.TRUE, PrimitiveMapScanner.getValue(appended, "added"));
+
+        Map<String, Object> expected = new HashMap<String, Object>(map);
+        expected.put("added", Boolean.TRUE);
+        Map<String, Object> actual = unmarshal(appended);
+        assertEquals(expected.keySet(), actual.keySet());
+        assertEquals("end", actual.get("last"));
+
+        ByteSequence fromNull = PrimitiveMapScanner.append(marshal(null), "only", "one");
+        assertEquals(1, unmarshal(fromNull).size());
+        assertEquals("one", PrimitiveMapScanner.getValue(fromNull, "only"));
+    }
+
+    public void testNullMap() throws Exception {
+        assertNull(PrimitiveMapScanner.getValue(marshal(null), "string"));
+    }
+
+    public void testTruncatedMap() throws Exception {
+        ByteSequence truncated = new ByteSequence(marshalled.getData(), marshalled.getOffset(), marshalled.getLength() - 1);
+        try {
+            PrimitiveMapScanner.containsKey(truncated, "missing");
+            fail("Expected EOFException");
+        } catch (EOFException expected) {
+        }
+    }
+
+    private ByteSequence marshal(Map<String, Object> map) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(baos);
+        MarshallingSupport.marshalPrimitiveMap(map, os);
+        os.close();
+        return baos.toByteSequence();
+    }
+
+    private Map<String, Object> unmarshal(ByteSequence sequence) throws Exception {
+        return MarshallingSupport.unmarshalPrimitiveMap(new DataInputStream(new ByteArrayInputStream(sequence)));
+    }
+}
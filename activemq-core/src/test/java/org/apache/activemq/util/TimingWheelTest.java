@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testExpireInOrderOfTime() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 0);
+        wheel.add("a", 5);
+        wheel.add("b", 25);
+        wheel.add("c", 79);
+        wheel.add("d", 1000);
+        assertEquals(4, wheel.size());
+
+        assertEquals("[a]", wheel.expire(5).toString());
+        assertTrue(wheel.expire(24).isEmpty());
+        assertEquals("[b]", wheel.expire(30).toString());
+        assertTrue(wheel.expire(78).isEmpty());
+        assertEquals("[c]", wheel.expire(79).toString());
+        assertTrue(wheel.expire(999).isEmpty());
+        assertEquals("[d]", wheel.expire(5000).toString());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testAlreadyDueIsExpiredNextTime() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 100);
+        wheel.add("late", 50);
+        assertEquals("[late]", wheel.expire(100).toString());
+    }
+
+    @Test
+    public void testRemove() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 0);
+        wheel.add("near", 3);
+        wheel.add("far", 100000);
+        assertTrue(wheel.remove("far", 100000));
+        assertFalse(wheel.remove("far", 100000));
+        assertTrue(wheel.remove("near", 3));
+        assertTrue(wheel.isEmpty());
+        assertTrue(wheel.expire(200000).isEmpty());
+    }
+
+    @Test
+    public void testRandomAgainstScan() {
+        Random random = new Random(42);
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(7, 16, 0);
+        long[] expirations = new long[5000];
+        for (int i = 0; i < expirations.length; i++) {
+            expirations[i] = random.nextInt(1000000);
+            wheel.add(i, expirations[i]);
+        }
+        Set<Integer> removed = new HashSet<Integer>();
+        for (int i = 0; i < expirations.length; i += 3) {
+            assertTrue(wheel.remove(i, expirations[i]));
+            removed.add(i);
+        }
+        Set<Integer> expired = new HashSet<Integer>();
+        long now = 0;
+        while (!wheel.isEmpty()) {
+            now += random.nextInt(20000);
+            List<Integer> due = wheel.expire(now);
+            for (Integer i : due) {
+                assertTrue("early " + i, expirations[i] <= now);
+                assertTrue("twice " + i, expired.add(i));
+            }
+            for (int i = 0; i < expirations.length; i++) {
+                if (expirations[i] <= now && !removed.contains(i)) {
+                    assertTrue("late " + i, expired.contains(i));
+                }
+            }
+        }
+        assertEquals(expirations.length - removed.size(), expired.size());
+    }
+}
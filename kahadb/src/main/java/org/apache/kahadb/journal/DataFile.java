@@ -19,6 +19,8 @@ package org.apache.kahadb.journal;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.apache.kahadb.util.IOHelper;
 import org.apache.kahadb.util.LinkedNode;
@@ -35,6 +37,7 @@ public class DataFile extends LinkedNode<DataFile> implements Comparable<DataFil
     protected final Integer dataFileId;
     protected volatile int length;
     protected final SequenceSet corruptedBlocks = new SequenceSet();
+    protected MappedByteBuffer mappedBuffer;
 
     DataFile(File file, int number, int preferedSize) {
         this.file = file;
@@ -74,11 +77,55 @@ public class DataFile extends LinkedNode<DataFile> implements Comparable<DataFil
         file.close();
     }
 
+    /**
+     * Gets a read/write mapping of the start of the file that is at least size
+     * bytes long, the file is extended when it is shorter than that. The
+     * mapping is shared by every user of the data file.
+     */
+    public synchronized MappedByteBuffer getMappedBuffer(int size) throws IOException {
+        if (mappedBuffer == null || mappedBuffer.capacity() < size) {
+            RandomAccessFile raf = openRandomAccessFile();
+            try {
+                long mapSize = Math.max(size, raf.length());
+                mappedBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+            } finally {
+                closeRandomAccessFile(raf);
+            }
+        }
+        return mappedBuffer;
+    }
+
+    /**
+     * Drops the shared mapping, the mapped memory is released once the
+     * mapping and any views of it have been garbage collected.
+     */
+    public synchronized void unmap() {
+        mappedBuffer = null;
+    }
+
+    /**
+     * Drops the shared mapping and cuts the file down to its length,
+     * discarding any preallocated space beyond it.
+     */
+    public synchronized void truncate() throws IOException {
+        unmap();
+        RandomAccessFile raf = openRandomAccessFile();
+        try {
+            if (raf.length() > length) {
+                raf.setLength(length);
+            }
+        } finally {
+            closeRandomAccessFile(raf);
+        }
+    }
+
     public synchronized boolean delete() throws IOException {
+        unmap();
         return file.delete();
     }
     
     public synchronized void move(File targetDirectory) throws IOException{
+        unmap();
         IOHelper.moveFile(file,targetDirectory);
     }
 
@@ -18,6 +18,7 @@ package org.apache.kahadb.journal;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import org.apache.kahadb.util.ByteSequence;
@@ -28,10 +29,10 @@ import org.apache.kahadb.util.ByteSequence;
  * 
  * 
  */
-final class DataFileAccessor {
+class DataFileAccessor {
 
-    private final DataFile dataFile;
-    private final Map<Journal.WriteKey, Journal.WriteCommand> inflightWrites;
+    protected final DataFile dataFile;
+    protected final Map<Journal.WriteKey, Journal.WriteCommand> inflightWrites;
     private final RandomAccessFile file;
     private boolean disposed;
 
@@ -42,9 +43,13 @@ final class DataFileAccessor {
      * @throws IOException
      */
     public DataFileAccessor(Journal dataManager, DataFile dataFile) throws IOException {
+        this(dataManager, dataFile, dataFile.openRandomAccessFile());
+    }
+
+    protected DataFileAccessor(Journal dataManager, DataFile dataFile, RandomAccessFile file) {
         this.dataFile = dataFile;
         this.inflightWrites = dataManager.getInflightWrites();
-        this.file = dataFile.openRandomAccessFile();
+        this.file = file;
     }
 
     public DataFile getDataFile() {
@@ -56,6 +61,9 @@ final class DataFileAccessor {
             return;
         }
         disposed = true;
+        if (file == null) {
+            return;
+        }
         try {
             dataFile.closeRandomAccessFile(file);
         } catch (IOException e) {
@@ -93,6 +101,15 @@ final class DataFileAccessor {
         }
     }
     
+    /**
+     * Reads a record as a buffer. Accessors over memory mapped files return a
+     * read only view of the mapping rather than a copy of the record.
+     */
+    public ByteBuffer readRecordBuffer(Location location) throws IOException {
+        ByteSequence data = readRecord(location);
+        return ByteBuffer.wrap(data.getData(), data.getOffset(), data.getLength()).slice();
+    }
+
     public void readFully(long offset, byte data[]) throws IOException {
        file.seek(offset);
        file.readFully(data);
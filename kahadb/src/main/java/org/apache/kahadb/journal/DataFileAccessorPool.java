@@ -50,7 +50,7 @@ public class DataFileAccessorPool {
         public DataFileAccessor openDataFileReader() throws IOException {
             DataFileAccessor rc = null;
             if (pool.isEmpty()) {
-                rc = new DataFileAccessor(journal, file);
+                rc = journal.createDataFileAccessor(file);
             } else {
                 rc = pool.remove(pool.size() - 1);
             }
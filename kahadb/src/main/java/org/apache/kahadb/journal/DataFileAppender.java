@@ -53,6 +53,8 @@ class DataFileAppender implements FileAppender {
 
     protected boolean running;
     private Thread thread;
+    // only used by the writer thread
+    private RandomAccessFile file;
 
     public static class WriteKey {
         private final int file;
@@ -277,7 +279,6 @@ class DataFileAppender implements FileAppender {
      */
     protected void processQueue() {
         DataFile dataFile = null;
-        RandomAccessFile file = null;
         WriteBatch wb = null;
         try {
 
@@ -301,15 +302,11 @@ class DataFileAppender implements FileAppender {
                 }
 
                 if (dataFile != wb.dataFile) {
-                    if (file != null) {
-                        file.setLength(dataFile.getLength());
-                        dataFile.closeRandomAccessFile(file);
+                    if (dataFile != null) {
+                        closeDataFile(dataFile);
                     }
                     dataFile = wb.dataFile;
-                    file = dataFile.openRandomAccessFile();
-                    if( file.length() < journal.preferedFileLength ) {
-                        file.setLength(journal.preferedFileLength);
-                    }
+                    openDataFile(dataFile);
                 }
 
                 Journal.WriteCommand write = wb.writes.getHead();
@@ -344,7 +341,6 @@ class DataFileAppender implements FileAppender {
                 }
 
                 // Now do the 1 big write.
-                file.seek(wb.offset);
                 if (maxStat > 0) {
                     if (statIdx < maxStat) {
                         stats[statIdx++] = sequence.getLength();
@@ -356,7 +352,7 @@ class DataFileAppender implements FileAppender {
                         logger.info("Ave writeSize: " + all/maxStat);
                     }
                 }
-                file.write(sequence.getData(), sequence.getOffset(), sequence.getLength());
+                write(dataFile, wb.offset, sequence);
 
                 ReplicationTarget replicationTarget = journal.getReplicationTarget();
                 if( replicationTarget!=null ) {
@@ -364,7 +360,7 @@ class DataFileAppender implements FileAppender {
                 }
 
                 if (forceToDisk) {
-                    file.getFD().sync();
+                    force(dataFile);
                 }
 
                 Journal.WriteCommand lastWrite = wb.writes.getTail();
@@ -387,8 +383,8 @@ class DataFileAppender implements FileAppender {
         } catch (InterruptedException e) {
         } finally {
             try {
-                if (file != null) {
-                    dataFile.closeRandomAccessFile(file);
+                if (dataFile != null) {
+                    closeDataFile(dataFile);
                 }
             } catch (Throwable ignore) {
             }
@@ -397,6 +393,48 @@ class DataFileAppender implements FileAppender {
         }
     }
 
+    /**
+     * Opens a data file for the writes of the batches that go to it,
+     * preallocating it to the prefered file length.
+     */
+    protected void openDataFile(DataFile dataFile) throws IOException {
+        file = dataFile.openRandomAccessFile();
+        if( file.length() < journal.preferedFileLength ) {
+            file.setLength(journal.preferedFileLength);
+        }
+    }
+
+    /**
+     * Writes a batch, control record included, at the given offset of the
+     * open data file.
+     */
+    protected void write(DataFile dataFile, int offset, ByteSequence sequence) throws IOException {
+        file.seek(offset);
+        file.write(sequence.getData(), sequence.getOffset(), sequence.getLength());
+    }
+
+    /**
+     * Forces the writes to the open data file to disk.
+     */
+    protected void force(DataFile dataFile) throws IOException {
+        file.getFD().sync();
+    }
+
+    /**
+     * Closes the open data file when the writes move on to the next file or
+     * the appender is shut down, cutting it back to its length.
+     */
+    protected void closeDataFile(DataFile dataFile) throws IOException {
+        if (file != null) {
+            try {
+                file.setLength(dataFile.getLength());
+            } finally {
+                dataFile.closeRandomAccessFile(file);
+                file = null;
+            }
+        }
+    }
+
     protected void signalDone(WriteBatch wb) {
         // Now that the data is on disk, remove the writes from the in
         // flight
@@ -19,7 +19,9 @@ package org.apache.kahadb.journal;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -119,6 +121,7 @@ public class Journal {
     protected boolean checksum;
     protected boolean checkForCorruptionOnStartup;
     protected boolean enableAsyncDiskSync = true;
+    protected boolean memoryMapped;
     private Timer timer;
 
     public synchronized void start() throws IOException {
@@ -131,7 +134,7 @@ public class Journal {
         started = true;
         preferedFileLength = Math.max(PREFERED_DIFF, getMaxFileLength() - PREFERED_DIFF);
 
-        appender = callerBufferAppender ? new CallerBufferingDataFileAppender(this) : new DataFileAppender(this);
+        appender = createAppender();
 
         File[] files = directory.listFiles(new FilenameFilter() {
             public boolean accept(File dir, String n) {
@@ -191,6 +194,20 @@ public class Journal {
         LOG.trace("Startup took: "+(end-start)+" ms");
     }
 
+    protected FileAppender createAppender() {
+        if (memoryMapped) {
+            return new MappedDataFileAppender(this);
+        }
+        return callerBufferAppender ? new CallerBufferingDataFileAppender(this) : new DataFileAppender(this);
+    }
+
+    DataFileAccessor createDataFileAccessor(DataFile dataFile) throws IOException {
+        if (memoryMapped) {
+            return new MappedDataFileAccessor(this, dataFile);
+        }
+        return new DataFileAccessor(this, dataFile);
+    }
+
     private static byte[] bytes(String string) {
         try {
             return string.getBytes("UTF-8");
@@ -410,7 +427,7 @@ public class Journal {
 
         // reopen open file handles...
         accessorPool = new DataFileAccessorPool(this);
-        appender = new DataFileAppender(this);
+        appender = createAppender();
         return result;
     }
 
@@ -608,6 +625,97 @@ public class Journal {
         return rc;
     }
 
+    /**
+     * Reads a record without copying it when the journal is memory mapped. The
+     * returned buffer is read only and must not be used once the data file
+     * holding the record could have been removed. When the journal is not
+     * memory mapped the buffer wraps a copy of the record.
+     */
+    public synchronized ByteBuffer readBuffer(Location location) throws IOException, IllegalStateException {
+        DataFile dataFile = getDataFile(location);
+        DataFileAccessor reader = accessorPool.openDataFileAccessor(dataFile);
+        ByteBuffer rc = null;
+        try {
+            rc = reader.readRecordBuffer(location);
+        } finally {
+            accessorPool.closeDataFileAccessor(reader);
+        }
+        return rc;
+    }
+
+    /**
+     * Reads the user records of a data file from the given offset with one
+     * sequential read of up to maxLength bytes rather than a seek per record.
+     * A record larger than that is read on its own. Unlike the other read
+     * methods it only holds the journal lock to look up the file, so recovery
+     * can read ahead while it replays.
+     *
+     * @param records the list the records are added to, in file order
+     * @return the offset to carry on reading the file from, the file length
+     *         once the file has been read to its end, or -1 if the file ended
+     *         with an empty record, which marks the end of the data in the
+     *         journal
+     */
+    public int readRecords(int dataFileId, int offset, int maxLength, List<Record> records) throws IOException {
+        DataFile dataFile = getDataFile(new Location(dataFileId, offset));
+        int fileLength = dataFile.getLength();
+        int length = Math.min(fileLength - offset, Math.max(maxLength, RECORD_HEAD_SPACE));
+        if (length <= 0) {
+            return fileLength;
+        }
+        byte[] data;
+        RandomAccessFile file = dataFile.openRandomAccessFile();
+        try {
+            data = readFully(file, offset, length);
+            if (length >= RECORD_HEAD_SPACE) {
+                int first = new DataByteArrayInputStream(data).readInt();
+                if (first > length && offset + first <= fileLength) {
+                    length = first;
+                    data = readFully(file, offset, length);
+                }
+            }
+        } finally {
+            dataFile.closeRandomAccessFile(file);
+        }
+
+        DataByteArrayInputStream is = new DataByteArrayInputStream(data);
+        int pos = 0;
+        while (pos + RECORD_HEAD_SPACE <= length) {
+            is.setPos(pos);
+            int size = is.readInt();
+            byte type = is.readByte();
+            if (type == 0) {
+                return -1;
+            }
+            if (size < RECORD_HEAD_SPACE || offset + pos + size > fileLength) {
+                // the rest of the file can't be read
+                return fileLength;
+            }
+            if (pos + size > length) {
+                // continued in the next read
+                break;
+            }
+            if (type == USER_RECORD_TYPE) {
+                Location location = new Location(dataFileId, offset + pos);
+                location.setSize(size);
+                location.setType(type);
+                records.add(new Record(location, new ByteSequence(data, pos + RECORD_HEAD_SPACE, size - RECORD_HEAD_SPACE)));
+            }
+            pos += size;
+        }
+        if (offset + length == fileLength && pos + RECORD_HEAD_SPACE > length) {
+            return fileLength;
+        }
+        return offset + pos;
+    }
+
+    private byte[] readFully(RandomAccessFile file, int offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        file.seek(offset);
+        file.readFully(data);
+        return data;
+    }
+
     public Location write(ByteSequence data, boolean sync) throws IOException, IllegalStateException {
         Location loc = appender.storeItem(data, Location.USER_TYPE, sync);
         return loc;
@@ -760,6 +868,20 @@ public class Journal {
         return enableAsyncDiskSync;
     }
 
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * When set before the journal is started, data files are preallocated and
+     * written and read through memory mappings rather than RandomAccessFiles.
+     * Mapped files can only be removed once the mappings have been garbage
+     * collected on some platforms.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
     public static class WriteCommand extends LinkedNode<WriteCommand> {
         public final Location location;
         public final ByteSequence data;
@@ -781,6 +903,19 @@ public class Journal {
         }
     }
 
+    /**
+     * A user record read from a data file along with its location.
+     */
+    public static class Record {
+        public final Location location;
+        public final ByteSequence data;
+
+        public Record(Location location, ByteSequence data) {
+            this.location = location;
+            this.data = data;
+        }
+    }
+
     public static class WriteKey {
         private final int file;
         private final long offset;
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.journal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import org.apache.kahadb.util.ByteSequence;
+
+/**
+ * Store reader and updater that works on the memory mapping of a data file
+ * shared through {@link DataFile#getMappedBuffer(int)}, so reads do not need a
+ * seek and a read call. Single threaded, use in conjunction with the
+ * DataFileAccessorPool for concurrent use.
+ */
+final class MappedDataFileAccessor extends DataFileAccessor {
+
+    public MappedDataFileAccessor(Journal dataManager, DataFile dataFile) {
+        super(dataManager, dataFile, null);
+    }
+
+    /**
+     * @return a view of the mapping positioned at offset with at least size
+     *         bytes remaining
+     */
+    private ByteBuffer view(long offset, int size) throws IOException {
+        MappedByteBuffer mapped = dataFile.getMappedBuffer(0);
+        if (offset < 0 || offset + size > mapped.capacity()) {
+            throw new EOFException("Read past the end of " + dataFile + " at offset " + offset);
+        }
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) offset);
+        return view;
+    }
+
+    public ByteSequence readRecord(Location location) throws IOException {
+        // a ByteSequence is backed by an array so the record has to be copied,
+        // readRecordBuffer() is the read without a copy
+        ByteBuffer record = readRecordBuffer(location);
+        byte[] data = new byte[record.remaining()];
+        record.get(data);
+        return new ByteSequence(data, 0, data.length);
+    }
+
+    public ByteBuffer readRecordBuffer(Location location) throws IOException {
+        if (!location.isValid()) {
+            throw new IOException("Invalid location: " + location);
+        }
+
+        Journal.WriteCommand asyncWrite = inflightWrites.get(new Journal.WriteKey(location));
+        if (asyncWrite != null) {
+            ByteSequence data = asyncWrite.data;
+            return ByteBuffer.wrap(data.getData(), data.getOffset(), data.getLength()).slice().asReadOnlyBuffer();
+        }
+
+        if (location.getSize() == Location.NOT_SET) {
+            readLocationDetails(location);
+        }
+        int length = location.getSize() - Journal.RECORD_HEAD_SPACE;
+        if (length < 0) {
+            throw new IOException("Invalid location: " + location);
+        }
+        ByteBuffer view = view(location.getOffset() + Journal.RECORD_HEAD_SPACE, length);
+        view.limit(view.position() + length);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    public void readFully(long offset, byte data[]) throws IOException {
+        view(offset, data.length).get(data);
+    }
+
+    public int read(long offset, byte data[]) throws IOException {
+        MappedByteBuffer mapped = dataFile.getMappedBuffer(0);
+        if (offset >= mapped.capacity()) {
+            return -1;
+        }
+        int length = (int) Math.min(data.length, mapped.capacity() - offset);
+        view(offset, length).get(data, 0, length);
+        return length;
+    }
+
+    public void readLocationDetails(Location location) throws IOException {
+        Journal.WriteCommand asyncWrite = inflightWrites.get(new Journal.WriteKey(location));
+        if (asyncWrite != null) {
+            location.setSize(asyncWrite.location.getSize());
+            location.setType(asyncWrite.location.getType());
+        } else {
+            ByteBuffer view = view(location.getOffset(), Journal.RECORD_HEAD_SPACE);
+            location.setSize(view.getInt());
+            location.setType(view.get());
+        }
+    }
+
+    public void updateRecord(Location location, ByteSequence data, boolean sync) throws IOException {
+        int size = Math.min(data.getLength(), location.getSize());
+        ByteBuffer view = view(location.getOffset() + Journal.RECORD_HEAD_SPACE, size);
+        view.put(data.getData(), data.getOffset(), size);
+        if (sync) {
+            dataFile.getMappedBuffer(0).force();
+        }
+    }
+}
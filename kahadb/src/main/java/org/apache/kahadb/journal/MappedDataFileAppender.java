@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import org.apache.kahadb.util.ByteSequence;
+
+/**
+ * A batching appender that writes to a memory mapping of the data file rather
+ * than through a RandomAccessFile. The data file is preallocated to the
+ * journal's max file length when it is first mapped and is cut back to its
+ * real length when the appender moves on to the next file or is closed.
+ */
+class MappedDataFileAppender extends DataFileAppender {
+
+    public MappedDataFileAppender(Journal dataManager) {
+        super(dataManager);
+    }
+
+    /**
+     * The mapping is made on the first write to the data file.
+     */
+    @Override
+    protected void openDataFile(DataFile dataFile) throws IOException {
+    }
+
+    /**
+     * Copies the batch into the mapping, preallocating the data file to the
+     * journal's max file length on the first write to it.
+     */
+    @Override
+    protected void write(DataFile dataFile, int offset, ByteSequence sequence) throws IOException {
+        int end = offset + sequence.getLength();
+        MappedByteBuffer mapped = dataFile.getMappedBuffer(Math.max(end, journal.getMaxFileLength()));
+        ByteBuffer view = mapped.duplicate();
+        view.position(offset);
+        view.put(sequence.getData(), sequence.getOffset(), sequence.getLength());
+    }
+
+    @Override
+    protected void force(DataFile dataFile) throws IOException {
+        dataFile.getMappedBuffer(0).force();
+    }
+
+    @Override
+    protected void closeDataFile(DataFile dataFile) throws IOException {
+        try {
+            dataFile.getMappedBuffer(0).force();
+        } finally {
+            dataFile.truncate();
+        }
+    }
+}
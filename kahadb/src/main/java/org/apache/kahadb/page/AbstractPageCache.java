@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.page;
+
+/**
+ * Keeps the hit, miss and eviction counts and the byte size of a
+ * {@link PageCache}, the subclasses implement the replacement policy. All
+ * calls into the policy are made holding the lock of the cache.
+ */
+@SuppressWarnings("rawtypes")
+public abstract class AbstractPageCache implements PageCache {
+
+    protected static final class Entry {
+        final Page page;
+        final int size;
+
+        Entry(Page page, int size) {
+            this.page = page;
+            this.size = size;
+        }
+    }
+
+    protected final long maxSize;
+    protected long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    protected AbstractPageCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public synchronized Page get(long pageId) {
+        Entry entry = lookup(pageId);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.page;
+    }
+
+    public synchronized void put(Page page, int size) {
+        store(page.getPageId(), new Entry(page, size));
+    }
+
+    public synchronized void remove(long pageId) {
+        discard(pageId);
+    }
+
+    public synchronized void clear() {
+        reset();
+        size = 0;
+    }
+
+    /**
+     * @return the entry of the page, after recording the access to it
+     */
+    protected abstract Entry lookup(long pageId);
+
+    /**
+     * Adds or replaces the entry of a page and evicts entries until the cache
+     * is back within its size.
+     */
+    protected abstract void store(long pageId, Entry entry);
+
+    protected abstract void discard(long pageId);
+
+    protected abstract void reset();
+
+    protected void evicted(Entry entry) {
+        evicted(1, entry.size);
+    }
+
+    protected void evicted(int count, long bytes) {
+        evictions += count;
+        size -= bytes;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "[entries=" + getEntryCount() + ", size=" + size + "/" + maxSize
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+}
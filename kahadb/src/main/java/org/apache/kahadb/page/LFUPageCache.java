@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.page;
+
+import org.apache.kahadb.util.LFUCache;
+
+/**
+ * The page cache used when {@link PageFile#setUseLFRUEviction(boolean)} is
+ * set. The {@link LFUCache} it uses is sized in pages and evicts a fraction of
+ * them at a time, so every page is counted as a full page here.
+ */
+class LFUPageCache extends AbstractPageCache {
+
+    private final LFUCache<Long, Entry> entries;
+    private final int pageSize;
+
+    LFUPageCache(long maxSize, int pageSize, float evictionFactor) {
+        super(maxSize);
+        this.pageSize = pageSize;
+        this.entries = new LFUCache<Long, Entry>((int) Math.max(1, maxSize / pageSize), evictionFactor);
+    }
+
+    @Override
+    protected Entry lookup(long pageId) {
+        return entries.get(pageId);
+    }
+
+    @Override
+    protected void store(long pageId, Entry entry) {
+        int expected = entries.size() + (entries.containsKey(pageId) ? 0 : 1);
+        entries.put(pageId, entry);
+        int evicted = expected - entries.size();
+        if (evicted > 0) {
+            evicted(evicted, (long) evicted * pageSize);
+        }
+        size = (long) entries.size() * pageSize;
+    }
+
+    @Override
+    protected void discard(long pageId) {
+        entries.remove(pageId);
+        size = (long) entries.size() * pageSize;
+    }
+
+    @Override
+    protected void reset() {
+        entries.clear();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+}
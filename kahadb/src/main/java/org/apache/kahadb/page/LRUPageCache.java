@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.page;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A page cache that evicts the least recently used pages once it holds more
+ * than its size in bytes.
+ */
+public class LRUPageCache extends AbstractPageCache {
+
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+    public LRUPageCache(long maxSize) {
+        super(maxSize);
+    }
+
+    @Override
+    protected Entry lookup(long pageId) {
+        return entries.get(pageId);
+    }
+
+    @Override
+    protected void store(long pageId, Entry entry) {
+        Entry previous = entries.put(pageId, entry);
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += entry.size;
+
+        // the page just added always stays
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && entries.size() > 1) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            evicted(eldest);
+        }
+    }
+
+    @Override
+    protected void discard(long pageId) {
+        Entry entry = entries.remove(pageId);
+        if (entry != null) {
+            size -= entry.size;
+        }
+    }
+
+    @Override
+    protected void reset() {
+        entries.clear();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.page;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps copies of the raw pages of a {@link PageFile} in direct buffers, off
+ * the java heap, so the pages that drop out of the page cache can be read back
+ * without going to disk. Pages are evicted least recently used first. The page
+ * file writes its pages through to the store as it writes them to disk.
+ */
+public class OffHeapPageStore {
+
+    // the largest direct buffer allocated at once
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final int pageSize;
+    private final int slotsPerSegment;
+    private final ByteBuffer[] segments;
+    private final LinkedHashMap<Long, Integer> slots = new LinkedHashMap<Long, Integer>(16, 0.75f, true);
+    private final int[] freeSlots;
+    private int freeCount;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxSize the bytes of direct memory to use
+     * @param pageSize the page size of the page file
+     */
+    public OffHeapPageStore(long maxSize, int pageSize) {
+        this.pageSize = pageSize;
+        this.slotsPerSegment = Math.max(1, SEGMENT_SIZE / pageSize);
+        int slotCount = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxSize / pageSize));
+        this.segments = new ByteBuffer[(slotCount + slotsPerSegment - 1) / slotsPerSegment];
+        for (int i = 0; i < segments.length; i++) {
+            int segmentSlots = Math.min(slotsPerSegment, slotCount - i * slotsPerSegment);
+            segments[i] = ByteBuffer.allocateDirect(segmentSlots * pageSize);
+        }
+        this.freeSlots = new int[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            freeSlots[freeCount++] = slotCount - 1 - i;
+        }
+    }
+
+    /**
+     * Reads the first data.length bytes of the page.
+     *
+     * @return false if the page is not in the store
+     */
+    public synchronized boolean read(long pageId, byte[] data) {
+        Integer slot = slots.get(pageId);
+        if (slot == null) {
+            misses++;
+            return false;
+        }
+        ByteBuffer buffer = segment(slot);
+        buffer.position(offset(slot));
+        buffer.get(data, 0, Math.min(data.length, pageSize));
+        hits++;
+        return true;
+    }
+
+    /**
+     * Adds or replaces the page.
+     *
+     * @param data at least a page of data
+     */
+    public synchronized void write(long pageId, byte[] data) {
+        Integer slot = slots.get(pageId);
+        if (slot == null) {
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                Iterator<java.util.Map.Entry<Long, Integer>> eldest = slots.entrySet().iterator();
+                slot = eldest.next().getValue();
+                eldest.remove();
+                evictions++;
+            }
+            slots.put(pageId, slot);
+        }
+        ByteBuffer buffer = segment(slot);
+        buffer.position(offset(slot));
+        buffer.put(data, 0, pageSize);
+    }
+
+    public synchronized void remove(long pageId) {
+        Integer slot = slots.remove(pageId);
+        if (slot != null) {
+            freeSlots[freeCount++] = slot;
+        }
+    }
+
+    public synchronized void clear() {
+        for (Integer slot : slots.values()) {
+            freeSlots[freeCount++] = slot;
+        }
+        slots.clear();
+    }
+
+    private ByteBuffer segment(int slot) {
+        return segments[slot / slotsPerSegment];
+    }
+
+    private int offset(int slot) {
+        return (slot % slotsPerSegment) * pageSize;
+    }
+
+    public long getMaxSize() {
+        return (long) freeSlots.length * pageSize;
+    }
+
+    public synchronized long getSize() {
+        return (long) slots.size() * pageSize;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OffHeapPageStore[size=" + getSize() + "/" + getMaxSize() + ", hits=" + hits
+                + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.page;
+
+/**
+ * The read cache of a {@link PageFile}. It keeps the unmarshalled pages that
+ * were last loaded or stored, sized by the bytes the pages take up in the page
+ * file. A PageFile can be given its own implementation; implementations have to
+ * be thread safe.
+ */
+@SuppressWarnings("rawtypes")
+public interface PageCache {
+
+    /**
+     * @return the cached page, null if it is not in the cache
+     */
+    Page get(long pageId);
+
+    /**
+     * Adds or replaces a page.
+     *
+     * @param size the number of bytes the page data takes up in the page file
+     */
+    void put(Page page, int size);
+
+    void remove(long pageId);
+
+    void clear();
+
+    /**
+     * @return the most bytes of pages the cache keeps
+     */
+    long getMaxSize();
+
+    /**
+     * @return the bytes of the pages in the cache
+     */
+    long getSize();
+
+    int getEntryCount();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getEvictionCount();
+
+    /**
+     * @return the fraction of the lookups that found their page in the cache
+     */
+    double getHitRatio();
+}
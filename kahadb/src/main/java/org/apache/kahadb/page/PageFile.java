@@ -29,7 +29,6 @@ import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -46,8 +45,6 @@ import org.apache.kahadb.util.DataByteArrayOutputStream;
 import org.apache.kahadb.util.IOExceptionSupport;
 import org.apache.kahadb.util.IOHelper;
 import org.apache.kahadb.util.IntrospectionSupport;
-import org.apache.kahadb.util.LFUCache;
-import org.apache.kahadb.util.LRUCache;
 import org.apache.kahadb.util.Sequence;
 import org.apache.kahadb.util.SequenceSet;
 import org.slf4j.Logger;
@@ -108,11 +105,20 @@ public class PageFile {
     int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
 
     // We keep a cache of pages recently used?
-    private Map<Long, Page> pageCache;
+    private PageCache pageCache;
+    // The cache to use instead of one created from the settings below.
+    private PageCache configuredPageCache;
     // The cache of recently used pages.
     private boolean enablePageCaching = true;
     // How many pages will we keep in the cache?
     private int pageCacheSize = DEFAULT_PAGE_CACHE_SIZE;
+    // How many bytes of pages will we keep in the cache? 0 sizes it by pageCacheSize.
+    private long pageCacheMaxSize;
+    // Which eviction policy the cache uses: LRU, 2Q or LFU.
+    private String pageCachePolicy = "LRU";
+    // Bytes of direct memory used to keep raw pages below the cache, 0 to disable.
+    private long offHeapPageCacheSize;
+    private OffHeapPageStore offHeapPageStore;
 
     // Should first log the page write to the recovery buffer? Avoids partial
     // page write failures..
@@ -367,14 +373,6 @@ public class PageFile {
     public void load() throws IOException, IllegalStateException {
         if (loaded.compareAndSet(false, true)) {
 
-            if (enablePageCaching) {
-                if (isUseLFRUEviction()) {
-                    pageCache = Collections.synchronizedMap(new LFUCache<Long, Page>(pageCacheSize, getLFUEvictionFactor()));
-                } else {
-                    pageCache = Collections.synchronizedMap(new LRUCache<Long, Page>(pageCacheSize, pageCacheSize, 0.75f, true));
-                }
-            }
-
             File file = getMainPageFile();
             IOHelper.mkdirs(file.getParentFile());
             writeFile = new RandomAccessFile(file, "rw");
@@ -396,6 +394,14 @@ public class PageFile {
                 storeMetaData();
             }
 
+            // Sized once the page size is known.
+            if (enablePageCaching) {
+                pageCache = configuredPageCache != null ? configuredPageCache : createPageCache();
+                if (offHeapPageCacheSize > 0) {
+                    offHeapPageStore = new OffHeapPageStore(offHeapPageCacheSize, pageSize);
+                }
+            }
+
             if (enableRecoveryFile) {
                 recoveryFile = new RandomAccessFile(getRecoveryFile(), "rw");
             }
@@ -473,8 +479,19 @@ public class PageFile {
                 }
                 freeList.clear();
                 if (pageCache != null) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Unloading " + getMainPageFile() + " page cache: " + pageCache);
+                    }
+                    pageCache.clear();
                     pageCache = null;
                 }
+                if (offHeapPageStore != null) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Unloading " + getMainPageFile() + " off heap page store: " + offHeapPageStore);
+                    }
+                    offHeapPageStore.clear();
+                    offHeapPageStore = null;
+                }
                 synchronized (writes) {
                     writes.clear();
                 }
@@ -797,6 +814,87 @@ public class PageFile {
         this.useLFRUEviction = useLFRUEviction;
     }
 
+    /**
+     * @return the most bytes of pages that will get stored in the read page cache,
+     *         0 if the cache is sized by the page cache size.
+     */
+    public long getPageCacheMaxSize() {
+        return pageCacheMaxSize;
+    }
+
+    /**
+     * @param pageCacheMaxSize Sets the most bytes of pages that will get stored in the read page cache.
+     *                         Pages read from a chain of pages count for all the pages of the chain.
+     */
+    public void setPageCacheMaxSize(long pageCacheMaxSize) {
+        assertNotLoaded();
+        this.pageCacheMaxSize = pageCacheMaxSize;
+    }
+
+    public String getPageCachePolicy() {
+        return pageCachePolicy;
+    }
+
+    /**
+     * @param pageCachePolicy the eviction policy of the read page cache. LRU evicts the least
+     *                        recently used pages, 2Q keeps pages read only once apart so that
+     *                        index scans do not flush the pages that are used over and over, LFU
+     *                        evicts the least frequently used pages.
+     */
+    public void setPageCachePolicy(String pageCachePolicy) {
+        assertNotLoaded();
+        this.pageCachePolicy = pageCachePolicy;
+    }
+
+    public long getOffHeapPageCacheSize() {
+        return offHeapPageCacheSize;
+    }
+
+    /**
+     * @param offHeapPageCacheSize Sets the bytes of direct memory used to keep copies of the pages
+     *                             read from and written to disk, 0 to not keep any.
+     */
+    public void setOffHeapPageCacheSize(long offHeapPageCacheSize) {
+        assertNotLoaded();
+        this.offHeapPageCacheSize = offHeapPageCacheSize;
+    }
+
+    /**
+     * @return the read page cache in use, null if the page file is not loaded
+     *         or page caching is disabled.
+     */
+    public PageCache getPageCache() {
+        return pageCache;
+    }
+
+    /**
+     * @param pageCache a read page cache to use instead of the one the page cache
+     *                  settings would create.
+     */
+    public void setPageCache(PageCache pageCache) {
+        assertNotLoaded();
+        this.configuredPageCache = pageCache;
+    }
+
+    /**
+     * @return the off heap page store in use, null if there is none.
+     */
+    public OffHeapPageStore getOffHeapPageStore() {
+        return offHeapPageStore;
+    }
+
+    private PageCache createPageCache() {
+        long maxSize = pageCacheMaxSize > 0 ? pageCacheMaxSize : (long) pageCacheSize * pageSize;
+        if (useLFRUEviction || "LFU".equalsIgnoreCase(pageCachePolicy)) {
+            return new LFUPageCache(maxSize, pageSize, LFUEvictionFactor);
+        } else if ("2Q".equalsIgnoreCase(pageCachePolicy)) {
+            return new TwoQueuePageCache(maxSize, (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxSize / pageSize / 2)));
+        } else if ("LRU".equalsIgnoreCase(pageCachePolicy)) {
+            return new LRUPageCache(maxSize);
+        }
+        throw new IllegalArgumentException("Unknown page cache policy: " + pageCachePolicy);
+    }
+
     ///////////////////////////////////////////////////////////////////
     // Package Protected Methods exposed to Transaction
     ///////////////////////////////////////////////////////////////////
@@ -872,8 +970,14 @@ public class PageFile {
     }
 
     synchronized void readPage(long pageId, byte[] data) throws IOException {
+        if (offHeapPageStore != null && offHeapPageStore.read(pageId, data)) {
+            return;
+        }
         readFile.seek(toOffset(pageId));
         readFile.readFully(data);
+        if (offHeapPageStore != null && data.length == pageSize) {
+            offHeapPageStore.write(pageId, data);
+        }
     }
 
     public void freePage(long pageId) {
@@ -978,8 +1082,16 @@ public class PageFile {
     }
 
     void addToCache(Page page) {
+        addToCache(page, pageSize);
+    }
+
+    /**
+     * @param size the bytes the page data takes up, more than a page for data
+     *             stored in a chain of pages.
+     */
+    void addToCache(Page page, int size) {
         if (enablePageCaching) {
-            pageCache.put(page.getPageId(), page);
+            pageCache.put(page, size);
         }
     }
 
@@ -1060,6 +1172,12 @@ public class PageFile {
 
             writeFile.seek(toOffset(w.page.getPageId()));
             writeFile.write(w.getDiskBound(), 0, pageSize);
+            if (offHeapPageStore != null) {
+                // under the readPage lock so a read cannot store the old page after this
+                synchronized (this) {
+                    offHeapPageStore.write(w.page.getPageId(), w.getDiskBound());
+                }
+            }
             w.done();
         }
 
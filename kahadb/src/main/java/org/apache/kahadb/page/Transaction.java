@@ -274,6 +274,7 @@ public class Transaction implements Iterable<Page> {
         // marshalled.
         DataByteArrayOutputStream out = new DataByteArrayOutputStream(pageFile.getPageSize() * 2) {
             Page current = copy;
+            int pageCount = 1;
 
             @SuppressWarnings("unchecked")
             @Override
@@ -315,6 +316,7 @@ public class Transaction implements Iterable<Page> {
                             System.arraycopy(buf, pageSize, buf, pos, oldPos - pageSize);
                             pos += oldPos - pageSize;
                             current = next;
+                            pageCount++;
 
                         } while (pos > pageSize);
                     } else {
@@ -340,6 +342,11 @@ public class Transaction implements Iterable<Page> {
                 current.write(this);
 
                 Transaction.this.write(current, buf);
+
+                if (pageCount > 1) {
+                    // account for the whole chain now its length is known
+                    pageFile.addToCache(copy, pageCount * pageFile.getPageSize());
+                }
             }
         };
 
@@ -405,12 +412,16 @@ public class Transaction implements Iterable<Page> {
             return;
         }
 
+        int size = pageFile.getPageSize();
         if (marshaller != null) {
             // Full page read..
-            InputStream is = openInputStream(page);
+            CountingInputStream is = new CountingInputStream(openInputStream(page));
             DataInputStream dataIn = new DataInputStream(is);
             page.set(marshaller.readPayload(dataIn));
             is.close();
+            // The cache is charged for every page of the chain the data was read from.
+            int pageDataSize = size - Page.PAGE_HEADER_SIZE;
+            size = (int) Math.min(Integer.MAX_VALUE, (is.getCount() / pageDataSize + 1) * size);
         } else {
             // Page header read.
             DataByteArrayInputStream in = new DataByteArrayInputStream(new byte[Page.PAGE_HEADER_SIZE]);
@@ -421,7 +432,7 @@ public class Transaction implements Iterable<Page> {
 
         // Cache it.
         if (marshaller != null) {
-            pageFile.addToCache(page);
+            pageFile.addToCache(page, size);
         }
     }
 
@@ -800,4 +811,49 @@ public class Transaction implements Iterable<Page> {
             }
         }
     }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int rc = super.read();
+            if (rc >= 0) {
+                count++;
+            }
+            return rc;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int rc = super.read(b, off, len);
+            if (rc > 0) {
+                count += rc;
+            }
+            return rc;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long rc = super.skip(n);
+            count += rc;
+            return rc;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
 }
@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.page;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * A scan resistant page cache using the 2Q replacement policy. A page is first
+ * kept in a FIFO queue that takes up to a quarter of the cache. When it falls
+ * out of that queue only its id is remembered, and the page moves to the LRU
+ * main queue if it is loaded again while its id is still remembered. Pages
+ * read once by a scan of an index pass through the FIFO queue without evicting
+ * the pages that are used over and over, like the interior nodes of a BTree.
+ */
+public class TwoQueuePageCache extends AbstractPageCache {
+
+    // pages seen once, first in first out
+    private final LinkedHashMap<Long, Entry> in = new LinkedHashMap<Long, Entry>();
+    // the ids of the pages recently pushed out of the in queue
+    private final LinkedHashSet<Long> out = new LinkedHashSet<Long>();
+    // pages seen again, least recently used first
+    private final LinkedHashMap<Long, Entry> main = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+    private final long maxInSize;
+    private final int maxOutCount;
+    private long inSize;
+
+    /**
+     * @param maxSize the bytes of pages the cache keeps
+     * @param maxOutCount how many ids of pages pushed out of the in queue are
+     *        remembered, usually half the number of pages that fit the cache
+     */
+    public TwoQueuePageCache(long maxSize, int maxOutCount) {
+        super(maxSize);
+        this.maxInSize = maxSize / 4;
+        this.maxOutCount = Math.max(1, maxOutCount);
+    }
+
+    @Override
+    protected Entry lookup(long pageId) {
+        Entry entry = main.get(pageId);
+        if (entry == null) {
+            // a hit in the in queue does not change the order
+            entry = in.get(pageId);
+        }
+        return entry;
+    }
+
+    @Override
+    protected void store(long pageId, Entry entry) {
+        Entry previous = main.get(pageId);
+        if (previous != null) {
+            main.put(pageId, entry);
+        } else {
+            previous = in.get(pageId);
+            if (previous != null) {
+                in.put(pageId, entry);
+                inSize += entry.size - previous.size;
+            } else if (out.remove(pageId)) {
+                main.put(pageId, entry);
+            } else {
+                in.put(pageId, entry);
+                inSize += entry.size;
+            }
+        }
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += entry.size;
+        reclaim(pageId);
+    }
+
+    private void reclaim(long keep) {
+        while (size > maxSize) {
+            boolean fromIn = inSize > maxInSize || main.isEmpty();
+            Long victim = eldest(fromIn ? in : main, keep);
+            if (victim == null) {
+                fromIn = !fromIn;
+                victim = eldest(fromIn ? in : main, keep);
+                if (victim == null) {
+                    break;
+                }
+            }
+            Entry entry = (fromIn ? in : main).remove(victim);
+            evicted(entry);
+            if (fromIn) {
+                inSize -= entry.size;
+                out.add(victim);
+                if (out.size() > maxOutCount) {
+                    Iterator<Long> oldest = out.iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the id of the page first in line to leave the queue, other than
+     *         the page just added which always stays
+     */
+    private static Long eldest(LinkedHashMap<Long, Entry> queue, long keep) {
+        for (Long pageId : queue.keySet()) {
+            if (pageId.longValue() != keep) {
+                return pageId;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void discard(long pageId) {
+        Entry entry = main.remove(pageId);
+        if (entry == null) {
+            entry = in.remove(pageId);
+            if (entry != null) {
+                inSize -= entry.size;
+            }
+        }
+        if (entry != null) {
+            size -= entry.size;
+        }
+        out.remove(pageId);
+    }
+
+    @Override
+    protected void reset() {
+        in.clear();
+        out.clear();
+        main.clear();
+        inSize = 0;
+    }
+
+    public synchronized int getEntryCount() {
+        return in.size() + main.size();
+    }
+}
@@ -0,0 +1,487 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * A compressed set of long values, used like a {@link SequenceSet} where the
+ * values are not mostly in a few long ranges. The values are split in blocks
+ * of 64K by their high bits. A block keeps its values as runs while there are
+ * few of them and switches to a plain bitmap once the runs would take more
+ * space than the bitmap, so a set of ranges stays as small as a SequenceSet
+ * while a fragmented set costs at most a bit per value. Negative values are
+ * not supported.
+ */
+public class SequenceBitmap implements Iterable<Long> {
+
+    static final int BLOCK_BITS = 16;
+    static final int BLOCK_MASK = (1 << BLOCK_BITS) - 1;
+    static final int BITMAP_WORDS = (1 << BLOCK_BITS) / 64;
+    // a run takes two chars, so past this many runs a bitmap is smaller
+    static final int MAX_RUNS = BITMAP_WORDS * 2;
+
+    public static class Marshaller implements org.apache.kahadb.util.Marshaller<SequenceBitmap> {
+
+        public static final Marshaller INSTANCE = new Marshaller();
+
+        public SequenceBitmap readPayload(DataInput in) throws IOException {
+            SequenceBitmap value = new SequenceBitmap();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long high = in.readLong();
+                Block block = new Block();
+                if (in.readBoolean()) {
+                    block.bits = new long[BITMAP_WORDS];
+                    for (int w = 0; w < BITMAP_WORDS; w++) {
+                        block.bits[w] = in.readLong();
+                        block.cardinality += Long.bitCount(block.bits[w]);
+                    }
+                } else {
+                    block.runCount = in.readChar();
+                    block.runs = new char[block.runCount * 2];
+                    for (int r = 0; r < block.runs.length; r += 2) {
+                        block.runs[r] = in.readChar();
+                        block.runs[r + 1] = in.readChar();
+                        block.cardinality += block.runs[r + 1] + 1;
+                    }
+                }
+                value.blocks.put(high, block);
+                value.cardinality += block.cardinality;
+            }
+            return value;
+        }
+
+        public void writePayload(SequenceBitmap value, DataOutput out) throws IOException {
+            out.writeInt(value.blocks.size());
+            for (Map.Entry<Long, Block> entry : value.blocks.entrySet()) {
+                out.writeLong(entry.getKey());
+                Block block = entry.getValue();
+                if (block.bits != null && block.countBitmapRuns() > MAX_RUNS) {
+                    out.writeBoolean(true);
+                    for (long word : block.bits) {
+                        out.writeLong(word);
+                    }
+                } else {
+                    // a bitmap that has filled up into a few runs is written as runs
+                    char[] runs = block.bits != null ? block.bitmapToRuns() : block.runs;
+                    int runCount = block.bits != null ? runs.length / 2 : block.runCount;
+                    out.writeBoolean(false);
+                    out.writeChar(runCount);
+                    for (int r = 0; r < runCount * 2; r++) {
+                        out.writeChar(runs[r]);
+                    }
+                }
+            }
+        }
+
+        public int getFixedSize() {
+            return -1;
+        }
+
+        public SequenceBitmap deepCopy(SequenceBitmap value) {
+            SequenceBitmap rc = new SequenceBitmap();
+            for (Map.Entry<Long, Block> entry : value.blocks.entrySet()) {
+                rc.blocks.put(entry.getKey(), entry.getValue().copy());
+            }
+            rc.cardinality = value.cardinality;
+            return rc;
+        }
+
+        public boolean isDeepCopySupported() {
+            return true;
+        }
+    }
+
+    private final TreeMap<Long, Block> blocks = new TreeMap<Long, Block>();
+    private long cardinality;
+
+    /**
+     * @return the block the value is kept in, the same for all the values
+     *         that differ only in their low 16 bits
+     */
+    public static long blockOf(long value) {
+        return value >>> BLOCK_BITS;
+    }
+
+    /**
+     * @return false if the value was already in the set
+     */
+    public boolean add(long value) {
+        Long high = Long.valueOf(value >>> BLOCK_BITS);
+        Block block = blocks.get(high);
+        if (block == null) {
+            block = new Block();
+            blocks.put(high, block);
+        }
+        if (block.add((int) (value & BLOCK_MASK))) {
+            cardinality++;
+            return true;
+        }
+        return false;
+    }
+
+    public void addAll(SequenceBitmap other) {
+        for (Long value : other) {
+            add(value);
+        }
+    }
+
+    /**
+     * @return false if the value was not in the set
+     */
+    public boolean remove(long value) {
+        Long high = Long.valueOf(value >>> BLOCK_BITS);
+        Block block = blocks.get(high);
+        if (block == null || !block.remove((int) (value & BLOCK_MASK))) {
+            return false;
+        }
+        if (block.cardinality == 0) {
+            blocks.remove(high);
+        }
+        cardinality--;
+        return true;
+    }
+
+    public boolean contains(long value) {
+        Block block = blocks.get(value >>> BLOCK_BITS);
+        return block != null && block.contains((int) (value & BLOCK_MASK));
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * @return the number of values in the set
+     */
+    public long cardinality() {
+        return cardinality;
+    }
+
+    public long first() {
+        if (blocks.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<Long, Block> entry = blocks.firstEntry();
+        return (entry.getKey() << BLOCK_BITS) | entry.getValue().first();
+    }
+
+    public long last() {
+        if (blocks.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<Long, Block> entry = blocks.lastEntry();
+        return (entry.getKey() << BLOCK_BITS) | entry.getValue().last();
+    }
+
+    public void clear() {
+        blocks.clear();
+        cardinality = 0;
+    }
+
+    public Iterator<Long> iterator() {
+        return new BitmapIterator();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (Long value : this) {
+            if (sb.length() > 1) {
+                sb.append(",");
+            }
+            sb.append(value);
+        }
+        return sb.append("]").toString();
+    }
+
+    private class BitmapIterator implements Iterator<Long> {
+
+        private final Iterator<Map.Entry<Long, Block>> blockIterator = blocks.entrySet().iterator();
+        private long high;
+        private Block block;
+        private int next = -1;
+
+        BitmapIterator() {
+            advance(0);
+        }
+
+        private void advance(int from) {
+            while (true) {
+                if (block != null) {
+                    next = from < (1 << BLOCK_BITS) ? block.next(from) : -1;
+                    if (next >= 0) {
+                        return;
+                    }
+                }
+                if (!blockIterator.hasNext()) {
+                    block = null;
+                    return;
+                }
+                Map.Entry<Long, Block> entry = blockIterator.next();
+                high = entry.getKey();
+                block = entry.getValue();
+                from = 0;
+            }
+        }
+
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        public Long next() {
+            if (next < 0) {
+                throw new NoSuchElementException();
+            }
+            long value = (high << BLOCK_BITS) | next;
+            advance(next + 1);
+            return value;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The low 16 bits of the values with the same high bits, either as runs
+     * of start and length - 1 pairs sorted by start, or as a bitmap.
+     */
+    static final class Block {
+        char[] runs = new char[4];
+        int runCount;
+        long[] bits;
+        int cardinality;
+
+        Block copy() {
+            Block rc = new Block();
+            rc.runs = runs == null ? null : runs.clone();
+            rc.runCount = runCount;
+            rc.bits = bits == null ? null : bits.clone();
+            rc.cardinality = cardinality;
+            return rc;
+        }
+
+        boolean contains(int low) {
+            if (bits != null) {
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+            int i = findRun(low);
+            return i >= 0 && low <= end(i);
+        }
+
+        boolean add(int low) {
+            if (bits != null) {
+                long word = bits[low >>> 6];
+                if ((word & (1L << low)) != 0) {
+                    return false;
+                }
+                bits[low >>> 6] = word | (1L << low);
+                cardinality++;
+                return true;
+            }
+            int i = findRun(low);
+            if (i >= 0 && low <= end(i)) {
+                return false;
+            }
+            boolean joinsNext = i + 1 < runCount && runs[(i + 1) * 2] == low + 1;
+            if (i >= 0 && end(i) == low - 1) {
+                if (joinsNext) {
+                    runs[i * 2 + 1] = (char) (end(i + 1) - runs[i * 2]);
+                    deleteRun(i + 1);
+                } else {
+                    runs[i * 2 + 1]++;
+                }
+            } else if (joinsNext) {
+                runs[(i + 1) * 2] = (char) low;
+                runs[(i + 1) * 2 + 1]++;
+            } else {
+                insertRun(i + 1, low, low);
+            }
+            cardinality++;
+            if (runCount > MAX_RUNS) {
+                toBitmap();
+            }
+            return true;
+        }
+
+        boolean remove(int low) {
+            if (bits != null) {
+                long word = bits[low >>> 6];
+                if ((word & (1L << low)) == 0) {
+                    return false;
+                }
+                bits[low >>> 6] = word & ~(1L << low);
+                cardinality--;
+                if (cardinality < MAX_RUNS / 2) {
+                    runs = bitmapToRuns();
+                    runCount = runs.length / 2;
+                    bits = null;
+                }
+                return true;
+            }
+            int i = findRun(low);
+            if (i < 0 || low > end(i)) {
+                return false;
+            }
+            int start = runs[i * 2];
+            int end = end(i);
+            if (start == end) {
+                deleteRun(i);
+            } else if (low == start) {
+                runs[i * 2]++;
+                runs[i * 2 + 1]--;
+            } else if (low == end) {
+                runs[i * 2 + 1]--;
+            } else {
+                runs[i * 2 + 1] = (char) (low - 1 - start);
+                insertRun(i + 1, low + 1, end);
+            }
+            cardinality--;
+            if (runCount > MAX_RUNS) {
+                toBitmap();
+            }
+            return true;
+        }
+
+        int first() {
+            return bits != null ? next(0) : runs[0];
+        }
+
+        int last() {
+            if (bits == null) {
+                return end(runCount - 1);
+            }
+            for (int w = BITMAP_WORDS - 1; w >= 0; w--) {
+                if (bits[w] != 0) {
+                    return w * 64 + 63 - Long.numberOfLeadingZeros(bits[w]);
+                }
+            }
+            throw new NoSuchElementException();
+        }
+
+        /**
+         * @return the first value at or after from, -1 if there is none
+         */
+        int next(int from) {
+            if (bits != null) {
+                int w = from >>> 6;
+                long word = bits[w] & (-1L << from);
+                while (true) {
+                    if (word != 0) {
+                        return w * 64 + Long.numberOfTrailingZeros(word);
+                    }
+                    if (++w == BITMAP_WORDS) {
+                        return -1;
+                    }
+                    word = bits[w];
+                }
+            }
+            int i = findRun(from);
+            if (i >= 0 && from <= end(i)) {
+                return from;
+            }
+            return i + 1 < runCount ? runs[(i + 1) * 2] : -1;
+        }
+
+        private int end(int i) {
+            return runs[i * 2] + runs[i * 2 + 1];
+        }
+
+        /**
+         * @return the index of the last run starting at or before low, -1 if
+         *         there is none
+         */
+        private int findRun(int low) {
+            int lo = 0;
+            int hi = runCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int start = runs[mid * 2];
+                if (start < low) {
+                    lo = mid + 1;
+                } else if (start > low) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return hi;
+        }
+
+        private void insertRun(int i, int start, int end) {
+            if ((runCount + 1) * 2 > runs.length) {
+                runs = Arrays.copyOf(runs, Math.max(4, runs.length * 2));
+            }
+            System.arraycopy(runs, i * 2, runs, i * 2 + 2, (runCount - i) * 2);
+            runs[i * 2] = (char) start;
+            runs[i * 2 + 1] = (char) (end - start);
+            runCount++;
+        }
+
+        private void deleteRun(int i) {
+            System.arraycopy(runs, i * 2 + 2, runs, i * 2, (runCount - i - 1) * 2);
+            runCount--;
+        }
+
+        private void toBitmap() {
+            bits = new long[BITMAP_WORDS];
+            for (int i = 0; i < runCount; i++) {
+                for (int low = runs[i * 2]; low <= end(i); low++) {
+                    bits[low >>> 6] |= 1L << low;
+                }
+            }
+            runs = null;
+            runCount = 0;
+        }
+
+        int countBitmapRuns() {
+            int count = 0;
+            long previousTop = 0;
+            for (long word : bits) {
+                // a run starts at every set bit whose lower neighbour is clear
+                count += Long.bitCount(word & ~((word << 1) | previousTop));
+                previousTop = word >>> 63;
+            }
+            return count;
+        }
+
+        char[] bitmapToRuns() {
+            char[] rc = new char[countBitmapRuns() * 2];
+            int r = 0;
+            int low = next(0);
+            while (low >= 0) {
+                int end = low;
+                while (end + 1 < (1 << BLOCK_BITS) && (bits[(end + 1) >>> 6] & (1L << (end + 1))) != 0) {
+                    end++;
+                }
+                rc[r++] = (char) low;
+                rc[r++] = (char) (end - low);
+                low = end + 1 < (1 << BLOCK_BITS) ? next(end + 1) : -1;
+            }
+            return rc;
+        }
+    }
+}
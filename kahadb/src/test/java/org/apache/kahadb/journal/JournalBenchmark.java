@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.journal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import org.apache.kahadb.util.ByteSequence;
+import org.apache.kahadb.util.IOHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures journal append and read throughput for one of the data file
+ * appender implementations. Run the subclasses directly, they are not picked
+ * up by the normal test run.
+ */
+public abstract class JournalBenchmark extends TestCase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalBenchmark.class);
+
+    // How many threads append concurrently
+    private static final int WRITERS = Integer.parseInt(System.getProperty("WRITERS", "" + 10));
+    // How many records each writer appends
+    private static final int RECORDS = Integer.parseInt(System.getProperty("RECORDS", "" + 10000));
+    private static final int RECORD_SIZE = Integer.parseInt(System.getProperty("RECORD_SIZE", "" + 1024));
+    // Every n'th record is a sync write
+    private static final int SYNC_EVERY = Integer.parseInt(System.getProperty("SYNC_EVERY", "" + 100));
+
+    protected File dir;
+    protected Journal journal;
+
+    @Override
+    public void setUp() throws Exception {
+        dir = new File("target/tests/" + getClass().getSimpleName());
+        IOHelper.delete(dir);
+        dir.mkdirs();
+        journal = createJournal();
+        journal.setDirectory(dir);
+        journal.start();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        journal.close();
+        IOHelper.delete(dir);
+    }
+
+    protected abstract Journal createJournal();
+
+    public void testWriteThenRead() throws Exception {
+        final ByteSequence payload = new ByteSequence(new byte[RECORD_SIZE]);
+        final List<Location> locations = new ArrayList<Location>(WRITERS * RECORDS);
+        final CountDownLatch done = new CountDownLatch(WRITERS);
+        final Vector<Throwable> exceptions = new Vector<Throwable>();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < WRITERS; i++) {
+            new Thread("Journal writer " + i) {
+                public void run() {
+                    try {
+                        List<Location> written = new ArrayList<Location>(RECORDS);
+                        for (int j = 1; j <= RECORDS; j++) {
+                            written.add(journal.write(payload, j % SYNC_EVERY == 0));
+                        }
+                        synchronized (locations) {
+                            locations.addAll(written);
+                        }
+                    } catch (Throwable e) {
+                        LOG.error("Journal writer failed", e);
+                        exceptions.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        assertTrue("No exceptions: " + exceptions, exceptions.isEmpty());
+        journal.write(payload, true);
+        long writeTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        long bytes = 0;
+        for (Location location : locations) {
+            bytes += journal.read(location).getLength();
+        }
+        long readTime = System.currentTimeMillis() - start;
+        assertEquals((long) WRITERS * RECORDS * RECORD_SIZE, bytes);
+
+        start = System.currentTimeMillis();
+        bytes = 0;
+        for (Location location : locations) {
+            bytes += journal.readBuffer(location).remaining();
+        }
+        long bufferReadTime = System.currentTimeMillis() - start;
+        assertEquals((long) WRITERS * RECORDS * RECORD_SIZE, bytes);
+
+        long total = (long) WRITERS * RECORDS;
+        LOG.info(getClass().getSimpleName() + ": " + WRITERS + " writers, " + RECORD_SIZE + " byte records");
+        LOG.info("Append rate:      " + (total * 1000 / Math.max(1, writeTime)) + " records/sec");
+        LOG.info("Read rate:        " + (total * 1000 / Math.max(1, readTime)) + " records/sec");
+        LOG.info("Buffer read rate: " + (total * 1000 / Math.max(1, bufferReadTime)) + " records/sec");
+    }
+}
@@ -17,6 +17,9 @@
 package org.apache.kahadb.journal;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -120,4 +123,55 @@ public class JournalTest extends TestCase {
             assertTrue("queued data is written", dataManager.getInflightWrites().isEmpty());
         }
     }
+
+    public void testReadRecordsMatchesLocations() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            dataManager.write(new ByteSequence(("DATA" + i).getBytes()), i % 10 == 0);
+        }
+        dataManager.close();
+        dataManager = new Journal();
+        dataManager.setDirectory(dir);
+        configure(dataManager);
+        dataManager.start();
+
+        List<Journal.Record> records = new ArrayList<Journal.Record>();
+        for (Integer id : new TreeSet<Integer>(dataManager.getFileMap().keySet())) {
+            assertTrue(readRecords(id, 0, records));
+        }
+        assertEquals(100, records.size());
+
+        Location location = null;
+        for (int i = 0; i < 100; i++) {
+            location = dataManager.getNextLocation(location);
+            Journal.Record record = records.get(i);
+            assertEquals(location, record.location);
+            assertEquals(location.getSize(), record.location.getSize());
+            assertEquals("DATA" + i, new String(record.data.getData(), record.data.getOffset(), record.data.getLength()));
+        }
+        assertNull(dataManager.getNextLocation(location));
+
+        // from the middle of the file
+        records.clear();
+        Location middle = dataManager.getNextLocation(null);
+        for (int i = 0; i < 50; i++) {
+            middle = dataManager.getNextLocation(middle);
+        }
+        readRecords(middle.getDataFileId(), middle.getOffset(), records);
+        assertEquals(middle, records.get(0).location);
+        assertEquals(50, records.size());
+    }
+
+    /**
+     * Reads the file in reads smaller than most records, so records larger
+     * than a read and records split over two reads are both covered.
+     */
+    private boolean readRecords(int dataFileId, int offset, List<Journal.Record> records) throws Exception {
+        int length = dataManager.getFileMap().get(dataFileId).getLength();
+        while (offset >= 0 && offset < length) {
+            int next = dataManager.readRecords(dataFileId, offset, 20, records);
+            assertTrue("made progress", next < 0 || next > offset);
+            offset = next;
+        }
+        return offset >= 0;
+    }
 }
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.journal;
+
+import java.nio.ByteBuffer;
+
+import org.apache.kahadb.util.ByteSequence;
+
+public class MappedJournalTest extends JournalTest {
+
+    @Override
+    protected void configure(Journal dataManager) {
+        dataManager.setMemoryMapped(true);
+    }
+
+    public void testReadWrittenRecords() throws Exception {
+        Location[] locations = new Location[100];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = dataManager.write(new ByteSequence(("DATA-" + i).getBytes()), i % 10 == 0);
+        }
+        dataManager.write(new ByteSequence("LAST".getBytes()), true);
+
+        for (int i = 0; i < locations.length; i++) {
+            ByteSequence data = dataManager.read(locations[i]);
+            assertEquals("DATA-" + i, new String(data.getData(), data.getOffset(), data.getLength()));
+
+            ByteBuffer buffer = dataManager.readBuffer(locations[i]);
+            assertTrue(buffer.isReadOnly());
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.get(copy);
+            assertEquals("DATA-" + i, new String(copy));
+        }
+    }
+
+    public void testRecoveryAfterRestart() throws Exception {
+        Location last = null;
+        for (int i = 0; i < 50; i++) {
+            last = dataManager.write(new ByteSequence(("DATA-" + i).getBytes()), false);
+        }
+        dataManager.write(new ByteSequence("SYNC".getBytes()), true);
+        dataManager.close();
+
+        // the preallocated space is cut back when the journal is closed
+        DataFile dataFile = new DataFile(dataManager.getFile(last.getDataFileId()), last.getDataFileId(), 0);
+        assertTrue(dataFile.getLength() < dataManager.getMaxFileLength());
+
+        dataManager = new Journal();
+        dataManager.setDirectory(dir);
+        dataManager.setCheckForCorruptionOnStartup(true);
+        configure(dataManager);
+        dataManager.start();
+
+        int count = 0;
+        Location location = null;
+        while ((location = dataManager.getNextLocation(location)) != null) {
+            count++;
+        }
+        assertEquals(51, count);
+
+        ByteSequence data = dataManager.read(last);
+        assertEquals("DATA-49", new String(data.getData(), data.getOffset(), data.getLength()));
+
+        Location next = dataManager.write(new ByteSequence("AFTER".getBytes()), true);
+        data = dataManager.read(next);
+        assertEquals("AFTER", new String(data.getData(), data.getOffset(), data.getLength()));
+    }
+
+    public void testRotateToNextFile() throws Exception {
+        dataManager.close();
+        dataManager = new Journal();
+        dataManager.setDirectory(dir);
+        dataManager.setMaxFileLength(64 * 1024);
+        configure(dataManager);
+        dataManager.start();
+
+        byte[] payload = new byte[1024];
+        Location first = dataManager.write(new ByteSequence(payload), true);
+        Location last = null;
+        for (int i = 0; i < 200; i++) {
+            last = dataManager.write(new ByteSequence(payload), true);
+        }
+        assertTrue(last.getDataFileId() > first.getDataFileId());
+        assertEquals(payload.length, dataManager.read(first).getLength());
+        assertEquals(payload.length, dataManager.read(last).getLength());
+    }
+}
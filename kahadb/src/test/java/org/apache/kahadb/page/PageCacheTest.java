@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.page;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.kahadb.util.StringMarshaller;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class PageCacheTest extends TestCase {
+
+    private static final int PAGE_SIZE = 1024;
+
+    public void testLRUSizedInBytes() {
+        PageCache cache = new LRUPageCache(10 * PAGE_SIZE);
+        for (long i = 0; i < 5; i++) {
+            cache.put(new Page(i), 2 * PAGE_SIZE);
+        }
+        assertEquals(5, cache.getEntryCount());
+        assertEquals(10 * PAGE_SIZE, cache.getSize());
+
+        cache.put(new Page(5L), PAGE_SIZE);
+        assertEquals(5, cache.getEntryCount());
+        assertEquals(9 * PAGE_SIZE, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(0));
+        assertNotNull(cache.get(5));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0.5, cache.getHitRatio(), 0.001);
+
+        cache.remove(5);
+        assertEquals(8 * PAGE_SIZE, cache.getSize());
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testLRUFlushedByScan() {
+        PageCache cache = new LRUPageCache(100 * PAGE_SIZE);
+        assertTrue(hotSetHits(cache) < 50);
+    }
+
+    public void testTwoQueueResistsScan() {
+        PageCache cache = new TwoQueuePageCache(100 * PAGE_SIZE, 50);
+        assertEquals(50, hotSetHits(cache));
+        assertTrue(cache.getSize() <= cache.getMaxSize());
+        assertTrue(cache.getEvictionCount() > 0);
+    }
+
+    public void testTwoQueuePromotesRecentlyEvicted() {
+        TwoQueuePageCache cache = new TwoQueuePageCache(8 * PAGE_SIZE, 8);
+        // once full, only 2 pages are kept in the queue of pages seen once
+        for (long i = 0; i < 10; i++) {
+            cache.put(new Page(i), PAGE_SIZE);
+        }
+        assertEquals(2, cache.getEvictionCount());
+        assertNull(cache.get(0));
+        // a page read again after it was evicted goes to the main queue
+        cache.put(new Page(0L), PAGE_SIZE);
+        for (long i = 10; i < 20; i++) {
+            cache.put(new Page(i), PAGE_SIZE);
+        }
+        assertNotNull(cache.get(0));
+        assertTrue(cache.getSize() <= 8 * PAGE_SIZE);
+    }
+
+    public void testLFUSizedInPages() {
+        PageCache cache = new LFUPageCache(10 * PAGE_SIZE, PAGE_SIZE, 0.2f);
+        for (long i = 0; i < 20; i++) {
+            cache.put(new Page(i), PAGE_SIZE);
+        }
+        assertTrue(cache.getSize() <= 10 * PAGE_SIZE);
+        assertEquals(cache.getEntryCount() * PAGE_SIZE, cache.getSize());
+        assertEquals(20 - cache.getEntryCount(), cache.getEvictionCount());
+    }
+
+    public void testOffHeapPageStore() {
+        OffHeapPageStore store = new OffHeapPageStore(4 * PAGE_SIZE, PAGE_SIZE);
+        byte[] data = new byte[PAGE_SIZE];
+        for (int i = 0; i < 5; i++) {
+            Arrays.fill(data, (byte) i);
+            store.write(i, data);
+        }
+        assertEquals(4 * PAGE_SIZE, store.getSize());
+        assertEquals(1, store.getEvictionCount());
+        assertFalse(store.read(0, data));
+
+        byte[] header = new byte[Page.PAGE_HEADER_SIZE];
+        assertTrue(store.read(3, header));
+        assertEquals(3, header[0]);
+        assertTrue(store.read(4, data));
+        assertEquals(4, data[PAGE_SIZE - 1]);
+
+        Arrays.fill(data, (byte) 7);
+        store.write(4, data);
+        Arrays.fill(data, (byte) 0);
+        assertTrue(store.read(4, data));
+        assertEquals(7, data[0]);
+
+        store.remove(4);
+        assertFalse(store.read(4, data));
+        assertEquals(3 * PAGE_SIZE, store.getSize());
+        store.clear();
+        assertEquals(0, store.getSize());
+    }
+
+    public void testPageFileWithTwoQueueAndOffHeapCache() throws Exception {
+        PageFile pf = new PageFile(new File("target/test-data"), getName());
+        pf.delete();
+        pf.setPageSize(PAGE_SIZE);
+        pf.setPageCachePolicy("2Q");
+        pf.setPageCacheMaxSize(16 * PAGE_SIZE);
+        pf.setOffHeapPageCacheSize(64 * PAGE_SIZE);
+        pf.load();
+        assertTrue(pf.getPageCache() instanceof TwoQueuePageCache);
+
+        // one value spans 3 pages
+        char[] big = new char[2 * PAGE_SIZE];
+        Arrays.fill(big, 'x');
+        String value = new String(big);
+
+        Transaction tx = pf.tx();
+        Page<String> page = tx.allocate();
+        page.set(value);
+        tx.store(page, StringMarshaller.INSTANCE, true);
+        tx.commit();
+        pf.flush();
+
+        // a value loaded from a chain is charged for all its pages
+        pf.getPageCache().clear();
+        assertEquals(value, tx.load(page.getPageId(), StringMarshaller.INSTANCE).get());
+        assertEquals(1, pf.getPageCache().getEntryCount());
+        assertEquals(3 * PAGE_SIZE, pf.getPageCache().getSize());
+
+        for (int i = 0; i < 32; i++) {
+            Page<String> p = tx.allocate();
+            p.set("page:" + i);
+            tx.store(p, StringMarshaller.INSTANCE, false);
+            tx.commit();
+        }
+        pf.flush();
+        assertTrue(pf.getPageCache().getSize() <= 16 * PAGE_SIZE);
+
+        // the chain dropped out of the page cache but is still off heap
+        pf.getPageCache().clear();
+        long misses = pf.getOffHeapPageStore().getMissCount();
+        Page<String> loaded = tx.load(page.getPageId(), StringMarshaller.INSTANCE);
+        assertEquals(value, loaded.get());
+        assertEquals(misses, pf.getOffHeapPageStore().getMissCount());
+
+        pf.unload();
+        assertNull(pf.getPageCache());
+        assertNull(pf.getOffHeapPageStore());
+        pf.load();
+        tx = pf.tx();
+        assertEquals(value, tx.load(page.getPageId(), StringMarshaller.INSTANCE).get());
+        pf.unload();
+    }
+
+    /**
+     * Reads a hot set of 50 pages over and over along with a few other pages,
+     * then scans 1000 pages once and counts the pages of the hot set still in
+     * the cache.
+     */
+    private int hotSetHits(PageCache cache) {
+        long cold = 1000;
+        for (int round = 0; round < 10; round++) {
+            for (long i = 0; i < 50; i++) {
+                read(cache, i);
+            }
+            for (int i = 0; i < 30; i++) {
+                read(cache, cold++);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            read(cache, cold++);
+        }
+        int hits = 0;
+        for (long i = 0; i < 50; i++) {
+            if (cache.get(i) != null) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    private void read(PageCache cache, long pageId) {
+        if (cache.get(pageId) == null) {
+            cache.put(new Page(pageId), PAGE_SIZE);
+        }
+    }
+}
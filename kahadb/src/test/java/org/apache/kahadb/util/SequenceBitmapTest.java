@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kahadb.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class SequenceBitmapTest {
+
+    @Test
+    public void testAddRemoveContains() {
+        SequenceBitmap set = new SequenceBitmap();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(1));
+        assertFalse(set.add(1));
+        assertTrue(set.add(3));
+        assertTrue(set.add(2));
+        assertTrue(set.add(70000));
+        assertEquals(4, set.cardinality());
+        assertTrue(set.contains(2));
+        assertFalse(set.contains(4));
+        assertEquals(1, set.first());
+        assertEquals(70000, set.last());
+
+        assertTrue(set.remove(2));
+        assertFalse(set.remove(2));
+        assertTrue(set.remove(70000));
+        assertEquals(3, set.last());
+        assertEquals("[1,3]", set.toString());
+    }
+
+    @Test
+    public void testMatchesTreeSet() throws Exception {
+        Random random = new Random(42);
+        SequenceBitmap set = new SequenceBitmap();
+        TreeSet<Long> expected = new TreeSet<Long>();
+        // dense enough for some blocks to turn into bitmaps and back
+        for (int i = 0; i < 200000; i++) {
+            long value = random.nextInt(3 * 65536);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(value), set.remove(value));
+            } else {
+                assertEquals(expected.add(value), set.add(value));
+            }
+        }
+        assertSame(expected, set);
+        assertSame(expected, marshal(set));
+
+        for (Long value : expected) {
+            if (value % 5 != 0) {
+                set.remove(value);
+            }
+        }
+        expected.clear();
+        for (Long value : set) {
+            expected.add(value);
+        }
+        assertSame(expected, marshal(set));
+    }
+
+    @Test
+    public void testRangesStaySmall() throws Exception {
+        SequenceBitmap set = new SequenceBitmap();
+        for (long i = 0; i < 1000000; i++) {
+            set.add(i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SequenceBitmap.Marshaller.INSTANCE.writePayload(set, new DataOutputStream(bytes));
+        assertTrue("size " + bytes.size(), bytes.size() < 16 * 20);
+
+        // every other value pending is a bitmap, a bit per value
+        for (long i = 0; i < 1000000; i += 2) {
+            set.remove(i);
+        }
+        bytes.reset();
+        SequenceBitmap.Marshaller.INSTANCE.writePayload(set, new DataOutputStream(bytes));
+        assertTrue("size " + bytes.size(), bytes.size() < 16 * (65536 / 8 + 20));
+        assertEquals(500000, set.cardinality());
+    }
+
+    private SequenceBitmap marshal(SequenceBitmap set) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SequenceBitmap.Marshaller.INSTANCE.writePayload(set, new DataOutputStream(bytes));
+        return SequenceBitmap.Marshaller.INSTANCE.readPayload(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private void assertSame(TreeSet<Long> expected, SequenceBitmap set) {
+        assertEquals(expected.size(), set.cardinality());
+        if (!expected.isEmpty()) {
+            assertEquals(expected.first().longValue(), set.first());
+            assertEquals(expected.last().longValue(), set.last());
+        }
+        Iterator<Long> values = set.iterator();
+        for (Long value : expected) {
+            assertTrue(set.contains(value));
+            assertEquals(value, values.next());
+        }
+        assertFalse(values.hasNext());
+    }
+}